@@ -0,0 +1,110 @@
+package de.blau.android.names;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import de.blau.android.names.Names.NameAndTags;
+import de.blau.android.osm.Tags;
+import de.blau.android.util.SearchIndexUtils;
+
+/**
+ * Lookups in the on disk name suggestion index
+ *
+ * @author simon
+ *
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class NamesTest {
+
+    /**
+     * Total number of entries in the NSI file in the assets
+     */
+    private static final int ENTRIES = 3722;
+
+    Names names = null;
+
+    /**
+     * Pre-test setup
+     */
+    @Before
+    public void setup() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        names = new Names(context);
+    }
+
+    /**
+     * Check that entries are found by their tags and filtered by region
+     */
+    @Test
+    public void byTags() {
+        TreeMap<String, String> tags = new TreeMap<>();
+        tags.put(Tags.KEY_AMENITY, "fast_food");
+        List<NameAndTags> result = names.getNames(tags, Arrays.asList("US"));
+        Assert.assertTrue(contains(result, "McDonald's"));
+        Assert.assertTrue(contains(result, "A&W (USA)"));
+        Assert.assertFalse(contains(result, "A&W (Canada)"));
+        for (NameAndTags nt : result) {
+            Assert.assertTrue(nt.inUseIn(Arrays.asList("US")));
+        }
+    }
+
+    /**
+     * Check that the complete list is returned when no relevant tags are present and that repeated calls return the
+     * same entries
+     */
+    @Test
+    public void all() {
+        List<NameAndTags> all = names.getNames(new TreeMap<String, String>(), null);
+        Assert.assertEquals(ENTRIES, all.size());
+        List<NameAndTags> canada = names.getNames(new TreeMap<String, String>(), Arrays.asList("CA"));
+        Assert.assertTrue(canada.size() < ENTRIES);
+        Assert.assertTrue(contains(canada, "A&W (Canada)"));
+        Assert.assertFalse(contains(canada, "A&W (USA)"));
+        Assert.assertEquals(canada, names.getNames(new TreeMap<String, String>(), Arrays.asList("CA")));
+        // modifying the result must not change what is returned the next time
+        canada.clear();
+        Assert.assertTrue(contains(names.getNames(new TreeMap<String, String>(), Arrays.asList("CA")), "A&W (Canada)"));
+        Assert.assertEquals(ENTRIES, names.getNames(new TreeMap<String, String>(), null).size());
+    }
+
+    /**
+     * Check lookups by normalized name
+     */
+    @Test
+    public void byName() {
+        String normalized = SearchIndexUtils.normalize("McDonald's");
+        Assert.assertTrue(names.getNormalizedNames().contains(normalized));
+        List<NameAndTags> result = names.getByNormalizedName(normalized);
+        Assert.assertFalse(result.isEmpty());
+        Assert.assertEquals("McDonald's", result.get(0).getName());
+        Assert.assertEquals("fast_food", result.get(0).getTags().get(Tags.KEY_AMENITY));
+        Assert.assertTrue(names.getByNormalizedName("xyzzy not a name").isEmpty());
+    }
+
+    /**
+     * Check if a List of entries contains one with a specific name
+     *
+     * @param entries the entries
+     * @param name the name
+     * @return true if found
+     */
+    private boolean contains(List<NameAndTags> entries, String name) {
+        for (NameAndTags nt : entries) {
+            if (name.equals(nt.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -584,7 +584,11 @@ public class ApiTest {
     private void downloadErrorTest(int code) {
         final CountDownLatch signal = new CountDownLatch(1);
         mockServer.enqueue("capabilities1");
-        mockServer.enqueue("" + code);
+        // server errors are retried
+        int attempts = code >= 500 ? 1 + BoxDownloader.MAX_RETRIES : 1;
+        for (int i = 0; i < attempts; i++) {
+            mockServer.enqueue("" + code);
+        }
         Logic logic = App.getLogic();
         logic.downloadBox(main, new BoundingBox(8.3844600D, 47.3892400D, 8.3879800D, 47.3911300D), false, new SignalHandler(signal));
         try {
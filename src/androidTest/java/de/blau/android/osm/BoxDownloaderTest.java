@@ -0,0 +1,140 @@
+package de.blau.android.osm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.xml.sax.SAXException;
+
+import com.orhanobut.mockwebserverplus.MockWebServerPlus;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import de.blau.android.prefs.AdvancedPrefDatabase;
+import okhttp3.HttpUrl;
+
+/**
+ * 
+ * @author simon
+ *
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class BoxDownloaderTest {
+
+    MockWebServerPlus    mockServer = null;
+    Context              context    = null;
+    AdvancedPrefDatabase prefDB     = null;
+
+    /**
+     * Pre-test setup
+     */
+    @Before
+    public void setup() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mockServer = new MockWebServerPlus();
+        HttpUrl mockBaseUrl = mockServer.server().url("/api/0.6/");
+        prefDB = new AdvancedPrefDatabase(context);
+        prefDB.deleteAPI("Test");
+        prefDB.addAPI("Test", "Test", mockBaseUrl.toString(), null, null, "user", "pass", false);
+        prefDB.selectAPI("Test");
+    }
+
+    /**
+     * Post-test teardown
+     */
+    @After
+    public void teardown() {
+        try {
+            mockServer.server().shutdown();
+        } catch (IOException ioex) {
+            System.out.println("Stopping mock webserver exception " + ioex);
+        }
+        prefDB.selectAPI(AdvancedPrefDatabase.ID_DEFAULT);
+    }
+
+    /**
+     * Check that a 2 km x 2 km area is split in to tiles and that loaded areas are skipped
+     */
+    @Test
+    public void plan() {
+        BoundingBox box = new BoundingBox(8.38D, 47.38D, 8.4065D, 47.398D);
+        List<BoundingBox> tiles = BoxDownloader.plan(new ArrayList<BoundingBox>(), box);
+        Assert.assertEquals(6, tiles.size());
+        for (BoundingBox tile : tiles) {
+            Assert.assertTrue(tile.getWidth() <= BoxDownloader.TILE_SIZE_E7);
+            Assert.assertTrue(tile.getHeight() <= BoxDownloader.TILE_SIZE_E7);
+            Assert.assertTrue(box.contains(tile));
+        }
+        List<BoundingBox> loaded = new ArrayList<>();
+        loaded.add(box);
+        Assert.assertTrue(BoxDownloader.plan(loaded, box).isEmpty());
+    }
+
+    /**
+     * Check that a failed request is retried
+     */
+    @Test
+    public void retry() {
+        mockServer.enqueue("500");
+        mockServer.enqueue("download1");
+        final Server s = new Server(context, prefDB.getCurrentAPI(), "vesupucci test");
+        List<BoundingBox> tiles = BoxDownloader.plan(new ArrayList<BoundingBox>(), new BoundingBox(8.3844600D, 47.3892400D, 8.3879800D, 47.3911300D));
+        Assert.assertEquals(1, tiles.size());
+        try {
+            Storage storage = new BoxDownloader(null, s).download(tiles);
+            Assert.assertEquals(2, mockServer.server().getRequestCount());
+            Assert.assertNotNull(storage.getNode(101792984));
+            // check that relations have been post processed
+            Relation r1 = storage.getRelation(1638705);
+            Relation parent = storage.getRelation(2078158);
+            Assert.assertTrue(r1.hasParentRelation(2078158));
+            Assert.assertNotNull(parent.getMember(r1));
+        } catch (SAXException | ParserConfigurationException | IOException e) {
+            Assert.fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Check that the data of multiple tiles is combined without duplicates
+     */
+    @Test
+    public void combine() {
+        mockServer.enqueue("download1");
+        mockServer.enqueue("download2");
+        final Server s = new Server(context, prefDB.getCurrentAPI(), "vesupucci test");
+        List<BoundingBox> tiles = new ArrayList<>();
+        tiles.add(new BoundingBox(8.3844600D, 47.3892400D, 8.3879800D, 47.3911300D));
+        tiles.add(new BoundingBox(8.3838500D, 47.3883000D, 8.3865200D, 47.3898500D));
+        try {
+            Storage storage = new BoxDownloader(null, s).download(tiles);
+            Assert.assertEquals(2, mockServer.server().getRequestCount());
+            Assert.assertNotNull(storage.getNode(101792984));
+            for (Way w : storage.getWays()) {
+                for (Node n : w.getNodes()) {
+                    Assert.assertSame(storage.getNode(n.getOsmId()), n);
+                }
+            }
+            for (Relation r : storage.getRelations()) {
+                for (RelationMember rm : r.getMembers()) {
+                    OsmElement e = rm.getElement();
+                    if (e != null) {
+                        Assert.assertSame(storage.getOsmElement(rm.getType(), rm.getRef()), e);
+                        Assert.assertTrue(e.hasParentRelation(r));
+                    }
+                }
+            }
+        } catch (SAXException | ParserConfigurationException | IOException e) {
+            Assert.fail(e.getMessage());
+        }
+    }
+}
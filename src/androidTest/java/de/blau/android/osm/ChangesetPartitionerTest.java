@@ -0,0 +1,111 @@
+package de.blau.android.osm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+/**
+ * 
+ * @author simon
+ *
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class ChangesetPartitionerTest {
+
+    /**
+     * Check that created elements follow what they reference and deleted elements precede what they reference
+     */
+    @Test
+    public void order() {
+        Storage storage = new Storage();
+        // relations first so that storage order is the wrong one
+        Relation parent = OsmElementFactory.createRelation(-1, 1, -1, OsmElement.STATE_CREATED);
+        Relation child = OsmElementFactory.createRelation(-2, 1, -1, OsmElement.STATE_CREATED);
+        Way way = OsmElementFactory.createWay(-1, 1, -1, OsmElement.STATE_CREATED);
+        parent.addMember(new RelationMember("", child));
+        child.addMember(new RelationMember("", way));
+        storage.insertRelationUnsafe(parent);
+        storage.insertRelationUnsafe(child);
+        for (long id = -1; id >= -3; id--) {
+            Node n = OsmElementFactory.createNode(id, 1, -1, OsmElement.STATE_CREATED, 0, 0);
+            way.addNode(n);
+            storage.insertNodeUnsafe(n);
+        }
+        storage.insertWayUnsafe(way);
+        Node modified = OsmElementFactory.createNode(10, 2, -1, OsmElement.STATE_MODIFIED, 0, 0);
+        storage.insertNodeUnsafe(modified);
+        Relation deletedParent = OsmElementFactory.createRelation(20, 1, -1, OsmElement.STATE_DELETED);
+        Relation deletedChild = OsmElementFactory.createRelation(21, 1, -1, OsmElement.STATE_DELETED);
+        deletedParent.addMember(new RelationMember("", deletedChild));
+        Way deletedWay = OsmElementFactory.createWay(20, 1, -1, OsmElement.STATE_DELETED);
+        Node deletedNode = OsmElementFactory.createNode(20, 1, -1, OsmElement.STATE_DELETED, 0, 0);
+        deletedWay.addNode(deletedNode);
+        deletedChild.addMember(new RelationMember("", deletedWay));
+        storage.insertNodeUnsafe(deletedNode);
+        storage.insertRelationUnsafe(deletedChild);
+        storage.insertRelationUnsafe(deletedParent);
+        storage.insertWayUnsafe(deletedWay);
+
+        List<OsmElement> order = ChangesetPartitioner.order(storage);
+        Assert.assertEquals(11, order.size());
+        for (Node n : way.getNodes()) {
+            Assert.assertTrue(order.indexOf(n) < order.indexOf(way));
+        }
+        Assert.assertTrue(order.indexOf(way) < order.indexOf(child));
+        Assert.assertTrue(order.indexOf(child) < order.indexOf(parent));
+        Assert.assertTrue(order.indexOf(parent) < order.indexOf(modified));
+        Assert.assertTrue(order.indexOf(modified) < order.indexOf(deletedParent));
+        Assert.assertTrue(order.indexOf(deletedParent) < order.indexOf(deletedChild));
+        Assert.assertTrue(order.indexOf(deletedChild) < order.indexOf(deletedWay));
+        Assert.assertTrue(order.indexOf(deletedWay) < order.indexOf(deletedNode));
+
+        List<List<OsmElement>> chunks = ChangesetPartitioner.partition(storage, 4);
+        Assert.assertEquals(3, chunks.size());
+        Assert.assertEquals(4, chunks.get(0).size());
+        Assert.assertEquals(3, chunks.get(2).size());
+        Assert.assertEquals(order, concat(chunks));
+    }
+
+    /**
+     * Check that elements in a reference cycle are not lost
+     */
+    @Test
+    public void cycle() {
+        Storage storage = new Storage();
+        Relation r1 = OsmElementFactory.createRelation(-1, 1, -1, OsmElement.STATE_CREATED);
+        Relation r2 = OsmElementFactory.createRelation(-2, 1, -1, OsmElement.STATE_CREATED);
+        Relation r3 = OsmElementFactory.createRelation(-3, 1, -1, OsmElement.STATE_CREATED);
+        r1.addMember(new RelationMember("", r2));
+        r2.addMember(new RelationMember("", r1));
+        r3.addMember(new RelationMember("", r1));
+        storage.insertRelationUnsafe(r1);
+        storage.insertRelationUnsafe(r2);
+        storage.insertRelationUnsafe(r3);
+        List<OsmElement> order = ChangesetPartitioner.order(storage);
+        Assert.assertEquals(3, order.size());
+        Assert.assertTrue(order.contains(r1));
+        Assert.assertTrue(order.contains(r2));
+        Assert.assertTrue(order.contains(r3));
+    }
+
+    /**
+     * Concatenate chunks
+     * 
+     * @param chunks the chunks
+     * @return a List containing all elements in order
+     */
+    private static List<OsmElement> concat(List<List<OsmElement>> chunks) {
+        List<OsmElement> result = new ArrayList<>();
+        for (List<OsmElement> chunk : chunks) {
+            result.addAll(chunk);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,117 @@
+package de.blau.android.osm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.xml.sax.SAXException;
+
+import com.orhanobut.mockwebserverplus.MockWebServerPlus;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import de.blau.android.prefs.AdvancedPrefDatabase;
+import okhttp3.HttpUrl;
+import okhttp3.mockwebserver.RecordedRequest;
+
+/**
+ * 
+ * @author simon
+ *
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class ElementDownloaderTest {
+
+    MockWebServerPlus    mockServer = null;
+    Context              context    = null;
+    AdvancedPrefDatabase prefDB     = null;
+
+    /**
+     * Pre-test setup
+     */
+    @Before
+    public void setup() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mockServer = new MockWebServerPlus();
+        HttpUrl mockBaseUrl = mockServer.server().url("/api/0.6/");
+        prefDB = new AdvancedPrefDatabase(context);
+        prefDB.deleteAPI("Test");
+        prefDB.addAPI("Test", "Test", mockBaseUrl.toString(), null, null, "user", "pass", false);
+        prefDB.selectAPI("Test");
+    }
+
+    /**
+     * Post-test teardown
+     */
+    @After
+    public void teardown() {
+        try {
+            mockServer.server().shutdown();
+        } catch (IOException ioex) {
+            System.out.println("Stopping mock webserver exception " + ioex);
+        }
+        prefDB.selectAPI(AdvancedPrefDatabase.ID_DEFAULT);
+    }
+
+    /**
+     * Check that ids are split in to batches that respect the maximum length and keep all ids in order
+     */
+    @Test
+    public void batches() {
+        List<Long> ids = new ArrayList<>();
+        for (long id = 1000000000L; id < 1000001000L; id++) {
+            ids.add(id);
+        }
+        List<long[]> batches = ElementDownloader.batches(ids, 109); // 10 ids of 10 digits and 9 separators
+        Assert.assertEquals(100, batches.size());
+        int i = 0;
+        for (long[] batch : batches) {
+            Assert.assertEquals(10, batch.length);
+            for (long id : batch) {
+                Assert.assertEquals((long) ids.get(i++), id);
+            }
+        }
+        Assert.assertEquals(1, ElementDownloader.batches(Arrays.asList(123456789L), 5).size());
+        Assert.assertTrue(ElementDownloader.batches(new ArrayList<Long>(), 5).isEmpty());
+    }
+
+    /**
+     * Check that ways are fetched without nodes and the nodes are then fetched in one request
+     */
+    @Test
+    public void ways() {
+        mockServer.enqueue("multifetchways1");
+        mockServer.enqueue("multifetchnodes1");
+        Server server = new Server(context, prefDB.getCurrentAPI(), "vesupucci test");
+        try {
+            Storage storage = new ElementDownloader(null, server).download(null, Arrays.asList(10L, 11L), null);
+            Assert.assertEquals(2, storage.getWays().size());
+            Assert.assertEquals(4, storage.getNodes().size());
+            Way w = storage.getWay(10L);
+            Assert.assertNotNull(w);
+            Assert.assertEquals(3, w.getNodes().size());
+            for (Node n : w.getNodes()) {
+                Assert.assertSame(storage.getNode(n.getOsmId()), n);
+            }
+            Assert.assertSame(w.getLastNode(), storage.getWay(11L).getFirstNode());
+            RecordedRequest request = mockServer.server().takeRequest(1, TimeUnit.SECONDS);
+            Assert.assertTrue(request.getPath().contains("ways?ways=10,11"));
+            request = mockServer.server().takeRequest(1, TimeUnit.SECONDS);
+            Assert.assertTrue(request.getPath().contains("nodes?nodes="));
+        } catch (SAXException | ParserConfigurationException | IOException | InterruptedException e) {
+            Assert.fail(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package de.blau.android.osm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+/**
+ * 
+ * @author simon
+ *
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class StorageTest {
+
+    /**
+     * Check that elements with changed ids can be found under the new id and not the old one
+     */
+    @Test
+    public void remap() {
+        Storage storage = new Storage();
+        for (long id = 1; id <= 1000; id++) {
+            storage.insertNodeUnsafe(OsmElementFactory.createNode(id, 1, -1, OsmElement.STATE_UNCHANGED, 0, 0));
+        }
+        List<Node> created = new ArrayList<>();
+        for (long id = -1; id >= -100; id--) {
+            Node n = OsmElementFactory.createNode(id, 1, -1, OsmElement.STATE_CREATED, 0, 0);
+            storage.insertNodeUnsafe(n);
+            created.add(n);
+        }
+        Way w = OsmElementFactory.createWay(-1, 1, -1, OsmElement.STATE_CREATED);
+        storage.insertWayUnsafe(w);
+
+        for (Node n : created) {
+            long oldId = n.getOsmId();
+            n.setOsmId(2000 - oldId);
+            Assert.assertTrue(storage.remap(oldId, n));
+            Assert.assertFalse(storage.remap(oldId, n));
+        }
+        w.setOsmId(5000);
+        Assert.assertTrue(storage.remap(-1, w));
+
+        Assert.assertEquals(1100, storage.getNodes().size());
+        for (Node n : created) {
+            Assert.assertSame(n, storage.getNode(n.getOsmId()));
+            Assert.assertNull(storage.getNode(2000 - n.getOsmId()));
+        }
+        Assert.assertNotNull(storage.getNode(1));
+        Assert.assertSame(w, storage.getWay(5000));
+        Assert.assertNull(storage.getWay(-1));
+    }
+}
@@ -218,6 +218,52 @@ public class TagFilterTest {
         }
     }
 
+    @Test
+    public void tagFilterIncrementalUpdate() {
+        try {
+            TreeMap<String, String> tags = new TreeMap<String, String>();
+            tags.put(Tags.KEY_BUILDING, "yes");
+            Logic logic = App.getLogic();
+
+            logic.performAdd(main, 100.0f, 100.0f);
+
+            Node n1 = logic.getSelectedNode();
+            logic.performAdd(main, 1000.0f, 1000.0f);
+            Node n2 = logic.getSelectedNode();
+            Way w = logic.getSelectedWay();
+            logic.setSelectedNode(null);
+            logic.setSelectedWay(null);
+            w.setTags(tags);
+
+            insertTagFilterRow(db, TagFilter.DEFAULT_FILTER, true, true, "way+", Tags.KEY_BUILDING, null);
+
+            TagFilter f = new TagFilter(context);
+            Assert.assertTrue(f.include(w, false));
+            Assert.assertTrue(f.include(n1, false));
+            Assert.assertTrue(f.include(n2, false));
+            Assert.assertTrue(f.getVisibleWays().contains(w));
+            Assert.assertEquals(2, f.getVisibleNodes().size());
+            Assert.assertTrue(f.getVisibleWays(w.getBounds()).contains(w));
+            Assert.assertTrue(f.getVisibleNodes(n1.getBounds()).contains(n1));
+            Assert.assertFalse(f.getVisibleNodes(n1.getBounds()).contains(n2));
+
+            // changing the way should invalidate it and its nodes only
+            tags.clear();
+            tags.put(Tags.KEY_HIGHWAY, "residential");
+            w.setTags(tags);
+            ArrayList<OsmElement> changed = new ArrayList<OsmElement>();
+            changed.add(w);
+            f.onElementChanged(null, changed);
+            Assert.assertTrue(f.getVisibleWays().isEmpty());
+            Assert.assertTrue(f.getVisibleNodes().isEmpty());
+            Assert.assertFalse(f.include(w, false));
+            Assert.assertFalse(f.include(n1, false));
+            Assert.assertFalse(f.include(n2, false));
+        } catch (OsmIllegalOperationException e) {
+            Assert.fail(e.getMessage());
+        }
+    }
+
     private void insertTagFilterRow(SQLiteDatabase db, String filter, boolean active, boolean include, String type, String key, String value) {
         ContentValues values = new ContentValues();
         values.put("filter", filter);
@@ -0,0 +1,238 @@
+package de.blau.android.photos;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+/**
+ * Incremental scanning of directories for images, the images are not actually read
+ *
+ * @author simon
+ *
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class PhotoIndexTest {
+
+    Context        context = null;
+    File           root    = null;
+    SQLiteDatabase db      = null;
+    AtomicInteger  reads   = new AtomicInteger();
+    PhotoIndex     index   = null;
+
+    /**
+     * Pre-test setup
+     */
+    @Before
+    public void setup() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        root = new File(context.getCacheDir(), "photoindextest");
+        delete(root);
+        Assert.assertTrue(root.mkdirs());
+        index = new PhotoIndex(context, null) {
+            @Override
+            Photo readPhoto(@NonNull File dir, @NonNull File f) {
+                reads.incrementAndGet();
+                return null;
+            }
+        };
+        db = index.getWritableDatabase();
+    }
+
+    /**
+     * Post-test teardown
+     */
+    @After
+    public void teardown() {
+        db.close();
+        index.close();
+        delete(root);
+    }
+
+    /**
+     * Check that only new and changed images are read and that removed images are removed from the database
+     */
+    @Test
+    public void scan() {
+        File sub = new File(root, "sub");
+        Assert.assertTrue(sub.mkdir());
+        File image1 = image(root, "1.jpg", 10);
+        File image2 = image(sub, "2.jpg", 10);
+        image(sub, "notes.txt", 10);
+
+        Assert.assertTrue(index.scan(db, roots()));
+        Assert.assertEquals(2, reads.get());
+        Assert.assertTrue(PhotoIndex.load(db, root.getAbsolutePath()).keySet().containsAll(Arrays.asList(ref(image1), ref(image2))));
+        Assert.assertEquals(2, PhotoIndex.load(db, root.getAbsolutePath()).size());
+        Assert.assertEquals(1, PhotoIndex.load(db, sub.getAbsolutePath()).size());
+
+        // nothing changed
+        reads.set(0);
+        Assert.assertTrue(index.scan(db, roots()));
+        Assert.assertEquals(0, reads.get());
+
+        // changed size
+        image(root, "1.jpg", 20);
+        Assert.assertTrue(index.scan(db, roots()));
+        Assert.assertEquals(1, reads.get());
+        Assert.assertEquals(2, PhotoIndex.load(db, root.getAbsolutePath()).size());
+
+        // removed
+        reads.set(0);
+        Assert.assertTrue(image2.delete());
+        Assert.assertTrue(index.scan(db, roots()));
+        Assert.assertEquals(0, reads.get());
+        Assert.assertEquals(1, PhotoIndex.load(db, root.getAbsolutePath()).size());
+        Assert.assertTrue(PhotoIndex.load(db, sub.getAbsolutePath()).isEmpty());
+    }
+
+    /**
+     * Check that images in a directory that can't be listed are retained
+     */
+    @Test
+    public void unreadable() {
+        File sub = new File(root, "sub");
+        Assert.assertTrue(sub.mkdir());
+        File nested = new File(sub, "nested");
+        Assert.assertTrue(nested.mkdir());
+        image(sub, "1.jpg", 10);
+        image(nested, "2.jpg", 10);
+        Assert.assertTrue(index.scan(db, roots()));
+        Assert.assertEquals(2, PhotoIndex.load(db, root.getAbsolutePath()).size());
+        try {
+            Assert.assertTrue(sub.setReadable(false, false));
+            Assert.assertNull(sub.listFiles());
+            Assert.assertTrue(index.scan(db, roots()));
+            Assert.assertEquals(2, PhotoIndex.load(db, root.getAbsolutePath()).size());
+        } finally {
+            sub.setReadable(true, false);
+        }
+        // readable again, nothing has changed
+        reads.set(0);
+        Assert.assertTrue(index.scan(db, roots()));
+        Assert.assertEquals(0, reads.get());
+        Assert.assertEquals(2, PhotoIndex.load(db, root.getAbsolutePath()).size());
+    }
+
+    /**
+     * Check that directory trees containing a .novespucci file are skipped
+     */
+    @Test
+    public void excluded() {
+        File sub = new File(root, "sub");
+        Assert.assertTrue(sub.mkdir());
+        image(sub, "1.jpg", 10);
+        image(sub, ".novespucci", 0);
+        Assert.assertTrue(index.scan(db, roots()));
+        Assert.assertEquals(0, reads.get());
+        Assert.assertTrue(PhotoIndex.load(db, root.getAbsolutePath()).isEmpty());
+    }
+
+    /**
+     * Check matching of paths against directories
+     */
+    @Test
+    public void isIn() {
+        List<String> dirs = Arrays.asList("/a/b", "/c");
+        Assert.assertTrue(PhotoIndex.isIn("/a/b/1.jpg", dirs));
+        Assert.assertTrue(PhotoIndex.isIn("/a/b/d/1.jpg", dirs));
+        Assert.assertTrue(PhotoIndex.isIn("/c/1.jpg", dirs));
+        Assert.assertFalse(PhotoIndex.isIn("/a/bc/1.jpg", dirs));
+        Assert.assertFalse(PhotoIndex.isIn("/a/1.jpg", dirs));
+        Assert.assertFalse(PhotoIndex.isIn("/a/b/1.jpg", new ArrayList<String>()));
+    }
+
+    /**
+     * Check that load only returns entries in the directory tree
+     */
+    @Test
+    public void load() {
+        File sub = new File(root, "sub");
+        Assert.assertTrue(sub.mkdir());
+        File other = new File(root, "subother");
+        Assert.assertTrue(other.mkdir());
+        File image1 = image(sub, "1.jpg", 10);
+        image(other, "2.jpg", 10);
+        Assert.assertTrue(index.scan(db, roots()));
+        Assert.assertEquals(2, PhotoIndex.load(db, root.getAbsolutePath()).size());
+        Assert.assertEquals(Arrays.asList(ref(image1)), new ArrayList<>(PhotoIndex.load(db, sub.getAbsolutePath()).keySet()));
+    }
+
+    /**
+     * Get the top level directories for a scan
+     *
+     * @return a List containing the test root directory
+     */
+    @NonNull
+    private List<File> roots() {
+        List<File> roots = new ArrayList<>();
+        roots.add(root);
+        return roots;
+    }
+
+    /**
+     * Get the reference of an image as stored in the database
+     *
+     * @param f the image file
+     * @return the reference
+     */
+    @NonNull
+    private String ref(@NonNull File f) {
+        return f.getParentFile().getAbsolutePath() + "/" + f.getName();
+    }
+
+    /**
+     * Create or overwrite a file with dummy content
+     *
+     * @param dir the directory
+     * @param name the file name
+     * @param length the number of bytes to write
+     * @return the File
+     */
+    @NonNull
+    private File image(@NonNull File dir, @NonNull String name, int length) {
+        File f = new File(dir, name);
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            out.write(new byte[length]);
+        } catch (IOException e) {
+            Assert.fail(e.getMessage());
+        }
+        return f;
+    }
+
+    /**
+     * Delete a file or directory tree
+     *
+     * @param f the file or directory
+     */
+    private void delete(@Nullable File f) {
+        if (f == null || !f.exists()) {
+            return;
+        }
+        File[] list = f.listFiles();
+        if (list != null) {
+            for (File child : list) {
+                delete(child);
+            }
+        }
+        f.delete();
+    }
+}
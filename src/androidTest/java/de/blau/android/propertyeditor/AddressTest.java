@@ -2,6 +2,9 @@ package de.blau.android.propertyeditor;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map.Entry;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
@@ -29,9 +32,12 @@ import de.blau.android.R;
 import de.blau.android.SignalHandler;
 import de.blau.android.TestUtils;
 import de.blau.android.osm.ApiTest;
+import de.blau.android.osm.Node;
+import de.blau.android.osm.Tags;
 import de.blau.android.prefs.AdvancedPrefDatabase;
 import de.blau.android.prefs.Preferences;
 import de.blau.android.resources.TileLayerServer;
+import de.blau.android.util.ElementSearch;
 
 @RunWith(AndroidJUnit4.class)
 @LargeTest
@@ -122,4 +128,39 @@ public class AddressTest {
         Assert.assertTrue(TestUtils.findText(device, false, "35"));
         TestUtils.clickUp(device);
     }
+
+    /**
+     * Predict addresses directly and check the street and the predicted numbers
+     */
+    @Test
+    public void predictNumbers() {
+        Address.resetLastAddresses(context);
+        // the same location as in newAddress, the only number on this side is 37, 38 and 40 are on the other side
+        Node first = logic.performAddNode(main, 83893454, 473901898);
+        java.util.Map<String, ArrayList<String>> tags = predict(first);
+        Assert.assertEquals("Bergstrasse", tags.get(Tags.KEY_ADDR_STREET).get(0));
+        Assert.assertEquals("35", tags.get(Tags.KEY_ADDR_HOUSENUMBER).get(0));
+        java.util.Map<String, String> firstTags = new HashMap<>();
+        for (Entry<String, ArrayList<String>> entry : tags.entrySet()) {
+            firstTags.put(entry.getKey(), entry.getValue().get(0));
+        }
+        logic.setTags(main, first, firstTags);
+
+        // 35 and 37 are now on this side, 37 is taken so the next number away from 35 should be used
+        Node second = logic.performAddNode(main, 83893454, 473901898);
+        tags = predict(second);
+        Assert.assertEquals("Bergstrasse", tags.get(Tags.KEY_ADDR_STREET).get(0));
+        Assert.assertEquals("39", tags.get(Tags.KEY_ADDR_HOUSENUMBER).get(0));
+    }
+
+    /**
+     * Predict the address tags for a Node
+     * 
+     * @param n the Node
+     * @return the predicted tags
+     */
+    private java.util.Map<String, ArrayList<String>> predict(Node n) {
+        return Address.predictAddressTags(main, Node.NAME, n.getOsmId(), new ElementSearch(new int[] { n.getLat(), n.getLon() }, true),
+                new HashMap<String, ArrayList<String>>(), Address.NO_HYSTERESIS);
+    }
 }
@@ -0,0 +1,95 @@
+package de.blau.android.resources;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import de.blau.android.osm.BoundingBox;
+import de.blau.android.resources.TileLayerServer.Provider;
+import de.blau.android.resources.TileLayerServer.Provider.CoverageArea;
+
+/**
+ * 
+ * @author simon
+ *
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class CoverageIndexTest {
+
+    Context context = null;
+
+    /**
+     * Pre-test setup
+     */
+    @Before
+    public void setup() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+    }
+
+    /**
+     * Post-test teardown
+     */
+    @After
+    public void teardown() {
+        context.deleteDatabase(TileLayerDatabase.DATABASE_NAME);
+    }
+
+    /**
+     * Check that only layers with coverage near the queried area and those without coverage information are returned
+     */
+    @Test
+    public void candidates() {
+        TileLayerDatabase tlDb = new TileLayerDatabase(context);
+        SQLiteDatabase db = tlDb.getWritableDatabase();
+        TileLayerServer zurich = addLayer(db, "ZURICH", new BoundingBox(8.4, 47.3, 8.6, 47.5));
+        TileLayerServer paris = addLayer(db, "PARIS", new BoundingBox(2.2, 48.8, 2.5, 48.9));
+        TileLayerServer world = addLayer(db, "WORLD", null);
+        tlDb.close();
+
+        CoverageIndex index = new CoverageIndex(Arrays.asList(zurich, paris, world));
+        Collection<TileLayerServer> candidates = index.getCandidates(new BoundingBox(8.5, 47.35, 8.52, 47.37));
+        Assert.assertEquals(2, candidates.size());
+        Assert.assertTrue(candidates.contains(zurich));
+        Assert.assertTrue(candidates.contains(world));
+        // moving a bit stays in the cached area
+        candidates = index.getCandidates(new BoundingBox(8.51, 47.36, 8.53, 47.38));
+        Assert.assertTrue(candidates.contains(zurich));
+        candidates = index.getCandidates(new BoundingBox(2.3, 48.85, 2.32, 48.87));
+        Assert.assertEquals(2, candidates.size());
+        Assert.assertTrue(candidates.contains(paris));
+        Assert.assertTrue(candidates.contains(world));
+        candidates = index.getCandidates(new BoundingBox(-100, 40, -99.9, 40.1));
+        Assert.assertEquals(1, candidates.size());
+        Assert.assertTrue(candidates.contains(world));
+    }
+
+    /**
+     * Add a layer to the database and read it back
+     * 
+     * @param db the database
+     * @param id the layer id
+     * @param coverage the coverage BoundingBox or null
+     * @return the layer
+     */
+    private TileLayerServer addLayer(SQLiteDatabase db, String id, BoundingBox coverage) {
+        Provider provider = new Provider();
+        if (coverage != null) {
+            provider.addCoverageArea(new CoverageArea(0, 19, coverage));
+        }
+        TileLayerServer.addOrUpdateCustomLayer(context, db, id, null, -1, -1, id, provider, 0, 19, false, "https://example.com/{zoom}/{x}/{y}.png");
+        TileLayerServer layer = TileLayerDatabase.getLayer(context, db, id);
+        Assert.assertNotNull(layer);
+        return layer;
+    }
+}
@@ -0,0 +1,129 @@
+package de.blau.android.services.util;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+/**
+ * 
+ * @author simon
+ *
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class CacheValidatorsTest {
+
+    private static final String ETAG_VALUE          = "\"abc\"";
+    private static final String LAST_MODIFIED_VALUE = "Wed, 21 Oct 2015 07:28:00 GMT";
+
+    MockWebServer server = null;
+    OkHttpClient  client = null;
+    HttpUrl       url    = null;
+
+    /**
+     * Pre-test setup
+     */
+    @Before
+    public void setup() {
+        server = new MockWebServer();
+        client = new OkHttpClient();
+        url = server.url("/1/2/3.png");
+    }
+
+    /**
+     * Post-test teardown
+     */
+    @After
+    public void teardown() {
+        try {
+            server.shutdown();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * Check that a tile with validators is revalidated with a conditional request
+     */
+    @Test
+    public void revalidate() {
+        server.enqueue(new MockResponse().setBody("tile").setHeader(CacheValidators.ETAG, ETAG_VALUE).setHeader("Cache-Control", "max-age=7200"));
+        server.enqueue(new MockResponse().setResponseCode(304).setHeader("Cache-Control", "max-age=7200"));
+        try {
+            long now = System.currentTimeMillis();
+            Response response = client.newCall(new Request.Builder().url(url).build()).execute();
+            Assert.assertEquals(200, response.code());
+            CacheValidators validators = CacheValidators.fromResponse(response, now);
+            response.close();
+            Assert.assertEquals(ETAG_VALUE, validators.getEtag());
+            Assert.assertNull(validators.getLastModified());
+            Assert.assertEquals(now + TimeUnit.HOURS.toMillis(2), validators.getExpires());
+            Assert.assertFalse(validators.isStale(now));
+            Assert.assertTrue(validators.isStale(now + TimeUnit.HOURS.toMillis(3)));
+
+            Request.Builder builder = new Request.Builder().url(url);
+            validators.addConditions(builder);
+            response = client.newCall(builder.build()).execute();
+            Assert.assertEquals(304, response.code());
+            CacheValidators updated = validators.update(response, now + TimeUnit.HOURS.toMillis(3));
+            response.close();
+            Assert.assertEquals(ETAG_VALUE, updated.getEtag());
+            Assert.assertEquals(now + TimeUnit.HOURS.toMillis(5), updated.getExpires());
+
+            server.takeRequest();
+            RecordedRequest conditional = server.takeRequest();
+            Assert.assertEquals(ETAG_VALUE, conditional.getHeader(CacheValidators.IF_NONE_MATCH));
+            Assert.assertNull(conditional.getHeader(CacheValidators.IF_MODIFIED_SINCE));
+        } catch (IOException | InterruptedException e) {
+            Assert.fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Check the expiry time for responses without explicit freshness information
+     */
+    @Test
+    public void defaultExpiry() {
+        server.enqueue(new MockResponse().setBody("tile").setHeader(CacheValidators.LAST_MODIFIED, LAST_MODIFIED_VALUE));
+        server.enqueue(new MockResponse().setBody("tile"));
+        server.enqueue(new MockResponse().setBody("tile").setHeader(CacheValidators.ETAG, ETAG_VALUE).setHeader("Cache-Control", "no-cache"));
+        try {
+            long now = System.currentTimeMillis();
+            Response response = client.newCall(new Request.Builder().url(url).build()).execute();
+            CacheValidators validators = CacheValidators.fromResponse(response, now);
+            response.close();
+            Assert.assertEquals(LAST_MODIFIED_VALUE, validators.getLastModified());
+            Assert.assertEquals(now + CacheValidators.DEFAULT_MAX_AGE, validators.getExpires());
+
+            // nothing to revalidate with
+            response = client.newCall(new Request.Builder().url(url).build()).execute();
+            validators = CacheValidators.fromResponse(response, now);
+            response.close();
+            Assert.assertEquals(CacheValidators.NO_EXPIRY, validators.getExpires());
+            Assert.assertFalse(validators.isStale(Long.MAX_VALUE));
+
+            // don't revalidate on every view
+            response = client.newCall(new Request.Builder().url(url).build()).execute();
+            validators = CacheValidators.fromResponse(response, now);
+            response.close();
+            Assert.assertEquals(now + CacheValidators.MIN_MAX_AGE, validators.getExpires());
+        } catch (IOException e) {
+            Assert.fail(e.getMessage());
+        }
+    }
+}
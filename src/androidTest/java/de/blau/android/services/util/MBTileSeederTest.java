@@ -0,0 +1,209 @@
+package de.blau.android.services.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import de.blau.android.osm.BoundingBox;
+import de.blau.android.resources.MBTileConstants;
+import de.blau.android.resources.TileLayerDatabase;
+import de.blau.android.resources.TileLayerServer;
+import de.blau.android.resources.TileLayerServer.Provider;
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+/**
+ * 
+ * @author simon
+ *
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class MBTileSeederTest {
+
+    private static final String LAYER_ID     = "SEEDTEST";
+    private static final byte[] TILE_DATA    = new byte[] { 1, 2, 3, 4 };
+    private static final int    MISSING_ZOOM = 16;
+
+    Context          context  = null;
+    MockWebServer    server   = null;
+    File             file     = null;
+    volatile boolean notFound = false;
+
+    /**
+     * Pre-test setup
+     */
+    @Before
+    public void setup() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            private boolean throttled = false;
+
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                synchronized (this) {
+                    if (!throttled) {
+                        throttled = true;
+                        return new MockResponse().setResponseCode(429).setHeader("Retry-After", "1");
+                    }
+                }
+                if (notFound && request.getPath().startsWith("/" + MISSING_ZOOM + "/")) {
+                    return new MockResponse().setResponseCode(404);
+                }
+                return new MockResponse().setBody(new Buffer().write(TILE_DATA));
+            }
+        });
+        file = new File(context.getCacheDir(), "seedtest.mbtiles");
+        file.delete(); // NOSONAR
+    }
+
+    /**
+     * Post-test teardown
+     */
+    @After
+    public void teardown() {
+        try {
+            server.shutdown();
+        } catch (IOException e) {
+            // ignore
+        }
+        file.delete(); // NOSONAR
+        context.deleteDatabase(TileLayerDatabase.DATABASE_NAME);
+    }
+
+    /**
+     * Seed a small area, read it back and check that a second run doesn't download anything
+     */
+    @Test
+    public void seed() {
+        TileLayerDatabase tlDb = new TileLayerDatabase(context);
+        SQLiteDatabase db = tlDb.getWritableDatabase();
+        TileLayerServer.addOrUpdateCustomLayer(context, db, LAYER_ID, null, -1, -1, "Seed test", new Provider(), 0, 19, false,
+                server.url("/").toString() + "{zoom}/{x}/{y}.png");
+        TileLayerServer layer = TileLayerDatabase.getLayer(context, db, LAYER_ID);
+        tlDb.close();
+        Assert.assertNotNull(layer);
+
+        BoundingBox box = new BoundingBox(8.38, 47.38, 8.40, 47.39);
+        long total = MBTileSeeder.countTiles(box, 14, 16);
+        Assert.assertTrue(total > 3);
+        final long[] last = new long[2];
+        MBTileSeeder seeder = new MBTileSeeder(new OkHttpClient(), layer, box, 14, 16, file, 2, 0);
+        try {
+            Assert.assertTrue(seeder.run(new MBTileSeeder.ProgressListener() {
+                @Override
+                public void onProgress(long done, long total, long failed, long bytes, double tilesPerSecond) {
+                    synchronized (last) {
+                        last[0] = done;
+                        last[1] = bytes;
+                    }
+                }
+            }));
+        } catch (IOException e) {
+            Assert.fail(e.getMessage());
+        }
+        Assert.assertEquals(total, last[0]);
+        Assert.assertEquals(total * TILE_DATA.length, last[1]);
+        Assert.assertEquals(total + 1, server.getRequestCount());
+
+        MBTileProviderDataBase mbTiles = new MBTileProviderDataBase(context, Uri.fromFile(file), 1);
+        try {
+            Map<String, String> metadata = mbTiles.getMetadata();
+            Assert.assertEquals("14", metadata.get(MBTileConstants.MINZOOM));
+            Assert.assertEquals("16", metadata.get(MBTileConstants.MAXZOOM));
+            Assert.assertEquals(MBTileConstants.PNG, metadata.get(MBTileConstants.FORMAT));
+            int[] range = MBTileSeeder.tileRange(box, 15);
+            Assert.assertTrue(Arrays.equals(TILE_DATA, mbTiles.getTile(new MapTile(LAYER_ID, 15, range[0], range[1]))));
+            Assert.assertTrue(Arrays.equals(TILE_DATA, mbTiles.getTile(new MapTile(LAYER_ID, 15, range[2], range[3]))));
+        } catch (IOException e) {
+            Assert.fail(e.getMessage());
+        } finally {
+            mbTiles.close();
+        }
+
+        // resume, everything is already present
+        seeder = new MBTileSeeder(new OkHttpClient(), layer, box, 14, 16, file, 2, 0);
+        try {
+            Assert.assertTrue(seeder.run(null));
+        } catch (IOException e) {
+            Assert.fail(e.getMessage());
+        }
+        Assert.assertEquals(total + 1, server.getRequestCount());
+    }
+
+    /**
+     * Check that tiles the server doesn't have don't stop the job from completing
+     */
+    @Test
+    public void missing() {
+        notFound = true;
+        TileLayerDatabase tlDb = new TileLayerDatabase(context);
+        SQLiteDatabase db = tlDb.getWritableDatabase();
+        TileLayerServer.addOrUpdateCustomLayer(context, db, LAYER_ID, null, -1, -1, "Seed test", new Provider(), 0, 19, false,
+                server.url("/").toString() + "{zoom}/{x}/{y}.png");
+        TileLayerServer layer = TileLayerDatabase.getLayer(context, db, LAYER_ID);
+        tlDb.close();
+        Assert.assertNotNull(layer);
+
+        BoundingBox box = new BoundingBox(8.38, 47.38, 8.40, 47.39);
+        long total = MBTileSeeder.countTiles(box, 14, MISSING_ZOOM);
+        long missing = MBTileSeeder.countTiles(box, MISSING_ZOOM, MISSING_ZOOM);
+        final long[] last = new long[2];
+        MBTileSeeder seeder = new MBTileSeeder(new OkHttpClient(), layer, box, 14, MISSING_ZOOM, file, 2, 0);
+        try {
+            Assert.assertTrue(seeder.run(new MBTileSeeder.ProgressListener() {
+                @Override
+                public void onProgress(long done, long total, long failed, long bytes, double tilesPerSecond) {
+                    synchronized (last) {
+                        last[0] = done;
+                        last[1] = failed;
+                    }
+                }
+            }));
+        } catch (IOException e) {
+            Assert.fail(e.getMessage());
+        }
+        Assert.assertEquals(total, last[0]);
+        Assert.assertEquals(0, last[1]);
+
+        MBTileProviderDataBase mbTiles = new MBTileProviderDataBase(context, Uri.fromFile(file), 1);
+        try {
+            int[] range = MBTileSeeder.tileRange(box, MISSING_ZOOM);
+            Assert.assertNull(mbTiles.getTile(new MapTile(LAYER_ID, MISSING_ZOOM, range[0], range[1])));
+            range = MBTileSeeder.tileRange(box, 15);
+            Assert.assertTrue(Arrays.equals(TILE_DATA, mbTiles.getTile(new MapTile(LAYER_ID, 15, range[0], range[1]))));
+        } catch (IOException e) {
+            Assert.fail(e.getMessage());
+        } finally {
+            mbTiles.close();
+        }
+
+        // resume, only the missing tiles are requested again
+        int requests = server.getRequestCount();
+        seeder = new MBTileSeeder(new OkHttpClient(), layer, box, 14, MISSING_ZOOM, file, 2, 0);
+        try {
+            Assert.assertTrue(seeder.run(null));
+        } catch (IOException e) {
+            Assert.fail(e.getMessage());
+        }
+        Assert.assertEquals(requests + missing, server.getRequestCount());
+    }
+}
@@ -0,0 +1,205 @@
+package de.blau.android.services.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.ParcelFileDescriptor;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import de.blau.android.resources.TileLayerDatabase;
+import de.blau.android.resources.TileLayerServer;
+import de.blau.android.resources.TileLayerServer.Provider;
+import de.blau.android.services.IMapTileProviderCallback;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+/**
+ * Conditional requests for stale tiles against a mock tile server
+ *
+ * @author simon
+ *
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class MapTileDownloaderTest {
+
+    private static final String LAYER_ID    = "REVALIDATETEST";
+    private static final String ETAG_VALUE  = "\"abc\"";
+    private static final String ETAG_VALUE2 = "\"def\"";
+    private static final byte[] TILE_DATA   = new byte[] { 1, 2, 3, 4 };
+    private static final byte[] TILE_DATA2  = new byte[] { 5, 6, 7, 8 };
+
+    Context                  context    = null;
+    MockWebServer            server     = null;
+    File                     mountPoint = null;
+    RecordingProvider        provider   = null;
+    MapTileDownloader        downloader = null;
+    IMapTileProviderCallback callback   = null;
+    volatile boolean         modified   = false;
+    final AtomicInteger      loaded     = new AtomicInteger();
+    final AtomicInteger      failed     = new AtomicInteger();
+
+    /**
+     * MapTileFilesystemProvider that records what the downloader hands back to it
+     */
+    class RecordingProvider extends MapTileFilesystemProvider {
+        volatile byte[]          saved;
+        volatile CacheValidators savedValidators;
+        volatile CacheValidators revalidatedValidators;
+        volatile CountDownLatch  latch = new CountDownLatch(1);
+
+        /**
+         * Construct a new instance
+         *
+         * @param ctx Android Context
+         * @param mountPoint where the cache should be created
+         */
+        RecordingProvider(@NonNull Context ctx, @NonNull File mountPoint) {
+            super(ctx, mountPoint, 1000000);
+        }
+
+        @Override
+        public void saveFile(@NonNull MapTile tile, @NonNull byte[] data, @Nullable CacheValidators validators) throws IOException {
+            saved = data;
+            savedValidators = validators;
+            latch.countDown();
+        }
+
+        @Override
+        public void revalidated(@NonNull MapTile tile, @NonNull CacheValidators validators) throws IOException {
+            revalidatedValidators = validators;
+            latch.countDown();
+        }
+
+        /**
+         * Reset the recorded values
+         */
+        void reset() {
+            saved = null;
+            savedValidators = null;
+            revalidatedValidators = null;
+            latch = new CountDownLatch(1);
+        }
+    }
+
+    /**
+     * Pre-test setup
+     */
+    @Before
+    public void setup() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        server = new MockWebServer();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                if (!modified && ETAG_VALUE.equals(request.getHeader(CacheValidators.IF_NONE_MATCH))) {
+                    return new MockResponse().setResponseCode(304).setHeader("Cache-Control", "max-age=7200");
+                }
+                return new MockResponse().setBody(new Buffer().write(modified ? TILE_DATA2 : TILE_DATA))
+                        .setHeader(CacheValidators.ETAG, modified ? ETAG_VALUE2 : ETAG_VALUE).setHeader("Cache-Control", "max-age=7200");
+            }
+        });
+        TileLayerDatabase tlDb = new TileLayerDatabase(context);
+        SQLiteDatabase db = tlDb.getWritableDatabase();
+        TileLayerServer.addOrUpdateCustomLayer(context, db, LAYER_ID, null, -1, -1, "Revalidate test", new Provider(), 0, 19, false,
+                server.url("/").toString() + "{zoom}/{x}/{y}.png");
+        tlDb.close();
+        mountPoint = new File(context.getCacheDir(), "revalidatetest");
+        mountPoint.mkdirs(); // NOSONAR
+        provider = new RecordingProvider(context, mountPoint);
+        downloader = new MapTileDownloader(context, provider);
+        callback = new IMapTileProviderCallback.Stub() {
+            @Override
+            public void mapTileLoaded(String rendererID, int zoomLevel, int tileX, int tileY, byte[] aImage) {
+                loaded.incrementAndGet();
+            }
+
+            @Override
+            public void mapTileLoadedFromDescriptor(String rendererID, int zoomLevel, int tileX, int tileY, ParcelFileDescriptor aImage) {
+                loaded.incrementAndGet();
+            }
+
+            @Override
+            public void mapTileFailed(String rendererID, int zoomLevel, int tileX, int tileY, int reason) {
+                failed.incrementAndGet();
+            }
+        };
+    }
+
+    /**
+     * Post-test teardown
+     */
+    @After
+    public void teardown() {
+        provider.destroy();
+        try {
+            server.shutdown();
+        } catch (IOException e) {
+            // ignore
+        }
+        context.deleteDatabase(TileLayerDatabase.DATABASE_NAME);
+    }
+
+    /**
+     * Download a tile, then revalidate it against an unchanged and a changed tile on the server
+     */
+    @Test
+    public void revalidate() {
+        MapTile tile = new MapTile(LAYER_ID, 15, 17000, 11000);
+        try {
+            downloader.loadMapTileAsync(tile, callback);
+            Assert.assertTrue(provider.latch.await(10, TimeUnit.SECONDS));
+            Assert.assertEquals(1, loaded.get());
+            Assert.assertTrue(Arrays.equals(TILE_DATA, provider.saved));
+            CacheValidators validators = provider.savedValidators;
+            Assert.assertNotNull(validators);
+            Assert.assertEquals(ETAG_VALUE, validators.getEtag());
+            Assert.assertNull(server.takeRequest().getHeader(CacheValidators.IF_NONE_MATCH));
+
+            // unchanged, only the expiry is updated, a different tile is used as the previous request may still be
+            // pending
+            provider.reset();
+            CacheValidators stale = new CacheValidators(ETAG_VALUE, null, 1000L);
+            downloader.revalidateMapTileAsync(new MapTile(LAYER_ID, 15, 17001, 11000), stale);
+            Assert.assertTrue(provider.latch.await(10, TimeUnit.SECONDS));
+            Assert.assertNull(provider.saved);
+            Assert.assertNotNull(provider.revalidatedValidators);
+            Assert.assertEquals(ETAG_VALUE, provider.revalidatedValidators.getEtag());
+            Assert.assertFalse(provider.revalidatedValidators.isStale(System.currentTimeMillis()));
+            Assert.assertEquals(ETAG_VALUE, server.takeRequest().getHeader(CacheValidators.IF_NONE_MATCH));
+
+            // changed, the new tile replaces the old one
+            provider.reset();
+            modified = true;
+            downloader.revalidateMapTileAsync(new MapTile(LAYER_ID, 15, 17002, 11000), stale);
+            Assert.assertTrue(provider.latch.await(10, TimeUnit.SECONDS));
+            Assert.assertNull(provider.revalidatedValidators);
+            Assert.assertTrue(Arrays.equals(TILE_DATA2, provider.saved));
+            Assert.assertEquals(ETAG_VALUE2, provider.savedValidators.getEtag());
+            Assert.assertEquals(ETAG_VALUE, server.takeRequest().getHeader(CacheValidators.IF_NONE_MATCH));
+            // background requests don't call back
+            Assert.assertEquals(1, loaded.get());
+            Assert.assertEquals(0, failed.get());
+        } catch (InterruptedException e) {
+            Assert.fail(e.getMessage());
+        }
+    }
+}
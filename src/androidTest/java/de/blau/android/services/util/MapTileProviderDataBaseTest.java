@@ -0,0 +1,208 @@
+package de.blau.android.services.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.content.Context;
+import android.os.ParcelFileDescriptor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import de.blau.android.exception.InvalidTileException;
+import de.blau.android.util.CustomDatabaseContext;
+
+/**
+ *
+ * @author simon
+ *
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class MapTileProviderDataBaseTest {
+
+    private static final int TILE_SIZE = 1000;
+
+    Context context = null;
+    File    dir     = null;
+
+    /**
+     * Pre-test setup
+     */
+    @Before
+    public void setup() {
+        Context targetContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        dir = new File(targetContext.getCacheDir(), "tiletest");
+        deleteDatabaseFiles();
+        context = new CustomDatabaseContext(targetContext, dir.getAbsolutePath());
+    }
+
+    /**
+     * Post-test teardown
+     */
+    @After
+    public void teardown() {
+        deleteDatabaseFiles();
+    }
+
+    /**
+     * Remove the database and any journal files
+     */
+    private void deleteDatabaseFiles() {
+        File[] files = new File(dir, "databases").listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete(); // NOSONAR
+            }
+        }
+    }
+
+    /**
+     * Check that queued tiles can be read before and after they have been written
+     */
+    @Test
+    public void writeBehind() {
+        MapTileProviderDataBase db = new MapTileProviderDataBase(context, 100L * TILE_SIZE);
+        MapTile tile = new MapTile("test", 18, 1000, 2000);
+        MapTile invalid = new MapTile("test", 18, 1001, 2000);
+        byte[] data = createData(1);
+        try {
+            db.addTile(tile, data);
+            db.addTile(invalid, null);
+            Assert.assertTrue(db.hasTile(tile));
+            Assert.assertTrue(db.isInvalid(invalid));
+            Assert.assertTrue(Arrays.equals(data, db.getTile(tile)));
+            db.close();
+            db = new MapTileProviderDataBase(context, 100L * TILE_SIZE);
+            Assert.assertEquals(TILE_SIZE, db.getCurrentFSCacheByteSize());
+            Assert.assertTrue(Arrays.equals(data, db.getTile(tile)));
+            Assert.assertTrue(db.isInvalid(invalid));
+            try {
+                db.getTile(invalid);
+                Assert.fail("Expected InvalidTileException");
+            } catch (InvalidTileException itex) {
+                // expected
+            }
+            // an invalid tile is replaced when it becomes available
+            db.addTile(invalid, data);
+            db.close();
+            db = new MapTileProviderDataBase(context, 100L * TILE_SIZE);
+            Assert.assertEquals(2 * TILE_SIZE, db.getCurrentFSCacheByteSize());
+            Assert.assertFalse(db.isInvalid(invalid));
+        } catch (IOException e) {
+            Assert.fail(e.getMessage());
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Check that tiles can be retrieved as file descriptors once they have been written
+     */
+    @Test
+    public void descriptor() {
+        MapTileProviderDataBase db = new MapTileProviderDataBase(context, 100L * TILE_SIZE);
+        MapTile tile = new MapTile("test", 18, 1000, 2000);
+        byte[] data = createData(3);
+        try {
+            db.addTile(tile, data);
+            Assert.assertTrue(Arrays.equals(data, db.getPendingTile(tile)));
+            db.close();
+            db = new MapTileProviderDataBase(context, 100L * TILE_SIZE);
+            Assert.assertNull(db.getPendingTile(tile));
+            Assert.assertNull(db.getTileDescriptor(new MapTile("test", 18, 1001, 2000)));
+            ParcelFileDescriptor pfd = db.getTileDescriptor(tile);
+            Assert.assertNotNull(pfd);
+            InputStream is = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buffer = new byte[256];
+            int bytesRead;
+            while ((bytesRead = is.read(buffer)) != -1) {
+                bos.write(buffer, 0, bytesRead);
+            }
+            is.close();
+            Assert.assertTrue(Arrays.equals(data, bos.toByteArray()));
+        } catch (IOException e) {
+            Assert.fail(e.getMessage());
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Check that cache validators are stored and updated
+     */
+    @Test
+    public void validators() {
+        MapTileProviderDataBase db = new MapTileProviderDataBase(context, 100L * TILE_SIZE);
+        MapTile tile = new MapTile("test", 18, 1000, 2000);
+        try {
+            db.addTile(tile, createData(1), new CacheValidators("\"abc\"", null, 1000L));
+            Assert.assertEquals("\"abc\"", db.getValidators(tile).getEtag());
+            db.close();
+            db = new MapTileProviderDataBase(context, 100L * TILE_SIZE);
+            CacheValidators validators = db.getValidators(tile);
+            Assert.assertNotNull(validators);
+            Assert.assertEquals("\"abc\"", validators.getEtag());
+            Assert.assertNull(validators.getLastModified());
+            Assert.assertEquals(1000L, validators.getExpires());
+            Assert.assertTrue(validators.isStale(System.currentTimeMillis()));
+            db.revalidated(tile, new CacheValidators("\"abc\"", null, Long.MAX_VALUE));
+            Assert.assertFalse(db.getValidators(tile).isStale(System.currentTimeMillis()));
+            // changed tile
+            db.addTile(tile, createData(2), new CacheValidators("\"def\"", null, Long.MAX_VALUE));
+            db.close();
+            db = new MapTileProviderDataBase(context, 100L * TILE_SIZE);
+            Assert.assertEquals("\"def\"", db.getValidators(tile).getEtag());
+            Assert.assertTrue(Arrays.equals(createData(2), db.getTile(tile)));
+            Assert.assertEquals(TILE_SIZE, db.getCurrentFSCacheByteSize());
+        } catch (IOException e) {
+            Assert.fail(e.getMessage());
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Check that the cache doesn't grow beyond its maximum size
+     */
+    @Test
+    public void eviction() {
+        MapTileProviderDataBase db = new MapTileProviderDataBase(context, 10L * TILE_SIZE);
+        try {
+            for (int i = 0; i < 25; i++) {
+                db.addTile(new MapTile("test", 18, 1000 + i, 2000), createData(i));
+            }
+            db.close();
+            db = new MapTileProviderDataBase(context, 10L * TILE_SIZE);
+            Assert.assertTrue(db.getCurrentFSCacheByteSize() <= 10 * TILE_SIZE);
+            Assert.assertTrue(db.getCurrentFSCacheByteSize() > 0);
+            db.flushCache("test");
+            Assert.assertEquals(0, db.getCurrentFSCacheByteSize());
+        } catch (Exception e) {
+            Assert.fail(e.getMessage());
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Create some fake tile data
+     * 
+     * @param value the value to fill the data with
+     * @return a byte array
+     */
+    private byte[] createData(int value) {
+        byte[] data = new byte[TILE_SIZE];
+        Arrays.fill(data, (byte) value);
+        return data;
+    }
+}
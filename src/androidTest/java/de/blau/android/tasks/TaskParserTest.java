@@ -0,0 +1,159 @@
+package de.blau.android.tasks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+import de.blau.android.osm.BoundingBox;
+
+/**
+ * Streaming task parsing and merging
+ * 
+ * @author simon
+ *
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class TaskParserTest {
+
+    private static final String DEBUG_TAG = TaskParserTest.class.getSimpleName();
+
+    private static final int ITERATIONS = 50;
+
+    /**
+     * Sink that only counts the tasks it receives
+     */
+    private static class CountingSink implements TaskSink<Task> {
+        int count = 0;
+
+        @Override
+        public void accept(Task task) {
+            count++;
+        }
+    }
+
+    /**
+     * Check that tasks with the same id are only added once when streamed in to storage
+     */
+    @Test
+    public void dedup() {
+        TaskStorage storage = new TaskStorage();
+        TaskStorage.Inserter inserter = storage.inserter(new BoundingBox(-180D, -85D, 180D, 85D), Long.MAX_VALUE);
+        try {
+            byte[] osmose = readFixture("osmoseDownload.json");
+            Assert.assertEquals(100, OsmoseBug.parseBugs(new ByteArrayInputStream(osmose), inserter));
+            Assert.assertEquals(92, storage.getTasks().size()); // the fixture contains duplicates
+            Assert.assertEquals(100, OsmoseBug.parseBugs(new ByteArrayInputStream(osmose), inserter));
+            Assert.assertEquals(92, storage.getTasks().size());
+            Assert.assertEquals(92, inserter.getAdded().size());
+            Assert.assertNull(inserter.getConflict());
+        } catch (IOException e) {
+            Assert.fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Parse the recorded fixtures repeatedly and log the throughput
+     */
+    @Test
+    public void throughput() {
+        try {
+            final byte[] osmose = readFixture("osmoseDownload.json");
+            final byte[] mapRoulette = readFixture("maprouletteDownload.json");
+            final byte[] notes = readFixture("notesDownload1.xml");
+            final XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
+            benchmark("Osmose", 100, osmose.length, new Parse() {
+                @Override
+                public int parse(TaskSink<Task> sink) throws IOException {
+                    return OsmoseBug.parseBugs(new ByteArrayInputStream(osmose), sink);
+                }
+            });
+            benchmark("MapRoulette", 10, mapRoulette.length, new Parse() {
+                @Override
+                public int parse(TaskSink<Task> sink) throws IOException {
+                    return MapRouletteTask.parseTasks(new ByteArrayInputStream(mapRoulette), sink);
+                }
+            });
+            benchmark("Notes", 100, notes.length, new Parse() {
+                @Override
+                public int parse(TaskSink<Task> sink) throws IOException, XmlPullParserException {
+                    XmlPullParser parser = factory.newPullParser();
+                    parser.setInput(new ByteArrayInputStream(notes), null);
+                    return Note.parseNotes(parser, sink);
+                }
+            });
+        } catch (IOException | XmlPullParserException e) {
+            Assert.fail(e.getMessage());
+        }
+    }
+
+    /**
+     * A single parser run
+     */
+    private interface Parse {
+
+        /**
+         * Parse the input in to sink
+         * 
+         * @param sink the TaskSink
+         * @return the number of tasks read
+         * @throws IOException if reading fails
+         * @throws XmlPullParserException if XML parsing fails
+         */
+        int parse(TaskSink<Task> sink) throws IOException, XmlPullParserException;
+    }
+
+    /**
+     * Run a parser ITERATIONS times, check the number of tasks and log the throughput
+     * 
+     * @param name name of the input for logging
+     * @param expected the expected number of tasks per run
+     * @param bytes the size of the input
+     * @param parse the parser run
+     * @throws IOException if reading fails
+     * @throws XmlPullParserException if XML parsing fails
+     */
+    private void benchmark(String name, int expected, int bytes, Parse parse) throws IOException, XmlPullParserException {
+        CountingSink sink = new CountingSink();
+        parse.parse(sink); // warm up
+        Assert.assertEquals(expected, sink.count);
+        sink.count = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            Assert.assertEquals(expected, parse.parse(sink));
+        }
+        long ms = Math.max(1, (System.nanoTime() - start) / 1000000);
+        Assert.assertEquals(expected * ITERATIONS, sink.count);
+        Log.i(DEBUG_TAG, name + " " + (sink.count * 1000L / ms) + " tasks/s " + ((long) bytes * ITERATIONS / ms) + " kB/s");
+    }
+
+    /**
+     * Read a fixture in to memory
+     * 
+     * @param name the file name of the fixture
+     * @return the contents
+     * @throws IOException if the fixture can't be read
+     */
+    private byte[] readFixture(String name) throws IOException {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        try (InputStream is = loader.getResourceAsStream("fixtures/" + name); ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+}
@@ -24,11 +24,13 @@ import de.blau.android.Main;
 import de.blau.android.SignalHandler;
 import de.blau.android.TestUtils;
 import de.blau.android.osm.ApiTest;
+import de.blau.android.osm.BoundingBox;
 import de.blau.android.osm.Node;
 import de.blau.android.osm.StorageDelegator;
 import de.blau.android.osm.Way;
 import de.blau.android.prefs.Preferences;
 import de.blau.android.resources.TileLayerServer;
+import de.westnordost.countryboundaries.CountryBoundaries;
 
 /**
  *
@@ -160,4 +162,22 @@ public class GeoContextTest {
         Assert.assertFalse(App.getGeoContext(context).driveLeft(n));
         Assert.assertTrue(App.getGeoContext(context).getIsoCodes(n).contains("CH"));
     }
+
+    /**
+     * Check that the tile cache returns the same results as the full test, including near borders
+     */
+    @Test
+    public void tileCache() {
+        GeoContext geoContext = new GeoContext(context);
+        CountryBoundaries reference = geoContext.getCountryBoundariesFromAssets(context.getAssets(), "boundaries.ser");
+        Assert.assertNotNull(reference);
+        // Basel, the CH, DE and FR borders are close by
+        BoundingBox box = new BoundingBox(7.4, 47.4, 7.8, 47.7);
+        geoContext.cacheTiles(box);
+        for (double lon = 7.4; lon < 7.8; lon += 0.013) {
+            for (double lat = 47.4; lat < 47.7; lat += 0.011) {
+                Assert.assertEquals(reference.getIds(lon, lat), geoContext.getIsoCodes(lon, lat));
+            }
+        }
+    }
 }
@@ -0,0 +1,178 @@
+package de.blau.android.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.annotation.UiThreadTest;
+import android.support.test.filters.LargeTest;
+import android.support.test.rule.ActivityTestRule;
+import android.support.test.runner.AndroidJUnit4;
+import de.blau.android.App;
+import de.blau.android.Logic;
+import de.blau.android.Main;
+import de.blau.android.TestUtils;
+import de.blau.android.exception.OsmIllegalOperationException;
+import de.blau.android.osm.Node;
+import de.blau.android.osm.StorageDelegator;
+import de.blau.android.osm.Tags;
+import de.blau.android.osm.ViewBox;
+import de.blau.android.osm.Way;
+import de.blau.android.prefs.Preferences;
+import de.blau.android.resources.TileLayerServer;
+
+/**
+ * Check that the street and place index follows edits
+ *
+ * @author simon
+ *
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class StreetPlaceIndexTest {
+
+    private static final int    MOVE     = 1000000; // 0.1°, 10 index cells
+    private static final double DISTANCE = 1000D;   // 0.0001°
+    private static final String STREET   = "Test Street";
+
+    Context          context   = null;
+    Main             main      = null;
+    StorageDelegator delegator = null;
+    StreetPlaceIndex index     = null;
+
+    @Rule
+    public ActivityTestRule<Main> mActivityRule = new ActivityTestRule<>(Main.class);
+
+    /**
+     * Pre-test setup
+     */
+    @Before
+    public void setup() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        main = mActivityRule.getActivity();
+        Preferences prefs = new Preferences(context);
+        prefs.setBackGroundLayer(TileLayerServer.LAYER_NONE); // try to avoid downloading tiles
+        prefs.setOverlayLayer(TileLayerServer.LAYER_NOOVERLAY);
+        main.getMap().setPrefs(main, prefs);
+        delegator = App.getDelegator();
+        delegator.reset(false);
+        delegator.setOriginalBox(ViewBox.getMaxMercatorExtent());
+        index = delegator.getStreetPlaceIndex();
+        TestUtils.grantPermissons();
+        TestUtils.dismissStartUpDialogs(context);
+    }
+
+    /**
+     * Create a named street, move it and one of its nodes and check that the index follows
+     */
+    @UiThreadTest
+    @Test
+    public void streets() {
+        Logic logic = App.getLogic();
+        logic.setSelectedWay(null);
+        logic.setSelectedNode(null);
+        logic.setSelectedRelation(null);
+        try {
+            logic.performAdd(main, 100.0f, 100.0f);
+            logic.performAdd(main, 200.0f, 200.0f);
+        } catch (OsmIllegalOperationException e) {
+            Assert.fail(e.getMessage());
+        }
+        Way w = logic.getSelectedWay();
+        Assert.assertNotNull(w);
+        Map<String, String> tags = new HashMap<>();
+        tags.put(Tags.KEY_HIGHWAY, "residential");
+        tags.put(Tags.KEY_NAME, STREET);
+        delegator.setTags(w, tags);
+        int[] start = location(w.getFirstNode());
+        Assert.assertTrue(index.getStreets(delegator.getCurrentStorage(), start, DISTANCE).contains(w));
+
+        delegator.moveWay(w, MOVE, MOVE);
+        Assert.assertFalse(index.getStreets(delegator.getCurrentStorage(), start, DISTANCE).contains(w));
+        Assert.assertTrue(index.getStreets(delegator.getCurrentStorage(), location(w.getFirstNode()), DISTANCE).contains(w));
+
+        Node last = w.getLastNode();
+        delegator.moveNode(last, last.getLat() + MOVE, last.getLon() + MOVE);
+        Assert.assertTrue(index.getStreets(delegator.getCurrentStorage(), location(last), DISTANCE).contains(w));
+    }
+
+    /**
+     * Create a place and an address, move and retag them and check that the index follows
+     */
+    @UiThreadTest
+    @Test
+    public void placesAndAddresses() {
+        Logic logic = App.getLogic();
+        Node place = logic.performAddNode(main, 0, 0);
+        Map<String, String> tags = new HashMap<>();
+        tags.put(Tags.KEY_PLACE, "village");
+        tags.put(Tags.KEY_NAME, "Test Village");
+        delegator.setTags(place, tags);
+        int[] start = location(place);
+        Assert.assertTrue(index.getPlaces(delegator.getCurrentStorage(), start, DISTANCE).contains(place));
+        delegator.moveNode(place, MOVE, MOVE);
+        Assert.assertFalse(index.getPlaces(delegator.getCurrentStorage(), start, DISTANCE).contains(place));
+        Assert.assertTrue(index.getPlaces(delegator.getCurrentStorage(), location(place), DISTANCE).contains(place));
+
+        Node address = logic.performAddNode(main, 100, 100);
+        tags.clear();
+        tags.put(Tags.KEY_ADDR_HOUSENUMBER, "1");
+        tags.put(Tags.KEY_ADDR_STREET, STREET);
+        delegator.setTags(address, tags);
+        Assert.assertTrue(index.getAddresses(delegator.getCurrentStorage(), STREET).contains(address));
+        tags.put(Tags.KEY_ADDR_STREET, "Other Street");
+        delegator.setTags(address, tags);
+        Assert.assertFalse(index.getAddresses(delegator.getCurrentStorage(), STREET).contains(address));
+        Assert.assertTrue(index.getAddresses(delegator.getCurrentStorage(), "Other Street").contains(address));
+    }
+
+    /**
+     * Check that positions along a way increase from the first to the last node
+     */
+    @UiThreadTest
+    @Test
+    public void position() {
+        Logic logic = App.getLogic();
+        logic.setSelectedWay(null);
+        logic.setSelectedNode(null);
+        logic.setSelectedRelation(null);
+        try {
+            logic.performAdd(main, 100.0f, 100.0f);
+            logic.performAdd(main, 300.0f, 100.0f);
+            logic.performAdd(main, 300.0f, 300.0f);
+        } catch (OsmIllegalOperationException e) {
+            Assert.fail(e.getMessage());
+        }
+        Way w = logic.getSelectedWay();
+        Assert.assertNotNull(w);
+        Node first = w.getFirstNode();
+        Node middle = w.getNodes().get(1);
+        Node last = w.getLastNode();
+        double firstLength = GeoMath.haversineDistance(first.getLon() / 1E7D, first.getLat() / 1E7D, middle.getLon() / 1E7D, middle.getLat() / 1E7D);
+        double secondLength = GeoMath.haversineDistance(middle.getLon() / 1E7D, middle.getLat() / 1E7D, last.getLon() / 1E7D, last.getLat() / 1E7D);
+        Assert.assertEquals(0D, StreetPlaceIndex.getPosition(w, first.getLat() / 1E7F, first.getLon() / 1E7F), 2D);
+        Assert.assertEquals(firstLength, StreetPlaceIndex.getPosition(w, middle.getLat() / 1E7F, middle.getLon() / 1E7F), 2D);
+        Assert.assertEquals(firstLength + secondLength, StreetPlaceIndex.getPosition(w, last.getLat() / 1E7F, last.getLon() / 1E7F), 2D);
+        // half way along the first segment
+        float lat = (first.getLat() + middle.getLat()) / 2E7F;
+        float lon = (first.getLon() + middle.getLon()) / 2E7F;
+        Assert.assertEquals(firstLength / 2, StreetPlaceIndex.getPosition(w, lat, lon), 2D);
+    }
+
+    /**
+     * Get the location of a Node in the format the index uses
+     *
+     * @param n the Node
+     * @return the location, latitude first
+     */
+    private int[] location(Node n) {
+        return new int[] { n.getLat(), n.getLon() };
+    }
+}
@@ -0,0 +1,69 @@
+package de.blau.android.views.util;
+
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+/**
+ * 
+ * @author simon
+ *
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class BitmapPoolTest {
+
+    /**
+     * Check that a pooled bitmap is reused when decoding a tile of the same size
+     */
+    @Test
+    public void reuse() {
+        BitmapPool pool = new BitmapPool(1024L * 1024L);
+        Bitmap source = Bitmap.createBitmap(256, 256, Bitmap.Config.ARGB_8888);
+        source.eraseColor(Color.RED);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertTrue(source.compress(Bitmap.CompressFormat.PNG, 100, out));
+        byte[] data = out.toByteArray();
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        Bitmap first = pool.decode(data, options);
+        Assert.assertNotNull(first);
+        Assert.assertEquals(Color.RED, first.getPixel(10, 10));
+
+        pool.put(first);
+        Assert.assertEquals((long) first.getRowBytes() * first.getHeight(), pool.size());
+        Bitmap second = pool.decode(data, options);
+        Assert.assertSame(first, second);
+        Assert.assertEquals(0, pool.size());
+        Assert.assertEquals(Color.RED, second.getPixel(10, 10));
+
+        // different size, not reused
+        Assert.assertNull(pool.get(512, 512, Bitmap.Config.ARGB_8888));
+    }
+
+    /**
+     * Check that the pool doesn't grow beyond its limit
+     */
+    @Test
+    public void limit() {
+        BitmapPool pool = new BitmapPool(256L * 256L * 4L);
+        Bitmap first = Bitmap.createBitmap(256, 256, Bitmap.Config.ARGB_8888);
+        Bitmap second = Bitmap.createBitmap(256, 256, Bitmap.Config.ARGB_8888);
+        pool.put(first);
+        pool.put(second);
+        Assert.assertFalse(first.isRecycled());
+        Assert.assertTrue(second.isRecycled());
+        pool.clear();
+        Assert.assertTrue(first.isRecycled());
+        Assert.assertEquals(0, pool.size());
+    }
+}
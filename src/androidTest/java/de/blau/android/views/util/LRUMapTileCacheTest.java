@@ -0,0 +1,135 @@
+package de.blau.android.views.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.graphics.Bitmap;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import de.blau.android.exception.StorageException;
+import de.blau.android.services.util.MapTile;
+
+/**
+ * 
+ * @author simon
+ *
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class LRUMapTileCacheTest {
+
+    private static final int TILE_BYTES = 256 * 256 * 4;
+
+    /**
+     * Check that the least recently used tiles are evicted
+     */
+    @Test
+    public void evictLeastRecentlyUsed() {
+        LRUMapTileCache cache = new LRUMapTileCache(9L * TILE_BYTES);
+        MapTile[] tiles = new MapTile[8];
+        try {
+            for (int i = 0; i < tiles.length; i++) {
+                tiles[i] = new MapTile("test", 18, 1000 + i, 2000 + i);
+                Assert.assertNotNull(cache.put(tiles[i].toKey(), createBitmap(), true, 0));
+            }
+            Assert.assertEquals(tiles.length, cache.size());
+            // touch the first tile so that it is now the most recently used one
+            Assert.assertNotNull(cache.get(tiles[0].toKey()));
+            // space for two new tiles is reserved on every put
+            cache.put(new MapTile("test", 18, 0, 0).toKey(), createBitmap(), true, 0);
+            Assert.assertTrue(cache.containsKey(tiles[0].toKey()));
+            Assert.assertFalse(cache.containsKey(tiles[1].toKey()));
+            Assert.assertTrue(cache.containsKey(tiles[2].toKey()));
+            Assert.assertEquals(tiles.length, cache.size());
+            Assert.assertTrue(cache.cacheSizeBytes() <= cache.getMaxCacheSize());
+            cache.clear();
+            Assert.assertEquals(0, cache.size());
+            Assert.assertEquals(0, cache.cacheSizeBytes());
+            Assert.assertNull(cache.get(tiles[0].toKey()));
+        } catch (StorageException e) {
+            Assert.fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Check that lookups still work after many removals and additions that cause collisions and resizing
+     */
+    @Test
+    public void churn() {
+        LRUMapTileCache cache = new LRUMapTileCache(100L * TILE_BYTES);
+        Bitmap bitmap = createBitmap();
+        try {
+            for (int i = 0; i < 2000; i++) {
+                MapTile tile = new MapTile(i % 2 == 0 ? "a" : "b", i % 20, i % 37, i / 37);
+                cache.put(tile.toKey(), bitmap, false, 0);
+                Assert.assertTrue(cache.containsKey(tile.toKey()));
+            }
+            Assert.assertTrue(cache.size() <= 100);
+            for (int i = 2000 - cache.size(); i < 2000; i++) {
+                MapTile tile = new MapTile(i % 2 == 0 ? "a" : "b", i % 20, i % 37, i / 37);
+                Assert.assertNotNull(cache.get(tile.toKey()));
+            }
+        } catch (StorageException e) {
+            Assert.fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Check that prefetched tiles only evict other prefetched tiles and never tiles of the current draw
+     */
+    @Test
+    public void putIfRoom() {
+        final long draw = 1;
+        final long prefetch = Long.MIN_VALUE;
+        LRUMapTileCache cache = new LRUMapTileCache(9L * TILE_BYTES);
+        MapTile[] prefetched = new MapTile[5];
+        for (int i = 0; i < prefetched.length; i++) {
+            prefetched[i] = new MapTile("test", 18, 3000 + i, 4000 + i);
+        }
+        MapTile[] drawn = new MapTile[6];
+        try {
+            Assert.assertNotNull(cache.putIfRoom(prefetched[0].toKey(), createBitmap(), true, prefetch, draw));
+            Assert.assertNotNull(cache.putIfRoom(prefetched[1].toKey(), createBitmap(), true, prefetch, draw));
+            for (int i = 0; i < drawn.length; i++) {
+                drawn[i] = new MapTile("test", 18, 1000 + i, 2000 + i);
+                Assert.assertNotNull(cache.put(drawn[i].toKey(), createBitmap(), true, draw));
+            }
+            // evicts the older prefetched tiles
+            Assert.assertNotNull(cache.putIfRoom(prefetched[2].toKey(), createBitmap(), true, prefetch, draw));
+            Assert.assertFalse(cache.containsKey(prefetched[0].toKey()));
+            Assert.assertNotNull(cache.putIfRoom(prefetched[3].toKey(), createBitmap(), true, prefetch, draw));
+            Assert.assertFalse(cache.containsKey(prefetched[1].toKey()));
+            // only tiles of the current draw left to evict
+            Assert.assertNull(cache.putIfRoom(prefetched[4].toKey(), createBitmap(), true, prefetch, draw));
+            Assert.assertFalse(cache.containsKey(prefetched[4].toKey()));
+            for (MapTile tile : drawn) {
+                Assert.assertTrue(cache.containsKey(tile.toKey()));
+            }
+            Assert.assertTrue(cache.cacheSizeBytes() <= cache.getMaxCacheSize());
+        } catch (StorageException e) {
+            Assert.fail(e.getMessage());
+        }
+    }
+
+    /**
+     * Get a tile sized bitmap
+     * 
+     * @return a Bitmap
+     */
+    private Bitmap createBitmap() {
+        return Bitmap.createBitmap(256, 256, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Check that tiles with zooms that don't fit in a packed key still get distinct keys
+     */
+    @Test
+    public void deepZoomKeys() {
+        MapTile deep = new MapTile("test", MapTile.MAX_KEY_ZOOM + 1, 1, 2);
+        Assert.assertTrue(deep.toKey() < 0);
+        Assert.assertEquals(deep.toKey(), new MapTile("test", MapTile.MAX_KEY_ZOOM + 1, 1, 2).toKey());
+        Assert.assertNotEquals(deep.toKey(), new MapTile("test", MapTile.MAX_KEY_ZOOM + 1, 2, 1).toKey());
+        Assert.assertTrue(new MapTile("test", MapTile.MAX_KEY_ZOOM, 1, 2).toKey() >= 0);
+    }
+}
@@ -0,0 +1,66 @@
+package de.blau.android.views.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+/**
+ * 
+ * @author simon
+ *
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class TilePrefetcherTest {
+
+    /**
+     * Check that panning predicts the tiles in the direction of movement and that stopping cancels the prediction
+     */
+    @Test
+    public void pan() {
+        TilePrefetcher prefetcher = new TilePrefetcher(16);
+        Assert.assertFalse(prefetcher.update(16, 0, 19, 10.2, 10.2, 14.2, 13.2, 1000));
+        Assert.assertEquals(0, prefetcher.getCount());
+        // moving right half a tile in 100 ms
+        Assert.assertTrue(prefetcher.update(16, 0, 19, 10.7, 10.2, 14.7, 13.2, 1100));
+        int count = prefetcher.getCount();
+        Assert.assertTrue(count > 0);
+        for (int i = 0; i < count; i++) {
+            Assert.assertEquals(16, prefetcher.getZoomLevels()[i]);
+            Assert.assertTrue(prefetcher.getXs()[i] > 14);
+            Assert.assertTrue(prefetcher.getYs()[i] >= 10 && prefetcher.getYs()[i] <= 13);
+        }
+        // closest first
+        Assert.assertEquals(15, prefetcher.getXs()[0]);
+        // stopped
+        long time = 1100 + TilePrefetcher.MAX_INTERVAL + 1;
+        Assert.assertTrue(prefetcher.update(16, 0, 19, 10.7, 10.2, 14.7, 13.2, time));
+        Assert.assertEquals(0, prefetcher.getCount());
+        // nothing changed
+        Assert.assertFalse(prefetcher.update(16, 0, 19, 10.7, 10.2, 14.7, 13.2, time + 10));
+    }
+
+    /**
+     * Check that zooming in predicts tiles of the next zoom level within the budget
+     */
+    @Test
+    public void zoom() {
+        TilePrefetcher prefetcher = new TilePrefetcher(4);
+        prefetcher.update(16, 0, 19, 10, 10, 14, 13, 1000);
+        Assert.assertTrue(prefetcher.update(16, 0, 19, 10.2, 10.2, 13.8, 12.8, 1050));
+        Assert.assertEquals(4, prefetcher.getCount());
+        for (int i = 0; i < prefetcher.getCount(); i++) {
+            Assert.assertEquals(17, prefetcher.getZoomLevels()[i]);
+            Assert.assertTrue(prefetcher.getXs()[i] >= 22 && prefetcher.getXs()[i] <= 26);
+            Assert.assertTrue(prefetcher.getYs()[i] >= 21 && prefetcher.getYs()[i] <= 25);
+        }
+        // no next zoom level
+        prefetcher.reset();
+        prefetcher.update(19, 0, 19, 10, 10, 14, 13, 1000);
+        prefetcher.update(19, 0, 19, 10.2, 10.2, 13.8, 12.8, 1050);
+        Assert.assertEquals(0, prefetcher.getCount());
+    }
+}
@@ -18,7 +18,6 @@ import android.content.res.Resources;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import de.blau.android.names.Names;
-import de.blau.android.names.Names.NameAndTags;
 import de.blau.android.net.UserAgentInterceptor;
 import de.blau.android.osm.DiscardedTags;
 import de.blau.android.osm.StorageDelegator;
@@ -78,10 +77,8 @@ public class App extends android.app.Application {
     /**
      * name index related stuff
      */
-    private static Names                             names                = null;
-    private static final Object                      namesLock            = new Object();
-    private static MultiHashMap<String, NameAndTags> namesSearchIndex     = null;
-    private static final Object                      namesSearchIndexLock = new Object();
+    private static Names        names     = null;
+    private static final Object namesLock = new Object();
 
     /**
      * Geo index to on device photos
@@ -304,23 +301,6 @@ public class App extends android.app.Application {
         }
     }
 
-    /**
-     * Get a normalized name to Names entries map
-     * 
-     * @param ctx Android Context
-     * @return a map between normalized names and NameAndTags objects
-     */
-    @NonNull
-    public static MultiHashMap<String, NameAndTags> getNameSearchIndex(@NonNull Context ctx) {
-        getNames(ctx);
-        synchronized (namesSearchIndexLock) {
-            if (namesSearchIndex == null) {
-                namesSearchIndex = names.getSearchIndex();
-            }
-            return namesSearchIndex;
-        }
-    }
-
     /**
      * Return the object containing the canonical name data
      * 
@@ -65,10 +65,13 @@ import de.blau.android.exception.OsmServerException;
 import de.blau.android.exception.StorageException;
 import de.blau.android.exception.UnsupportedFormatException;
 import de.blau.android.filter.Filter;
+import de.blau.android.filter.PresetFilter;
 import de.blau.android.imageryoffset.Offset;
 import de.blau.android.layer.MapViewLayer;
 import de.blau.android.osm.BoundingBox;
+import de.blau.android.osm.BoxDownloader;
 import de.blau.android.osm.DiscardedTags;
+import de.blau.android.osm.ElementDownloader;
 import de.blau.android.osm.GeoPoint;
 import de.blau.android.osm.MapSplitSource;
 import de.blau.android.osm.MergeResult;
@@ -100,6 +103,7 @@ import de.blau.android.tasks.Task;
 import de.blau.android.util.ACRAHelper;
 import de.blau.android.util.EditState;
 import de.blau.android.util.FileUtil;
+import de.blau.android.util.GeoContext;
 import de.blau.android.util.GeoMath;
 import de.blau.android.util.SavingHelper;
 import de.blau.android.util.Snack;
@@ -178,11 +182,6 @@ public class Logic {
      */
     private static final int MAX_NODES_FOR_MOVE = 100;
 
-    /**
-     * Maximum number of objects for multi fetch requests
-     */
-    private static final int MAX_ELEMENTS_PER_REQUEST = 200; // same value as JOSM
-
     /**
      * Stores the {@link Preferences} as soon as they are available.
      */
@@ -801,7 +800,7 @@ public class Logic {
         HashMap<Way, Double> result = new HashMap<>();
         boolean showWayIcons = prefs.getShowWayIcons();
 
-        List<Way> ways = filter != null ? filter.getVisibleWays() : getDelegator().getCurrentStorage().getWays(map.getViewBox());
+        List<Way> ways = filter != null ? filter.getVisibleWays(map.getViewBox()) : getDelegator().getCurrentStorage().getWays(map.getViewBox());
 
         for (Way way : ways) {
             if (way.isClosed() && !includeClosed) {
@@ -992,7 +991,7 @@ public class Logic {
     @NonNull
     private HashMap<Node, Double> getClickedNodesWithDistances(final float x, final float y, boolean inDownloadOnly) {
         HashMap<Node, Double> result = new HashMap<>();
-        List<Node> nodes = filter != null ? filter.getVisibleNodes() : getDelegator().getCurrentStorage().getNodes(map.getViewBox());
+        List<Node> nodes = filter != null ? filter.getVisibleNodes(map.getViewBox()) : getDelegator().getCurrentStorage().getNodes(map.getViewBox());
         if (filter != null && getSelectedNodes() != null) { // selected nodes are always visible if a filter is applied
             nodes.addAll(getSelectedNodes());
         }
@@ -2400,6 +2399,22 @@ public class Logic {
      */
     public synchronized void downloadBox(@NonNull final FragmentActivity activity, @NonNull final BoundingBox mapBox, final boolean add,
             @Nullable final PostAsyncActionHandler postLoadHandler) {
+        downloadBox(activity, mapBox, add, false, postLoadHandler);
+    }
+
+    /**
+     * Loads the area defined by mapBox from the OSM-Server.
+     * 
+     * Larger areas are downloaded as a number of tiles in parallel, see {@link BoxDownloader}.
+     * 
+     * @param activity activity this was called from
+     * @param mapBox Box defining the area to be loaded.
+     * @param add if true add this data to existing
+     * @param onlyMissing if true and add is true don't download the parts of mapBox that have already been loaded
+     * @param postLoadHandler handler to execute after successful download
+     */
+    public synchronized void downloadBox(@NonNull final FragmentActivity activity, @NonNull final BoundingBox mapBox, final boolean add,
+            final boolean onlyMissing, @Nullable final PostAsyncActionHandler postLoadHandler) {
         final Validator validator = App.getDefaultValidator(activity);
 
         mapBox.makeValidForApi();
@@ -2450,14 +2465,17 @@ public class Logic {
                         Log.d(DEBUG_TAG, "downloadBox reading from MapSplit tile sourse");
                         input = MapSplitSource.readBox(activity, server.getMapSplitSource(), mapBox);
                     } else {
-                        try (InputStream in = prefs.getServer().getStreamForBox(activity, mapBox)) {
-                            final OsmParser osmParser = new OsmParser();
-                            osmParser.start(in);
-                            input = osmParser.getStorage();
-                        }
+                        List<BoundingBox> loaded = arg[0] && onlyMissing ? new ArrayList<>(getDelegator().getBoundingBoxes())
+                                : Collections.<BoundingBox>emptyList();
+                        input = new BoxDownloader(activity, server).download(BoxDownloader.plan(loaded, mapBox));
                     }
 
                     Log.d(DEBUG_TAG, "downloadBox downloaded and parsed input in " + (System.currentTimeMillis() - startTime) + "ms");
+                    GeoContext geoContext = App.getGeoContext();
+                    if (geoContext != null) {
+                        // pre-compute territories so that validation while merging doesn't need the full test
+                        geoContext.cacheTiles(mapBox);
+                    }
                     if (arg[0]) { // incremental load
                         if (!getDelegator().mergeData(input, postMerge)) {
                             result = new ReadAsyncResult(ErrorCodes.DATA_CONFLICT);
@@ -2482,6 +2500,10 @@ public class Logic {
                             getDelegator().setOriginalBox(mapBox);
                         }
                     }
+                    if (filter instanceof PresetFilter) {
+                        // match the new elements in parallel instead of one by one when they are first drawn
+                        ((PresetFilter) filter).precompute(input);
+                    }
                     Map map = activity instanceof Main ? ((Main) activity).getMap() : null;
                     if (map != null) {
                         // set to current or previous
@@ -2622,11 +2644,8 @@ public class Logic {
                     if (server.hasMapSplitSource()) {
                         input = MapSplitSource.readBox(context, server.getMapSplitSource(), mapBox);
                     } else {
-                        try (InputStream in = server.getStreamForBox(context, mapBox);) {
-                            final OsmParser osmParser = new OsmParser();
-                            osmParser.start(in);
-                            input = osmParser.getStorage();
-                        }
+                        // the caller has already removed any areas that have been loaded
+                        input = new BoxDownloader(context, server).download(BoxDownloader.plan(Collections.<BoundingBox>emptyList(), mapBox));
                     }
                     if (!getDelegator().mergeData(input, postMerge)) {
                         result = ErrorCodes.DATA_CONFLICT;
@@ -2874,70 +2893,12 @@ public class Logic {
         class DownLoadElementsTask extends AsyncTask<Void, Void, Integer> {
             int result = 0;
 
-            /**
-             * Convert a List<Long> to an array of long
-             * 
-             * @param list the List of Long
-             * @return an array holding the corresonding long values
-             */
-            @NonNull
-            long[] toLongArray(@NonNull List<Long> list) {
-                long[] result = new long[list.size()];
-                for (int i = 0; i < list.size(); i++) {
-                    result[i] = list.get(i);
-                }
-                return result;
-            }
-
             @Override
             protected Integer doInBackground(Void... arg) {
                 try {
-                    final OsmParser osmParser = new OsmParser();
-                    InputStream in = null;
-                    Server server = prefs.getServer();
-                    if (nodes != null && !nodes.isEmpty()) {
-                        try {
-                            int len = nodes.size();
-                            for (int i = 0; i < len; i = i + MAX_ELEMENTS_PER_REQUEST) {
-                                in = server.getStreamForElements(ctx, Node.NAME, toLongArray(nodes.subList(i, Math.min(len, i + MAX_ELEMENTS_PER_REQUEST))));
-                                osmParser.reinit();
-                                osmParser.start(in);
-                            }
-                        } finally {
-                            SavingHelper.close(in);
-                        }
-                    }
-                    if (ways != null && !ways.isEmpty()) {
-                        for (Long id : ways) {
-                            try {
-                                // FIXME it would be more efficient to use the same strategy that JOSM does and use
-                                // multi fetch to download the ways, then
-                                // determine which nodes need to be downloaded, however currently the logic in OsmParser
-                                // expects way nodes to be available
-                                // when ways are parsed.
-                                in = server.getStreamForElement(ctx, "full", Way.NAME, id);
-                                osmParser.reinit();
-                                osmParser.start(in);
-                            } finally {
-                                SavingHelper.close(in);
-                            }
-                        }
-                    }
-                    if (relations != null && !relations.isEmpty()) {
-                        try {
-                            int len = relations.size();
-                            for (int i = 0; i < len; i = i + MAX_ELEMENTS_PER_REQUEST) {
-                                in = server.getStreamForElements(ctx, Relation.NAME,
-                                        toLongArray(relations.subList(i, Math.min(len, i + MAX_ELEMENTS_PER_REQUEST))));
-                                osmParser.reinit();
-                                osmParser.start(in);
-                            }
-                        } finally {
-                            SavingHelper.close(in);
-                        }
-                    }
-                    if (!getDelegator().mergeData(osmParser.getStorage(), null)) { // FIXME need to check if providing a
-                                                                                   // handler makes sense here
+                    Storage input = new ElementDownloader(ctx, prefs.getServer()).download(nodes, ways, relations);
+                    if (!getDelegator().mergeData(input, null)) { // FIXME need to check if providing a handler makes
+                                                                  // sense here
                         result = ErrorCodes.DATA_CONFLICT;
                     }
                 } catch (SAXException e) {
@@ -1046,7 +1046,7 @@ public class Main extends FullScreenAppCompatActivity
                             }
                         };
                         if (bboxes != null && !bboxes.isEmpty()) {
-                            logic.downloadBox(this, bbox, true, handler);
+                            logic.downloadBox(this, bbox, true, !App.getDelegator().isEmpty(), handler);
                             if (prefs.areBugsEnabled()) {
                                 // always add bugs for now
                                 downLoadBugs(bbox);
@@ -13,6 +13,7 @@ import android.support.annotation.Nullable;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
 import de.blau.android.dialogs.Progress;
+import de.blau.android.names.Names;
 import de.blau.android.prefs.Preferences;
 import de.blau.android.resources.TileLayerDatabase;
 import de.blau.android.resources.TileLayerServer;
@@ -83,6 +84,8 @@ public class Splash extends AppCompatActivity {
                         if (newInstall || newConfig) {
                             TileLayerServer.createOrUpdateFromAssetsSource(Splash.this, db.getWritableDatabase(), newConfig, true);
                         }
+                        // create the on disk NSI index now so that it doesn't happen while editing
+                        Names.createOrUpdateIndex(Splash.this);
                     }
                 } finally {
                     db.close();
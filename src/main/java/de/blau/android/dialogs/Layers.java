@@ -54,6 +54,7 @@ import de.blau.android.osm.BoundingBox;
 import de.blau.android.osm.ViewBox;
 import de.blau.android.prefs.Preferences;
 import de.blau.android.resources.TileLayerServer;
+import de.blau.android.resources.TileSeedingDialog;
 import de.blau.android.util.Density;
 import de.blau.android.util.ReadFile;
 import de.blau.android.util.SelectFile;
@@ -495,6 +496,27 @@ public class Layers extends SizedFixedImmersiveDialogFragment {
                         return true;
                     }
                 });
+                final TileLayerServer currentTileServer = ((MapTilesLayer) layer).getTileLayerConfiguration();
+                if (TileSeedingDialog.isRunning()) {
+                    item = popup.getMenu().add(R.string.layer_stop_download_tiles);
+                    item.setOnMenuItemClickListener(new OnMenuItemClickListener() {
+                        @Override
+                        public boolean onMenuItemClick(MenuItem item) {
+                            TileSeedingDialog.stop();
+                            return true;
+                        }
+                    });
+                } else if (currentTileServer != null && TileSeedingDialog.isAllowed(activity, currentTileServer)) {
+                    item = popup.getMenu().add(R.string.layer_download_tiles);
+                    item.setOnMenuItemClickListener(new OnMenuItemClickListener() {
+                        @Override
+                        public boolean onMenuItemClick(MenuItem item) {
+                            Map map = App.getLogic().getMap();
+                            TileSeedingDialog.showDialog(activity, currentTileServer, map.getViewBox(), map.getZoomLevel());
+                            return true;
+                        }
+                    });
+                }
                 item = popup.getMenu().add(R.string.menu_tools_background_properties);
                 item.setOnMenuItemClickListener(new OnMenuItemClickListener() {
                     @Override
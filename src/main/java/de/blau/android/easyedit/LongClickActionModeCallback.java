@@ -358,7 +358,7 @@ public class LongClickActionModeCallback extends EasyEditActionModeCallback impl
                             tags.put(Tags.KEY_ADDR_HOUSENUMBER, Integer.toString(number) + (words.length == 3 ? words[2] : ""));
                             tags.put(Commands.SOURCE_ORIGINAL_TEXT, v);
                             Map<String, ArrayList<String>> map = Address.predictAddressTags(main, Node.NAME, node.getOsmId(),
-                                    new ElementSearch(new int[] { node.getLon(), node.getLat() }, true), Util.getArrayListMap(tags), Address.NO_HYSTERESIS);
+                                    new ElementSearch(new int[] { node.getLat(), node.getLon() }, true), Util.getArrayListMap(tags), Address.NO_HYSTERESIS);
                             tags = new TreeMap<>();
                             for (Entry<String, ArrayList<String>> entry : map.entrySet()) {
                                 tags.put(entry.getKey(), entry.getValue().get(0));
@@ -119,7 +119,7 @@ public class CorrectFilter extends Filter {
         }
 
         include = filter(node);
-        cachedNodes.put(node, include);
+        cacheNode(node, include);
         return include != Include.DONT;
     }
 
@@ -146,11 +146,11 @@ public class CorrectFilter extends Filter {
                         include(n, false);
                         continue;
                     }
-                    cachedNodes.put(n, include);
+                    cacheNode(n, include);
                 }
             }
         }
-        cachedWays.put(way, include);
+        cacheWay(way, include);
 
         return include != Include.DONT || selected;
     }
@@ -184,17 +184,17 @@ public class CorrectFilter extends Filter {
                             // if not originally included overwrite now
                             if (include == Include.INCLUDE_WITH_WAYNODES) {
                                 for (Node n : w.getNodes()) {
-                                    cachedNodes.put(n, include);
+                                    cacheNode(n, include);
                                 }
                             }
-                            cachedWays.put(w, include);
+                            cacheWay(w, include);
                         }
                     } else if (element instanceof Node) {
                         Node n = (Node) element;
                         Include includeNode = cachedNodes.get(n);
                         if (includeNode == null || (include != Include.DONT && includeNode == Include.DONT)) {
                             // if not originally included overwrite now
-                            cachedNodes.put(n, include);
+                            cacheNode(n, include);
                         }
                     } else if (element instanceof Relation) {
                         // FIXME not clear if we really want to do this
@@ -3,9 +3,11 @@ package de.blau.android.filter;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map.Entry;
+import java.util.Set;
 
 import android.content.Context;
 import android.support.annotation.NonNull;
@@ -13,6 +15,7 @@ import android.support.annotation.Nullable;
 import android.view.ViewGroup;
 import de.blau.android.App;
 import de.blau.android.Logic;
+import de.blau.android.osm.BoundingBox;
 import de.blau.android.osm.Node;
 import de.blau.android.osm.OsmElement;
 import de.blau.android.osm.Relation;
@@ -38,6 +41,14 @@ public abstract class Filter implements Serializable {
     transient HashMap<Way, Include>      cachedWays      = new HashMap<>(100);
     transient HashMap<Relation, Include> cachedRelations = new HashMap<>(100);
 
+    /**
+     * visible elements, maintained together with the cache so that they don't have to be determined by iterating over
+     * it, plus the nodes of ways that pass their status on to them at the time they were cached
+     */
+    private transient Set<Node>            visibleNodes = new HashSet<>(100);
+    private transient Set<Way>             visibleWays  = new HashSet<>(100);
+    private transient HashMap<Way, Node[]> wayNodes     = new HashMap<>(100);
+
     private transient Logic logic = App.getLogic();
 
     private Filter savedFilter = null;
@@ -159,6 +170,65 @@ public abstract class Filter implements Serializable {
         cachedNodes.clear();
         cachedWays.clear();
         cachedRelations.clear();
+        visibleNodes.clear();
+        visibleWays.clear();
+        wayNodes.clear();
+    }
+
+    /**
+     * Add the filter action for a Node to the cache
+     * 
+     * @param node the Node
+     * @param include the filter action
+     */
+    void cacheNode(@NonNull Node node, @NonNull Include include) {
+        cachedNodes.put(node, include);
+        if (include != Include.DONT) {
+            visibleNodes.add(node);
+        } else {
+            visibleNodes.remove(node);
+        }
+    }
+
+    /**
+     * Add the filter action for a Way to the cache
+     * 
+     * @param way the Way
+     * @param include the filter action
+     */
+    void cacheWay(@NonNull Way way, @NonNull Include include) {
+        cachedWays.put(way, include);
+        if (include != Include.DONT) {
+            visibleWays.add(way);
+        } else {
+            visibleWays.remove(way);
+        }
+        if (includesWayNodes(include)) {
+            List<Node> nodes = way.getNodes();
+            wayNodes.put(way, nodes.toArray(new Node[nodes.size()]));
+        } else {
+            wayNodes.remove(way);
+        }
+    }
+
+    /**
+     * Check if a Way with this filter action makes its way nodes visible
+     * 
+     * @param include the filter action of the Way
+     * @return true if the way nodes are included
+     */
+    boolean includesWayNodes(@NonNull Include include) {
+        return include == Include.INCLUDE_WITH_WAYNODES;
+    }
+
+    /**
+     * Remove a Node from the cache
+     * 
+     * @param node the Node
+     */
+    private void uncacheNode(@NonNull Node node) {
+        cachedNodes.remove(node);
+        visibleNodes.remove(node);
     }
 
     /**
@@ -168,10 +238,21 @@ public abstract class Filter implements Serializable {
      */
     @NonNull
     public List<Node> getVisibleNodes() {
+        return new ArrayList<>(visibleNodes);
+    }
+
+    /**
+     * Get all nodes that are currently visible from the cache and are in a BoundingBox
+     * 
+     * @param box the BoundingBox
+     * @return List of visible Nodes
+     */
+    @NonNull
+    public List<Node> getVisibleNodes(@NonNull BoundingBox box) {
         List<Node> result = new ArrayList<>();
-        for (Entry<Node, Include> e : cachedNodes.entrySet()) {
-            if (e.getValue() != Include.DONT) {
-                result.add(e.getKey());
+        for (Node n : visibleNodes) {
+            if (box.isIn(n.getLon(), n.getLat())) {
+                result.add(n);
             }
         }
         return result;
@@ -184,10 +265,22 @@ public abstract class Filter implements Serializable {
      */
     @NonNull
     public List<Way> getVisibleWays() {
+        return new ArrayList<>(visibleWays);
+    }
+
+    /**
+     * Get all ways that are currently visible from the cache and intersect a BoundingBox
+     * 
+     * @param box the BoundingBox
+     * @return List of visible Ways
+     */
+    @NonNull
+    public List<Way> getVisibleWays(@NonNull BoundingBox box) {
         List<Way> result = new ArrayList<>();
-        for (Entry<Way, Include> e : cachedWays.entrySet()) {
-            if (e.getValue() != Include.DONT) {
-                result.add(e.getKey());
+        BoundingBox wayBox = new BoundingBox(); // avoid creating new instances
+        for (Way w : visibleWays) {
+            if (w.getBounds(wayBox).intersects(box)) {
+                result.add(w);
             }
         }
         return result;
@@ -202,13 +295,54 @@ public abstract class Filter implements Serializable {
     /**
      * Call this on element(s) changing to update/invalidate the cache.
      * 
-     * The default implementation simply calls {@link #clear()}
+     * The default implementation removes the changed elements and any way nodes that may have inherited their status
+     * from changed ways from the cache. If post is null or contains a Relation it simply calls {@link #clear()} as
+     * changes to relation membership can't be determined.
      * 
      * @param pre the element(s) before the change or null
      * @param post the element(s) after the change or null
      */
     public void onElementChanged(@Nullable List<OsmElement> pre, @Nullable List<OsmElement> post) {
-        clear();
+        if (post == null) {
+            clear();
+            return;
+        }
+        Set<Node> nodes = new HashSet<>();
+        List<Node> deletedNodes = new ArrayList<>();
+        for (OsmElement e : post) {
+            if (e instanceof Relation) {
+                clear();
+                return;
+            }
+            if (e instanceof Node) {
+                nodes.add((Node) e);
+                if (e.getState() == OsmElement.STATE_DELETED) {
+                    deletedNodes.add((Node) e);
+                }
+            } else if (e instanceof Way) {
+                Way w = (Way) e;
+                cachedWays.remove(w);
+                visibleWays.remove(w);
+                Node[] previousNodes = wayNodes.remove(w);
+                if (previousNodes != null) {
+                    nodes.addAll(Arrays.asList(previousNodes));
+                }
+                nodes.addAll(w.getNodes());
+            }
+        }
+        // nodes that are made visible by an unchanged way keep their status
+        for (Node[] includedNodes : wayNodes.values()) {
+            if (nodes.isEmpty()) {
+                break;
+            }
+            for (Node n : includedNodes) {
+                nodes.remove(n);
+            }
+        }
+        nodes.addAll(deletedNodes);
+        for (Node n : nodes) {
+            uncacheNode(n);
+        }
     }
 
     /**
@@ -224,5 +358,8 @@ public abstract class Filter implements Serializable {
         cachedNodes = new HashMap<>(100);
         cachedWays = new HashMap<>(100);
         cachedRelations = new HashMap<>(100);
+        visibleNodes = new HashSet<>(100);
+        visibleWays = new HashSet<>(100);
+        wayNodes = new HashMap<>(100);
     }
 }
@@ -4,6 +4,7 @@ import java.util.List;
 
 import android.content.Context;
 import android.os.Build;
+import android.support.annotation.NonNull;
 import android.support.design.widget.FloatingActionButton;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -102,7 +103,7 @@ public class IndoorFilter extends Filter {
             }
         }
 
-        cachedNodes.put(node, include);
+        cacheNode(node, include);
         return include != Include.DONT;
     }
 
@@ -146,14 +147,19 @@ public class IndoorFilter extends Filter {
                     include(n, false);
                     continue;
                 }
-                cachedNodes.put(n, include);
+                cacheNode(n, include);
             }
         }
-        cachedWays.put(way, include);
+        cacheWay(way, include);
 
         return include != Include.DONT;
     }
 
+    @Override
+    boolean includesWayNodes(@NonNull Include include) {
+        return include != Include.DONT;
+    }
+
     @Override
     public boolean include(Relation relation, boolean selected) {
         // Log.d(DEBUG_TAG,"checking level for relation " + relation.getDescription());
@@ -186,9 +192,9 @@ public class IndoorFilter extends Filter {
                         if (include != Include.DONT && includeWay == Include.DONT) {
                             // if not originally included overwrite now
                             for (Node n : w.getNodes()) {
-                                cachedNodes.put(n, include);
+                                cacheNode(n, include);
                             }
-                            cachedWays.put(w, include);
+                            cacheWay(w, include);
                         }
                     } else if (element instanceof Node) {
                         Node n = (Node) element;
@@ -199,7 +205,7 @@ public class IndoorFilter extends Filter {
                         }
                         if (include != Include.DONT && includeNode == Include.DONT) {
                             // if not originally included overwrite now
-                            cachedNodes.put(n, include);
+                            cacheNode(n, include);
                         }
                     } else if (element instanceof Relation) {
                         // FIXME determine if further inheritance actually makes sense
@@ -1,11 +1,20 @@
 package de.blau.android.filter;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import android.content.Context;
 import android.graphics.drawable.BitmapDrawable;
+import android.os.AsyncTask;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.design.widget.FloatingActionButton;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -20,11 +29,12 @@ import de.blau.android.osm.Node;
 import de.blau.android.osm.OsmElement;
 import de.blau.android.osm.Relation;
 import de.blau.android.osm.RelationMember;
+import de.blau.android.osm.Storage;
+import de.blau.android.osm.StorageDelegator;
 import de.blau.android.osm.Way;
 import de.blau.android.prefs.Preferences;
 import de.blau.android.presets.Preset;
 import de.blau.android.presets.Preset.PresetElement;
-import de.blau.android.presets.Preset.PresetItem;
 import de.blau.android.presets.PresetElementPath;
 import de.blau.android.util.Util;
 
@@ -42,6 +52,8 @@ public class PresetFilter extends Filter {
     private static final long   serialVersionUID = 7L;
     private static final String DEBUG_TAG        = "PresetFilter";
 
+    private static final int BATCH_SIZE = 1000; // elements matched per task in precompute
+
     private boolean                 enabled         = true;
     private transient Preset        preset[]        = null;
     private transient Context       context;
@@ -50,6 +62,16 @@ public class PresetFilter extends Filter {
     private boolean                 includeWayNodes = false;
     private boolean                 inverted        = false;
 
+    /**
+     * cache of preset match results, these only depend on the tags of the element and can be computed in parallel
+     */
+    private transient Map<OsmElement, Boolean> matches = new ConcurrentHashMap<>();
+
+    /**
+     * held when changing the preset and when storing results in matches, so that no result for an old preset is stored
+     */
+    private transient Object matchLock = new Object();
+
     /**
      * Construct a new PresetFilter
      * 
@@ -84,7 +106,11 @@ public class PresetFilter extends Filter {
                     filterPreset.addObjectKeys(p.getObjectKeys());
                 }
             }
-            preset = new Preset[] { filterPreset };
+            synchronized (matchLock) {
+                preset = new Preset[] { filterPreset };
+                matches.clear();
+            }
+            precomputeInBackground();
         }
         if (update != null) {
             update.execute();
@@ -92,6 +118,124 @@ public class PresetFilter extends Filter {
         setIcon();
     }
 
+    /**
+     * Match all tagged elements in the current storage against the preset in the background and update the display when
+     * done
+     */
+    private void precomputeInBackground() {
+        final List<OsmElement> elements = getTaggedElements(App.getDelegator().getCurrentStorage());
+        new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... params) {
+                precompute(elements);
+                return null;
+            }
+
+            @Override
+            protected void onPostExecute(Void result) {
+                if (update != null) {
+                    update.execute();
+                }
+            }
+        }.execute();
+    }
+
+    /**
+     * Match the tagged elements in storage that are present in the current data against the preset
+     * 
+     * This is intended to be called after new data has been merged
+     * 
+     * @param storage the Storage holding the elements
+     */
+    public void precompute(@NonNull Storage storage) {
+        StorageDelegator delegator = App.getDelegator();
+        List<OsmElement> elements = new ArrayList<>();
+        for (OsmElement e : getTaggedElements(storage)) {
+            if (delegator.getOsmElement(e.getName(), e.getOsmId()) == e) {
+                elements.add(e);
+            }
+        }
+        precompute(elements);
+    }
+
+    /**
+     * Get all tagged elements from a Storage
+     * 
+     * @param storage the Storage
+     * @return a List of OsmElement
+     */
+    @NonNull
+    private static List<OsmElement> getTaggedElements(@NonNull Storage storage) {
+        List<OsmElement> result = new ArrayList<>();
+        for (OsmElement e : storage.getElements()) {
+            if (e.hasTags()) {
+                result.add(e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Match elements against the preset in parallel batches and cache the results
+     * 
+     * @param elements the OsmElements
+     */
+    private void precompute(@NonNull List<OsmElement> elements) {
+        final Preset[] current = preset;
+        final int size = elements.size();
+        if (current == null || size == 0) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < size; i += BATCH_SIZE) {
+            final List<OsmElement> batch = elements.subList(i, Math.min(size, i + BATCH_SIZE));
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (OsmElement e : batch) {
+                        if (!matches.containsKey(e)) {
+                            boolean matched = Preset.findMatch(current, e.getTags()) != null;
+                            if (!cacheMatch(current, e, matched)) {
+                                break; // preset has changed
+                            }
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        int threads = Math.min(tasks.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            executor.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            Log.e(DEBUG_TAG, "precompute interrupted");
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdown();
+        }
+        Log.d(DEBUG_TAG, "Matched " + size + " elements in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Store a match result unless the preset has changed since it was computed
+     * 
+     * @param current the preset the result was computed with
+     * @param e the OsmElement
+     * @param matched the result
+     * @return false if the preset has changed and the result wasn't stored
+     */
+    private boolean cacheMatch(@NonNull Preset[] current, @NonNull OsmElement e, boolean matched) {
+        synchronized (matchLock) {
+            if (current != preset) {
+                return false;
+            }
+            matches.put(e, matched);
+            return true;
+        }
+    }
+
     /**
      * Return the current element used for filtering
      * 
@@ -152,9 +296,16 @@ public class PresetFilter extends Filter {
      */
     private Include filter(@NonNull OsmElement e) {
         Include include = Include.DONT;
-        if (preset != null) {
-            PresetItem item = Preset.findMatch(preset, e.getTags());
-            if (item != null) {
+        Preset[] current = preset;
+        if (current != null) {
+            Boolean matched = matches.get(e);
+            if (matched == null) {
+                matched = Preset.findMatch(current, e.getTags()) != null;
+                if (e.hasTags()) { // don't bother caching the result for untagged elements
+                    cacheMatch(current, e, matched);
+                }
+            }
+            if (matched) {
                 include = includeWayNodes ? Include.INCLUDE_WITH_WAYNODES : Include.INCLUDE;
             }
             if (include == Include.DONT) {
@@ -173,6 +324,37 @@ public class PresetFilter extends Filter {
         return include;
     }
 
+    @Override
+    public void clear() {
+        super.clear();
+        matches.clear();
+    }
+
+    @Override
+    public void onElementChanged(@Nullable List<OsmElement> pre, @Nullable List<OsmElement> post) {
+        if (post == null) {
+            matches.clear();
+        } else {
+            for (OsmElement e : post) {
+                matches.remove(e);
+            }
+        }
+        super.onElementChanged(pre, post);
+    }
+
+    /**
+     * De-serialize this
+     * 
+     * @param in the ObjectInputStream
+     * @throws IOException if something foes wrong while reading
+     * @throws ClassNotFoundException if a Class couldn't be found
+     */
+    private void readObject(@NonNull java.io.ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        matches = new ConcurrentHashMap<>();
+        matchLock = new Object();
+    }
+
     @Override
     public boolean include(Node node, boolean selected) {
         // Log.d(DEBUG_TAG, "include Node " + node.getOsmId() + "?");
@@ -187,7 +369,7 @@ public class PresetFilter extends Filter {
 
         include = filter(node);
         // Log.d(DEBUG_TAG, "include Node " + include);
-        cachedNodes.put(node, include);
+        cacheNode(node, include);
         return include != Include.DONT;
     }
 
@@ -214,11 +396,11 @@ public class PresetFilter extends Filter {
                         include(n, false);
                         continue;
                     }
-                    cachedNodes.put(n, include);
+                    cacheNode(n, include);
                 }
             }
         }
-        cachedWays.put(way, include);
+        cacheWay(way, include);
 
         return include != Include.DONT || selected;
     }
@@ -252,17 +434,17 @@ public class PresetFilter extends Filter {
                             // if not originally included overwrite now
                             if (include == Include.INCLUDE_WITH_WAYNODES) {
                                 for (Node n : w.getNodes()) {
-                                    cachedNodes.put(n, include);
+                                    cacheNode(n, include);
                                 }
                             }
-                            cachedWays.put(w, include);
+                            cacheWay(w, include);
                         }
                     } else if (element instanceof Node) {
                         Node n = (Node) element;
                         Include includeNode = cachedNodes.get(n);
                         if (includeNode == null || (include != Include.DONT && includeNode == Include.DONT)) {
                             // if not originally included overwrite now
-                            cachedNodes.put(n, include);
+                            cacheNode(n, include);
                         }
                     } else if (element instanceof Relation) {
                         // FIXME not clear if we really want to do this
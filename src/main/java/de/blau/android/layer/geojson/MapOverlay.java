@@ -230,6 +230,9 @@ public class MapOverlay extends StyleableLayer implements Serializable, ExtentIn
     private transient Paint              paint;
     private transient FloatPrimitiveList points = new FloatPrimitiveList();
 
+    /** Features in the current view, reused for every draw */
+    private transient List<BoundedFeature> features = new ArrayList<>();
+
     /** Map this is an overlay of. */
     private final transient Map map;
 
@@ -280,13 +283,12 @@ public class MapOverlay extends StyleableLayer implements Serializable, ExtentIn
         labelBackground = DataStyle.getInternal(DataStyle.LABELTEXT_BACKGROUND).getPaint();
         labelStrokeWidth = labelPaint.getStrokeWidth();
 
-        Collection<BoundedObject> queryResult = new ArrayList<>();
-        data.query(queryResult, bb);
-        Log.d(DEBUG_TAG, "features result count " + queryResult.size());
-        for (BoundedObject bo : queryResult) {
-            Feature f = ((BoundedFeature) bo).getFeature();
-            drawGeometry(canvas, bb, width, height, zoomLevel, f);
+        features.clear();
+        data.query(features, bb.getLeft(), bb.getBottom(), bb.getRight(), bb.getTop());
+        for (int i = 0; i < features.size(); i++) {
+            drawGeometry(canvas, bb, width, height, zoomLevel, features.get(i).getFeature());
         }
+        features.clear(); // don't retain the features
     }
 
     /**
@@ -543,13 +545,15 @@ public class MapOverlay extends StyleableLayer implements Serializable, ExtentIn
      * @param features a List of Feature
      */
     private void loadFeatures(List<Feature> features) {
+        List<BoundedFeature> bounded = new ArrayList<>(features.size());
         for (Feature f : features) {
             if (GeoJSONConstants.FEATURE.equals(f.type()) && f.geometry() != null) {
-                data.insert(new BoundedFeature(f));
+                bounded.add(new BoundedFeature(f));
             } else {
                 Log.e(DEBUG_TAG, "Type of object " + f.type() + " geometry " + f.geometry());
             }
         }
+        data.load(bounded);
     }
 
     /**
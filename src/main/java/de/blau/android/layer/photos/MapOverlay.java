@@ -1,13 +1,11 @@
 package de.blau.android.layer.photos;
 
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.List;
 
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Canvas;
-import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.AsyncTask;
@@ -16,6 +14,7 @@ import android.support.annotation.NonNull;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.content.ContextCompat;
 import android.util.Log;
+import de.blau.android.App;
 import de.blau.android.Map;
 import de.blau.android.R;
 import de.blau.android.layer.ClickableInterface;
@@ -47,8 +46,8 @@ public class MapOverlay extends MapViewLayer implements DisableInterface, Clicka
     /** Map this is an overlay of. */
     private final Map map;
 
-    /** Photos visible on the overlay. */
-    private Collection<Photo> photos;
+    /** Photos visible on the overlay, reused for every draw. */
+    private final List<Photo> photos = new ArrayList<>();
 
     /** have we already run a scan? */
     private boolean indexed = false;
@@ -89,8 +88,10 @@ public class MapOverlay extends MapViewLayer implements DisableInterface, Clicka
             if (!indexing) {
                 indexing = true;
                 publishProgress(0);
-                pi.createOrUpdateIndex();
-                pi.fill(null);
+                if (App.getPhotoIndex() == null) {
+                    pi.fill(null); // show the photos we already know about while scanning
+                }
+                pi.createOrUpdateIndex(); // updates the in memory index
                 publishProgress(1);
                 indexing = false;
                 indexed = true;
@@ -124,7 +125,6 @@ public class MapOverlay extends MapViewLayer implements DisableInterface, Clicka
     public MapOverlay(@NonNull final Map map) {
         Context context = map.getContext();
         this.map = map;
-        photos = new ArrayList<>();
         icon = ContextCompat.getDrawable(context, R.drawable.camera_red);
         icon_selected = ContextCompat.getDrawable(context, R.drawable.camera_green);
         // note this assumes the icons are the same size
@@ -157,7 +157,7 @@ public class MapOverlay extends MapViewLayer implements DisableInterface, Clicka
             // draw all the photos
             int w = map.getWidth();
             int h = map.getHeight();
-            photos = pi.getPhotos(bb);
+            pi.getPhotos(bb, photos);
 
             for (Photo p : photos) {
                 Drawable i;
@@ -168,7 +168,7 @@ public class MapOverlay extends MapViewLayer implements DisableInterface, Clicka
                 }
                 int x = (int) GeoMath.lonE7ToX(w, bb, p.getLon());
                 int y = (int) GeoMath.latE7ToY(h, w, bb, p.getLat());
-                i.setBounds(new Rect(x - w2, y - h2, x + w2, y + h2));
+                i.setBounds(x - w2, y - h2, x + w2, y + h2);
                 if (p.hasDirection()) {
                     c.rotate(p.getDirection(), x, y);
                     i.draw(c);
@@ -47,6 +47,9 @@ public class MapOverlay extends MapViewLayer implements ExtentInterface, Disable
     /** Bugs visible on the overlay. */
     private TaskStorage tasks = App.getTaskStorage();
 
+    /** Tasks in the current view, reused for every draw. */
+    private final List<Task> taskList = new ArrayList<>();
+
     private transient ReentrantLock readingLock = new ReentrantLock();
 
     public static final String FILENAME = "selectedtask.res";
@@ -83,10 +86,11 @@ public class MapOverlay extends MapViewLayer implements ExtentInterface, Disable
             //
             int w = map.getWidth();
             int h = map.getHeight();
-            List<Task> taskList = tasks.getTasks(bb);
-            if (taskList != null) {
+            tasks.getTasks(bb, taskList);
+            if (!taskList.isEmpty()) {
                 Set<String> taskFilter = map.getPrefs().taskFilter();
-                for (Task t : taskList) {
+                for (int i = 0; i < taskList.size(); i++) {
+                    Task t = taskList.get(i);
                     // filter
                     if (!taskFilter.contains(t.bugFilterKey())) {
                         continue;
@@ -0,0 +1,389 @@
+package de.blau.android.names;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import de.blau.android.names.Names.NameAndTags;
+import de.blau.android.names.Names.TagMap;
+import de.blau.android.util.SavingHelper;
+import de.blau.android.util.SearchIndexUtils;
+
+/**
+ * On disk index of the name suggestion index
+ *
+ * The file consists of a header, the serialized entries and two tables mapping normalized names and tag combinations to
+ * the offsets of the entries. Only the tables are held in memory, entries are read from a memory mapped buffer on
+ * demand.
+ *
+ * @author simon
+ *
+ */
+class NameIndex {
+
+    private static final int     MAGIC       = 0x4E534958; // NSIX
+    private static final int     VERSION     = 1;
+    private static final int     HEADER_SIZE = 4 + 4 + 8 + 8 + 8;
+    private static final int     NO_REGIONS  = -1;
+    private static final Charset UTF8        = Charset.forName("UTF-8");
+
+    /**
+     * Sorted keys with the offsets of the entries they refer to
+     */
+    private static class OffsetTable {
+        final String[] keys;
+        final int[]    starts;
+        final int[]    offsets;
+
+        /**
+         * Read a table from the buffer at its current position
+         *
+         * @param buffer the buffer
+         */
+        OffsetTable(@NonNull ByteBuffer buffer) {
+            int count = buffer.getInt();
+            keys = new String[count];
+            starts = new int[count + 1];
+            List<Integer> temp = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                keys[i] = readString(buffer);
+                starts[i] = temp.size();
+                int n = buffer.getInt();
+                for (int j = 0; j < n; j++) {
+                    temp.add(buffer.getInt());
+                }
+            }
+            starts[count] = temp.size();
+            offsets = new int[temp.size()];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = temp.get(i);
+            }
+        }
+
+        /**
+         * Find the position of key in the table
+         *
+         * @param key the key
+         * @return the position or a negative value if not found
+         */
+        int indexOf(@NonNull String key) {
+            return Arrays.binarySearch(keys, key);
+        }
+    }
+
+    private final long             stamp;
+    private final MappedByteBuffer buffer;
+    private final OffsetTable      names;
+    private final OffsetTable      tags;
+
+    /**
+     * Open an existing index file
+     *
+     * @param file the index file
+     * @throws IOException if the file can't be read or has the wrong format
+     */
+    NameIndex(@NonNull File file) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            FileChannel channel = fis.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            SavingHelper.close(fis);
+        }
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                throw new IOException("Unsupported index file format");
+            }
+            stamp = buffer.getLong();
+            long namesOffset = buffer.getLong();
+            long tagsOffset = buffer.getLong();
+            buffer.position((int) namesOffset);
+            names = new OffsetTable(buffer);
+            buffer.position((int) tagsOffset);
+            tags = new OffsetTable(buffer);
+        } catch (RuntimeException e) { // NOSONAR truncated or otherwise corrupt file
+            throw new IOException("Corrupt index file " + e.getMessage());
+        }
+    }
+
+    /**
+     * Get the stamp the index was created with
+     *
+     * @return the stamp
+     */
+    long getStamp() {
+        return stamp;
+    }
+
+    /**
+     * Get the sorted normalized names in the index
+     *
+     * @return an unmodifiable List of the names
+     */
+    @NonNull
+    List<String> getNames() {
+        return Collections.unmodifiableList(Arrays.asList(names.keys));
+    }
+
+    /**
+     * Get the sorted tag combinations in the index
+     *
+     * @return an unmodifiable List of the tag combinations as produced by TagMap.toString
+     */
+    @NonNull
+    List<String> getTagKeys() {
+        return Collections.unmodifiableList(Arrays.asList(tags.keys));
+    }
+
+    /**
+     * Get all entries for a normalized name
+     *
+     * @param owner the Names instance that will own the entries
+     * @param name the normalized name
+     * @param result List to add the entries to
+     */
+    void getByName(@NonNull Names owner, @NonNull String name, @NonNull List<NameAndTags> result) {
+        int pos = names.indexOf(name);
+        if (pos >= 0) {
+            readEntries(owner, names, pos, null, result);
+        }
+    }
+
+    /**
+     * Get all entries for a tag combination
+     *
+     * @param owner the Names instance that will own the entries
+     * @param tagKey the tags as produced by TagMap.toString
+     * @param result List to add the entries to
+     */
+    void getByTags(@NonNull Names owner, @NonNull String tagKey, @NonNull List<NameAndTags> result) {
+        int pos = tags.indexOf(tagKey);
+        if (pos >= 0) {
+            readEntries(owner, tags, pos, null, result);
+        }
+    }
+
+    /**
+     * Get all entries in the index that are in use in specific regions
+     *
+     * @param owner the Names instance that will own the entries
+     * @param regions the regions, null for all entries
+     * @param result List to add the entries to
+     */
+    void getAll(@NonNull Names owner, @Nullable List<String> regions, @NonNull List<NameAndTags> result) {
+        for (int i = 0; i < names.keys.length; i++) {
+            readEntries(owner, names, i, regions, result);
+        }
+    }
+
+    /**
+     * Read the entries for a specific key in a table
+     *
+     * @param owner the Names instance that will own the entries
+     * @param table the table
+     * @param pos the position of the key in the table
+     * @param filter only add entries that are in use in these regions, null for all
+     * @param result List to add the entries to
+     */
+    private synchronized void readEntries(@NonNull Names owner, @NonNull OffsetTable table, int pos, @Nullable List<String> filter,
+            @NonNull List<NameAndTags> result) {
+        for (int i = table.starts[pos]; i < table.starts[pos + 1]; i++) {
+            buffer.position(table.offsets[i]);
+            String name = readString(buffer);
+            int count = buffer.getInt();
+            String[] regions = null;
+            short regionCount = buffer.getShort();
+            if (regionCount != NO_REGIONS) {
+                regions = new String[regionCount];
+                for (int j = 0; j < regionCount; j++) {
+                    regions[j] = readString(buffer);
+                }
+            }
+            if (!Names.inUseIn(regions, filter)) {
+                continue;
+            }
+            TagMap tagMap = owner.new TagMap();
+            short tagCount = buffer.getShort();
+            for (int j = 0; j < tagCount; j++) {
+                tagMap.put(readString(buffer), readString(buffer));
+            }
+            result.add(owner.new NameAndTags(name, tagMap, count, regions));
+        }
+    }
+
+    /**
+     * Read a length prefixed UTF-8 string from the current position of the buffer
+     *
+     * @param buffer the buffer
+     * @return the String
+     */
+    @NonNull
+    private static String readString(@NonNull ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xFFFF;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Write a length prefixed UTF-8 string
+     *
+     * @param out the output
+     * @param s the String
+     * @throws IOException if writing fails
+     */
+    private static void writeString(@NonNull DataOutputStream out, @NonNull String s) throws IOException {
+        byte[] bytes = s.getBytes(UTF8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Streaming writer for a new index file, entries are written as they are added, only the offsets are retained
+     * until the index is finished
+     */
+    static class Writer {
+        private final File                       file;
+        private final File                       tempFile;
+        private final FileOutputStream           fos;
+        private final DataOutputStream           out;
+        private final Map<String, List<Integer>> nameOffsets = new TreeMap<>();
+        private final Map<String, List<Integer>> tagOffsets  = new TreeMap<>();
+
+        /**
+         * Start writing a new index
+         *
+         * @param file the final index file
+         * @param stamp a value that allows checking if the index is up to date
+         * @throws IOException if the file can't be created
+         */
+        Writer(@NonNull File file, long stamp) throws IOException {
+            this.file = file;
+            tempFile = new File(file.getPath() + ".tmp");
+            fos = new FileOutputStream(tempFile);
+            out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(stamp);
+            out.writeLong(0); // placeholders for the table offsets
+            out.writeLong(0);
+        }
+
+        /**
+         * Add an entry to the index
+         *
+         * @param name the value for the name tag
+         * @param tags associated tags
+         * @param count the times this establishment was found
+         * @param regions regions this entry is specific to or null
+         * @throws IOException if writing fails
+         */
+        void add(@NonNull String name, @NonNull TagMap tags, int count, @Nullable List<String> regions) throws IOException {
+            int offset = out.size();
+            writeString(out, name);
+            out.writeInt(count);
+            if (regions == null) {
+                out.writeShort(NO_REGIONS);
+            } else {
+                out.writeShort(regions.size());
+                for (String region : regions) {
+                    writeString(out, region);
+                }
+            }
+            out.writeShort(tags.size());
+            for (Entry<String, String> tag : tags.entrySet()) {
+                writeString(out, tag.getKey());
+                writeString(out, tag.getValue());
+            }
+            addOffset(nameOffsets, SearchIndexUtils.normalize(name), offset);
+            addOffset(tagOffsets, tags.toString(), offset);
+        }
+
+        /**
+         * Add an offset to the list for key
+         *
+         * @param map the map holding the lists
+         * @param key the key
+         * @param offset the offset
+         */
+        private static void addOffset(@NonNull Map<String, List<Integer>> map, @NonNull String key, int offset) {
+            List<Integer> offsets = map.get(key);
+            if (offsets == null) {
+                offsets = new ArrayList<>();
+                map.put(key, offsets);
+            }
+            offsets.add(offset);
+        }
+
+        /**
+         * Write the tables and move the index in to place
+         *
+         * @throws IOException if writing fails
+         */
+        void finish() throws IOException {
+            long namesOffset = out.size();
+            writeTable(nameOffsets);
+            long tagsOffset = out.size();
+            writeTable(tagOffsets);
+            out.flush();
+            SavingHelper.close(out);
+            RandomAccessFile raf = new RandomAccessFile(tempFile, "rw");
+            try {
+                raf.seek(HEADER_SIZE - 16L);
+                raf.writeLong(namesOffset);
+                raf.writeLong(tagsOffset);
+            } finally {
+                SavingHelper.close(raf);
+            }
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Renaming " + tempFile.getPath() + " failed");
+            }
+        }
+
+        /**
+         * Abandon writing the index
+         */
+        void abort() {
+            SavingHelper.close(out);
+            SavingHelper.close(fos);
+            if (!tempFile.delete()) {
+                tempFile.deleteOnExit();
+            }
+        }
+
+        /**
+         * Write an offset table
+         *
+         * @param table the table contents
+         * @throws IOException if writing fails
+         */
+        private void writeTable(@NonNull Map<String, List<Integer>> table) throws IOException {
+            out.writeInt(table.size());
+            for (Entry<String, List<Integer>> entry : table.entrySet()) {
+                writeString(out, entry.getKey());
+                List<Integer> offsets = entry.getValue();
+                out.writeInt(offsets.size());
+                for (Integer offset : offsets) {
+                    out.writeInt(offset);
+                }
+            }
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package de.blau.android.names;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -15,13 +16,14 @@ import java.util.TreeSet;
 import com.google.gson.stream.JsonReader;
 
 import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.AssetManager;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
 import de.blau.android.osm.Tags;
 import de.blau.android.util.SavingHelper;
-import de.blau.android.util.SearchIndexUtils;
 import de.blau.android.util.collections.MultiHashMap;
 
 /**
@@ -113,16 +115,7 @@ public class Names {
          * @return true if the entry is appropriate for the region
          */
         public boolean inUseIn(@Nullable List<String> currentRegions) {
-            if (currentRegions != null && regions != null) {
-                List<String> regionsList = Arrays.asList(regions);
-                for (String current : currentRegions) {
-                    if (regionsList.contains(current)) {
-                        return true;
-                    }
-                }
-                return false;
-            }
-            return true;
+            return Names.inUseIn(regions, currentRegions);
         }
 
         @Override
@@ -161,141 +154,198 @@ public class Names {
         }
     }
 
-    private static MultiHashMap<String, NameAndTags> nameList       = new MultiHashMap<>(false); // names -> multiple
-                                                                                                 // entries
-    private static MultiHashMap<String, NameAndTags> tags2namesList = new MultiHashMap<>(false); // tagmap -A multiple
-                                                                                                 // entries
-    private static MultiHashMap<String, String>      categories     = new MultiHashMap<>(false);
+    private static final String INDEX_FILE = "name-suggestions.idx";
+
+    private static NameIndex                    index      = null;
+    private static final Object                 indexLock  = new Object();
+    private static MultiHashMap<String, String> categories = new MultiHashMap<>(false);
 
     private static boolean ready = false;
 
     /**
      * Construct a new instance of the data structure holding names and tags
      * 
-     * The contents are currently read from a hardwired file
+     * The contents are currently read from a hardwired file, an on disk index will be created on first use if it
+     * doesn't exist yet
      * 
      * @param ctx an Android Context
      */
     public Names(@NonNull Context ctx) {
-        synchronized (nameList) {
-
+        synchronized (categories) {
             if (!ready) {
                 Log.d(DEBUG_TAG, "Parsing configuration files");
-
+                createOrUpdateIndex(ctx);
                 AssetManager assetManager = ctx.getAssets();
+                InputStream is = null;
+                JsonReader reader = null;
                 try {
-                    InputStream is = assetManager.open(NSI_FILE);
-                    JsonReader reader = new JsonReader(new InputStreamReader(is));
-
-                    try {
-                        try {
-                            // key object
-                            String key = null;
-                            reader.beginObject();
+                    is = assetManager.open(CATEGORIES_FILE);
+                    reader = new JsonReader(new InputStreamReader(is));
+                    String category = null;
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        category = reader.nextName();
+                        String poiType = null;
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            poiType = reader.nextName();
+                            reader.beginArray();
                             while (reader.hasNext()) {
-                                key = reader.nextName(); // amenity, shop
-                                // value object
-                                String value = null;
-                                reader.beginObject();
-                                while (reader.hasNext()) { // restaurant, fast_food, ....
-                                    value = reader.nextName();
-                                    // name object
-                                    String name = null;
-                                    reader.beginObject();
-                                    while (reader.hasNext()) {
-                                        name = reader.nextName(); // name of establishment
-                                        reader.beginObject();
-                                        int count = 0;
-                                        List<String> regions = null;
-                                        TagMap secondaryTags = null; // any extra tags store here
-                                        while (reader.hasNext()) {
-                                            String jsonName = reader.nextName();
-                                            switch (jsonName) {
-                                            case "count":
-                                                count = reader.nextInt();
-                                                break;
-                                            case "countryCodes":
-                                                reader.beginArray();
-                                                regions = new ArrayList<>();
-                                                while (reader.hasNext()) {
-                                                    regions.add(reader.nextString().toUpperCase());
-                                                }
-                                                reader.endArray();
-                                                break;
-                                            case "tags":
-                                                reader.beginObject();
-                                                secondaryTags = new TagMap();
-                                                while (reader.hasNext()) {
-                                                    secondaryTags.put(reader.nextName(), reader.nextString());
-                                                }
-                                                reader.endObject(); // tags
-                                                break;
-                                            default:
-                                                reader.skipValue();
-                                                break;
-                                            }
-                                        }
-                                        reader.endObject(); // name
-
-                                        // add to lists here
-                                        TagMap tags = new TagMap();
-                                        tags.put(key, value);
-                                        if (secondaryTags != null) {
-                                            tags.putAll(secondaryTags);
-                                        }
-                                        NameAndTags entry = new NameAndTags(name, tags, count,
-                                                regions == null ? null : regions.toArray(new String[regions.size()]));
-                                        nameList.add(name, entry);
-                                        tags2namesList.add(tags.toString(), entry);
-                                    }
-                                    reader.endObject(); // value
-                                }
-                                reader.endObject(); // key
+                                categories.add(category, poiType + "=" + reader.nextString());
                             }
-                            reader.endObject();
-                        } catch (IOException | IllegalStateException e) {
-                            Log.e(DEBUG_TAG, "Got exception reading " + NSI_FILE + " " + e.getMessage());
+                            reader.endArray();
                         }
-                    } finally {
-                        SavingHelper.close(reader);
-                        SavingHelper.close(is);
+                        reader.endObject();
                     }
-                    try {
-                        is = assetManager.open(CATEGORIES_FILE); // NOSONAR
-                        reader = new JsonReader(new InputStreamReader(is));
-                        try {
-                            String category = null;
-                            reader.beginObject();
-                            while (reader.hasNext()) {
-                                category = reader.nextName();
-                                String poiType = null;
+                    reader.endObject();
+                } catch (IOException | IllegalStateException e) {
+                    Log.d(DEBUG_TAG, "Got exception reading " + CATEGORIES_FILE + " " + e.getMessage());
+                } finally {
+                    SavingHelper.close(reader);
+                    SavingHelper.close(is);
+                }
+                ready = true;
+            }
+        }
+    }
+
+    /**
+     * Open the on disk index, creating it from the NSI file in the assets if it is missing or out of date
+     * 
+     * This should be called on a background thread
+     * 
+     * @param ctx an Android Context
+     */
+    public static void createOrUpdateIndex(@NonNull Context ctx) {
+        synchronized (indexLock) {
+            if (index != null) {
+                return;
+            }
+            long stamp = 0L;
+            try {
+                PackageInfo packageInfo = ctx.getPackageManager().getPackageInfo(ctx.getPackageName(), 0);
+                stamp = packageInfo.lastUpdateTime;
+            } catch (NameNotFoundException e) {
+                // can't really happen
+            }
+            File indexFile = new File(ctx.getFilesDir(), INDEX_FILE);
+            if (indexFile.exists()) {
+                try {
+                    NameIndex existing = new NameIndex(indexFile);
+                    if (existing.getStamp() == stamp) {
+                        index = existing;
+                        return;
+                    }
+                    Log.i(DEBUG_TAG, "Index out of date, recreating");
+                } catch (IOException e) {
+                    Log.e(DEBUG_TAG, "Got exception opening " + INDEX_FILE + " " + e.getMessage());
+                }
+            }
+            try {
+                buildIndex(ctx.getAssets(), indexFile, stamp);
+                index = new NameIndex(indexFile);
+            } catch (IOException e) {
+                Log.e(DEBUG_TAG, "Got exception creating " + INDEX_FILE + " " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Stream the contents of the NSI file in to a new index
+     * 
+     * @param assetManager an AssetManager for the NSI file
+     * @param indexFile the index file to create
+     * @param stamp the stamp to store in the index
+     * @throws IOException if reading or writing fails
+     */
+    private static void buildIndex(@NonNull AssetManager assetManager, @NonNull File indexFile, long stamp) throws IOException {
+        Log.d(DEBUG_TAG, "Creating " + INDEX_FILE);
+        // the TagMap and NameAndTags classes are not static so we need a dummy instance
+        Names dummy = new Names();
+        NameIndex.Writer writer = new NameIndex.Writer(indexFile, stamp);
+        InputStream is = null;
+        JsonReader reader = null;
+        try {
+            is = assetManager.open(NSI_FILE);
+            reader = new JsonReader(new InputStreamReader(is));
+            // key object
+            String key = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                key = reader.nextName(); // amenity, shop
+                // value object
+                String value = null;
+                reader.beginObject();
+                while (reader.hasNext()) { // restaurant, fast_food, ....
+                    value = reader.nextName();
+                    // name object
+                    String name = null;
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        name = reader.nextName(); // name of establishment
+                        reader.beginObject();
+                        int count = 0;
+                        List<String> regions = null;
+                        TagMap secondaryTags = null; // any extra tags store here
+                        while (reader.hasNext()) {
+                            String jsonName = reader.nextName();
+                            switch (jsonName) {
+                            case "count":
+                                count = reader.nextInt();
+                                break;
+                            case "countryCodes":
+                                reader.beginArray();
+                                regions = new ArrayList<>();
+                                while (reader.hasNext()) {
+                                    regions.add(reader.nextString().toUpperCase());
+                                }
+                                reader.endArray();
+                                break;
+                            case "tags":
                                 reader.beginObject();
+                                secondaryTags = dummy.new TagMap();
                                 while (reader.hasNext()) {
-                                    poiType = reader.nextName();
-                                    reader.beginArray();
-                                    while (reader.hasNext()) {
-                                        categories.add(category, poiType + "=" + reader.nextString());
-                                    }
-                                    reader.endArray();
+                                    secondaryTags.put(reader.nextName(), reader.nextString());
                                 }
-                                reader.endObject();
+                                reader.endObject(); // tags
+                                break;
+                            default:
+                                reader.skipValue();
+                                break;
                             }
-                            reader.endObject();
-                        } catch (IOException e) {
-                            Log.d(DEBUG_TAG, "Got exception reading " + CATEGORIES_FILE + " " + e.getMessage());
                         }
-                    } finally {
-                        SavingHelper.close(reader);
-                        SavingHelper.close(is);
+                        reader.endObject(); // name
+
+                        // add to index here
+                        TagMap tags = dummy.new TagMap();
+                        tags.put(key, value);
+                        if (secondaryTags != null) {
+                            tags.putAll(secondaryTags);
+                        }
+                        writer.add(name, tags, count, regions);
                     }
-                } catch (IOException | IllegalStateException e) {
-                    Log.d(DEBUG_TAG, "Got exception " + e.getMessage());
+                    reader.endObject(); // value
                 }
-                ready = true;
+                reader.endObject(); // key
             }
+            reader.endObject();
+            writer.finish();
+        } catch (IOException | IllegalStateException e) {
+            writer.abort();
+            throw new IOException("Got exception reading " + NSI_FILE + " " + e.getMessage());
+        } finally {
+            SavingHelper.close(reader);
+            SavingHelper.close(is);
         }
     }
 
+    /**
+     * Private constructor for use when building the index
+     */
+    private Names() {
+        // nothing to do
+    }
+
     /**
      * Given a set of tags determine the names and tags that could be appropriate
      * 
@@ -330,13 +380,14 @@ public class Names {
 
         String origTagKey = tm.toString();
 
-        for (String key : tags2namesList.getKeys()) {
+        if (index == null) {
+            return result;
+        }
+        List<String> tagKeys = index.getTagKeys();
+        List<NameAndTags> entries = new ArrayList<>();
+        for (String key : tagKeys) {
             if (key.contains(origTagKey)) {
-                for (NameAndTags nt : tags2namesList.get(key)) {
-                    if (nt.inUseIn(regions)) {
-                        result.add(nt);
-                    }
-                }
+                index.getByTags(this, key, entries);
             }
         }
 
@@ -348,13 +399,9 @@ public class Names {
             if (set.contains(origTagKey)) {
                 for (String catTagKey : set) { // loop over categories content
                     if (!seen.contains(catTagKey)) { // suppress dups
-                        for (String key : tags2namesList.getKeys()) {
+                        for (String key : tagKeys) {
                             if (key.contains(catTagKey)) {
-                                for (NameAndTags nt : tags2namesList.get(key)) {
-                                    if (nt.inUseIn(regions)) {
-                                        result.add(nt);
-                                    }
-                                }
+                                index.getByTags(this, key, entries);
                             }
                         }
                         seen.add(catTagKey);
@@ -362,19 +409,8 @@ public class Names {
                 }
             }
         }
-        return result;
-    }
-
-    /**
-     * Get all entries
-     * 
-     * @return a List containing all NameAndTags objects
-     */
-    @NonNull
-    private List<NameAndTags> getNames() {
-        List<NameAndTags> result = new ArrayList<>();
-        for (String n : nameList.getKeys()) {
-            for (NameAndTags nt : nameList.get(n)) {
+        for (NameAndTags nt : entries) {
+            if (nt.inUseIn(regions)) {
                 result.add(nt);
             }
         }
@@ -384,32 +420,64 @@ public class Names {
     /**
      * Get all entries valid in a specific region
      * 
+     * Entries for other regions are skipped while reading the index, so only the entries returned are created
+     * 
      * @param regions if an entry is region specific only return it if it is in use in region
      * @return a List of NameAndTags objects
      */
     @NonNull
     private List<NameAndTags> getNames(@Nullable List<String> regions) {
         List<NameAndTags> result = new ArrayList<>();
-        for (String n : nameList.getKeys()) {
-            for (NameAndTags nt : nameList.get(n)) {
-                if (nt.inUseIn(regions)) {
-                    result.add(nt);
+        if (index != null) {
+            index.getAll(this, regions, result);
+        }
+        return result;
+    }
+
+    /**
+     * Check if an entry is in use in a specific region
+     * 
+     * @param regions the regions the entry is specific to, null == all regions
+     * @param currentRegions the list of regions to check for, null == any region
+     * @return true if the entry is appropriate for the region
+     */
+    static boolean inUseIn(@Nullable String[] regions, @Nullable List<String> currentRegions) {
+        if (currentRegions != null && regions != null) {
+            List<String> regionsList = Arrays.asList(regions);
+            for (String current : currentRegions) {
+                if (regionsList.contains(current)) {
+                    return true;
                 }
             }
+            return false;
         }
-        return result;
+        return true;
     }
 
     /**
-     * Return a mapping from normalized name values to entries
+     * Get the normalized names of all entries, this does not read the entries themselves
      * 
-     * @return a map from normalized names to NameAndTags objects
+     * @return a sorted List of the normalized names
      */
-    public MultiHashMap<String, NameAndTags> getSearchIndex() {
-        MultiHashMap<String, NameAndTags> result = new MultiHashMap<>();
-        List<NameAndTags> names = getNames();
-        for (NameAndTags nat : names) {
-            result.add(SearchIndexUtils.normalize(nat.getName()), nat);
+    @NonNull
+    public List<String> getNormalizedNames() {
+        if (index == null) {
+            return new ArrayList<>();
+        }
+        return index.getNames();
+    }
+
+    /**
+     * Get the entries for a normalized name
+     * 
+     * @param normalizedName the name normalized with SearchIndexUtils.normalize
+     * @return a List of NameAndTags objects, empty if nothing was found
+     */
+    @NonNull
+    public List<NameAndTags> getByNormalizedName(@NonNull String normalizedName) {
+        List<NameAndTags> result = new ArrayList<>();
+        if (index != null) {
+            index.getByName(this, normalizedName, result);
         }
         return result;
     }
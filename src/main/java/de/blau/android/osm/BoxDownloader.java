@@ -0,0 +1,250 @@
+package de.blau.android.osm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.xml.sax.SAXException;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+/**
+ * Download an area from the API as a set of smaller tiles
+ * 
+ * The tiles are fetched and parsed concurrently and combined in to one Storage as they arrive, see
+ * {@link CombinedStorage}. A tile that fails with a transient error is retried on its own, a tile that the API refuses
+ * as too large is split in to smaller ones.
+ * 
+ * @author simon
+ *
+ */
+public class BoxDownloader {
+
+    private static final String DEBUG_TAG = BoxDownloader.class.getSimpleName();
+
+    /**
+     * Edge length of the tiles in 1E7 degrees, roughly 1 km north-south
+     */
+    static final int TILE_SIZE_E7 = 100000;
+
+    /**
+     * Tiles smaller than this are not split further, at this size the API will only refuse the request for other reasons
+     * than the amount of data
+     */
+    static final int MIN_TILE_SIZE_E7 = 25000;
+
+    /**
+     * Number of tiles that are downloaded at the same time
+     */
+    private static final int THREADS = 4;
+
+    /**
+     * How often a tile is retried after a transient error
+     */
+    static final int MAX_RETRIES = 2;
+
+    /**
+     * Delay before the first retry in ms, doubled for each further one
+     */
+    static final long RETRY_DELAY = 500;
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private final Context         context;
+    private final Server          server;
+    private final CombinedStorage combined = new CombinedStorage();
+
+    /**
+     * Download of a single tile
+     */
+    private class TileTask implements Callable<List<TileTask>> {
+        final BoundingBox box;
+        final int         retry;
+
+        /**
+         * Construct a new task
+         * 
+         * @param box the area of the tile
+         * @param retry the number of previous attempts
+         */
+        TileTask(@NonNull BoundingBox box, int retry) {
+            this.box = box;
+            this.retry = retry;
+        }
+
+        /**
+         * Download, parse and add the tile to storage
+         * 
+         * @return any tasks that need to be run instead of this one
+         * @throws SAXException if the data couldn't be parsed
+         * @throws ParserConfigurationException if the parser couldn't be created
+         * @throws IOException if the tile couldn't be downloaded
+         * @throws InterruptedException if we were interrupted while waiting for a retry
+         */
+        @Override
+        public List<TileTask> call()
+                throws SAXException, ParserConfigurationException, IOException, InterruptedException {
+            try (InputStream in = server.getStreamForBox(null, box)) {
+                OsmParser osmParser = new OsmParser();
+                osmParser.start(in);
+                combined.add(osmParser.getStorage());
+                return Collections.emptyList();
+            } catch (OsmServerException e) {
+                int code = e.getErrorCode();
+                if (code == HttpURLConnection.HTTP_BAD_REQUEST && !Server.ERROR_MESSAGE_BAD_OAUTH_REQUEST.matcher(e.getMessage()).matches()
+                        && box.getWidth() > MIN_TILE_SIZE_E7 && box.getHeight() > MIN_TILE_SIZE_E7) {
+                    Log.w(DEBUG_TAG, "Too much data in " + box.toApiString() + " splitting");
+                    List<TileTask> parts = new ArrayList<>();
+                    for (BoundingBox b : split(box, (int) Math.max((box.getWidth() + 1) / 2, (box.getHeight() + 1) / 2))) {
+                        parts.add(new TileTask(b, 0));
+                    }
+                    return parts;
+                }
+                if ((code >= HttpURLConnection.HTTP_INTERNAL_ERROR || code == HTTP_TOO_MANY_REQUESTS) && retry < MAX_RETRIES) {
+                    return retry(e);
+                }
+                throw e;
+            } catch (IOException e) {
+                if (retry < MAX_RETRIES) {
+                    return retry(e);
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * Wait and then return a task to download the tile again
+         * 
+         * @param e the exception that caused the retry
+         * @return a List containing the new task
+         * @throws InterruptedException if we were interrupted while waiting
+         */
+        @NonNull
+        private List<TileTask> retry(@NonNull IOException e) throws InterruptedException {
+            Log.w(DEBUG_TAG, "Retrying " + box.toApiString() + " after " + e.getMessage());
+            Thread.sleep(RETRY_DELAY << retry);
+            return Collections.singletonList(new TileTask(box, retry + 1));
+        }
+    }
+
+    /**
+     * Construct a new downloader
+     * 
+     * @param context Android context used to report errors, if null errors are only thrown
+     * @param server the API to download from
+     */
+    public BoxDownloader(@Nullable Context context, @NonNull Server server) {
+        this.context = context;
+        this.server = server;
+    }
+
+    /**
+     * Get the tiles that need to be downloaded to cover an area
+     * 
+     * @param existing the areas that have already been downloaded
+     * @param box the area we want
+     * @return a List of tiles, empty if box is already covered
+     */
+    @NonNull
+    public static List<BoundingBox> plan(@NonNull List<BoundingBox> existing, @NonNull BoundingBox box) {
+        List<BoundingBox> result = new ArrayList<>();
+        for (BoundingBox b : BoundingBox.newBoxes(existing, box)) {
+            if (b.getWidth() <= 1 || b.getHeight() <= 1) {
+                // ignore super small bb likely due to rounding errors
+                continue;
+            }
+            result.addAll(split(b, TILE_SIZE_E7));
+        }
+        return result;
+    }
+
+    /**
+     * Split an area in to a grid of equally sized tiles
+     * 
+     * @param box the area
+     * @param size the maximum edge length of the tiles in 1E7 degrees
+     * @return a List of tiles
+     */
+    @NonNull
+    static List<BoundingBox> split(@NonNull BoundingBox box, int size) {
+        List<BoundingBox> result = new ArrayList<>();
+        long width = box.getWidth();
+        long height = box.getHeight();
+        int columns = (int) Math.max(1, (width + size - 1) / size);
+        int rows = (int) Math.max(1, (height + size - 1) / size);
+        for (int row = 0; row < rows; row++) {
+            int bottom = (int) (box.getBottom() + height * row / rows);
+            int top = (int) (box.getBottom() + height * (row + 1) / rows);
+            for (int column = 0; column < columns; column++) {
+                int left = (int) (box.getLeft() + width * column / columns);
+                int right = (int) (box.getLeft() + width * (column + 1) / columns);
+                result.add(new BoundingBox(left, bottom, right, top));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Download the tiles and combine them
+     * 
+     * If any tile can't be downloaded the whole download is abandoned and the first error reported and thrown. The
+     * individual tiles are requested without a context so that errors that lead to a retry or a split are not shown.
+     * 
+     * @param tiles the tiles to download
+     * @return a Storage object containing the data of all tiles
+     * @throws SAXException if the data couldn't be parsed
+     * @throws ParserConfigurationException if the parser couldn't be created
+     * @throws IOException if a tile couldn't be downloaded
+     */
+    @NonNull
+    public Storage download(@NonNull List<BoundingBox> tiles)
+            throws SAXException, ParserConfigurationException, IOException {
+        long start = System.currentTimeMillis();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(THREADS, tiles.size())));
+        CompletionService<List<TileTask>> completionService = new ExecutorCompletionService<>(executor);
+        int pending = 0;
+        try {
+            for (BoundingBox tile : tiles) {
+                completionService.submit(new TileTask(tile, 0));
+                pending++;
+            }
+            while (pending > 0) {
+                Future<List<TileTask>> future = completionService.take();
+                pending--;
+                for (TileTask task : future.get()) {
+                    completionService.submit(task);
+                    pending++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof OsmServerException) {
+                Server.showDownloadError(context, ((OsmServerException) cause).getErrorCode(), cause.getMessage());
+            }
+            CombinedStorage.rethrow(e);
+        } finally {
+            executor.shutdownNow();
+        }
+        Log.d(DEBUG_TAG, "Downloaded " + tiles.size() + " tiles in " + (System.currentTimeMillis() - start) + "ms");
+        return combined.finish();
+    }
+}
@@ -0,0 +1,196 @@
+package de.blau.android.osm;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+/**
+ * Order the changes in an api Storage so that they can be uploaded in multiple changesets
+ * 
+ * Created elements come first, ordered so that referenced elements are created before the ways and relations that use
+ * them, then modified elements, then deleted elements, ordered so that ways and relations are deleted before the
+ * elements they reference. As every element only depends on elements in front of it, the changes can be cut in to
+ * chunks at any point and uploaded one after the other.
+ * 
+ * @author simon
+ *
+ */
+final class ChangesetPartitioner {
+
+    private static final String DEBUG_TAG = ChangesetPartitioner.class.getSimpleName();
+
+    /**
+     * Empty private constructor to prevent instantiation
+     */
+    private ChangesetPartitioner() {
+        // empty
+    }
+
+    /**
+     * Split the changes in a Storage in to chunks that can be uploaded one after the other
+     * 
+     * @param storage the api Storage
+     * @param maxChanges the maximum number of changes in a chunk
+     * @return a List of chunks, empty if there are no changes
+     */
+    @NonNull
+    static List<List<OsmElement>> partition(@NonNull Storage storage, int maxChanges) {
+        List<OsmElement> ordered = order(storage);
+        List<List<OsmElement>> result = new ArrayList<>();
+        int size = ordered.size();
+        for (int start = 0; start < size; start += maxChanges) {
+            result.add(new ArrayList<>(ordered.subList(start, (int) Math.min((long) start + maxChanges, size))));
+        }
+        return result;
+    }
+
+    /**
+     * Order the changes in a Storage so that each element only references elements in front of it
+     * 
+     * @param storage the api Storage
+     * @return a List of the created, modified and deleted elements
+     */
+    @NonNull
+    static List<OsmElement> order(@NonNull Storage storage) {
+        List<OsmElement> created = new ArrayList<>();
+        List<OsmElement> modified = new ArrayList<>();
+        List<OsmElement> deleted = new ArrayList<>();
+        add(storage.getNodes(), created, modified, deleted);
+        add(storage.getWays(), created, modified, deleted);
+        add(storage.getRelations(), created, modified, deleted);
+
+        List<OsmElement> result = new ArrayList<>(created.size() + modified.size() + deleted.size());
+        result.addAll(sort(created));
+        result.addAll(modified);
+        List<OsmElement> sortedDeleted = sort(deleted);
+        Collections.reverse(sortedDeleted);
+        result.addAll(sortedDeleted);
+        return result;
+    }
+
+    /**
+     * Add elements to the list for their state
+     * 
+     * @param elements the elements
+     * @param created list of created elements
+     * @param modified list of modified elements
+     * @param deleted list of deleted elements
+     */
+    private static void add(@NonNull List<? extends OsmElement> elements, @NonNull List<OsmElement> created, @NonNull List<OsmElement> modified,
+            @NonNull List<OsmElement> deleted) {
+        for (OsmElement e : elements) {
+            switch (e.getState()) {
+            case OsmElement.STATE_CREATED:
+                created.add(e);
+                break;
+            case OsmElement.STATE_MODIFIED:
+                modified.add(e);
+                break;
+            case OsmElement.STATE_DELETED:
+                deleted.add(e);
+                break;
+            default:
+                Log.d(DEBUG_TAG, e.getName() + " id " + e.getOsmId() + " not modified");
+            }
+        }
+    }
+
+    /**
+     * Sort elements topologically so that referenced elements come before the elements referencing them
+     * 
+     * Elements that are part of, or depend on, a reference cycle are added at the end in their original order.
+     * 
+     * @param elements the elements to sort
+     * @return a new sorted List
+     */
+    @NonNull
+    static List<OsmElement> sort(@NonNull List<OsmElement> elements) {
+        int size = elements.size();
+        Map<OsmElement, Integer> index = new HashMap<>(size * 2);
+        for (int i = 0; i < size; i++) {
+            index.put(elements.get(i), i);
+        }
+        // number of references to other elements in the list that haven't been output yet
+        int[] pending = new int[size];
+        List<List<Integer>> referencedBy = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            referencedBy.add(null);
+        }
+        for (int i = 0; i < size; i++) {
+            for (OsmElement r : references(elements.get(i))) {
+                Integer j = index.get(r);
+                if (j != null && j != i) {
+                    pending[i]++;
+                    List<Integer> l = referencedBy.get(j);
+                    if (l == null) {
+                        l = new ArrayList<>();
+                        referencedBy.set(j, l);
+                    }
+                    l.add(i);
+                }
+            }
+        }
+        Deque<Integer> ready = new ArrayDeque<>();
+        for (int i = 0; i < size; i++) {
+            if (pending[i] == 0) {
+                ready.add(i);
+            }
+        }
+        List<OsmElement> result = new ArrayList<>(size);
+        boolean[] done = new boolean[size];
+        while (!ready.isEmpty()) {
+            int i = ready.poll();
+            result.add(elements.get(i));
+            done[i] = true;
+            List<Integer> l = referencedBy.get(i);
+            if (l != null) {
+                for (int k : l) {
+                    pending[k]--;
+                    if (pending[k] == 0) {
+                        ready.add(k);
+                    }
+                }
+            }
+        }
+        if (result.size() < size) {
+            Log.w(DEBUG_TAG, (size - result.size()) + " elements are part of or depend on a reference cycle");
+            for (int i = 0; i < size; i++) {
+                if (!done[i]) {
+                    result.add(elements.get(i));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the elements an element references
+     * 
+     * @param e the element
+     * @return a List of the way nodes for a Way, of the downloaded members for a Relation, otherwise empty
+     */
+    @NonNull
+    private static List<OsmElement> references(@NonNull OsmElement e) {
+        if (e instanceof Way) {
+            return new ArrayList<OsmElement>(((Way) e).getNodes());
+        } else if (e instanceof Relation) {
+            List<RelationMember> members = ((Relation) e).getMembers();
+            List<OsmElement> result = new ArrayList<>(members.size());
+            for (RelationMember rm : members) {
+                OsmElement m = rm.getElement();
+                if (m != null) {
+                    result.add(m);
+                }
+            }
+            return result;
+        }
+        return Collections.emptyList();
+    }
+}
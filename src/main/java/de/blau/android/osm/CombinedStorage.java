@@ -0,0 +1,124 @@
+package de.blau.android.osm;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.xml.sax.SAXException;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+/**
+ * Combine the Storage objects of separately parsed API responses in to one
+ *
+ * Parts can be added concurrently, elements that are in more than one part are only added once. References between
+ * elements are resolved once all parts have been added.
+ *
+ * @author simon
+ *
+ */
+class CombinedStorage {
+
+    private static final String DEBUG_TAG = CombinedStorage.class.getSimpleName();
+
+    private final Storage storage = new Storage();
+
+    /**
+     * Add the contents of a part
+     *
+     * @param part the Storage of the part
+     */
+    synchronized void add(@NonNull Storage part) {
+        for (Node n : part.getNodes()) {
+            if (storage.getNode(n.getOsmId()) == null) {
+                storage.insertNodeUnsafe(n);
+            }
+        }
+        for (Way w : part.getWays()) {
+            if (storage.getWay(w.getOsmId()) == null) {
+                storage.insertWayUnsafe(w);
+            }
+        }
+        for (Relation r : part.getRelations()) {
+            if (storage.getRelation(r.getOsmId()) == null) {
+                storage.insertRelationUnsafe(r);
+            }
+        }
+    }
+
+    /**
+     * Get a node that has been added
+     *
+     * @param id the id of the node
+     * @return the Node or null if it hasn't been added
+     */
+    @Nullable
+    synchronized Node getNode(long id) {
+        return storage.getNode(id);
+    }
+
+    /**
+     * Resolve the references between the elements of the parts
+     *
+     * Way nodes are changed to refer to the instances in the combined Storage, ways with nodes that are not available
+     * are removed. Relation members and back links are set to the elements in the combined Storage.
+     *
+     * @return the combined Storage
+     */
+    @NonNull
+    synchronized Storage finish() {
+        for (Way w : storage.getWays()) {
+            List<Node> nodes = w.getNodes();
+            for (int i = 0; i < nodes.size(); i++) {
+                Node n = storage.getNode(nodes.get(i).getOsmId());
+                if (n == null) {
+                    Log.e(DEBUG_TAG, "Way " + w.getOsmId() + " node " + nodes.get(i).getOsmId() + " missing, removing way");
+                    storage.removeWay(w);
+                    break;
+                }
+                nodes.set(i, n);
+            }
+        }
+        for (OsmElement e : storage.getElements()) {
+            e.clearParentRelations();
+        }
+        for (Relation r : storage.getRelations()) {
+            for (RelationMember rm : r.getMembers()) {
+                OsmElement e = storage.getOsmElement(rm.getType(), rm.getRef());
+                rm.setElement(e);
+                if (e != null) {
+                    e.addParentRelation(r);
+                }
+            }
+        }
+        return storage;
+    }
+
+    /**
+     * Throw the cause of a failed download task as is
+     *
+     * @param e the ExecutionException thrown when retrieving the result of the task
+     * @throws SAXException if the data couldn't be parsed
+     * @throws ParserConfigurationException if the parser couldn't be created
+     * @throws IOException if the data couldn't be downloaded or for any other checked exception
+     */
+    static void rethrow(@NonNull ExecutionException e) throws SAXException, ParserConfigurationException, IOException {
+        Throwable cause = e.getCause();
+        if (cause instanceof SAXException) {
+            throw (SAXException) cause;
+        } else if (cause instanceof ParserConfigurationException) {
+            throw (ParserConfigurationException) cause;
+        } else if (cause instanceof IOException) {
+            throw (IOException) cause;
+        } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        throw new IOException(cause);
+    }
+}
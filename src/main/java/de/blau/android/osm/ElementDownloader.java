@@ -0,0 +1,249 @@
+package de.blau.android.osm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import de.blau.android.exception.OsmParseException;
+import de.blau.android.exception.OsmServerException;
+import de.blau.android.util.collections.LongHashSet;
+
+/**
+ * Download multiple elements from the API with multi fetch requests
+ * 
+ * The ids are split in to batches that keep the request URLs short, the batches for all element types are fetched
+ * concurrently. Ways are fetched without their nodes, the nodes that are missing are fetched in a second round.
+ * 
+ * @author simon
+ *
+ */
+public class ElementDownloader {
+
+    private static final String DEBUG_TAG = ElementDownloader.class.getSimpleName();
+
+    /**
+     * Maximum length of the comma separated list of ids in a request
+     */
+    static final int MAX_IDS_LENGTH = 2000;
+
+    /**
+     * Number of requests that are run at the same time
+     */
+    private static final int THREADS = 4;
+
+    private final Context         context;
+    private final Server          server;
+    private final CombinedStorage combined = new CombinedStorage();
+    private final LongHashSet     wayNodes = new LongHashSet();
+
+    /**
+     * Parser for ways without their nodes, way nodes are replaced by place holders
+     */
+    private class WayParser extends OsmParser {
+
+        @Override
+        protected void parseWayNode(final Attributes atts) throws OsmParseException {
+            if (currentWay == null) {
+                Log.e(DEBUG_TAG, "No currentWay set!");
+                return;
+            }
+            try {
+                long nodeOsmId = Long.parseLong(atts.getValue("ref"));
+                currentWay.addNode(OsmElementFactory.createNode(nodeOsmId, -1L, -1L, OsmElement.STATE_UNCHANGED, 0, 0));
+                synchronized (wayNodes) {
+                    wayNodes.put(nodeOsmId);
+                }
+            } catch (NumberFormatException e) {
+                throw new OsmParseException("WayNode unparsable");
+            }
+        }
+    }
+
+    /**
+     * Download of one batch of elements
+     */
+    private class BatchTask implements Callable<Void> {
+        final String type;
+        final long[] ids;
+
+        /**
+         * Construct a new task
+         * 
+         * @param type the type of the elements
+         * @param ids the ids of the elements
+         */
+        BatchTask(@NonNull String type, @NonNull long[] ids) {
+            this.type = type;
+            this.ids = ids;
+        }
+
+        @Override
+        public Void call() throws SAXException, ParserConfigurationException, IOException {
+            try (InputStream in = server.getStreamForElements(null, type, ids)) {
+                OsmParser osmParser = Way.NAME.equals(type) ? new WayParser() : new OsmParser();
+                osmParser.start(in);
+                combined.add(osmParser.getStorage());
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Construct a new downloader
+     * 
+     * @param context Android context used to report errors, if null errors are only thrown
+     * @param server the API to download from
+     */
+    public ElementDownloader(@Nullable Context context, @NonNull Server server) {
+        this.context = context;
+        this.server = server;
+    }
+
+    /**
+     * Download elements and their way nodes
+     * 
+     * If any batch can't be downloaded the whole download is abandoned and the first error thrown, API errors are
+     * reported to the user once.
+     * 
+     * @param nodes List containing the node ids
+     * @param ways List containing the way ids
+     * @param relations List containing the relation ids
+     * @return a Storage object containing the elements
+     * @throws SAXException if the data couldn't be parsed
+     * @throws ParserConfigurationException if the parser couldn't be created
+     * @throws IOException if a batch couldn't be downloaded
+     */
+    @NonNull
+    public Storage download(@Nullable List<Long> nodes, @Nullable List<Long> ways, @Nullable List<Long> relations)
+            throws SAXException, ParserConfigurationException, IOException {
+        long start = System.currentTimeMillis();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<BatchTask> tasks = new ArrayList<>();
+            addTasks(tasks, Node.NAME, nodes);
+            addTasks(tasks, Way.NAME, ways);
+            addTasks(tasks, Relation.NAME, relations);
+            run(executor, tasks);
+            // way nodes that we don't have yet
+            List<Long> missing = new ArrayList<>();
+            for (long id : wayNodes.values()) {
+                if (combined.getNode(id) == null) {
+                    missing.add(id);
+                }
+            }
+            tasks.clear();
+            addTasks(tasks, Node.NAME, missing);
+            run(executor, tasks);
+        } finally {
+            executor.shutdownNow();
+        }
+        Log.d(DEBUG_TAG, "Downloaded elements in " + (System.currentTimeMillis() - start) + "ms");
+        return combined.finish();
+    }
+
+    /**
+     * Add tasks for downloading elements of one type in batches
+     * 
+     * @param tasks the List of tasks to add to
+     * @param type the type of the elements
+     * @param ids the ids or null
+     */
+    private void addTasks(@NonNull List<BatchTask> tasks, @NonNull String type, @Nullable List<Long> ids) {
+        if (ids != null) {
+            for (long[] batch : batches(ids, MAX_IDS_LENGTH)) {
+                tasks.add(new BatchTask(type, batch));
+            }
+        }
+    }
+
+    /**
+     * Split ids in to batches so that the comma separated list of each batch is at most maxLength long
+     * 
+     * @param ids the ids
+     * @param maxLength the maximum length of the list
+     * @return a List of arrays of ids
+     */
+    @NonNull
+    static List<long[]> batches(@NonNull List<Long> ids, int maxLength) {
+        List<long[]> result = new ArrayList<>();
+        int size = ids.size();
+        int start = 0;
+        int length = 0;
+        for (int i = 0; i < size; i++) {
+            int idLength = Long.toString(ids.get(i)).length() + 1; // include the separator
+            if (i > start && length + idLength > maxLength + 1) {
+                result.add(toArray(ids.subList(start, i)));
+                start = i;
+                length = 0;
+            }
+            length += idLength;
+        }
+        if (start < size) {
+            result.add(toArray(ids.subList(start, size)));
+        }
+        return result;
+    }
+
+    /**
+     * Convert a List of Long to an array of long
+     * 
+     * @param list the List of Long
+     * @return an array holding the corresponding long values
+     */
+    @NonNull
+    private static long[] toArray(@NonNull List<Long> list) {
+        long[] result = new long[list.size()];
+        for (int i = 0; i < list.size(); i++) {
+            result[i] = list.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * Run tasks and wait until they have all completed
+     * 
+     * @param executor the ExecutorService to run the tasks on
+     * @param tasks the tasks
+     * @throws SAXException if the data couldn't be parsed
+     * @throws ParserConfigurationException if the parser couldn't be created
+     * @throws IOException if a batch couldn't be downloaded
+     */
+    private void run(@NonNull ExecutorService executor, @NonNull List<BatchTask> tasks)
+            throws SAXException, ParserConfigurationException, IOException {
+        CompletionService<Void> completionService = new ExecutorCompletionService<>(executor);
+        for (BatchTask task : tasks) {
+            completionService.submit(task);
+        }
+        try {
+            for (int i = 0; i < tasks.size(); i++) {
+                completionService.take().get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof OsmServerException) {
+                Server.showDownloadError(context, ((OsmServerException) cause).getErrorCode(), cause.getMessage());
+            }
+            CombinedStorage.rethrow(e);
+        }
+    }
+}
@@ -41,6 +41,9 @@ public final class OsmXml {
      * Writes created/changed/deleted data to outputStream in OsmChange format
      * http://wiki.openstreetmap.org/wiki/OsmChange
      * 
+     * If there are more than maxChanges changes, the first chunk as determined by {@link ChangesetPartitioner} is
+     * written
+     * 
      * @param storage a Storage object with the changes
      * @param outputStream stream to write to
      * @param changeSetId the allocated changeset id or null if non
@@ -53,7 +56,27 @@ public final class OsmXml {
      */
     public static void writeOsmChange(@NonNull Storage storage, @NonNull OutputStream outputStream, @Nullable Long changeSetId, int maxChanges,
             @NonNull String generator) throws IllegalArgumentException, IllegalStateException, IOException, XmlPullParserException {
-        int count = 0;
+        List<List<OsmElement>> chunks = ChangesetPartitioner.partition(storage, maxChanges);
+        writeOsmChange(chunks.isEmpty() ? new ArrayList<OsmElement>() : chunks.get(0), outputStream, changeSetId, generator);
+    }
+
+    /**
+     * Writes created/changed/deleted elements to outputStream in OsmChange format
+     * http://wiki.openstreetmap.org/wiki/OsmChange
+     * 
+     * The order of the elements is retained within the create, modify and delete sections
+     * 
+     * @param elements the changed elements in upload order
+     * @param outputStream stream to write to
+     * @param changeSetId the allocated changeset id or null if non
+     * @param generator a String for the generator attribute
+     * @throws IllegalArgumentException
+     * @throws IllegalStateException
+     * @throws IOException
+     * @throws XmlPullParserException
+     */
+    public static void writeOsmChange(@NonNull List<OsmElement> elements, @NonNull OutputStream outputStream, @Nullable Long changeSetId,
+            @NonNull String generator) throws IllegalArgumentException, IllegalStateException, IOException, XmlPullParserException {
         Log.d(DEBUG_TAG, "writing osm change with changesetid " + changeSetId);
         XmlSerializer serializer = XmlPullParserFactory.newInstance().newSerializer();
         serializer.setOutput(outputStream, UTF_8);
@@ -62,164 +85,41 @@ public final class OsmXml {
         serializer.attribute(null, "generator", generator);
         serializer.attribute(null, "version", "0.6");
 
-        ArrayList<OsmElement> createdNodes = new ArrayList<>();
-        ArrayList<OsmElement> modifiedNodes = new ArrayList<>();
-        ArrayList<OsmElement> deletedNodes = new ArrayList<>();
-        ArrayList<OsmElement> createdWays = new ArrayList<>();
-        ArrayList<OsmElement> modifiedWays = new ArrayList<>();
-        ArrayList<OsmElement> deletedWays = new ArrayList<>();
-        ArrayList<Relation> createdRelations = new ArrayList<>();
-        ArrayList<Relation> modifiedRelations = new ArrayList<>();
-        ArrayList<Relation> deletedRelations = new ArrayList<>();
+        writeSection(serializer, elements, OsmElement.STATE_CREATED, "create", changeSetId);
+        writeSection(serializer, elements, OsmElement.STATE_MODIFIED, "modify", changeSetId);
+        writeSection(serializer, elements, OsmElement.STATE_DELETED, "delete", changeSetId);
 
-        for (OsmElement elem : storage.getNodes()) {
-            Log.d(DEBUG_TAG, "node added to list for upload, id " + elem.osmId);
-            switch (elem.state) {
-            case OsmElement.STATE_CREATED:
-                createdNodes.add(elem);
-                break;
-            case OsmElement.STATE_MODIFIED:
-                modifiedNodes.add(elem);
-                break;
-            case OsmElement.STATE_DELETED:
-                deletedNodes.add(elem);
-                break;
-            default:
-                Log.d(DEBUG_TAG, "node id " + elem.osmId + " not modified");
-                continue;
-            }
-            count++;
-            if (count >= maxChanges) {
-                break;
-            }
-        }
-        if (count < maxChanges) {
-            for (OsmElement elem : storage.getWays()) {
-                Log.d(DEBUG_TAG, "way added to list for upload, id " + elem.osmId);
-                switch (elem.state) {
-                case OsmElement.STATE_CREATED:
-                    createdWays.add(elem);
-                    break;
-                case OsmElement.STATE_MODIFIED:
-                    modifiedWays.add(elem);
-                    break;
-                case OsmElement.STATE_DELETED:
-                    deletedWays.add(elem);
-                    break;
-                default:
-                    Log.d(DEBUG_TAG, "way id " + elem.osmId + " not modified");
-                    continue;
-                }
-                count++;
-                if (count >= maxChanges) {
-                    break;
-                }
-            }
-        }
-        if (count < maxChanges) {
-            for (OsmElement elem : storage.getRelations()) {
-                Log.d(DEBUG_TAG, "relation added to list for upload, id " + elem.osmId);
-                switch (elem.state) {
-                case OsmElement.STATE_CREATED:
-                    createdRelations.add((Relation) elem);
-                    break;
-                case OsmElement.STATE_MODIFIED:
-                    modifiedRelations.add((Relation) elem);
-                    break;
-                case OsmElement.STATE_DELETED:
-                    deletedRelations.add((Relation) elem);
-                    break;
-                default:
-                    Log.d(DEBUG_TAG, "relation id " + elem.osmId + " not modified");
-                    continue;
-                }
-                count++;
-                if (count >= maxChanges) {
-                    break;
-                }
-            }
-        }
-        Comparator<Relation> relationOrder = new Comparator<Relation>() {
-            @Override
-            public int compare(Relation r1, Relation r2) {
-                if (r1.hasParentRelation(r2)) {
-                    return -1;
-                }
-                if (r2.hasParentRelation(r1)) {
-                    return 1;
-                }
-                return 0;
-            }
-        };
-        if (!createdRelations.isEmpty()) {
-            // sort the relations so that childs come first, will not handle loops and similar brokenness
-            Collections.sort(createdRelations, relationOrder);
-        }
-        if (!modifiedRelations.isEmpty()) {
-            // sort the relations so that childs come first, will not handle loops and similar brokenness
-            Collections.sort(modifiedRelations, relationOrder);
-        }
-        if (!deletedRelations.isEmpty()) {
-            // sort the relations so that parents come first, will not handle loops and similar brokenness
-            Collections.sort(deletedRelations, new Comparator<Relation>() {
-                @Override
-                public int compare(Relation r1, Relation r2) {
-                    if (r1.hasParentRelation(r2)) {
-                        return 1;
-                    }
-                    if (r2.hasParentRelation(r1)) {
-                        return -1;
-                    }
-                    return 0;
-                }
-            });
-        }
-
-        if (!createdNodes.isEmpty() || !createdWays.isEmpty() || !createdRelations.isEmpty()) {
-            serializer.startTag(null, "create");
-            for (OsmElement elem : createdNodes) {
-                elem.toXml(serializer, changeSetId);
-            }
-            for (OsmElement elem : createdWays) {
-                elem.toXml(serializer, changeSetId);
-            }
-            for (OsmElement elem : createdRelations) {
-                elem.toXml(serializer, changeSetId);
-            }
-            serializer.endTag(null, "create");
-        }
+        serializer.endTag(null, "osmChange");
+        serializer.endDocument();
+    }
 
-        if (!modifiedNodes.isEmpty() || !modifiedWays.isEmpty() || !modifiedRelations.isEmpty()) {
-            serializer.startTag(null, "modify");
-            for (OsmElement elem : modifiedNodes) {
-                elem.toXml(serializer, changeSetId);
-            }
-            for (OsmElement elem : modifiedWays) {
-                elem.toXml(serializer, changeSetId);
-            }
-            for (OsmElement elem : modifiedRelations) {
+    /**
+     * Write the elements with a specific state as a section of an OsmChange document
+     * 
+     * @param serializer the XmlSerializer
+     * @param elements the changed elements in upload order
+     * @param state the state of the elements in this section
+     * @param tag the tag of the section
+     * @param changeSetId the allocated changeset id or null if non
+     * @throws IllegalArgumentException
+     * @throws IllegalStateException
+     * @throws IOException
+     */
+    private static void writeSection(@NonNull XmlSerializer serializer, @NonNull List<OsmElement> elements, byte state, @NonNull String tag,
+            @Nullable Long changeSetId) throws IllegalArgumentException, IllegalStateException, IOException {
+        boolean started = false;
+        for (OsmElement elem : elements) {
+            if (elem.state == state) {
+                if (!started) {
+                    serializer.startTag(null, tag);
+                    started = true;
+                }
                 elem.toXml(serializer, changeSetId);
             }
-            serializer.endTag(null, "modify");
         }
-
-        // delete in opposite order
-        if (!deletedNodes.isEmpty() || !deletedWays.isEmpty() || !deletedRelations.isEmpty()) {
-            serializer.startTag(null, "delete");
-            for (OsmElement elem : deletedRelations) {
-                elem.toXml(serializer, changeSetId);
-            }
-            for (OsmElement elem : deletedWays) {
-                elem.toXml(serializer, changeSetId);
-            }
-            for (OsmElement elem : deletedNodes) {
-                elem.toXml(serializer, changeSetId);
-            }
-            serializer.endTag(null, "delete");
+        if (started) {
+            serializer.endTag(null, tag);
         }
-
-        serializer.endTag(null, "osmChange");
-        serializer.endDocument();
     }
 
     /**
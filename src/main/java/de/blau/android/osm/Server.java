@@ -14,8 +14,8 @@ import java.net.URL;
 import java.net.URLEncoder;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -52,6 +52,7 @@ import de.blau.android.services.util.MBTileProviderDataBase;
 import de.blau.android.services.util.StreamUtils;
 import de.blau.android.tasks.Note;
 import de.blau.android.tasks.NoteComment;
+import de.blau.android.tasks.TaskSink;
 import de.blau.android.util.ActivityResultHandler;
 import de.blau.android.util.BasicAuthInterceptor;
 import de.blau.android.util.DateFormatter;
@@ -751,25 +752,34 @@ public class Server {
             ResponseBody responseBody = readCallResponse.body();
             return responseBody.byteStream();
         } else {
-            if (context instanceof Activity) {
-                final int responseCode = readCallResponse.code();
-                final String responseMessage = readCallResponse.message();
-                if (responseCode == 400) {
-                    ((Activity) context).runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            Snack.barError((Activity) context, context.getString(R.string.toast_download_failed, responseCode, responseMessage));
-                        }
-                    });
-                } else {
-                    ((Activity) context).runOnUiThread(new DownloadErrorToast(context, responseCode, responseMessage));
-                }
-            }
+            showDownloadError(context, readCallResponse.code(), readCallResponse.message());
             throwOsmServerException(readCallResponse);
         }
         return null;
     }
 
+    /**
+     * Tell the user that a download failed
+     * 
+     * @param context Android context, if this isn't an Activity nothing is shown
+     * @param responseCode the HTTP response code
+     * @param responseMessage the message returned by the server
+     */
+    public static void showDownloadError(@Nullable final Context context, final int responseCode, @Nullable final String responseMessage) {
+        if (context instanceof Activity) {
+            if (responseCode == 400) {
+                ((Activity) context).runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Snack.barError((Activity) context, context.getString(R.string.toast_download_failed, responseCode, responseMessage));
+                    }
+                });
+            } else {
+                ((Activity) context).runOnUiThread(new DownloadErrorToast(context, responseCode, responseMessage));
+            }
+        }
+    }
+
     /**
      * Sends an delete-request to the server.
      * 
@@ -1262,14 +1272,16 @@ public class Server {
      * Upload edits in OCS format and process the server response
      * 
      * @param delegator reference to the StorageDelegator
+     * @param elements the changed elements to upload in upload order
      * @throws MalformedURLException if the URL can't be constructed properly
      * @throws ProtocolException
      * @throws IOException
      */
-    public void diffUpload(final StorageDelegator delegator) throws MalformedURLException, ProtocolException, IOException {
+    public void diffUpload(final StorageDelegator delegator, @NonNull final List<OsmElement> elements)
+            throws MalformedURLException, ProtocolException, IOException {
         InputStream in = null;
         try {
-            for (OsmElement elem : delegator.getApiStorage().getElements()) {
+            for (OsmElement elem : elements) {
                 if (elem.state != OsmElement.STATE_DELETED) {
                     discardedTags.remove(elem);
                 }
@@ -1283,8 +1295,7 @@ public class Server {
                 @Override
                 public void writeTo(BufferedSink sink) throws IOException {
                     try {
-                        OsmXml.writeOsmChange(delegator.getApiStorage(), sink.outputStream(), changesetId, getCachedCapabilities().getMaxElementsInChangeset(),
-                                App.getUserAgent());
+                        OsmXml.writeOsmChange(elements, sink.outputStream(), changesetId, App.getUserAgent());
                     } catch (IllegalArgumentException | IllegalStateException | XmlPullParserException e) {
                         throw new IOException(e);
                     }
@@ -1329,8 +1340,7 @@ public class Server {
         Storage apiStorage = delegator.getApiStorage();
         int code = response.code();
         if (code == HttpURLConnection.HTTP_OK) {
-            boolean rehash = false; // if ids are changed we need to rehash
-                                    // storage
+            Storage currentStorage = delegator.getCurrentStorage();
             try {
                 parser.setInput(new BufferedInputStream(response.body().byteStream(), StreamUtils.IO_BUFFER_SIZE), null);
                 int eventType;
@@ -1364,12 +1374,13 @@ public class Server {
                                                 Log.e(DEBUG_TAG, "New " + e + " was already removed from api storage!");
                                             }
                                             Log.w(DEBUG_TAG, "New " + e + " added to API");
-                                            e.setOsmId(newId); // id change requires rehash, so that removing works,
-                                                               // remove first then set id
+                                            e.setOsmId(newId); // remove first then set id
+                                            if (!currentStorage.remap(oldId, e)) {
+                                                Log.e(DEBUG_TAG, "New " + e + " not found in storage!");
+                                            }
                                             e.setOsmVersion(newVersion);
                                             e.setState(OsmElement.STATE_UNCHANGED);
                                             delegator.dirty();
-                                            rehash = true;
                                         } else {
                                             Log.d(DEBUG_TAG, "Didn't get new ID: " + newId + " version " + newVersionStr);
                                         }
@@ -1402,12 +1413,6 @@ public class Server {
                         }
                     }
                 }
-                if (rehash) {
-                    delegator.getCurrentStorage().rehash();
-                    if (!apiStorage.isEmpty()) { // shouldn't happen
-                        apiStorage.rehash();
-                    }
-                }
             } catch (XmlPullParserException | NumberFormatException | IOException e) {
                 throw new OsmException(e.toString());
             }
@@ -1736,47 +1741,34 @@ public class Server {
      */
 
     /**
-     * Perform an HTTP request to download up to limit bugs inside the specified area. Blocks until the request is
-     * complete.
+     * Perform an HTTP request to download up to limit Notes inside the specified area, handing each Note to a sink as
+     * soon as it has been parsed. Blocks until the request is complete.
      * 
      * @param area Latitude/longitude *1E7 of area to download.
      * @param limit maximum number of Notes to return, value of between 1 and 10000 is valid
-     * @return All the Notes in the given area.
+     * @param sink the TaskSink that receives the Notes
+     * @return the number of Notes read
      */
-    public Collection<Note> getNotesForBox(@NonNull BoundingBox area, long limit) {
-        Collection<Note> result = new ArrayList<>();
-        // http://openstreetbugs.schokokeks.org/api/0.1/getGPX?b=48&t=49&l=11&r=12&limit=100
+    public int getNotesForBox(@NonNull BoundingBox area, long limit, @NonNull TaskSink<? super Note> sink) {
+        int count = 0;
         try {
             Log.d(DEBUG_TAG, "getNotesForBox");
             URL url = getNotesForBox(limit, area);
             InputStream is = openConnection(null, url);
 
             if (is == null) {
-                return new ArrayList<>(); // TODO Return empty list ... this is better than throwing an uncatched
-                                          // exception, but we should provide some user feedback
+                return 0; // TODO this is better than throwing an uncatched exception, but we should provide some user
+                          // feedback
             }
 
             XmlPullParser parser = xmlParserFactory.newPullParser();
             parser.setInput(new BufferedInputStream(is, StreamUtils.IO_BUFFER_SIZE), null);
-            int eventType;
-            while ((eventType = parser.next()) != XmlPullParser.END_DOCUMENT) {
-                String tagName = parser.getName();
-                if (eventType == XmlPullParser.START_TAG && "note".equals(tagName)) {
-                    try {
-                        result.add(new Note(parser));
-                    } catch (IOException | XmlPullParserException | NumberFormatException e) {
-                        // if the bug doesn't parse correctly, there's nothing
-                        // we can do about it - move on
-                        Log.e(DEBUG_TAG, "Problem parsing bug", e);
-                    }
-                }
-            }
+            count = Note.parseNotes(parser, sink);
         } catch (XmlPullParserException | IOException | OutOfMemoryError e) {
             Log.e(DEBUG_TAG, "Server.getNotesForBox:Exception", e);
-            return new ArrayList<>(); // empty list
         }
-        Log.d(DEBUG_TAG, "Read " + result.size() + " notes from input");
-        return result;
+        Log.d(DEBUG_TAG, "Read " + count + " notes from input");
+        return count;
     }
 
     /**
@@ -504,6 +504,26 @@ public class Storage implements Serializable {
         relations.rehash();
     }
 
+    /**
+     * Move an element whose id has changed to its new id in the maps used for storing elements
+     * <p>
+     * This only touches the single element, unlike {@link #rehash()}
+     * 
+     * @param oldId the id the element was stored under
+     * @param element the element with its new id
+     * @return true if the element was stored under oldId
+     */
+    boolean remap(final long oldId, @NonNull final OsmElement element) {
+        if (element instanceof Way) {
+            return ways.remap(oldId, (Way) element);
+        } else if (element instanceof Node) {
+            return nodes.remap(oldId, (Node) element);
+        } else if (element instanceof Relation) {
+            return relations.remap(oldId, (Relation) element);
+        }
+        return false;
+    }
+
     /**
      * Log the contents
      */
@@ -40,6 +40,7 @@ import de.blau.android.util.GeoMath;
 import de.blau.android.util.SavingHelper;
 import de.blau.android.util.SavingHelper.Exportable;
 import de.blau.android.util.Snack;
+import de.blau.android.util.StreetPlaceIndex;
 import de.blau.android.util.Util;
 import de.blau.android.util.collections.LongOsmElementMap;
 import de.blau.android.validation.BaseValidator;
@@ -81,6 +82,11 @@ public class StorageDelegator implements Serializable, Exportable {
 
     private transient SavingHelper<StorageDelegator> savingHelper = new SavingHelper<>();
 
+    /**
+     * Index of named highways and places in currentStorage, rebuilt on demand
+     */
+    private transient StreetPlaceIndex streetPlaceIndex = new StreetPlaceIndex();
+
     /**
      * A OsmElementFactory that is used to create new elements. Needs to be persisted together with
      * currentStorage/apiStorage to avoid duplicate IDs when the application is restarted after some elements have been
@@ -138,9 +144,21 @@ public class StorageDelegator implements Serializable, Exportable {
      */
     public void dirty() {
         dirty = true;
+        // the contents have been changed behind our back
+        streetPlaceIndex.invalidate();
         Log.d(DEBUG_TAG, "setting delegator to dirty");
     }
 
+    /**
+     * Get the index of named highways and places in the current storage
+     * 
+     * @return the StreetPlaceIndex
+     */
+    @NonNull
+    public StreetPlaceIndex getStreetPlaceIndex() {
+        return streetPlaceIndex;
+    }
+
     /**
      * Get the current undo instance. For immediate use only - DO NOT CACHE THIS.
      * 
@@ -263,6 +281,9 @@ public class StorageDelegator implements Serializable, Exportable {
                     w.resetHasProblem();
                 }
             }
+            streetPlaceIndex.update(currentStorage, post);
+        } else {
+            streetPlaceIndex.invalidate();
         }
         Filter filter = App.getLogic().getFilter();
         if (filter != null) {
@@ -298,8 +319,10 @@ public class StorageDelegator implements Serializable, Exportable {
      * Way geometry has to be invalidated -before- nodes are moved
      * 
      * @param nodes List of nodes that are going to change
+     * @return the Ways that were invalidated, a superset of the Ways containing the nodes
      */
-    private void invalidateWayBoundingBox(@NonNull Collection<Node> nodes) {
+    @NonNull
+    private List<Way> invalidateWayBoundingBox(@NonNull Collection<Node> nodes) {
         // this would seem to be very complicated, however
         // a trivial implementation would be very expensive
         // even just for a single long way.
@@ -327,7 +350,9 @@ public class StorageDelegator implements Serializable, Exportable {
                     invalidateWay(w);
                 }
             }
+            return ways;
         }
+        return new ArrayList<>();
     }
 
     /**
@@ -347,11 +372,29 @@ public class StorageDelegator implements Serializable, Exportable {
      * Way geometry has to be invalidated -before- nodes are moved
      * 
      * @param node node that is going to change
+     * @return the Ways that were invalidated
      */
-    private void invalidateWayBoundingBox(@NonNull Node node) {
+    @NonNull
+    private List<Way> invalidateWayBoundingBox(@NonNull Node node) {
         List<Node> nodeList = new ArrayList<>();
         nodeList.add(node);
-        invalidateWayBoundingBox(nodeList);
+        return invalidateWayBoundingBox(nodeList);
+    }
+
+    /**
+     * Update the street and place index after nodes have been moved
+     * 
+     * Moving nodes doesn't call onElementChanged, but the index stores the location of the elements and needs to be
+     * updated for the nodes and the ways they are in
+     * 
+     * @param nodes the Nodes that have been moved
+     * @param ways the Ways returned by invalidateWayBoundingBox before the move
+     */
+    private void onNodesMoved(@NonNull Collection<Node> nodes, @NonNull List<Way> ways) {
+        List<OsmElement> changed = new ArrayList<>(nodes.size() + ways.size());
+        changed.addAll(nodes);
+        changed.addAll(ways);
+        streetPlaceIndex.update(currentStorage, changed);
     }
 
     /**
@@ -588,9 +631,10 @@ public class StorageDelegator implements Serializable, Exportable {
         dirty = true;
         undo.save(node);
         try {
-            invalidateWayBoundingBox(node);
+            List<Way> ways = invalidateWayBoundingBox(node);
             updateLatLon(node, latE7, lonE7);
             onElementChanged(null, node);
+            streetPlaceIndex.update(currentStorage, new ArrayList<OsmElement>(ways));
         } catch (StorageException e) {
             // TODO handle OOM
             Log.e(DEBUG_TAG, "updateLatLon got " + e.getMessage());
@@ -660,12 +704,13 @@ public class StorageDelegator implements Serializable, Exportable {
             for (Node nd : nodes) {
                 validateCoordinates(nd.getLat() + deltaLatE7, nd.getLon() + deltaLonE7);
             }
-            invalidateWayBoundingBox(nodes);
+            List<Way> ways = invalidateWayBoundingBox(nodes);
             for (Node nd : nodes) {
                 undo.save(nd);
                 updateLatLon(nd, nd.getLat() + deltaLatE7, nd.getLon() + deltaLonE7);
             }
             // Don't call onElementChanged
+            onNodesMoved(nodes, ways);
         } catch (StorageException e) {
             // TODO handle OOM
             Log.e(DEBUG_TAG, "moveNodes got " + e.getMessage());
@@ -687,7 +732,7 @@ public class StorageDelegator implements Serializable, Exportable {
         dirty = true;
         try {
             Set<Node> nodes = new HashSet<>(way.getNodes()); // Guarantee uniqueness
-            invalidateWayBoundingBox(nodes);
+            List<Way> ways = invalidateWayBoundingBox(nodes);
             int width = map.getWidth();
             int height = map.getHeight();
             ViewBox box = map.getViewBox();
@@ -718,6 +763,7 @@ public class StorageDelegator implements Serializable, Exportable {
                 i++;
             }
             // Don't call onElementChanged
+            onNodesMoved(nodes, ways);
         } catch (StorageException e) {
             // TODO handle OOM
             Log.e(DEBUG_TAG, "circulizeWay got " + e.getMessage());
@@ -805,7 +851,7 @@ public class StorageDelegator implements Serializable, Exportable {
             for (Node nd : save) {
                 undo.save(nd);
             }
-            invalidateWayBoundingBox(save);
+            List<Way> invalidated = invalidateWayBoundingBox(save);
             List<ArrayList<Way>> groups = groupWays(ways);
 
             int width = map.getWidth();
@@ -899,6 +945,7 @@ public class StorageDelegator implements Serializable, Exportable {
                 }
             }
             // Don't call onElementChanged
+            onNodesMoved(save, invalidated);
         } catch (StorageException e) {
             // TODO handle OOM
             Log.e(DEBUG_TAG, "orthogonalizeWay got " + e.getMessage());
@@ -940,7 +987,7 @@ public class StorageDelegator implements Serializable, Exportable {
         dirty = true;
         try {
             HashSet<Node> nodes = new HashSet<>(way.getNodes()); // Guarantee uniqness
-            invalidateWayBoundingBox(nodes);
+            List<Way> ways = invalidateWayBoundingBox(nodes);
             for (Node nd : nodes) {
                 undo.save(nd);
                 double nodeX = GeoMath.lonE7ToX(w, v, nd.getLon());
@@ -952,6 +999,7 @@ public class StorageDelegator implements Serializable, Exportable {
                 updateLatLon(nd, lat, lon);
             }
             // Don't call onElementChanged(null, new ArrayList<>(nodes));
+            onNodesMoved(nodes, ways);
         } catch (StorageException e) {
             // TODO handle OOM
             Log.e(DEBUG_TAG, "rotateWay got " + e.getMessage());
@@ -2687,34 +2735,38 @@ public class StorageDelegator implements Serializable, Exportable {
         dirty = true; // storages will get modified as data is uploaded, these changes need to be saved to file
         removeUnchanged();
         // upload methods set dirty flag too, in case the file is saved during an upload
-        boolean split = getApiElementCount() > server.getCapabilities().getMaxElementsInChangeset();
+        int maxChanges = server.getCapabilities().getMaxElementsInChangeset();
+        boolean split = getApiElementCount() > maxChanges;
         int part = 1;
         int elementCount = getApiElementCount();
         while (elementCount > 0) {
-            String tmpSource = source;
-            if (split) {
-                tmpSource = source + " [" + part + "]";
-            }
-            server.openChangeset(comment, tmpSource, Util.listToOsmList(imagery), extraTags);
-            try {
-                lock();
-                server.diffUpload(this);
-            } finally {
-                unlock();
-            }
+            // chunks in upload order, each only references elements in itself or in previous chunks
+            for (List<OsmElement> chunk : ChangesetPartitioner.partition(getApiStorage(), maxChanges)) {
+                String tmpSource = source;
+                if (split) {
+                    tmpSource = source + " [" + part + "]";
+                }
+                server.openChangeset(comment, tmpSource, Util.listToOsmList(imagery), extraTags);
+                try {
+                    lock();
+                    server.diffUpload(this, chunk);
+                } finally {
+                    unlock();
+                }
 
-            if (closeChangeset || split) { // always close when splitting
-                server.closeChangeset();
-            }
-            part++;
-            int currentElementCount = getApiElementCount();
-            if (currentElementCount < elementCount) {
-                elementCount = currentElementCount;
-            } else {
-                // element count didn't do anything, that should cause an exception to be
-                // thrown in diffUpload, but it is conceivable that that doesn't happen
-                Log.e(DEBUG_TAG, "Upload had no effect, API element count " + elementCount);
-                throw new ProtocolException("Upload had no effect");
+                if (closeChangeset || split) { // always close when splitting
+                    server.closeChangeset();
+                }
+                part++;
+                int currentElementCount = getApiElementCount();
+                if (currentElementCount < elementCount) {
+                    elementCount = currentElementCount;
+                } else {
+                    // element count didn't do anything, that should cause an exception to be
+                    // thrown in diffUpload, but it is conceivable that that doesn't happen
+                    Log.e(DEBUG_TAG, "Upload had no effect, API element count " + elementCount);
+                    throw new ProtocolException("Upload had no effect");
+                }
             }
         }
         // yes, again, just to be sure
@@ -1,17 +1,29 @@
 package de.blau.android.photos;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import com.drew.imaging.jpeg.JpegMetadataReader;
+import com.drew.imaging.jpeg.JpegProcessingException;
+import com.drew.imaging.jpeg.JpegSegmentMetadataReader;
+import com.drew.lang.GeoLocation;
+import com.drew.lang.Rational;
+import com.drew.metadata.Metadata;
+import com.drew.metadata.exif.ExifReader;
+import com.drew.metadata.exif.GpsDirectory;
 
 import android.content.Context;
-import android.media.ExifInterface;
 import android.net.Uri;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.v4.content.FileProvider;
 import android.util.Log;
 import de.blau.android.R;
 import de.blau.android.osm.BoundingBox;
-import de.blau.android.util.ExtendedExifInterface;
 import de.blau.android.util.rtree.BoundedObject;
 
 /**
@@ -36,45 +48,54 @@ public class Photo implements BoundedObject {
     /**
      * Construct a Photo object from a directory and filename of the image
      * 
+     * Only the EXIF segment of the JPEG header is read.
+     * 
      * @param directory the directory the image is located in
      * @param imageFile the image file
-     * @throws IOException If there was a problem parsing the XML.
-     * @throws NumberFormatException If there was a problem parsing the XML.
+     * @throws IOException If the image couldn't be read or doesn't have a location
+     * @throws NumberFormatException If there was a problem parsing the location
      */
     public Photo(@NonNull File directory, @NonNull File imageFile) throws IOException, NumberFormatException {
-        //
-        ExtendedExifInterface exif = new ExtendedExifInterface(imageFile.toString()); // create the ExifInterface file
-
-        /**
-         * get the attribute. rest of the attributes are the same. i will add convertToDegree on the bottom (not
-         * required)
-         **/
-        String lonStr = exif.getAttribute(ExifInterface.TAG_GPS_LONGITUDE);
-        if (lonStr == null) {
+        GpsDirectory gps = readGpsDirectory(imageFile);
+        GeoLocation location = gps != null ? gps.getGeoLocation() : null;
+        if (location == null) {
             throw new IOException("No EXIF tag");
         }
-        float lonf = convertToDegree(lonStr);
-
-        String lonRef = exif.getAttribute(ExifInterface.TAG_GPS_LONGITUDE_REF);
-        if (lonRef != null && !lonRef.equals("E")) { // deal with the negative degrees
-            lonf = -lonf;
-        }
-
-        float latf = convertToDegree(exif.getAttribute(ExifInterface.TAG_GPS_LATITUDE));
-
-        String latRef = exif.getAttribute(ExifInterface.TAG_GPS_LATITUDE_REF);
-        if (latRef != null && !latRef.equals("N")) {
-            latf = -latf;
-        }
-        lat = (int) (latf * 1E7d);
-        lon = (int) (lonf * 1E7d);
-        Log.d(DEBUG_TAG, "lat: " + lat + " lon: " + lon);
+        lat = (int) (location.getLatitude() * 1E7d);
+        lon = (int) (location.getLongitude() * 1E7d);
         ref = directory.getAbsolutePath() + "/" + imageFile.getName();
-        String dir = exif.getAttribute(ExtendedExifInterface.TAG_GPS_IMG_DIRECTION);
+        Rational dir = gps.getRational(GpsDirectory.TAG_IMG_DIRECTION);
         if (dir != null) {
-            direction = (int) Double.parseDouble(dir);
-            directionRef = exif.getAttribute(ExtendedExifInterface.TAG_GPS_IMG_DIRECTION_REF);
-            Log.d(DEBUG_TAG, "dir " + dir + " direction " + direction + " ref " + directionRef);
+            direction = (int) dir.doubleValue();
+            directionRef = gps.getString(GpsDirectory.TAG_IMG_DIRECTION_REF);
+        }
+    }
+
+    /**
+     * Read the GPS EXIF directory of a JPEG image
+     * 
+     * Reading stops at the start of the image data and only the APP1 segment containing the EXIF data is parsed.
+     * 
+     * @param imageFile the image file
+     * @return the GpsDirectory or null if there is none
+     * @throws IOException if the file couldn't be read or parsed
+     */
+    @Nullable
+    private static GpsDirectory readGpsDirectory(@NonNull File imageFile) throws IOException {
+        try (InputStream is = new BufferedInputStream(new FileInputStream(imageFile))) {
+            Metadata metadata = JpegMetadataReader.readMetadata(is, Arrays.<JpegSegmentMetadataReader>asList(new ExifReader()));
+            return metadata.getFirstDirectoryOfType(GpsDirectory.class);
+        } catch (JpegProcessingException e) {
+            // broken Jpeg, ignore
+            throw new IOException(e.getMessage());
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception ex) {
+            // other stuff broken ... for example ArrayIndexOutOfBounds
+            throw new IOException(ex.getMessage());
+        } catch (Error err) { // NOSONAR crashing is not an option
+            // other stuff broken ... for example NoSuchMethodError
+            throw new IOException(err.getMessage());
         }
     }
 
@@ -107,42 +128,6 @@ public class Photo implements BoundedObject {
         this.ref = ref;
     }
 
-    /**
-     * Convert the DMS string to degrees
-     * 
-     * @param stringDMS the DMS string
-     * @return degrees
-     * @throws NumberFormatException if the String couldn't be parsed for whatever reason
-     */
-    private Float convertToDegree(@NonNull String stringDMS) throws NumberFormatException {
-        try {
-            Float result = null;
-            String[] DMS = stringDMS.split(",", 3);
-
-            String[] stringD = DMS[0].split("/", 2);
-            Double D0 = Double.valueOf(stringD[0]);
-            Double D1 = Double.valueOf(stringD[1]);
-            Double FloatD = D0 / D1;
-
-            String[] stringM = DMS[1].split("/", 2);
-            Double M0 = Double.valueOf(stringM[0]);
-            Double M1 = Double.valueOf(stringM[1]);
-            Double FloatM = M0 / M1;
-
-            String[] stringS = DMS[2].split("/", 2);
-            Double S0 = Double.valueOf(stringS[0]);
-            Double S1 = Double.valueOf(stringS[1]);
-            Double FloatS = S0 / S1;
-
-            result = (float) (FloatD + (FloatM / 60) + (FloatS / 3600));
-
-            return result;
-        } catch (Exception ex) {
-            Log.e(DEBUG_TAG, "couldn't parse >" + stringDMS + "< exception " + ex);
-            throw new NumberFormatException("couldn't parse: " + stringDMS);
-        }
-    }
-
     /**
      * Get the latitude of the photo.
      * 
@@ -1,12 +1,21 @@
 package de.blau.android.photos;
 
 import java.io.File;
-import java.io.FilenameFilter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.acra.ACRA;
 
@@ -16,6 +25,7 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.os.Environment;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -24,7 +34,6 @@ import de.blau.android.App;
 import de.blau.android.contract.Paths;
 import de.blau.android.osm.BoundingBox;
 import de.blau.android.util.ACRAHelper;
-import de.blau.android.util.rtree.BoundedObject;
 import de.blau.android.util.rtree.RTree;
 
 /**
@@ -35,15 +44,21 @@ import de.blau.android.util.rtree.RTree;
  */
 public class PhotoIndex extends SQLiteOpenHelper {
 
-    private static final int    DATA_VERSION = 3;
+    private static final int    DATA_VERSION = 4;
     private static final String LOGTAG       = "PhotoIndex";
 
-    private class JpgFilter implements FilenameFilter {
-        @Override
-        public boolean accept(File dir, String name) {
-            return name.endsWith(Paths.FILE_EXTENSION_IMAGE);
-        }
-    }
+    /**
+     * Number of directories that are scanned at the same time
+     */
+    private static final int SCAN_THREADS = 4;
+
+    /**
+     * Number of new or changed images that are written to the database in one transaction
+     */
+    private static final int BATCH_SIZE = 500;
+
+    private static final String INSERT_PHOTO = "INSERT INTO photos (lat, lon, direction, dir, name, size, modified) VALUES (?, ?, ?, ?, ?, ?, ?)";
+    private static final String DELETE_PHOTO = "DELETE FROM photos WHERE rowid = ?";
 
     /**
      * Provide access to the on disk Photo index
@@ -51,13 +66,25 @@ public class PhotoIndex extends SQLiteOpenHelper {
      * @param context an Android Context
      */
     public PhotoIndex(@NonNull Context context) {
-        super(context, "PhotoIndex", null, DATA_VERSION);
+        this(context, "PhotoIndex");
+    }
+
+    /**
+     * Provide access to a Photo index with a specific name
+     * 
+     * @param context an Android Context
+     * @param name the name of the database, null for an in memory database
+     */
+    PhotoIndex(@NonNull Context context, @Nullable String name) {
+        super(context, name, null, DATA_VERSION);
     }
 
     @Override
     public synchronized void onCreate(SQLiteDatabase db) {
         Log.d(LOGTAG, "Creating photo index DB");
-        db.execSQL("CREATE TABLE IF NOT EXISTS photos (lat int, lon int, direction int DEFAULT NULL, dir VARCHAR, name VARCHAR);");
+        // lat and lon are null for images without location
+        db.execSQL("CREATE TABLE IF NOT EXISTS photos (lat int, lon int, direction int DEFAULT NULL, dir VARCHAR, name VARCHAR, "
+                + "size int8 DEFAULT NULL, modified int8 DEFAULT NULL);");
         db.execSQL("CREATE INDEX latidx ON photos (lat)");
         db.execSQL("CREATE INDEX lonidx ON photos (lon)");
         db.execSQL("CREATE TABLE IF NOT EXISTS directories  (dir VARCHAR, last_scan int8);");
@@ -72,6 +99,11 @@ public class PhotoIndex extends SQLiteOpenHelper {
         if (oldVersion <= 2) {
             db.execSQL("ALTER TABLE photos ADD direction int DEFAULT NULL");
         }
+        if (oldVersion <= 3) {
+            // existing entries will be read again on the next scan
+            db.execSQL("ALTER TABLE photos ADD size int8 DEFAULT NULL");
+            db.execSQL("ALTER TABLE photos ADD modified int8 DEFAULT NULL");
+        }
     }
 
     @Override
@@ -84,9 +116,14 @@ public class PhotoIndex extends SQLiteOpenHelper {
 
     /**
      * Create or update the index of images on the device
+     * 
+     * The directory trees are walked in parallel, only images that are new or have changed size or modification time
+     * since the last scan are read. Changes are written to the database in batches and applied to the in memory index
+     * if it exists.
      */
     public synchronized void createOrUpdateIndex() {
         Log.d(LOGTAG, "starting scan");
+        long start = System.currentTimeMillis();
         // determine at least a few of the possible mount points
         File sdcard = Environment.getExternalStorageDirectory();
         ArrayList<String> mountPoints = new ArrayList<>();
@@ -105,102 +142,376 @@ public class PhotoIndex extends SQLiteOpenHelper {
 
         try {
             SQLiteDatabase db = getWritableDatabase();
-            Cursor dbresult = db.query("directories", new String[] { "dir", "last_scan" }, null, null, null, null, null, null);
-            int dirCount = dbresult.getCount();
-            dbresult.moveToFirst();
-            // loop over the directories configured
-            for (int i = 0; i < dirCount; i++) {
-                String dir = dbresult.getString(0);
-                long lastScan = dbresult.getLong(1);
-                Log.d(LOGTAG, dbresult.getString(0) + " " + dbresult.getLong(1));
-                // loop over all possible mount points
+            Cursor dbresult = db.query("directories", new String[] { "dir" }, null, null, null, null, null, null);
+            List<String> dirs = new ArrayList<>();
+            while (dbresult.moveToNext()) {
+                dirs.add(dbresult.getString(0));
+            }
+            dbresult.close();
+            List<File> roots = new ArrayList<>();
+            List<String> scanned = new ArrayList<>();
+            // loop over the directories configured and all possible mount points
+            for (String dir : dirs) {
                 for (String m : mountPoints) {
                     File indir = new File(m + "/" + dir);
-                    Log.d(LOGTAG, "Scanning directory " + indir.getAbsolutePath());
                     if (indir.exists()) {
-                        Cursor dbresult2 = db.query("photos", new String[] { "distinct dir" }, "dir LIKE '" + indir.getAbsolutePath() + "%'", null, null, null,
-                                null, null);
-                        int dirCount2 = dbresult2.getCount();
-                        dbresult2.moveToFirst();
-                        for (int j = 0; j < dirCount2; j++) {
-                            String dir2 = dbresult2.getString(0);
-                            Log.d(LOGTAG, "Checking dir " + dir2);
-                            File pDir = new File(dir2);
-                            if (!pDir.exists()) {
-                                Log.d(LOGTAG, "Deleting entries for gone dir " + dir2);
-                                db.delete("photos", "dir = ?", new String[] { dir2 });
-                            }
-                            dbresult2.moveToNext();
+                        Log.d(LOGTAG, "Scanning directory " + indir.getAbsolutePath());
+                        roots.add(indir);
+                        if (!scanned.contains(dir)) {
+                            scanned.add(dir);
                         }
-                        dbresult2.close();
-                        scanDir(db, indir.getAbsolutePath(), lastScan);
-                        ContentValues values = new ContentValues();
-                        Log.d(LOGTAG, "updating last scan for " + indir.getName() + " to " + System.currentTimeMillis());
-                        values.put("last_scan", System.currentTimeMillis());
-                        db.update("directories", values, "dir = ?", new String[] { indir.getName() });
                     } else {
                         Log.d(LOGTAG, "Directory " + indir.getAbsolutePath() + " doesn't exist");
                         // remove all entries for this directory
-                        db.delete("photos", "dir = ?", new String[] { indir.getAbsolutePath() });
-                        db.delete("photos", "dir LIKE ?", new String[] { indir.getAbsolutePath() + "/%" });
+                        removeAll(db, load(db, indir.getAbsolutePath()).values());
                     }
                 }
-                dbresult.moveToNext();
             }
-            dbresult.close();
+            if (scan(db, roots)) {
+                ContentValues values = new ContentValues();
+                values.put("last_scan", System.currentTimeMillis());
+                for (String dir : scanned) {
+                    db.update("directories", values, "dir = ?", new String[] { dir });
+                }
+            }
             db.close();
         } catch (SQLiteException ex) {
             // Don't crash just report
             ACRAHelper.nocrashReport(ex, ex.getMessage());
         }
+        Log.d(LOGTAG, "scan finished in " + (System.currentTimeMillis() - start) + "ms");
     }
 
     /**
-     * Recursively scan directories and add images to index
-     * 
-     * @param db database containing the index
-     * @param dir directory we are starting with
-     * @param lastScan date we last scanned this directory tree
+     * An image file that is in the database
      */
-    private void scanDir(SQLiteDatabase db, String dir, long lastScan) {
-        // Log.d(LOGTAG,"directory " + dir + " last Scan " + (new Date(lastScan)).toString());
-        File indir = new File(dir);
-        boolean needsReindex = false;
-        if (indir != null) {
-            if (indir.lastModified() >= lastScan) { // directory was modified
-                // remove all entries
-                Log.d(LOGTAG, "deleteing refs for reindex");
-                try {
-                    db.delete("photos", "dir = ?", new String[] { indir.getAbsolutePath() });
-                } catch (SQLiteException sqex) {
-                    Log.d(LOGTAG, sqex.toString());
-                    ACRAHelper.nocrashReport(sqex, sqex.getMessage());
-                }
-                needsReindex = true;
-            }
-            // now process
-            File[] list = indir.listFiles();
+    static class Entry {
+        final long    rowId;
+        final String  ref;
+        final long    size;
+        final long    modified;
+        final boolean located;
+        final int     lat;
+        final int     lon;
+
+        /**
+         * Construct a new Entry from the current row of a cursor
+         * 
+         * @param cursor a Cursor over rowid, dir, name, size, modified, lat, lon
+         */
+        Entry(@NonNull Cursor cursor) {
+            rowId = cursor.getLong(0);
+            ref = cursor.getString(1) + "/" + cursor.getString(2);
+            size = cursor.isNull(3) ? -1 : cursor.getLong(3);
+            modified = cursor.isNull(4) ? -1 : cursor.getLong(4);
+            located = !cursor.isNull(5);
+            lat = cursor.getInt(5);
+            lon = cursor.getInt(6);
+        }
+    }
+
+    /**
+     * An image file that is new or has changed
+     */
+    private static class Change {
+        final File  dir;
+        final File  file;
+        final long  size;
+        final long  modified;
+        final Photo photo;
+
+        /**
+         * Construct a new Change
+         * 
+         * @param dir the directory
+         * @param file the image file
+         * @param photo the Photo read from the file or null if it doesn't have a location
+         */
+        Change(@NonNull File dir, @NonNull File file, @Nullable Photo photo) {
+            this.dir = dir;
+            this.file = file;
+            this.size = file.length();
+            this.modified = file.lastModified();
+            this.photo = photo;
+        }
+    }
+
+    /**
+     * The result of scanning one directory
+     */
+    private static class DirResult {
+        final File         dir;
+        boolean            listed  = false;
+        final List<File>   subDirs = new ArrayList<>();
+        final List<String> seen    = new ArrayList<>();
+        final List<Change> changes = new ArrayList<>();
+
+        /**
+         * Construct a new result
+         * 
+         * @param dir the directory
+         */
+        DirResult(@NonNull File dir) {
+            this.dir = dir;
+        }
+    }
+
+    /**
+     * Scan a single directory, images that are new or changed are read
+     */
+    private class DirTask implements Callable<DirResult> {
+        final File               dir;
+        final Map<String, Entry> known;
+
+        /**
+         * Construct a new task
+         * 
+         * @param dir the directory
+         * @param known the images that are already in the database, not modified while the task runs
+         */
+        DirTask(@NonNull File dir, @NonNull Map<String, Entry> known) {
+            this.dir = dir;
+            this.known = known;
+        }
+
+        @Override
+        public DirResult call() {
+            DirResult result = new DirResult(dir);
+            File[] list = dir.listFiles();
             if (list == null) {
-                return;
+                return result;
             }
+            result.listed = true;
             // check if we shouldn't process this directory, not the most efficient way likely
             for (File f : list) {
                 if (f.getName().equals(".novespucci")) {
-                    return;
+                    return result;
                 }
             }
+            String path = dir.getAbsolutePath();
             for (File f : list) {
                 if (f.isDirectory()) {
-                    // recursive decent
-                    scanDir(db, f.getAbsolutePath(), lastScan);
+                    result.subDirs.add(f);
+                } else if (f.getName().toLowerCase(Locale.US).endsWith(Paths.FILE_EXTENSION_IMAGE)) {
+                    String ref = path + "/" + f.getName();
+                    result.seen.add(ref);
+                    Entry entry = known.get(ref);
+                    if (entry == null || entry.size != f.length() || entry.modified != f.lastModified()) {
+                        result.changes.add(new Change(dir, f, readPhoto(dir, f)));
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Scan directory trees in parallel and update the database and in memory index with new, changed and removed
+     * images
+     * 
+     * @param db database containing the index
+     * @param roots the top level directories
+     * @return true if the scan completed
+     */
+    boolean scan(@NonNull SQLiteDatabase db, @NonNull List<File> roots) {
+        Map<String, Entry> known = new HashMap<>();
+        for (File root : roots) {
+            known.putAll(load(db, root.getAbsolutePath()));
+        }
+        Set<String> seen = new HashSet<>();
+        Set<String> visited = new HashSet<>();
+        List<String> unreadable = new ArrayList<>();
+        List<Change> changes = new ArrayList<>();
+        int changed = 0;
+        ExecutorService executor = Executors.newFixedThreadPool(SCAN_THREADS);
+        try {
+            CompletionService<DirResult> completionService = new ExecutorCompletionService<>(executor);
+            int pending = 0;
+            for (File root : roots) {
+                if (visited.add(root.getAbsolutePath())) {
+                    completionService.submit(new DirTask(root, known));
+                    pending++;
+                }
+            }
+            while (pending > 0) {
+                DirResult result = completionService.take().get();
+                pending--;
+                if (!result.listed) {
+                    unreadable.add(result.dir.getAbsolutePath());
+                }
+                for (File subDir : result.subDirs) {
+                    if (visited.add(subDir.getAbsolutePath())) {
+                        completionService.submit(new DirTask(subDir, known));
+                        pending++;
+                    }
+                }
+                seen.addAll(result.seen);
+                changes.addAll(result.changes);
+                if (changes.size() >= BATCH_SIZE) {
+                    changed += changes.size();
+                    write(db, changes, known);
+                    changes.clear();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            Log.e(LOGTAG, "scan failed " + e.getCause());
+            ACRAHelper.nocrashReport(e.getCause(), e.getMessage());
+            return false;
+        } finally {
+            executor.shutdownNow();
+        }
+        changed += changes.size();
+        write(db, changes, known);
+        // remove images that are gone, unless we couldn't read the directory
+        List<Entry> gone = new ArrayList<>();
+        for (Entry entry : known.values()) {
+            if (!seen.contains(entry.ref) && !isIn(entry.ref, unreadable)) {
+                gone.add(entry);
+            }
+        }
+        removeAll(db, gone);
+        Log.d(LOGTAG, seen.size() + " images, " + changed + " new or changed, " + gone.size() + " removed");
+        return true;
+    }
+
+    /**
+     * Check if a file is in one of a List of directories
+     * 
+     * @param ref the path of the file
+     * @param dirs the directories
+     * @return true if ref is in one of the directories
+     */
+    static boolean isIn(@NonNull String ref, @NonNull List<String> dirs) {
+        for (String dir : dirs) {
+            if (ref.startsWith(dir + "/")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Load the images in a directory tree from the database
+     * 
+     * @param db database containing the index
+     * @param dir the top level directory
+     * @return a Map from the path to the Entry of the image
+     */
+    @NonNull
+    static Map<String, Entry> load(@NonNull SQLiteDatabase db, @NonNull String dir) {
+        Map<String, Entry> result = new HashMap<>();
+        Cursor cursor = db.query("photos", new String[] { "rowid", "dir", "name", "size", "modified", "lat", "lon" }, "dir = ? OR dir LIKE ?",
+                new String[] { dir, dir + "/%" }, null, null, null, null);
+        while (cursor.moveToNext()) {
+            Entry entry = new Entry(cursor);
+            result.put(entry.ref, entry);
+        }
+        cursor.close();
+        return result;
+    }
+
+    /**
+     * Write new and changed images to the database in one transaction and update the in memory index
+     * 
+     * @param db database containing the index
+     * @param changes the new and changed images
+     * @param known the images that were in the database before the scan
+     */
+    private void write(@NonNull SQLiteDatabase db, @NonNull List<Change> changes, @NonNull Map<String, Entry> known) {
+        if (changes.isEmpty()) {
+            return;
+        }
+        SQLiteStatement insert = db.compileStatement(INSERT_PHOTO);
+        SQLiteStatement delete = db.compileStatement(DELETE_PHOTO);
+        db.beginTransaction();
+        try {
+            for (Change change : changes) {
+                Entry entry = known.get(change.dir.getAbsolutePath() + "/" + change.file.getName());
+                if (entry != null) {
+                    delete.bindLong(1, entry.rowId);
+                    delete.execute();
+                }
+                insert(insert, change);
+            }
+            db.setTransactionSuccessful();
+        } catch (SQLiteException sqex) {
+            Log.d(LOGTAG, sqex.toString());
+            ACRAHelper.nocrashReport(sqex, sqex.getMessage());
+            return;
+        } finally {
+            db.endTransaction();
+            insert.close();
+            delete.close();
+        }
+        RTree index = App.getPhotoIndex();
+        if (index != null) {
+            for (Change change : changes) {
+                Entry entry = known.get(change.dir.getAbsolutePath() + "/" + change.file.getName());
+                if (entry != null && entry.located) {
+                    removeFromIndex(index, entry);
                 }
-                if (needsReindex && f.getName().toLowerCase(Locale.US).endsWith(Paths.FILE_EXTENSION_IMAGE)) {
-                    addPhoto(db, indir, f);
+                if (change.photo != null) {
+                    index.insert(change.photo);
                 }
             }
         }
     }
 
+    /**
+     * Remove images from the database in one transaction and from the in memory index
+     * 
+     * @param db database containing the index
+     * @param entries the images to remove
+     */
+    private void removeAll(@NonNull SQLiteDatabase db, @NonNull Collection<Entry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        SQLiteStatement delete = db.compileStatement(DELETE_PHOTO);
+        db.beginTransaction();
+        try {
+            for (Entry entry : entries) {
+                delete.bindLong(1, entry.rowId);
+                delete.execute();
+            }
+            db.setTransactionSuccessful();
+        } catch (SQLiteException sqex) {
+            Log.d(LOGTAG, sqex.toString());
+            ACRAHelper.nocrashReport(sqex, sqex.getMessage());
+            return;
+        } finally {
+            db.endTransaction();
+            delete.close();
+        }
+        RTree index = App.getPhotoIndex();
+        if (index != null) {
+            for (Entry entry : entries) {
+                if (entry.located) {
+                    removeFromIndex(index, entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove the Photo for an image from the in memory index
+     * 
+     * @param index the in memory index
+     * @param entry the image
+     */
+    private static void removeFromIndex(@NonNull RTree index, @NonNull Entry entry) {
+        List<Photo> found = new ArrayList<>();
+        index.query(found, entry.lon, entry.lat, entry.lon, entry.lat);
+        for (Photo p : found) {
+            if (entry.ref.equals(p.getRef())) {
+                index.remove(p);
+            }
+        }
+    }
+
     /**
      * Add image to index
      * 
@@ -209,7 +520,19 @@ public class PhotoIndex extends SQLiteOpenHelper {
     public synchronized void addPhoto(File f) {
         SQLiteDatabase db = getWritableDatabase();
         // Log.i(LOGTAG,"Adding entry in " + f.getParent());
-        Photo p = addPhoto(db, f.getParentFile(), f);
+        File dir = f.getParentFile();
+        Photo p = readPhoto(dir, f);
+        if (p != null) {
+            SQLiteStatement insert = db.compileStatement(INSERT_PHOTO);
+            try {
+                insert(insert, new Change(dir, f, p));
+            } catch (SQLiteException sqex) {
+                Log.d(LOGTAG, sqex.toString());
+                ACRAHelper.nocrashReport(sqex, sqex.getMessage());
+            } finally {
+                insert.close();
+            }
+        }
         db.close();
         RTree index = App.getPhotoIndex();
         if (p != null && index != null) { // if nothing is in the index the complete DB including this photo will be
@@ -219,31 +542,40 @@ public class PhotoIndex extends SQLiteOpenHelper {
     }
 
     /**
-     * Add image to index
+     * Insert an image in to the database, images without location are stored so that they are not read again
+     * 
+     * @param insert the compiled INSERT_PHOTO statement
+     * @param change the image
+     */
+    private static void insert(@NonNull SQLiteStatement insert, @NonNull Change change) {
+        insert.clearBindings();
+        Photo p = change.photo;
+        if (p != null) {
+            insert.bindLong(1, p.getLat());
+            insert.bindLong(2, p.getLon());
+            if (p.hasDirection()) {
+                insert.bindLong(3, p.getDirection());
+            }
+        }
+        insert.bindString(4, change.dir.getAbsolutePath());
+        insert.bindString(5, change.file.getName());
+        insert.bindLong(6, change.size);
+        insert.bindLong(7, change.modified);
+        insert.executeInsert();
+    }
+
+    /**
+     * Read the location of an image
      * 
-     * @param db database containing the image
      * @param dir directory the image is in
      * @param f the image file
-     * @return a Photo object
+     * @return a Photo object or null if the image doesn't have a location or couldn't be read
      */
-    private Photo addPhoto(SQLiteDatabase db, File dir, File f) {
+    @Nullable
+    Photo readPhoto(@NonNull File dir, @NonNull File f) {
         // Log.i(LOGTAG,"Adding entry for " + dir.getName() + " " + f.getName() + " abs " + dir.getAbsolutePath());
         try {
-            Photo p = new Photo(dir, f);
-            ContentValues values = new ContentValues();
-            values.put("lat", p.getLat());
-            values.put("lon", p.getLon());
-            // Log.i(LOGTAG,"Lat: " + p.getLat() + " " + p.getLon());
-            if (p.hasDirection()) {
-                values.put("direction", p.getDirection());
-            }
-            values.put("dir", dir.getAbsolutePath());
-            values.put("name", f.getName());
-            db.insert("photos", null, values);
-            return p;
-        } catch (SQLiteException sqex) {
-            Log.d(LOGTAG, sqex.toString());
-            ACRAHelper.nocrashReport(sqex, sqex.getMessage());
+            return new Photo(dir, f);
         } catch (IOException ioex) {
             // ignore silently, broken pictures are not our business
         } catch (NumberFormatException bfex) {
@@ -263,12 +595,26 @@ public class PhotoIndex extends SQLiteOpenHelper {
      */
     @NonNull
     public Collection<Photo> getPhotos(@NonNull BoundingBox box) {
+        List<Photo> result = new ArrayList<>();
+        getPhotos(box, result);
+        Log.d(LOGTAG, "result count " + result.size());
+        return result;
+    }
+
+    /**
+     * Replace the contents of result with all photographs in a given bounding box
+     * 
+     * This doesn't allocate any objects, result can be reused for repeated queries.
+     * 
+     * @param box the BoundingBox we are interested in
+     * @param result the Collection to fill
+     */
+    public void getPhotos(@NonNull BoundingBox box, @NonNull Collection<Photo> result) {
+        result.clear();
         RTree index = App.getPhotoIndex();
-        if (index == null) {
-            return new ArrayList<>();
+        if (index != null) {
+            index.query(result, box.getLeft(), box.getBottom(), box.getRight(), box.getTop());
         }
-
-        return getPhotosFromIndex(index, box);
     }
 
     /**
@@ -283,44 +629,28 @@ public class PhotoIndex extends SQLiteOpenHelper {
         }
         try {
             SQLiteDatabase db = getReadableDatabase();
-            Cursor dbresult = db.query("photos", new String[] { "lat", "lon", "direction", "dir", "name" }, null, null, null, null, null, null);
+            Cursor dbresult = db.query("photos", new String[] { "lat", "lon", "direction", "dir", "name" }, "lat IS NOT NULL", null, null, null, null,
+                    null);
             int photoCount = dbresult.getCount();
             dbresult.moveToFirst();
             Log.i(LOGTAG, "Query returned " + photoCount + " photos");
             //
+            List<Photo> photos = new ArrayList<>(photoCount);
             for (int i = 0; i < photoCount; i++) {
                 if (dbresult.isNull(2)) { // no direction
-                    index.insert(new Photo(dbresult.getInt(0), dbresult.getInt(1), dbresult.getString(3) + "/" + dbresult.getString(4)));
+                    photos.add(new Photo(dbresult.getInt(0), dbresult.getInt(1), dbresult.getString(3) + "/" + dbresult.getString(4)));
                 } else {
-                    index.insert(new Photo(dbresult.getInt(0), dbresult.getInt(1), dbresult.getInt(2), dbresult.getString(3) + "/" + dbresult.getString(4)));
+                    photos.add(new Photo(dbresult.getInt(0), dbresult.getInt(1), dbresult.getInt(2), dbresult.getString(3) + "/" + dbresult.getString(4)));
                 }
                 dbresult.moveToNext();
             }
             dbresult.close();
             db.close();
+            index.load(photos); // bulk loading is faster and results in a better tree than inserting one by one
         } catch (SQLiteException ex) {
             // shoudn't happen (getReadableDatabase failed), simply report for now
             ACRA.getErrorReporter().handleException(ex);
         }
     }
 
-    /**
-     * Query the in memory index for Photos
-     * 
-     * @param index the index
-     * @param box the BoundingBox we are interested in
-     * @return a List of Photos
-     */
-    @NonNull
-    private List<Photo> getPhotosFromIndex(@NonNull RTree index, @NonNull BoundingBox box) {
-        Collection<BoundedObject> queryResult = new ArrayList<>();
-        index.query(queryResult, box.getBounds());
-        Log.d(LOGTAG, "result count " + queryResult.size());
-        List<Photo> result = new ArrayList<>();
-        for (BoundedObject bo : queryResult) {
-            result.add((Photo) bo);
-        }
-        return result;
-    }
-
 }
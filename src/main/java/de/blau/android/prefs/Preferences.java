@@ -123,6 +123,8 @@ public class Preferences {
 
     private int maxTileDownloadThreads;
 
+    private int tilePrefetchBudget;
+
     private int notificationCacheSize;
 
     private int autoLockDelay;
@@ -261,6 +263,8 @@ public class Preferences {
 
         maxTileDownloadThreads = getIntPref(R.string.config_maxTileDownloadThreads_key, 4);
 
+        tilePrefetchBudget = getIntPref(R.string.config_tilePrefetchBudget_key, 16);
+
         alwaysDrawBoundingBoxes = prefs.getBoolean(r.getString(R.string.config_alwaysDrawBoundingBoxes_key), true);
 
         jsConsoleEnabled = prefs.getBoolean(r.getString(R.string.config_js_console_key), false);
@@ -818,6 +822,15 @@ public class Preferences {
         return maxTileDownloadThreads;
     }
 
+    /**
+     * Get the maximum number of tiles that should be requested in advance of being displayed
+     * 
+     * @return the number of tiles, 0 if prefetching is turned off
+     */
+    public int getTilePrefetchBudget() {
+        return tilePrefetchBudget;
+    }
+
     public int getNotificationCacheSize() {
         if (notificationCacheSize < 1) {
             Log.e(DEBUG_TAG, "Notification cache size smaller than 1");
@@ -3,6 +3,8 @@ package de.blau.android.propertyeditor;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.Map;
@@ -17,7 +19,6 @@ import android.util.Log;
 import de.blau.android.App;
 import de.blau.android.Logic;
 import de.blau.android.exception.OsmException;
-import de.blau.android.osm.BoundingBox;
 import de.blau.android.osm.Node;
 import de.blau.android.osm.OsmElement;
 import de.blau.android.osm.Relation;
@@ -28,6 +29,8 @@ import de.blau.android.prefs.Preferences;
 import de.blau.android.util.ElementSearch;
 import de.blau.android.util.GeoMath;
 import de.blau.android.util.SavingHelper;
+import de.blau.android.util.StreetPlaceIndex;
+import de.blau.android.util.StreetPlaceIndex.HouseNumbers;
 import de.blau.android.util.StreetTagValueAdapter;
 import de.blau.android.util.Util;
 
@@ -81,6 +84,9 @@ public final class Address implements Serializable {
 
     private static LinkedList<Address> lastAddresses = null;
 
+    private static final Map<String, Numbers> numbersCache         = new HashMap<>();
+    private static int                        lastAddressesVersion = 0;
+
     /**
      * Create a copy of Address a
      * 
@@ -166,39 +172,8 @@ public final class Address implements Serializable {
      * @param wayId OSM ID
      */
     private void setSide(long wayId) {
-        side = Side.UNKNOWN;
         Way w = (Way) App.getDelegator().getOsmElement(Way.NAME, wayId);
-        if (w == null) {
-            return;
-        }
-        double distance = Double.MAX_VALUE;
-
-        // to avoid rounding errors we translate the bb to 0,0
-        BoundingBox bb = w.getBounds();
-        double latOffset = GeoMath.latE7ToMercatorE7(bb.getBottom());
-        double lonOffset = bb.getLeft();
-        double ny = GeoMath.latToMercator(lat) - latOffset / 1E7D;
-        double nx = lon - lonOffset / 1E7D;
-
-        ArrayList<Node> nodes = new ArrayList<>(w.getNodes());
-        for (int i = 0; i <= nodes.size() - 2; i++) {
-            double bx = (nodes.get(i).getLon() - lonOffset) / 1E7D;
-            double by = (GeoMath.latE7ToMercatorE7(nodes.get(i).getLat()) - latOffset) / 1E7D;
-            double ax = (nodes.get(i + 1).getLon() - lonOffset) / 1E7D;
-            double ay = (GeoMath.latE7ToMercatorE7(nodes.get(i + 1).getLat()) - latOffset) / 1E7D;
-            float[] closest = GeoMath.closestPoint((float) nx, (float) ny, (float) bx, (float) by, (float) ax, (float) ay);
-            double newDistance = GeoMath.haversineDistance(nx, ny, closest[0], closest[1]);
-            if (newDistance < distance) {
-                distance = newDistance;
-                double determinant = (bx - ax) * (ny - ay) - (by - ay) * (nx - ax);
-                if (determinant < 0) {
-                    side = Side.LEFT;
-                } else if (determinant > 0) {
-                    side = Side.RIGHT;
-                }
-            }
-        }
-        // Log.d(DEBUG_TAG,"set side to " + side);
+        side = w != null ? StreetPlaceIndex.getSide(w, lat, lon) : Side.UNKNOWN;
     }
 
     /**
@@ -327,30 +302,16 @@ public final class Address implements Serializable {
                 Side side = newAddress.getSide();
                 // find the addresses corresponding to the current street
                 if (!hasNumber && street != null && lastAddresses != null) {
-                    TreeMap<Integer, Address> list = getHouseNumbers(street, side, lastAddresses);
-                    if (list.size() == 0) { // try to seed lastAddresses from OSM data
+                    long streetId = -1;
+                    if (!hasPlace) {
                         try {
-                            Log.d(DEBUG_TAG, "street " + street);
-                            long streetId = -1;
-                            if (!hasPlace) {
-                                streetId = es.getStreetId(street);
-                            }
-                            // nodes
-                            for (Node n : storageDelegator.getCurrentStorage().getNodes()) {
-                                seedAddressList(context, street, streetId, n, lastAddresses);
-                            }
-                            // ways
-                            for (Way w : storageDelegator.getCurrentStorage().getWays()) {
-                                seedAddressList(context, street, streetId, w, lastAddresses);
-                            }
-                            // and try again
-                            list = getHouseNumbers(street, side, lastAddresses);
+                            streetId = es.getStreetId(street);
                         } catch (OsmException e) {
                             Log.d(DEBUG_TAG, "predictAddressTags got " + e.getMessage());
                         }
                     }
-                    // tags = predictNumber(newAddress, tags, street, side, list, false);
-                    newAddress.tags = predictNumber(newAddress, tags, street, side, list, false, null);
+                    Numbers list = getHouseNumbers(street, streetId, side, lastAddresses);
+                    newAddress.tags = predictNumber(context, newAddress, tags, street, streetId, side, list, false, null);
                 }
             } else { // last ditch attemot
                 // fill with Karlsruher schema
@@ -397,138 +358,99 @@ public final class Address implements Serializable {
      * the above assumes that the road is not doubling back or similar, aka that the addresses are more or less in a
      * straight line, use the length along the way defined by the addresses instead
      * 
+     * @param context Android Context
      * @param newAddress the address object for the new address
      * @param originalTags tags for this object
      * @param street the street name
+     * @param streetId the osm id of the street or -1 if not known
      * @param side side which we are on
-     * @param list list of existing addresses on this side
+     * @param list existing numbers on this side
      * @param oppositeSide try to predict a number for the other side of the street
      * @param otherSideList numbers found on the other side only used if otherSide is true
      * @return the tags for the object
      */
-    private static LinkedHashMap<String, ArrayList<String>> predictNumber(@NonNull Address newAddress,
-            @NonNull LinkedHashMap<String, ArrayList<String>> originalTags, @NonNull String street, @NonNull Side side, @NonNull TreeMap<Integer, Address> list,
-            boolean oppositeSide, @Nullable TreeMap<Integer, Address> otherSideList) {
+    private static LinkedHashMap<String, ArrayList<String>> predictNumber(@NonNull Context context, @NonNull Address newAddress,
+            @NonNull LinkedHashMap<String, ArrayList<String>> originalTags, @NonNull String street, long streetId, @NonNull Side side,
+            @NonNull Numbers list, boolean oppositeSide, @Nullable Numbers otherSideList) {
         LinkedHashMap<String, ArrayList<String>> newTags = new LinkedHashMap<>(originalTags);
-        if (list.size() >= 2) {
-            try {
-                //
-                // determine increment
-                //
-                int inc = 1;
-                float incTotal = 0;
-                float incCount = 0;
-                ArrayList<Integer> numbers = new ArrayList<>(list.keySet());
-                for (int i = 0; i < numbers.size() - 1; i++) {
-                    int diff = numbers.get(i + 1) - numbers.get(i);
-                    if (diff > 0 && diff <= 2) {
-                        incTotal = incTotal + diff;
-                        incCount++;
-                    }
+        int size = list.size();
+        if (size >= 2) {
+            int inc = list.inc;
+
+            int firstNumber = list.numbers[0];
+            int lastNumber = list.numbers[size - 1];
+
+            //
+            // find the most appropriate next address
+            //
+            // FIXME there is an obvious better criteria
+            int nearestIndex = list.nearest(newAddress.lat, newAddress.lon);
+            int nearest = list.numbers[nearestIndex];
+            int prev = list.numbers[Math.max(0, nearestIndex - 1)];
+            int post = list.numbers[Math.min(size - 1, nearestIndex + 1)];
+            double distanceFirst = list.distance(0, newAddress.lat, newAddress.lon);
+            double distanceLast = list.distance(size - 1, newAddress.lat, newAddress.lon);
+            //
+            double distanceTotal = list.distance(size - 1, list.lats[0], list.lons[0]);
+            if (nearest == firstNumber) {
+                if (distanceLast > distanceTotal) {
+                    inc = -inc;
                 }
-                inc = Math.round(incTotal / incCount);
-
-                int firstNumber = list.firstKey();
-                int lastNumber = list.lastKey();
-
-                //
-                // find the most appropriate next address
-                //
-                int nearest = -1;
-                int prev = -1;
-                int post = -1;
-                double distanceFirst = 0;
-                double distanceLast = 0;
-                double distance = Double.MAX_VALUE;
-                for (int i = 0; i < numbers.size(); i++) {
-                    // determine the nearest existing address
-                    // FIXME there is an obvious better criteria
-                    int number = numbers.get(i);
-                    Address a = list.get(number);
-                    double newDistance = GeoMath.haversineDistance(newAddress.lon, newAddress.lat, a.lon, a.lat);
-                    if (newDistance <= distance) {
-                        // if distance is the same replace with values for the
-                        // current number which will be larger
-                        distance = newDistance;
-                        nearest = number;
-                        prev = numbers.get(Math.max(0, i - 1));
-                        post = numbers.get(Math.min(numbers.size() - 1, i + 1));
-                    }
-                    if (i == 0) {
-                        distanceFirst = newDistance;
-                    } else if (i == numbers.size() - 1) {
-                        distanceLast = newDistance;
-                    }
+            } else if (nearest == lastNumber) {
+                if (distanceFirst < distanceTotal) {
+                    inc = -inc;
                 }
-                //
-                double distanceTotal = GeoMath.haversineDistance(list.get(firstNumber).lon, list.get(firstNumber).lat, list.get(lastNumber).lon,
-                        list.get(lastNumber).lat);
-                if (nearest == firstNumber) {
-                    if (distanceLast > distanceTotal) {
-                        inc = -inc;
-                    }
-                } else if (nearest == lastNumber) {
-                    if (distanceFirst < distanceTotal) {
-                        inc = -inc;
-                    }
-                } else {
-                    double distanceNearestFirst = GeoMath.haversineDistance(list.get(firstNumber).lon, list.get(firstNumber).lat, list.get(nearest).lon,
-                            list.get(nearest).lat);
-                    if (distanceFirst < distanceNearestFirst) {
-                        inc = -inc;
-                    } // else already correct
+            } else {
+                double distanceNearestFirst = list.distance(nearestIndex, list.lats[0], list.lons[0]);
+                if (distanceFirst < distanceNearestFirst) {
+                    inc = -inc;
+                } // else already correct
+            }
+            // first apply tags from nearest address if they don't already exist
+            copyTags(list.getAddress(context, nearestIndex), newTags);
+
+            if (oppositeSide) { // try to predict address on the other road side
+                Log.d(DEBUG_TAG, "Predicting for other side inc=" + inc + " nearest " + nearest);
+                if (Math.abs(inc) > 1) {
+                    int newNumber = Math.max(1, otherSideList.size() == 0 ? nearest + (inc / Math.abs(inc)) : otherSideList.numbers[0] + inc);
+                    Log.d(DEBUG_TAG, "final predicted result for the other side " + newNumber);
+                    newTags.put(Tags.KEY_ADDR_HOUSENUMBER, Util.getArrayList(Integer.toString(newNumber)));
+                } else { // no sense to guess pattern
+                    Log.d(DEBUG_TAG, "giving up");
+                    newTags.put(Tags.KEY_ADDR_HOUSENUMBER, Util.getArrayList(""));
                 }
-                // first apply tags from nearest address if they don't already exist
-                copyTags(list.get(nearest), newTags);
-
-                if (oppositeSide) { // try to predict address on the other road side
-                    Log.d(DEBUG_TAG, "Predicting for other side inc=" + inc + " nearest " + nearest);
-                    if (Math.abs(inc) > 1) {
-                        int newNumber = Math.max(1, otherSideList.size() == 0 ? nearest + (inc / Math.abs(inc)) : otherSideList.firstKey() + inc);
-                        Log.d(DEBUG_TAG, "final predicted result for the other side " + newNumber);
-                        newTags.put(Tags.KEY_ADDR_HOUSENUMBER, Util.getArrayList(Integer.toString(newNumber)));
-                    } else { // no sense to guess pattern
-                        Log.d(DEBUG_TAG, "giving up");
-                        newTags.put(Tags.KEY_ADDR_HOUSENUMBER, Util.getArrayList(""));
+            } else { // predict on this side
+                int newNumber = Math.max(1, nearest + inc);
+                Log.d(DEBUG_TAG, "Predicted " + newNumber + " first " + firstNumber + " last " + lastNumber + " nearest " + nearest + " inc " + inc
+                        + " prev " + prev + " post " + post + " side " + side);
+                if (list.contains(newNumber)) {
+                    // try one inc more and one less, if they both fail use the original number
+                    if (!list.contains(Math.max(1, newNumber + inc))) {
+                        newNumber = Math.max(1, newNumber + inc);
+                    } else if (!list.contains(Math.max(1, newNumber - inc))) {
+                        newNumber = Math.max(1, newNumber - inc);
                     }
-                } else { // predict on this side
-                    int newNumber = Math.max(1, nearest + inc);
-                    // Toast.makeText(this, "First " + firstNumber + " last " + lastNumber + " nearest " + nearest +
-                    // "inc " + inc + " prev " + prev + " post " + post + " side " + side, Toast.LENGTH_LONG).show();
-                    Log.d(DEBUG_TAG, "Predicted " + newNumber + " first " + firstNumber + " last " + lastNumber + " nearest " + nearest + " inc " + inc
-                            + " prev " + prev + " post " + post + " side " + side);
-                    if (numbers.contains(newNumber)) {
-                        // try one inc more and one less, if they both fail use the original number
-                        if (!numbers.contains(Math.max(1, newNumber + inc))) {
-                            newNumber = Math.max(1, newNumber + inc);
-                        } else if (!numbers.contains(Math.max(1, newNumber - inc))) {
-                            newNumber = Math.max(1, newNumber - inc);
-                        }
-                    }
-                    Log.d(DEBUG_TAG, "final predicted result " + newNumber);
-                    newTags.put(Tags.KEY_ADDR_HOUSENUMBER, Util.getArrayList(Integer.toString(newNumber)));
                 }
-            } catch (NumberFormatException nfe) {
-                Log.d(DEBUG_TAG, "exception " + nfe);
-                newTags.put(Tags.KEY_ADDR_HOUSENUMBER, Util.getArrayList(""));
+                Log.d(DEBUG_TAG, "final predicted result " + newNumber);
+                newTags.put(Tags.KEY_ADDR_HOUSENUMBER, Util.getArrayList(Integer.toString(newNumber)));
             }
-        } else if (list.size() == 1) {
+        } else if (size == 1) {
             Log.d(DEBUG_TAG, "only one number on this side");
             // can't do prediction with only one value
             // apply tags from sole existing address if they don't already exist
-            TreeMap<Integer, Address> otherList = getHouseNumbers(street, Side.opposite(side), lastAddresses);
+            Numbers otherList = getHouseNumbers(street, streetId, Side.opposite(side), lastAddresses);
             if (otherList.size() >= 2) {
-                newTags = predictNumber(newAddress, originalTags, street, side, otherList, true, list);
+                newTags = predictNumber(context, newAddress, originalTags, street, streetId, side, otherList, true, list);
             } else {
-                copyTags(list.get(list.firstKey()), newTags);
+                copyTags(list.getAddress(context, 0), newTags);
             }
-        } else if (list.size() == 0) {
+        } else {
             Log.d(DEBUG_TAG, "no numbers on this side");
-            TreeMap<Integer, Address> otherList = getHouseNumbers(street, Side.opposite(side), lastAddresses);
+            Numbers otherList = getHouseNumbers(street, streetId, Side.opposite(side), lastAddresses);
             if (otherList.size() >= 2) {
-                newTags = predictNumber(newAddress, originalTags, street, side, otherList, true, list);
+                newTags = predictNumber(context, newAddress, originalTags, street, streetId, side, otherList, true, list);
             } else if (otherList.size() == 1) {
-                copyTags(otherList.get(otherList.firstKey()), newTags);
+                copyTags(otherList.getAddress(context, 0), newTags);
             } else {
                 newTags.put(Tags.KEY_ADDR_HOUSENUMBER, Util.getArrayList(""));
             }
@@ -551,89 +473,257 @@ public final class Address implements Serializable {
     }
 
     /**
-     * Try to extract an integer number from a string
+     * The house numbers on one side of a street sorted by number, with the location and source of each
      * 
-     * Simply ignores any non-digits
-     * 
-     * @param hn input string
-     * @return an integer
-     * @throws NumberFormatException if what was extracted could not be parsed as an int
+     * The source is either an Address from the last addresses or an OsmElement from the loaded data, Address objects
+     * for the latter are only created when their tags are actually needed. The numbers are additionally ordered by
+     * their position along the street so that the nearest one can be found with a binary search.
      */
-    private static int getNumber(String hn) throws NumberFormatException {
-        StringBuilder sb = new StringBuilder();
-        for (Character c : hn.toCharArray()) {
-            if (Character.isDigit(c)) {
-                sb.append(c);
+    private static final class Numbers {
+        final HouseNumbers loaded;
+        final int          version;
+        final Way          streetWay;
+        final int[]        numbers;
+        final float[]      lats;
+        final float[]      lons;
+        final float[]      positions;
+        final Object[]     sources;
+        int                size            = 0;
+        int                inc             = 1;
+        int[]              byPosition      = null;
+        float[]            sortedPositions = null;
+
+        /**
+         * Construct a new instance
+         * 
+         * @param capacity the maximum number of house numbers
+         * @param loaded the house numbers from the loaded data
+         * @param version the version of the last addresses
+         * @param streetWay the Way of the street or null if not known
+         */
+        Numbers(int capacity, @NonNull HouseNumbers loaded, int version, @Nullable Way streetWay) {
+            this.loaded = loaded;
+            this.version = version;
+            this.streetWay = streetWay;
+            numbers = new int[capacity];
+            lats = new float[capacity];
+            lons = new float[capacity];
+            positions = new float[capacity];
+            sources = new Object[capacity];
+        }
+
+        /**
+         * Append a house number, numbers need to be added in ascending order
+         * 
+         * @param number the house number
+         * @param lat the WGS84 latitude
+         * @param lon the WGS84 longitude
+         * @param position the position along the street
+         * @param source the Address or OsmElement
+         */
+        void add(int number, float lat, float lon, float position, @NonNull Object source) {
+            numbers[size] = number;
+            lats[size] = lat;
+            lons[size] = lon;
+            positions[size] = position;
+            sources[size] = source;
+            size++;
+        }
+
+        /**
+         * Determine the increment between numbers and sort the numbers by position, must be called after all numbers
+         * have been added
+         */
+        void finish() {
+            float incTotal = 0;
+            float incCount = 0;
+            for (int i = 0; i < size - 1; i++) {
+                int diff = numbers[i + 1] - numbers[i];
+                if (diff > 0 && diff <= 2) {
+                    incTotal = incTotal + diff;
+                    incCount++;
+                }
+            }
+            inc = Math.round(incTotal / incCount);
+            if (streetWay != null) {
+                Integer[] order = new Integer[size];
+                for (int i = 0; i < size; i++) {
+                    order[i] = i;
+                }
+                Arrays.sort(order, new Comparator<Integer>() {
+                    @Override
+                    public int compare(Integer i1, Integer i2) {
+                        return Float.compare(positions[i1], positions[i2]);
+                    }
+                });
+                byPosition = new int[size];
+                sortedPositions = new float[size];
+                for (int i = 0; i < size; i++) {
+                    byPosition[i] = order[i];
+                    sortedPositions[i] = positions[order[i]];
+                }
             }
         }
-        if (sb.toString().equals("")) {
-            return 0;
-        } else {
-            return Integer.parseInt(sb.toString());
+
+        /**
+         * Get the number of house numbers
+         * 
+         * @return the number of house numbers
+         */
+        int size() {
+            return size;
+        }
+
+        /**
+         * Check if a house number is present
+         * 
+         * @param number the house number
+         * @return true if present
+         */
+        boolean contains(int number) {
+            return Arrays.binarySearch(numbers, 0, size, number) >= 0;
+        }
+
+        /**
+         * Get the distance between a house number and a location
+         * 
+         * @param i the position of the house number
+         * @param lat the WGS84 latitude
+         * @param lon the WGS84 longitude
+         * @return the distance in meters
+         */
+        double distance(int i, float lat, float lon) {
+            return GeoMath.haversineDistance(lons[i], lats[i], lon, lat);
+        }
+
+        /**
+         * Find the house number nearest to a location, if more than one is at the same distance the highest number is
+         * returned
+         * 
+         * If the street is known only the numbers on either side of the location along the street are considered,
+         * otherwise all numbers are checked
+         * 
+         * @param lat the WGS84 latitude
+         * @param lon the WGS84 longitude
+         * @return the position of the house number
+         */
+        int nearest(float lat, float lon) {
+            int from = 0;
+            int to = size - 1;
+            if (sortedPositions != null) {
+                int k = Arrays.binarySearch(sortedPositions, StreetPlaceIndex.getPosition(streetWay, lat, lon));
+                if (k < 0) {
+                    k = -k - 1; // insertion point
+                }
+                from = Math.max(0, k - 1);
+                to = Math.min(size - 1, k);
+                // numbers at the same position, for example multiple numbers on one building
+                while (from > 0 && sortedPositions[from - 1] == sortedPositions[from]) {
+                    from--;
+                }
+                while (to < size - 1 && sortedPositions[to + 1] == sortedPositions[to]) {
+                    to++;
+                }
+            }
+            int nearest = 0;
+            double distance = Double.MAX_VALUE;
+            for (int j = from; j <= to; j++) {
+                int i = byPosition != null ? byPosition[j] : j;
+                double newDistance = distance(i, lat, lon);
+                if (newDistance < distance || (newDistance == distance && i > nearest)) {
+                    distance = newDistance;
+                    nearest = i;
+                }
+            }
+            return nearest;
+        }
+
+        /**
+         * Get the Address for a house number
+         * 
+         * @param context Android Context
+         * @param i the position of the house number
+         * @return an Address
+         */
+        @NonNull
+        Address getAddress(@NonNull Context context, int i) {
+            if (sources[i] instanceof Address) {
+                return (Address) sources[i];
+            }
+            OsmElement e = (OsmElement) sources[i];
+            Address a = new Address(e, getAddressTags(context, new LinkedHashMap<>(Util.getArrayListMap(e.getTags()))));
+            sources[i] = a;
+            return a;
         }
     }
 
     /**
-     * Return a sorted map of house numbers and the associated address objects from a List of Addresses
+     * Get the house numbers on one side of a street from a List of Addresses and the addresses in the loaded OSM data
      * 
-     * The original addr:housenumber tag is split on ",", ";" and "-"
+     * Numbers from the List of Addresses take precedence, the numbers from the loaded data are kept sorted per street
+     * side by the StreetPlaceIndex so this only needs to merge the two sorted sequences. The result is cached until
+     * either the loaded numbers or the last addresses change.
      * 
      * @param street the street name
+     * @param streetId the osm id of the street or -1 if not known
      * @param side side of the street that should be considered
      * @param addresses the list of addresses
-     * @return a sorted map with the house numbers as key
+     * @return the house numbers sorted by number
      */
     @NonNull
-    private static synchronized TreeMap<Integer, Address> getHouseNumbers(String street, Address.Side side, LinkedList<Address> addresses) {
-        TreeMap<Integer, Address> result = new TreeMap<>(); // list sorted by house numbers
+    private static synchronized Numbers getHouseNumbers(@NonNull String street, long streetId, @NonNull Address.Side side,
+            @NonNull LinkedList<Address> addresses) {
+        StorageDelegator delegator = App.getDelegator();
+        Way streetWay = streetId > 0 ? (Way) delegator.getOsmElement(Way.NAME, streetId) : null;
+        HouseNumbers loaded = delegator.getStreetPlaceIndex().getHouseNumbers(delegator.getCurrentStorage(), street, streetWay, side);
+        String key = street + "|" + streetId + "|" + side;
+        Numbers cached = numbersCache.get(key);
+        if (cached != null && cached.loaded == loaded && cached.version == lastAddressesVersion && cached.streetWay == streetWay) {
+            return cached;
+        }
+        TreeMap<Integer, Address> last = new TreeMap<>();
         for (Address a : addresses) {
             if (a != null && a.tags != null) {
                 ArrayList<String> addrStreetValues = a.tags.get(Tags.KEY_ADDR_STREET);
                 ArrayList<String> addrPlaceValues = a.tags.get(Tags.KEY_ADDR_PLACE);
                 if (((addrStreetValues != null && !addrStreetValues.isEmpty() && addrStreetValues.get(0).equals(street)) // FIXME
                         || (addrPlaceValues != null && !addrPlaceValues.isEmpty() && addrPlaceValues.get(0).equals(street)))
-                        && a.tags.containsKey(Tags.KEY_ADDR_HOUSENUMBER) && a.getSide() == side) {
-                    Log.d(DEBUG_TAG, "Number " + a.tags.get(Tags.KEY_ADDR_HOUSENUMBER));
+                        && a.getSide() == side) {
                     ArrayList<String> addrHousenumberValues = a.tags.get(Tags.KEY_ADDR_HOUSENUMBER);
                     if (addrHousenumberValues != null && !addrHousenumberValues.isEmpty()) {
-                        String[] numbers = addrHousenumberValues.get(0).split("[\\,;\\-]");
-                        for (String n : numbers) {
-                            Log.d(DEBUG_TAG, "add number  " + n);
-                            // noinspection EmptyCatchBlock
-                            try {
-                                result.put(getNumber(n), a);
-                            } catch (NumberFormatException nfe) {
-                            }
+                        for (int number : StreetPlaceIndex.getNumbers(addrHousenumberValues.get(0))) {
+                            last.put(number, a);
                         }
                     }
                 }
             }
         }
+        Numbers result = new Numbers(last.size() + loaded.size(), loaded, lastAddressesVersion, streetWay);
+        int i = 0;
+        for (Entry<Integer, Address> entry : last.entrySet()) {
+            int number = entry.getKey();
+            for (; i < loaded.size() && loaded.getNumber(i) <= number; i++) {
+                if (loaded.getNumber(i) < number) {
+                    result.add(loaded.getNumber(i), loaded.getLat(i), loaded.getLon(i), loaded.getPosition(i), loaded.getElement(i));
+                }
+            }
+            Address a = entry.getValue();
+            result.add(number, a.lat, a.lon, streetWay != null ? StreetPlaceIndex.getPosition(streetWay, a.lat, a.lon) : 0f, a);
+        }
+        for (; i < loaded.size(); i++) {
+            result.add(loaded.getNumber(i), loaded.getLat(i), loaded.getLon(i), loaded.getPosition(i), loaded.getElement(i));
+        }
+        result.finish();
+        numbersCache.put(key, result);
         return result;
     }
 
     /**
-     * Add an address from OSM data to the address cache
-     * 
-     * @param context Android Context
-     * @param street the street name
-     * @param streetId the osm id of the street
-     * @param e the OsmElement
-     * @param addresses the list of addresses
+     * Invalidate the cached house numbers after the last addresses have changed
      */
-    private static void seedAddressList(@NonNull Context context, @NonNull String street, long streetId, @NonNull OsmElement e,
-            @NonNull LinkedList<Address> addresses) {
-        if (e.hasTag(Tags.KEY_ADDR_STREET, street) && e.hasTagKey(Tags.KEY_ADDR_HOUSENUMBER)) {
-            Address seed = new Address(e, getAddressTags(context, new LinkedHashMap<>(Util.getArrayListMap(e.getTags()))));
-            if (streetId > 0) {
-                seed.setSide(streetId);
-            }
-            if (addresses.size() >= MAX_SAVED_ADDRESSES) { // arbitrary limit for now
-                addresses.removeLast();
-            }
-            addresses.addFirst(seed);
-            Log.d("TagEditor", "seedAddressList added " + seed.tags.toString());
-        }
+    private static void lastAddressesChanged() {
+        lastAddressesVersion++;
+        numbersCache.clear();
     }
 
     /**
@@ -665,6 +755,7 @@ public final class Address implements Serializable {
     public static synchronized void resetLastAddresses(Context context) {
         savingHelperAddress.save(context, ADDRESS_TAGS_FILE, new LinkedList<>(), false);
         lastAddresses = null;
+        lastAddressesChanged();
     }
 
     /**
@@ -699,6 +790,7 @@ public final class Address implements Serializable {
                 }
             }
             lastAddresses.addFirst(current);
+            lastAddressesChanged();
             saveLastAddresses(caller.getActivity());
         }
     }
@@ -723,6 +815,7 @@ public final class Address implements Serializable {
         if (lastAddresses == null) {
             try {
                 lastAddresses = savingHelperAddress.load(context, ADDRESS_TAGS_FILE, false);
+                lastAddressesChanged();
                 Log.d("TagEditor", "onResume read " + lastAddresses.size() + " addresses");
             } catch (Exception e) {
                 // TODO be more specific
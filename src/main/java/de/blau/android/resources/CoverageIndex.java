@@ -0,0 +1,108 @@
+package de.blau.android.resources;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import android.support.annotation.NonNull;
+import de.blau.android.osm.BoundingBox;
+import de.blau.android.util.rtree.BoundedObject;
+import de.blau.android.util.rtree.RTree;
+
+/**
+ * Spatial index over the coverage areas of a set of layers
+ * 
+ * Layers without coverage information are returned for every query. The result of the last query is retained for an
+ * area around the queried one so that small changes of the view don't need a new query.
+ * 
+ * @author simon
+ *
+ */
+class CoverageIndex {
+
+    private static final int MIN_CHILDREN = 2;
+    private static final int MAX_CHILDREN = 20;
+
+    private final RTree                 tree   = new RTree(MIN_CHILDREN, MAX_CHILDREN);
+    private final List<TileLayerServer> global = new ArrayList<>();
+
+    private BoundingBox                cachedArea       = null;
+    private final Set<TileLayerServer> cachedCandidates = new LinkedHashSet<>();
+
+    private final RTree.Visitor addCandidate = new RTree.Visitor() {
+        @Override
+        public void visit(BoundedObject o) {
+            cachedCandidates.add(((Entry) o).layer);
+        }
+    };
+
+    /**
+     * A coverage BoundingBox of a layer
+     */
+    private static class Entry implements BoundedObject {
+        final TileLayerServer layer;
+        final BoundingBox     box;
+
+        /**
+         * Construct a new Entry
+         * 
+         * @param layer the layer
+         * @param box one of the BoundingBoxes of its coverage
+         */
+        Entry(@NonNull TileLayerServer layer, @NonNull BoundingBox box) {
+            this.layer = layer;
+            this.box = box;
+        }
+
+        @Override
+        public BoundingBox getBounds() {
+            return box;
+        }
+    }
+
+    /**
+     * Construct a new index
+     * 
+     * @param layers the layers to index
+     */
+    CoverageIndex(@NonNull Collection<TileLayerServer> layers) {
+        List<Entry> entries = new ArrayList<>();
+        for (TileLayerServer layer : layers) {
+            List<BoundingBox> boxes = layer.getCoverageBoundingBoxes();
+            if (boxes == null) {
+                global.add(layer);
+                continue;
+            }
+            for (BoundingBox box : boxes) {
+                entries.add(new Entry(layer, box));
+            }
+        }
+        tree.load(entries);
+    }
+
+    /**
+     * Get the layers that may cover an area
+     * 
+     * The result contains all layers that cover the area, but may contain layers that only cover its surroundings.
+     * 
+     * @param box the area
+     * @return a Collection of layers
+     */
+    @NonNull
+    synchronized Collection<TileLayerServer> getCandidates(@NonNull BoundingBox box) {
+        if (cachedArea == null || !cachedArea.contains(box)) {
+            // retain the result for an area three times the size of the box in each direction
+            long width = box.getWidth();
+            long height = box.getHeight();
+            cachedArea = new BoundingBox((int) Math.max(-BoundingBox.MAX_LON_E7, box.getLeft() - width),
+                    (int) Math.max(-BoundingBox.MAX_LAT_E7, box.getBottom() - height), (int) Math.min(BoundingBox.MAX_LON_E7, box.getRight() + width),
+                    (int) Math.min(BoundingBox.MAX_LAT_E7, box.getTop() + height));
+            cachedCandidates.clear();
+            cachedCandidates.addAll(global);
+            tree.query(addCandidate, cachedArea.getLeft(), cachedArea.getBottom(), cachedArea.getRight(), cachedArea.getTop());
+        }
+        return new ArrayList<>(cachedCandidates);
+    }
+}
@@ -1,13 +1,14 @@
 package de.blau.android.resources;
 
 public final class MBTileConstants {
-    public static final String BOUNDS  = "bounds";
-    static final String        TYPE    = "type";
-    static final String        OVERLAY = "overlay";
-    static final String        NAME    = "name";
-    static final String        JPG     = "jpg";
-    static final String        PNG     = "png";
-    static final String        FORMAT  = "format";
-    public static final String MAXZOOM = "maxzoom";
-    public static final String MINZOOM = "minzoom";
+    public static final String BOUNDS    = "bounds";
+    public static final String TYPE      = "type";
+    public static final String OVERLAY   = "overlay";
+    public static final String BASELAYER = "baselayer";
+    public static final String NAME      = "name";
+    public static final String JPG       = "jpg";
+    public static final String PNG       = "png";
+    public static final String FORMAT    = "format";
+    public static final String MAXZOOM   = "maxzoom";
+    public static final String MINZOOM   = "minzoom";
 }
@@ -455,6 +455,23 @@ public class TileLayerDatabase extends SQLiteOpenHelper {
         return db.rawQuery("SELECT layers.rowid as _id, name FROM layers WHERE source=? OR source=?", new String[] { SOURCE_CUSTOM, SOURCE_MANUAL });
     }
 
+    /**
+     * Check if a layer was added by the user
+     * 
+     * @param db a readable SQLiteDatabase
+     * @param id the layer id
+     * @return true if the layer was added manually or from a custom imagery file
+     */
+    public static boolean isCustomLayer(@NonNull SQLiteDatabase db, @NonNull String id) {
+        Cursor dbresult = db.query(LAYERS_TABLE, new String[] { SOURCE_FIELD }, ID_FIELD + "=? AND (" + SOURCE_FIELD + "=? OR " + SOURCE_FIELD + "=?)",
+                new String[] { id, SOURCE_CUSTOM, SOURCE_MANUAL }, null, null, null);
+        try {
+            return dbresult.getCount() > 0;
+        } finally {
+            dbresult.close();
+        }
+    }
+
     /**
      * Get all layers of a specific type
      * 
@@ -248,6 +248,9 @@ public class TileLayerServer implements Serializable {
         private String             attribution;
         /** Coverage area provided by this provider. */
         private List<CoverageArea> coverageAreas = new ArrayList<>();
+        /** Size of the coverage areas with a bounding box, maintained when areas are added. */
+        private double             coverageSize    = 0d;
+        private boolean            boundedCoverage = false;
 
         /**
          * Create a new Provider from XML data.
@@ -271,7 +274,7 @@ public class TileLayerServer implements Serializable {
                     }
                     if ("CoverageArea".equals(tagName)) {
                         try {
-                            coverageAreas.add(new CoverageArea(parser));
+                            addCoverageArea(new CoverageArea(parser));
                         } catch (Exception x) {
                             // do nothing
                         }
@@ -293,6 +296,21 @@ public class TileLayerServer implements Serializable {
          */
         public void addCoverageArea(CoverageArea ca) {
             coverageAreas.add(ca);
+            BoundingBox box = ca.getBoundingBox();
+            if (box != null) {
+                coverageSize += box.getWidth() / 1E7D * box.getHeight() / 1E7D;
+                boundedCoverage = true;
+            }
+        }
+
+        /**
+         * Get the size of the coverage of this provider
+         * 
+         * @return an approximate size value in WGS84 degrees^2, the size of the whole world if there are no bounding
+         *         boxes
+         */
+        public double getCoverageSize() {
+            return boundedCoverage ? coverageSize : WORLD_SIZE;
         }
 
         /**
@@ -410,6 +428,8 @@ public class TileLayerServer implements Serializable {
     public static final int  DEFAULT_MAX_OVERZOOM = 4;
 
     public static final int DEFAULT_TILE_SIZE = 256;
+
+    private static final double WORLD_SIZE = GeoMath.MAX_LON * GeoMath.MAX_LAT * 4;
     static final int        WMS_TILE_SIZE     = 512;
 
     // ===========================================================
@@ -453,6 +473,8 @@ public class TileLayerServer implements Serializable {
 
     private static Map<String, TileLayerServer> backgroundServerList = null;
     private static Map<String, TileLayerServer> overlayServerList    = null;
+    private static CoverageIndex                backgroundIndex      = null;
+    private static CoverageIndex                overlayIndex         = null;
     private static Object                       serverListLock       = new Object();
     private static boolean                      ready                = false;
     private static List<String>                 imageryBlacklist     = null;
@@ -1079,6 +1101,7 @@ public class TileLayerServer implements Serializable {
                 } else {
                     backgroundServerList.put(id, layer);
                 }
+                invalidateIndices();
                 return layer;
             }
             Log.e(DEBUG_TAG, "Layer " + id + " null from database");
@@ -1258,9 +1281,18 @@ public class TileLayerServer implements Serializable {
             background = TileLayerDatabase.getLayer(ctx, db, LAYER_MAPNIK);
             overlayServerList.put(LAYER_MAPNIK, background);
         }
+        invalidateIndices();
         Log.d(DEBUG_TAG, "Generating TileLayer lists took " + (System.currentTimeMillis() - start) / 1000);
     }
 
+    /**
+     * Throw away the coverage indices after the lists have changed, they are rebuilt on the next query
+     */
+    private static void invalidateIndices() {
+        backgroundIndex = null;
+        overlayIndex = null;
+    }
+
     /**
      * Set the in memory lists from the database, locks against concurrent change
      * 
@@ -1621,14 +1653,18 @@ public class TileLayerServer implements Serializable {
      * @param filtered if true only return those layers with a coverage area that overlaps with the supplied bounding
      *            box
      * @param servers input list of servers to sort and potentially filter
+     * @param index spatial index of the servers coverage, used when filtering
      * @param box bounding box that we are interested in
      * @return list of tile servers
      */
     @NonNull
-    private static List<TileLayerServer> getServersFilteredSorted(boolean filtered, @NonNull Map<String, TileLayerServer> servers, @Nullable BoundingBox box) {
+    private static List<TileLayerServer> getServersFilteredSorted(boolean filtered, @NonNull Map<String, TileLayerServer> servers,
+            @NonNull CoverageIndex index, @Nullable BoundingBox box) {
         TileLayerServer noneLayer = null;
         List<TileLayerServer> list = new ArrayList<>();
-        for (TileLayerServer osmts : servers.values()) {
+        // only the layers with coverage around box need to be checked in detail
+        Collection<TileLayerServer> candidates = filtered && box != null ? index.getCandidates(box) : servers.values();
+        for (TileLayerServer osmts : candidates) {
             if (filtered && box != null) {
                 if (!osmts.covers(box)) {
                     continue;
@@ -1655,8 +1691,8 @@ public class TileLayerServer implements Serializable {
                     if (t1.defaultLayer != t2.defaultLayer) {
                         return t2.defaultLayer ? 1 : -1;
                     }
-                    double t1Size = coverageSize(t1.getCoverage());
-                    double t2Size = coverageSize(t2.getCoverage());
+                    double t1Size = t1.getCoverageSize();
+                    double t2Size = t2.getCoverageSize();
                     if (t1Size != t2Size) {
                         return t1Size < t2Size ? -1 : 1;
                     } else {
@@ -1676,24 +1712,34 @@ public class TileLayerServer implements Serializable {
     }
 
     /**
-     * Calculate the coverage size in WGS84 degrees^2
+     * Get the coverage size of the 1st provider, precomputed when the coverage areas were added
      * 
-     * @param areas List of ConverageAreas
      * @return an approximate size value in WGS84 degrees^2
      */
-    private static double coverageSize(List<CoverageArea> areas) {
-        double result = GeoMath.MAX_LON * GeoMath.MAX_LAT * 4;
-        boolean firstNonEmpty = true;
-        if (areas != null) {
-            for (CoverageArea area : areas) {
-                BoundingBox box = area.getBoundingBox();
-                if (box != null) {
-                    if (firstNonEmpty) {
-                        result = 0;
-                        firstNonEmpty = false;
-                    }
-                    result = +box.getWidth() / 1E7D * box.getHeight() / 1E7D;
+    private double getCoverageSize() {
+        return providers.isEmpty() ? WORLD_SIZE : providers.get(0).getCoverageSize();
+    }
+
+    /**
+     * Get the bounding boxes of all CoverageAreas for spatial indexing
+     * 
+     * @return a List of BoundingBox or null if the layer is not restricted to specific areas
+     */
+    @Nullable
+    List<BoundingBox> getCoverageBoundingBoxes() {
+        if (providers.isEmpty()) {
+            return null;
+        }
+        List<BoundingBox> result = new ArrayList<>();
+        for (Provider p : providers) {
+            if (p.coverageAreas.isEmpty()) {
+                return null;
+            }
+            for (CoverageArea a : p.coverageAreas) {
+                if (a.bbox == null) {
+                    return null;
                 }
+                result.add(a.bbox);
             }
         }
         return result;
@@ -1749,7 +1795,10 @@ public class TileLayerServer implements Serializable {
         List<String> ids = new ArrayList<>();
         synchronized (serverListLock) {
             if (backgroundServerList != null) {
-                List<TileLayerServer> list = getServersFilteredSorted(filtered, backgroundServerList, box);
+                if (backgroundIndex == null) {
+                    backgroundIndex = new CoverageIndex(backgroundServerList.values());
+                }
+                List<TileLayerServer> list = getServersFilteredSorted(filtered, backgroundServerList, backgroundIndex, box);
                 for (TileLayerServer t : list) {
                     ids.add(t.id);
                 }
@@ -1834,7 +1883,10 @@ public class TileLayerServer implements Serializable {
         List<String> ids = new ArrayList<>();
         synchronized (serverListLock) {
             if (overlayServerList != null) {
-                List<TileLayerServer> list = getServersFilteredSorted(filtered, overlayServerList, box);
+                if (overlayIndex == null) {
+                    overlayIndex = new CoverageIndex(overlayServerList.values());
+                }
+                List<TileLayerServer> list = getServersFilteredSorted(filtered, overlayServerList, overlayIndex, box);
                 for (TileLayerServer t : list) {
                     ids.add(t.id);
                 }
@@ -2197,6 +2249,7 @@ public class TileLayerServer implements Serializable {
                     }
                 }
             }
+            invalidateIndices();
         }
     }
 
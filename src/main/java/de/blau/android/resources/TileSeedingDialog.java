@@ -0,0 +1,252 @@
+package de.blau.android.resources;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+import android.app.NotificationManager;
+import android.content.Context;
+import android.content.DialogInterface;
+import android.os.AsyncTask;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.app.FragmentActivity;
+import android.support.v4.app.NotificationCompat;
+import android.support.v7.app.AlertDialog;
+import android.text.format.Formatter;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import ch.poole.android.numberpicker.library.NumberPicker;
+import de.blau.android.App;
+import de.blau.android.R;
+import de.blau.android.osm.BoundingBox;
+import de.blau.android.prefs.Preferences;
+import de.blau.android.services.util.MBTileSeeder;
+import de.blau.android.util.FileUtil;
+import de.blau.android.util.Notifications;
+import de.blau.android.util.Snack;
+
+/**
+ * Dialog and background task for downloading the tiles of a layer for offline use
+ * 
+ * @author simon
+ *
+ */
+public final class TileSeedingDialog {
+
+    private static final String DEBUG_TAG = "TileSeedingDialog";
+
+    /**
+     * Maximum number of tiles we will download in one go, this protects both the tile servers and the device storage
+     */
+    static final long MAX_TILES = 100000;
+
+    private static final double REQUESTS_PER_SECOND = 10;
+
+    private static final String MBTILES_EXTENSION = ".mbtiles";
+
+    /**
+     * Tile servers whose usage policy forbids bulk downloading, these are never seeded even if added as custom layers
+     */
+    private static final String[] NO_SEEDING_HOSTS = { "openstreetmap.org", "openstreetmap.de", "openstreetmap.fr" };
+
+    private static MBTileSeeder running = null;
+
+    /**
+     * Private constructor to stop instantiation
+     */
+    private TileSeedingDialog() {
+        // private
+    }
+
+    /**
+     * Check if a download is in progress
+     * 
+     * @return true if tiles are currently being downloaded
+     */
+    public static synchronized boolean isRunning() {
+        return running != null;
+    }
+
+    /**
+     * Stop any running download, already downloaded tiles are retained
+     */
+    public static synchronized void stop() {
+        if (running != null) {
+            running.cancel();
+        }
+    }
+
+    /**
+     * Check if downloading tiles for offline use is allowed for a layer
+     * 
+     * Only layers the user has added themselves are considered to allow this, layers from the imagery index, including
+     * the OSMF default layers, are typically run on donated resources and don't permit bulk downloads.
+     * 
+     * @param context Android Context
+     * @param layer the layer
+     * @return true if the tiles of the layer may be seeded
+     */
+    public static boolean isAllowed(@NonNull Context context, @NonNull TileLayerServer layer) {
+        if (layer.isReadOnly()) {
+            return false;
+        }
+        // the url contains place holders, so extract the host by hand instead of using Uri
+        String host = layer.getOriginalTileUrl().toLowerCase(Locale.US);
+        int start = host.indexOf("://");
+        host = host.substring(start < 0 ? 0 : start + 3);
+        int end = host.indexOf('/');
+        if (end >= 0) {
+            host = host.substring(0, end);
+        }
+        for (String noSeeding : NO_SEEDING_HOSTS) {
+            if (host.equals(noSeeding) || host.endsWith("." + noSeeding)) {
+                return false;
+            }
+        }
+        TileLayerDatabase db = new TileLayerDatabase(context);
+        try {
+            return TileLayerDatabase.isCustomLayer(db.getReadableDatabase(), layer.getId());
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Show a dialog for selecting the zoom range and then download the tiles in the background
+     * 
+     * @param activity the calling FragmentActivity
+     * @param layer the layer to download the tiles from
+     * @param box the area to download
+     * @param currentZoom the current zoom level, used as the default minimum
+     */
+    public static void showDialog(@NonNull final FragmentActivity activity, @NonNull final TileLayerServer layer, @NonNull final BoundingBox box,
+            int currentZoom) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(activity);
+        final View layout = (View) LayoutInflater.from(activity).inflate(R.layout.download_tiles, null);
+        builder.setView(layout);
+        builder.setTitle(R.string.download_tiles_title);
+        final NumberPicker minZoomPicker = (NumberPicker) layout.findViewById(R.id.zoom_min);
+        final NumberPicker maxZoomPicker = (NumberPicker) layout.findViewById(R.id.zoom_max);
+        int min = Math.max(layer.getMinZoomLevel(), Math.min(layer.getMaxZoomLevel(), currentZoom));
+        minZoomPicker.setValue(min);
+        maxZoomPicker.setValue(Math.min(layer.getMaxZoomLevel(), min + 2));
+        builder.setNegativeButton(R.string.cancel, null);
+        builder.setPositiveButton(R.string.download_tiles_start, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                int minZoom = Math.max(layer.getMinZoomLevel(), minZoomPicker.getValue());
+                int maxZoom = Math.min(layer.getMaxZoomLevel(), maxZoomPicker.getValue());
+                if (minZoom > maxZoom) {
+                    Snack.toastTopError(activity, R.string.toast_min_zoom);
+                    return;
+                }
+                long count = MBTileSeeder.countTiles(box, minZoom, maxZoom);
+                if (count > MAX_TILES) {
+                    Snack.toastTopError(activity, activity.getString(R.string.toast_too_many_tiles, count, MAX_TILES));
+                    return;
+                }
+                start(activity, layer, box, minZoom, maxZoom);
+            }
+        });
+        builder.show();
+    }
+
+    /**
+     * Start downloading in the background
+     * 
+     * @param activity the calling FragmentActivity
+     * @param layer the layer to download the tiles from
+     * @param box the area to download
+     * @param minZoom the minimum zoom level
+     * @param maxZoom the maximum zoom level
+     */
+    private static void start(@NonNull FragmentActivity activity, @NonNull final TileLayerServer layer, @NonNull BoundingBox box, int minZoom,
+            int maxZoom) {
+        final Context context = activity.getApplicationContext();
+        final File file;
+        try {
+            file = new File(FileUtil.getPublicDirectory(), layer.getId().toLowerCase(Locale.US) + MBTILES_EXTENSION);
+        } catch (IOException e) {
+            Snack.toastTopError(activity, e.getLocalizedMessage());
+            return;
+        }
+        Preferences prefs = new Preferences(context);
+        final MBTileSeeder seeder = new MBTileSeeder(App.getHttpClient(), layer, new BoundingBox(box), minZoom, maxZoom, file,
+                prefs.getMaxTileDownloadThreads(), REQUESTS_PER_SECOND);
+        synchronized (TileSeedingDialog.class) {
+            if (running != null) {
+                Snack.toastTopWarning(activity, R.string.toast_download_tiles_running);
+                return;
+            }
+            running = seeder;
+        }
+        final NotificationManager manager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+        final NotificationCompat.Builder notification = Notifications.builder(context).setSmallIcon(R.drawable.logo_simplified)
+                .setContentTitle(context.getString(R.string.download_tiles_notification_title, layer.getName())).setOngoing(true).setOnlyAlertOnce(true);
+        notification.setProgress(0, 0, true);
+        manager.notify(R.id.notification_tile_seeding, notification.build());
+
+        new AsyncTask<Void, Void, Boolean>() {
+            private long done;
+            private long total;
+            private long failed;
+
+            @Override
+            protected Boolean doInBackground(Void... params) {
+                try {
+                    return seeder.run(new MBTileSeeder.ProgressListener() {
+                        @Override
+                        public void onProgress(long done, long total, long failed, long bytes, double tilesPerSecond) {
+                            updateProgress(done, total, failed);
+                            synchronized (notification) { // called from the download threads
+                                // MAX_TILES fits in an int
+                                notification.setProgress((int) total, (int) done, false).setContentText(context.getString(R.string.download_tiles_progress,
+                                        done, total, tilesPerSecond, Formatter.formatShortFileSize(context, bytes)));
+                                manager.notify(R.id.notification_tile_seeding, notification.build());
+                            }
+                        }
+                    });
+                } catch (IOException e) {
+                    Log.e(DEBUG_TAG, "Seeding " + file + " failed " + e.getMessage());
+                    return null;
+                } finally {
+                    synchronized (TileSeedingDialog.class) {
+                        running = null;
+                    }
+                }
+            }
+
+            /**
+             * Retain the last progress values for the final notification
+             * 
+             * @param done number of tiles that have been processed
+             * @param total total number of tiles
+             * @param failed number of tiles that could not be downloaded
+             */
+            private synchronized void updateProgress(long done, long total, long failed) {
+                this.done = done;
+                this.total = total;
+                this.failed = failed;
+            }
+
+            @Override
+            protected synchronized void onPostExecute(@Nullable Boolean complete) {
+                String message;
+                if (complete == null) {
+                    message = context.getString(R.string.download_tiles_error, file.getName());
+                } else if (complete) {
+                    message = context.getString(R.string.download_tiles_finished, total, file.getAbsolutePath());
+                } else {
+                    message = context.getString(R.string.download_tiles_incomplete, total - done + failed, total);
+                }
+                synchronized (notification) {
+                    notification.setOngoing(false).setProgress(0, 0, false).setContentText(message)
+                            .setStyle(new NotificationCompat.BigTextStyle().bigText(message));
+                    manager.notify(R.id.notification_tile_seeding, notification.build());
+                }
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+}
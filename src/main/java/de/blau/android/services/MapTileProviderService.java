@@ -1,6 +1,8 @@
 package de.blau.android.services;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 import android.annotation.SuppressLint;
 import android.app.Service;
@@ -149,6 +151,23 @@ public class MapTileProviderService extends Service {
             mFileSystemProvider.flushQueue(rendererId, zoomLevel);
         }
 
+        public void setViewport(String rendererId, int zoomLevel, int left, int top, int right, int bottom) {
+            if (mFileSystemProvider != null) {
+                mFileSystemProvider.setViewport(rendererId, zoomLevel, left, top, right, bottom);
+            }
+        }
+
+        public void prefetchMapTiles(String rendererId, int[] zoomLevels, int[] tileX, int[] tileY, IMapTileProviderCallback callback) {
+            if (!mountPointWriteable || mFileSystemProvider == null) {
+                return;
+            }
+            List<MapTile> tiles = new ArrayList<>(zoomLevels.length);
+            for (int i = 0; i < zoomLevels.length; i++) {
+                tiles.add(new MapTile(rendererId, zoomLevels[i], tileX[i], tileY[i]));
+            }
+            mFileSystemProvider.prefetch(rendererId, tiles, callback);
+        }
+
         public void update() {
             TileLayerDatabase db = new TileLayerDatabase(MapTileProviderService.this);
             TileLayerServer.getListsLocked(MapTileProviderService.this, db.getReadableDatabase(), false);
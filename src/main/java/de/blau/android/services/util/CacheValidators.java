@@ -0,0 +1,167 @@
+package de.blau.android.services.util;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import okhttp3.CacheControl;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * HTTP cache validators and expiry time for a tile
+ * 
+ * @author simon
+ *
+ */
+public class CacheValidators {
+
+    static final String ETAG              = "ETag";
+    static final String LAST_MODIFIED     = "Last-Modified";
+    static final String EXPIRES           = "Expires";
+    static final String IF_NONE_MATCH     = "If-None-Match";
+    static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    /**
+     * Expiry used if the server provides validators but no freshness information
+     */
+    static final long DEFAULT_MAX_AGE = TimeUnit.DAYS.toMillis(7);
+
+    /**
+     * Minimum time before a tile is revalidated, protects the tile servers against being hit on every view
+     */
+    static final long MIN_MAX_AGE = TimeUnit.HOURS.toMillis(1);
+
+    public static final long NO_EXPIRY = 0;
+
+    private final String etag;
+    private final String lastModified;
+    private final long   expires;
+
+    /**
+     * Construct a new instance
+     * 
+     * @param etag the ETag value or null
+     * @param lastModified the Last-Modified value or null
+     * @param expires the time in ms since the epoch the tile should be revalidated, NO_EXPIRY if never
+     */
+    public CacheValidators(@Nullable String etag, @Nullable String lastModified, long expires) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.expires = expires;
+    }
+
+    /**
+     * Determine the validators and expiry time from the headers of a response
+     * 
+     * @param response the Response
+     * @param now the current time in ms since the epoch
+     * @return a CacheValidators instance
+     */
+    @NonNull
+    public static CacheValidators fromResponse(@NonNull Response response, long now) {
+        String etag = response.header(ETAG);
+        String lastModified = response.header(LAST_MODIFIED);
+        return new CacheValidators(etag, lastModified, expiry(response, now, etag != null || lastModified != null));
+    }
+
+    /**
+     * Create a copy updated with the headers of a 304 Not Modified response
+     * 
+     * Servers are not required to repeat the validators in a 304, so the current ones are retained if missing
+     * 
+     * @param response the Response
+     * @param now the current time in ms since the epoch
+     * @return a CacheValidators instance
+     */
+    @NonNull
+    public CacheValidators update(@NonNull Response response, long now) {
+        String newEtag = response.header(ETAG);
+        String newLastModified = response.header(LAST_MODIFIED);
+        return new CacheValidators(newEtag != null ? newEtag : etag, newLastModified != null ? newLastModified : lastModified,
+                expiry(response, now, true));
+    }
+
+    /**
+     * Calculate the expiry time for a response
+     * 
+     * @param response the Response
+     * @param now the current time in ms since the epoch
+     * @param validators true if the tile can be revalidated with a conditional request
+     * @return the expiry time or NO_EXPIRY
+     */
+    private static long expiry(@NonNull Response response, long now, boolean validators) {
+        CacheControl cacheControl = response.cacheControl();
+        long maxAge = -1;
+        if (cacheControl.noCache()) {
+            maxAge = 0;
+        } else if (cacheControl.maxAgeSeconds() >= 0) {
+            maxAge = TimeUnit.SECONDS.toMillis(cacheControl.maxAgeSeconds());
+        } else {
+            Date expiresDate = response.headers().getDate(EXPIRES);
+            if (expiresDate != null) {
+                maxAge = expiresDate.getTime() - now;
+            }
+        }
+        if (maxAge < 0) {
+            if (!validators) {
+                return NO_EXPIRY; // revalidation would require downloading everything again
+            }
+            maxAge = DEFAULT_MAX_AGE;
+        }
+        return now + Math.max(maxAge, MIN_MAX_AGE);
+    }
+
+    /**
+     * Add the conditional headers to a request
+     * 
+     * @param builder the Request.Builder
+     */
+    public void addConditions(@NonNull Request.Builder builder) {
+        if (etag != null) {
+            builder.header(IF_NONE_MATCH, etag);
+        }
+        if (lastModified != null) {
+            builder.header(IF_MODIFIED_SINCE, lastModified);
+        }
+    }
+
+    /**
+     * Check if the tile should be revalidated
+     * 
+     * @param now the current time in ms since the epoch
+     * @return true if the tile has expired
+     */
+    public boolean isStale(long now) {
+        return expires != NO_EXPIRY && expires <= now;
+    }
+
+    /**
+     * @return the ETag value or null
+     */
+    @Nullable
+    public String getEtag() {
+        return etag;
+    }
+
+    /**
+     * @return the Last-Modified value or null
+     */
+    @Nullable
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return the expiry time in ms since the epoch or NO_EXPIRY
+     */
+    public long getExpires() {
+        return expires;
+    }
+
+    @Override
+    public String toString() {
+        return "ETag " + etag + " Last-Modified " + lastModified + " expires " + expires;
+    }
+}
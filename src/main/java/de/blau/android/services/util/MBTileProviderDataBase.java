@@ -7,6 +7,7 @@ import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Map;
 
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
@@ -214,6 +215,48 @@ public class MBTileProviderDataBase {
         return null;
     }
 
+    /**
+     * Returns requested tile as a file descriptor
+     * 
+     * The descriptor refers to a shared memory copy of the tile contents, it can be passed to another process without
+     * copying the data. The caller is responsible for closing it. Always returns null before Honeycomb, use getTile there.
+     * 
+     * @param aTile the tile meta data
+     * @return a ParcelFileDescriptor or null on failure to retrieve or before Honeycomb
+     * @throws IOException if we had issues reading from the database
+     */
+    @TargetApi(11)
+    @Nullable
+    public ParcelFileDescriptor getTileDescriptor(@NonNull final MapTile aTile) throws IOException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return null;
+        }
+        try {
+            if (mDatabase.isOpen()) {
+                SQLiteStatement get = null;
+                try {
+                    get = getStatements.acquire();
+                    if (get == null) {
+                        Log.e(DEBUG_TAG, "statement null");
+                        return null;
+                    }
+                    bindTile(aTile, get);
+                    return get.simpleQueryForBlobFileDescriptor();
+                } catch (SQLiteDoneException sde) {
+                    // nothing found
+                    return null;
+                } finally {
+                    if (get != null) {
+                        getStatements.release(get);
+                    }
+                }
+            }
+        } catch (SQLiteException sex) { // handle these exceptions the same
+            throw new IOException(sex.getMessage());
+        }
+        return null;
+    }
+
     /**
      * Bind the tile values to the prepared statement
      * 
@@ -0,0 +1,534 @@
+package de.blau.android.services.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import de.blau.android.osm.BoundingBox;
+import de.blau.android.resources.MBTileConstants;
+import de.blau.android.resources.TileLayerServer;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Download all tiles of a layer for an area and a range of zoom levels in to a MBTiles file
+ * 
+ * Tiles that are already present in the file are skipped, so an interrupted seeding job can simply be run again to
+ * complete it. Requests are limited both in concurrency and rate, and 429/503 responses pause all downloads for the
+ * time requested by the server. Tiles that the server doesn't have (404) are skipped and don't count as failures.
+ * 
+ * @author simon
+ *
+ */
+public class MBTileSeeder {
+
+    private static final String DEBUG_TAG = "MBTileSeeder";
+
+    private static final int  MAX_RETRIES       = 3;
+    private static final long INITIAL_BACKOFF   = 1000L;
+    private static final long MAX_RETRY_AFTER   = TimeUnit.MINUTES.toMillis(5);
+    private static final int  WRITE_BATCH_SIZE  = 50;
+    private static final long PROGRESS_INTERVAL = 500L;
+    private static final int  QUEUE_PER_THREAD  = 4;
+    private static final int  NOT_FOUND         = 404;
+    private static final int  TOO_MANY_REQUESTS = 429;
+    private static final int  UNAVAILABLE       = 503;
+
+    private static final String RETRY_AFTER = "Retry-After";
+
+    private static final String T_MBTILES            = "tiles";
+    private static final String T_MBTILES_ZOOM_LEVEL = "zoom_level";
+    private static final String T_MBTILES_TILE_X     = "tile_column";
+    private static final String T_MBTILES_TILE_Y     = "tile_row";
+    private static final String T_MBTILES_DATA       = "tile_data";
+
+    private static final String T_METADATA       = "metadata";
+    private static final String T_METADATA_NAME  = "name";
+    private static final String T_METADATA_VALUE = "value";
+
+    private static final String T_MBTILES_CREATE  = "CREATE TABLE IF NOT EXISTS " + T_MBTILES + " (" + T_MBTILES_ZOOM_LEVEL + " INTEGER, "
+            + T_MBTILES_TILE_X + " INTEGER, " + T_MBTILES_TILE_Y + " INTEGER, " + T_MBTILES_DATA + " BLOB)";
+    private static final String T_MBTILES_INDEX   = "CREATE UNIQUE INDEX IF NOT EXISTS tile_index ON " + T_MBTILES + " (" + T_MBTILES_ZOOM_LEVEL + ","
+            + T_MBTILES_TILE_X + "," + T_MBTILES_TILE_Y + ")";
+    private static final String T_METADATA_CREATE = "CREATE TABLE IF NOT EXISTS " + T_METADATA + " (" + T_METADATA_NAME + " TEXT, " + T_METADATA_VALUE
+            + " TEXT)";
+    private static final String T_METADATA_INDEX  = "CREATE UNIQUE INDEX IF NOT EXISTS name ON " + T_METADATA + " (" + T_METADATA_NAME + ")";
+
+    private static final String T_MBTILES_INSERT  = "INSERT OR REPLACE INTO " + T_MBTILES + " (" + T_MBTILES_ZOOM_LEVEL + "," + T_MBTILES_TILE_X + ","
+            + T_MBTILES_TILE_Y + "," + T_MBTILES_DATA + ") VALUES (?,?,?,?)";
+    private static final String T_MBTILES_EXISTS  = "SELECT count(*) FROM " + T_MBTILES + " WHERE " + T_MBTILES_ZOOM_LEVEL + "=? AND " + T_MBTILES_TILE_X
+            + "=? AND " + T_MBTILES_TILE_Y + "=?";
+    private static final String T_METADATA_INSERT = "INSERT OR REPLACE INTO " + T_METADATA + " (" + T_METADATA_NAME + "," + T_METADATA_VALUE
+            + ") VALUES (?,?)";
+
+    /**
+     * Receive progress information while seeding
+     */
+    public interface ProgressListener {
+        /**
+         * Called periodically from the download threads and once when seeding has finished
+         * 
+         * @param done number of tiles that have been processed, including tiles that were already present
+         * @param total total number of tiles
+         * @param failed number of tiles that could not be downloaded
+         * @param bytes number of bytes downloaded
+         * @param tilesPerSecond current download rate
+         */
+        void onProgress(long done, long total, long failed, long bytes, double tilesPerSecond);
+    }
+
+    private final OkHttpClient    client;
+    private final TileLayerServer layer;
+    private final BoundingBox     box;
+    private final int             minZoom;
+    private final int             maxZoom;
+    private final File            file;
+    private final int             threads;
+    private final RateLimiter     rateLimiter;
+
+    private final AtomicLong done       = new AtomicLong();
+    private final AtomicLong failed     = new AtomicLong();
+    private final AtomicLong downloaded = new AtomicLong();
+    private final AtomicLong bytes      = new AtomicLong();
+
+    private final List<Object[]> pendingWrites = new ArrayList<>();
+
+    private SQLiteDatabase   db;
+    private SQLiteStatement  insert;
+    private ProgressListener listener;
+    private long             total;
+    private long             start;
+    private long             lastProgress;
+    private volatile boolean cancelled = false;
+
+    /**
+     * Construct a new seeder
+     * 
+     * @param client the OkHttpClient to use for the downloads
+     * @param layer the layer to download the tiles from
+     * @param box the area to download
+     * @param minZoom the minimum zoom level to download
+     * @param maxZoom the maximum zoom level to download
+     * @param file the MBTiles file, will be created if it doesn't exist
+     * @param threads the maximum number of concurrent requests
+     * @param requestsPerSecond the maximum number of requests per second
+     */
+    public MBTileSeeder(@NonNull OkHttpClient client, @NonNull TileLayerServer layer, @NonNull BoundingBox box, int minZoom, int maxZoom, @NonNull File file,
+            int threads, double requestsPerSecond) {
+        this.client = client;
+        this.layer = layer;
+        this.box = box;
+        this.minZoom = Math.max(minZoom, layer.getMinZoomLevel());
+        this.maxZoom = Math.min(maxZoom, layer.getMaxZoomLevel());
+        this.file = file;
+        this.threads = Math.max(1, threads);
+        rateLimiter = new RateLimiter(requestsPerSecond);
+    }
+
+    /**
+     * Calculate the range of tiles covering a bounding box
+     * 
+     * @param box the BoundingBox
+     * @param zoom the zoom level
+     * @return an array containing left, top, right and bottom tile numbers
+     */
+    @NonNull
+    static int[] tileRange(@NonNull BoundingBox box, int zoom) {
+        final int n = 1 << zoom;
+        final double latTop = Math.toRadians(box.getTop() / 1E7d);
+        final double latBottom = Math.toRadians(box.getBottom() / 1E7d);
+        int left = (int) Math.floor(((box.getLeft() / 1E7d + 180d) / 360d) * n);
+        int right = (int) Math.floor(((box.getRight() / 1E7d + 180d) / 360d) * n);
+        int top = (int) Math.floor((1d - Math.log(Math.tan(latTop) + 1d / Math.cos(latTop)) / Math.PI) * n / 2d);
+        int bottom = (int) Math.floor((1d - Math.log(Math.tan(latBottom) + 1d / Math.cos(latBottom)) / Math.PI) * n / 2d);
+        return new int[] { clamp(left, n), clamp(top, n), clamp(right, n), clamp(bottom, n) };
+    }
+
+    /**
+     * Restrict a tile number to the valid range for the zoom level
+     * 
+     * @param value the tile number
+     * @param n the number of tiles in one direction
+     * @return the restricted value
+     */
+    private static int clamp(int value, int n) {
+        return Math.max(0, Math.min(n - 1, value));
+    }
+
+    /**
+     * Calculate the number of tiles covering a bounding box
+     * 
+     * @param box the BoundingBox
+     * @param minZoom the minimum zoom level
+     * @param maxZoom the maximum zoom level
+     * @return the number of tiles
+     */
+    public static long countTiles(@NonNull BoundingBox box, int minZoom, int maxZoom) {
+        long count = 0;
+        for (int z = minZoom; z <= maxZoom; z++) {
+            int[] range = tileRange(box, z);
+            count += (long) (range[2] - range[0] + 1) * (range[3] - range[1] + 1);
+        }
+        return count;
+    }
+
+    /**
+     * Download the tiles, blocks until done or cancelled
+     * 
+     * @param listener optional listener for progress information
+     * @return true if all tiles are now present in the file
+     * @throws IOException if the MBTiles file couldn't be created or written
+     */
+    public boolean run(@Nullable ProgressListener listener) throws IOException {
+        this.listener = listener;
+        total = countTiles(box, minZoom, maxZoom);
+        start = System.currentTimeMillis();
+        ThreadPoolExecutor executor = null;
+        try {
+            db = SQLiteDatabase.openOrCreateDatabase(file, null);
+            db.execSQL(T_MBTILES_CREATE);
+            db.execSQL(T_MBTILES_INDEX);
+            db.execSQL(T_METADATA_CREATE);
+            db.execSQL(T_METADATA_INDEX);
+            writeMetadata();
+            insert = db.compileStatement(T_MBTILES_INSERT);
+            SQLiteStatement exists = db.compileStatement(T_MBTILES_EXISTS);
+            // the bounded queue together with CallerRunsPolicy stops us from queuing the whole area up front
+            executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(threads * QUEUE_PER_THREAD),
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+            for (int z = minZoom; z <= maxZoom && !cancelled; z++) {
+                int[] range = tileRange(box, z);
+                for (int x = range[0]; x <= range[2] && !cancelled; x++) {
+                    for (int y = range[1]; y <= range[3] && !cancelled; y++) {
+                        exists.bindLong(1, z);
+                        exists.bindLong(2, x);
+                        exists.bindLong(3, tmsY(z, y));
+                        if (exists.simpleQueryForLong() > 0) {
+                            done.incrementAndGet();
+                            continue;
+                        }
+                        final MapTile tile = new MapTile(layer.getId(), z, x, y);
+                        executor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (!cancelled) {
+                                    download(tile);
+                                }
+                            }
+                        });
+                    }
+                }
+            }
+            exists.close();
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                if (cancelled) {
+                    executor.shutdownNow();
+                }
+            }
+            flushWrites();
+            progress(true);
+            return !cancelled && failed.get() == 0 && done.get() == total;
+        } catch (SQLiteException e) {
+            throw new IOException(e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            synchronized (pendingWrites) {
+                if (insert != null) {
+                    insert.close();
+                }
+                if (db != null) {
+                    db.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop seeding as soon as possible, tiles downloaded up to now will be retained
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Convert a y tile number to the TMS scheme used by MBTiles
+     * 
+     * @param zoom the zoom level
+     * @param y the y tile number
+     * @return the TMS y tile number
+     */
+    private static int tmsY(int zoom, int y) {
+        return (1 << zoom) - y - 1;
+    }
+
+    /**
+     * Write the MBTiles metadata, extending any existing bounds and zoom range
+     */
+    private void writeMetadata() {
+        BoundingBox bounds = new BoundingBox(box);
+        int min = minZoom;
+        int max = maxZoom;
+        Cursor c = db.query(T_METADATA, new String[] { T_METADATA_NAME, T_METADATA_VALUE }, null, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                String name = c.getString(0);
+                String value = c.getString(1);
+                try {
+                    if (MBTileConstants.MINZOOM.equals(name)) {
+                        min = Math.min(min, Integer.parseInt(value));
+                    } else if (MBTileConstants.MAXZOOM.equals(name)) {
+                        max = Math.max(max, Integer.parseInt(value));
+                    } else if (MBTileConstants.BOUNDS.equals(name)) {
+                        String[] corners = value.split(",", 4);
+                        if (corners.length == 4) {
+                            bounds.union(new BoundingBox(Double.parseDouble(corners[0]), Double.parseDouble(corners[1]), Double.parseDouble(corners[2]),
+                                    Double.parseDouble(corners[3])));
+                        }
+                    }
+                } catch (NumberFormatException e) {
+                    Log.e(DEBUG_TAG, "Ignoring invalid metadata " + name + " " + value);
+                }
+            }
+        } finally {
+            c.close();
+        }
+        String extension = layer.getImageExtension();
+        SQLiteStatement metadata = db.compileStatement(T_METADATA_INSERT);
+        db.beginTransaction();
+        try {
+            putMetadata(metadata, MBTileConstants.NAME, layer.getName());
+            putMetadata(metadata, MBTileConstants.TYPE, layer.isOverlay() ? MBTileConstants.OVERLAY : MBTileConstants.BASELAYER);
+            putMetadata(metadata, MBTileConstants.FORMAT,
+                    extension != null && extension.toLowerCase(Locale.US).contains("jp") ? MBTileConstants.JPG : MBTileConstants.PNG);
+            putMetadata(metadata, MBTileConstants.BOUNDS, bounds.toApiString());
+            putMetadata(metadata, MBTileConstants.MINZOOM, Integer.toString(min));
+            putMetadata(metadata, MBTileConstants.MAXZOOM, Integer.toString(max));
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            metadata.close();
+        }
+    }
+
+    /**
+     * Add or replace a metadata entry
+     * 
+     * @param statement the compiled insert statement
+     * @param name the name of the entry
+     * @param value the value
+     */
+    private void putMetadata(@NonNull SQLiteStatement statement, @NonNull String name, @NonNull String value) {
+        statement.bindString(1, name);
+        statement.bindString(2, value);
+        statement.executeInsert();
+    }
+
+    /**
+     * Download a single tile, retrying on transient errors
+     * 
+     * @param tile the tile to download
+     */
+    private void download(@NonNull MapTile tile) {
+        long backoff = INITIAL_BACKOFF;
+        try {
+            for (int attempt = 0; attempt <= MAX_RETRIES && !cancelled; attempt++) {
+                rateLimiter.acquire();
+                Request request = new Request.Builder().url(layer.getTileURLString(tile)).build();
+                Response response = null;
+                try {
+                    response = client.newCall(request).execute();
+                    int code = response.code();
+                    if (response.isSuccessful()) {
+                        ResponseBody body = response.body();
+                        byte[] data = body != null ? body.bytes() : null;
+                        if (data == null || data.length == 0) {
+                            break;
+                        }
+                        bytes.addAndGet(data.length);
+                        downloaded.incrementAndGet();
+                        write(tile, data);
+                        done.incrementAndGet();
+                        progress(false);
+                        return;
+                    }
+                    if (code == NOT_FOUND) {
+                        // no tile here, this is normal for layers with limited coverage, so not a failure, as
+                        // nothing is stored the tile will be requested again if the job is resumed
+                        done.incrementAndGet();
+                        progress(false);
+                        return;
+                    }
+                    if (code == TOO_MANY_REQUESTS || code == UNAVAILABLE) {
+                        long retryAfter = retryAfter(response, backoff);
+                        Log.w(DEBUG_TAG, "Server asked us to slow down, pausing for " + retryAfter + " ms");
+                        rateLimiter.pause(retryAfter);
+                    } else if (code < 500) {
+                        Log.e(DEBUG_TAG, "Download of " + tile + " failed with " + code + " " + response.message());
+                        break;
+                    } else {
+                        Thread.sleep(backoff);
+                    }
+                } catch (IOException e) {
+                    Log.w(DEBUG_TAG, "Download of " + tile + " failed " + e.getMessage());
+                    Thread.sleep(backoff);
+                } finally {
+                    if (response != null) {
+                        response.close();
+                    }
+                }
+                backoff *= 2;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        failed.incrementAndGet();
+        done.incrementAndGet();
+        progress(false);
+    }
+
+    /**
+     * Determine how long to wait before retrying
+     * 
+     * @param response the Response containing a Retry-After header
+     * @param backoff the value to use if the header is missing or not in seconds
+     * @return the time to wait in ms
+     */
+    private static long retryAfter(@NonNull Response response, long backoff) {
+        String value = response.header(RETRY_AFTER);
+        if (value != null) {
+            try {
+                return Math.min(MAX_RETRY_AFTER, TimeUnit.SECONDS.toMillis(Long.parseLong(value.trim())));
+            } catch (NumberFormatException e) {
+                // HTTP date, use our own backoff
+            }
+        }
+        return backoff;
+    }
+
+    /**
+     * Queue a tile for writing, writing the queue in one transaction when it is large enough
+     * 
+     * @param tile the tile
+     * @param data the tile contents
+     */
+    private void write(@NonNull MapTile tile, @NonNull byte[] data) {
+        synchronized (pendingWrites) {
+            pendingWrites.add(new Object[] { tile, data });
+            if (pendingWrites.size() >= WRITE_BATCH_SIZE) {
+                flushWrites();
+            }
+        }
+    }
+
+    /**
+     * Write all queued tiles to the database
+     */
+    private void flushWrites() {
+        synchronized (pendingWrites) {
+            if (pendingWrites.isEmpty() || !db.isOpen()) {
+                return;
+            }
+            db.beginTransaction();
+            try {
+                for (Object[] pending : pendingWrites) {
+                    MapTile tile = (MapTile) pending[0];
+                    insert.bindLong(1, tile.zoomLevel);
+                    insert.bindLong(2, tile.x);
+                    insert.bindLong(3, tmsY(tile.zoomLevel, tile.y));
+                    insert.bindBlob(4, (byte[]) pending[1]);
+                    insert.executeInsert();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            pendingWrites.clear();
+        }
+    }
+
+    /**
+     * Inform the listener about our progress, at most every PROGRESS_INTERVAL ms unless forced
+     * 
+     * @param force if true always call the listener
+     */
+    private void progress(boolean force) {
+        if (listener == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (!force && now - lastProgress < PROGRESS_INTERVAL) {
+                return;
+            }
+            lastProgress = now;
+        }
+        long elapsed = Math.max(1, now - start);
+        listener.onProgress(done.get(), total, failed.get(), bytes.get(), downloaded.get() * 1000d / elapsed);
+    }
+
+    /**
+     * Simple rate limiter spacing requests evenly
+     */
+    static class RateLimiter {
+        private final long interval;
+        private long       next = 0;
+
+        /**
+         * Construct a new limiter
+         * 
+         * @param requestsPerSecond the maximum number of requests per second, 0 or less for no limit
+         */
+        RateLimiter(double requestsPerSecond) {
+            interval = requestsPerSecond > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond) : 0;
+        }
+
+        /**
+         * Wait until the next request is allowed
+         * 
+         * @throws InterruptedException if interrupted while waiting
+         */
+        void acquire() throws InterruptedException {
+            long wait;
+            synchronized (this) {
+                long now = System.nanoTime();
+                long slot = Math.max(now, next);
+                next = slot + interval;
+                wait = slot - now;
+            }
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+
+        /**
+         * Don't allow any requests for a while
+         * 
+         * @param millis the time to wait in ms
+         */
+        synchronized void pause(long millis) {
+            next = Math.max(next, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+    }
+}
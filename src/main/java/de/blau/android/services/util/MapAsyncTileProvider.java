@@ -1,13 +1,22 @@
 package de.blau.android.services.util;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import android.os.RemoteException;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
 import de.blau.android.services.IMapTileProviderCallback;
 
 /**
@@ -22,41 +31,256 @@ import de.blau.android.services.IMapTileProviderCallback;
  */
 public abstract class MapAsyncTileProvider {
 
+    private static final String DEBUG_TAG = "MapAsyncTileProvider";
+
     public static final int IOERR        = 1;
     public static final int DOESNOTEXIST = 2;
     public static final int NONETWORK    = 3;
     public static final int RETRY        = 4;
+    public static final int CANCELLED    = 5;
 
     public static final int ALLZOOMS = -1;
 
+    /**
+     * Penalty, in tiles distance from the viewport centre, for every zoom level a tile is away from the viewport zoom
+     */
+    private static final double ZOOM_PENALTY = 4d;
+
+    /**
+     * Penalty for requests that nobody is waiting for
+     */
+    private static final double BACKGROUND_PENALTY = 1E6d;
+
+    /**
+     * Penalty for requests for tiles that we expect to be needed soon, these run after everything that is currently
+     * visible
+     */
+    private static final double PREFETCH_PENALTY = 1E3d;
+
     ThreadPoolExecutor                  mThreadPool;
-    private final Map<String, Runnable> mPending = Collections.synchronizedMap(new HashMap<String, Runnable>());
+    private final Map<String, Runnable> mPending  = Collections.synchronizedMap(new HashMap<String, Runnable>());
+    private final Map<String, Viewport> viewports = new ConcurrentHashMap<>();
+    private long                        sequence  = 0;
+
+    /**
+     * The tiles currently needed for display for a renderer
+     */
+    private static class Viewport {
+        final int zoom;
+        final int left;
+        final int top;
+        final int right;
+        final int bottom;
+
+        /**
+         * Construct a new Viewport
+         * 
+         * @param zoom the zoom level
+         * @param left left most tile x
+         * @param top top most tile y
+         * @param right right most tile x
+         * @param bottom bottom most tile y
+         */
+        Viewport(int zoom, int left, int top, int right, int bottom) {
+            this.zoom = zoom;
+            this.left = left;
+            this.top = top;
+            this.right = right;
+            this.bottom = bottom;
+        }
+
+        /**
+         * Check if this wraps around the antimeridian, in which case tile numbers can't simply be compared
+         * 
+         * @return true if the viewport wraps
+         */
+        boolean wraps() {
+            return left < 0 || right >= (1 << zoom);
+        }
+
+        /**
+         * Check if a tile is, at least partially, in the viewport or directly next to it
+         * 
+         * @param tile the MapTile
+         * @return true if the tile is needed
+         */
+        boolean contains(@NonNull MapTile tile) {
+            if (wraps()) {
+                return true;
+            }
+            int minX;
+            int maxX;
+            int minY;
+            int maxY;
+            if (tile.zoomLevel <= zoom) {
+                int shift = zoom - tile.zoomLevel;
+                minX = tile.x << shift;
+                maxX = ((tile.x + 1) << shift) - 1;
+                minY = tile.y << shift;
+                maxY = ((tile.y + 1) << shift) - 1;
+            } else {
+                int shift = tile.zoomLevel - zoom;
+                minX = tile.x >> shift;
+                maxX = minX;
+                minY = tile.y >> shift;
+                maxY = minY;
+            }
+            return maxX >= left - 1 && minX <= right + 1 && maxY >= top - 1 && minY <= bottom + 1;
+        }
+
+        /**
+         * Calculate the priority of a tile, lower values should be loaded first
+         * 
+         * @param tile the MapTile
+         * @return the priority
+         */
+        double priority(@NonNull MapTile tile) {
+            double scale = Math.pow(2d, (double) zoom - tile.zoomLevel);
+            double dx = (tile.x + 0.5d) * scale - (left + right + 1) / 2d;
+            double dy = (tile.y + 0.5d) * scale - (top + bottom + 1) / 2d;
+            return Math.sqrt(dx * dx + dy * dy) + Math.abs(zoom - tile.zoomLevel) * ZOOM_PENALTY;
+        }
+    }
+
+    /**
+     * Create an executor that runs TileLoaders with the lowest priority value first
+     * 
+     * @param threads the number of threads
+     * @return a ThreadPoolExecutor
+     */
+    @NonNull
+    static ThreadPoolExecutor createThreadPool(int threads) {
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>());
+    }
 
     public synchronized void loadMapTileAsync(final MapTile aTile, final IMapTileProviderCallback aCallback) {
-        final String tileId = aTile.toId();
+        loadMapTileAsync(aTile, aCallback, false);
+    }
+
+    /**
+     * Queue a request for a tile
+     * 
+     * If a prefetch request for the tile is already pending and this isn't one, it is promoted to a normal request
+     * 
+     * @param aTile the tile
+     * @param aCallback the callback to call when finished
+     * @param prefetch true if nobody is waiting for the tile yet
+     */
+    synchronized void loadMapTileAsync(@NonNull final MapTile aTile, @NonNull final IMapTileProviderCallback aCallback, boolean prefetch) {
+        if (!mPending.containsKey(aTile.toId())) {
+            TileLoader loader = getTileLoader(aTile, aCallback);
+            loader.prefetch = prefetch;
+            execute(loader);
+        } else if (!prefetch) {
+            promote(aTile);
+        }
+    }
+
+    /**
+     * Set the tiles that we expect to be needed soon for a renderer
+     * 
+     * Waiting prefetch requests for tiles that are not in tiles are cancelled, new requests are queued with a lower
+     * priority than the tiles that are currently needed.
+     * 
+     * @param rendererId the renderer
+     * @param tiles the tiles to prefetch
+     * @param aCallback the callback to call when finished, if null only cancel requests
+     */
+    public synchronized void prefetch(@NonNull String rendererId, @NonNull List<MapTile> tiles, @Nullable IMapTileProviderCallback aCallback) {
+        Set<String> ids = new HashSet<>();
+        for (MapTile tile : tiles) {
+            ids.add(tile.toId());
+        }
+        for (Runnable r : mThreadPool.getQueue().toArray(new Runnable[0])) {
+            TileLoader loader = (TileLoader) r;
+            if (loader.prefetch && rendererId.equals(loader.mTile.rendererID) && !ids.contains(loader.mTile.toId()) && mThreadPool.remove(r)) {
+                cancel(loader);
+            }
+        }
+        if (aCallback != null) {
+            for (MapTile tile : tiles) {
+                loadMapTileAsync(tile, aCallback, true);
+            }
+        }
+    }
+
+    /**
+     * Turn a pending prefetch request for a tile in to a normal one
+     * 
+     * @param tile the tile
+     */
+    synchronized void promote(@NonNull MapTile tile) {
+        TileLoader loader = (TileLoader) mPending.get(tile.toId());
+        if (loader != null && loader.prefetch) {
+            loader.prefetch = false;
+            if (mThreadPool.remove(loader)) { // still waiting, re-queue with the new priority
+                Viewport viewport = viewports.get(tile.rendererID);
+                loader.priority = priority(viewport, loader);
+                mThreadPool.execute(loader);
+            }
+        }
+    }
+
+    /**
+     * Queue a TileLoader unless a request for the tile is already pending
+     * 
+     * @param loader the TileLoader
+     */
+    synchronized void execute(@NonNull TileLoader loader) {
+        final String tileId = loader.mTile.toId();
 
         if (mPending.containsKey(tileId)) {
             return;
         }
+        loader.sequence = sequence++;
+        Viewport viewport = viewports.get(loader.mTile.rendererID);
+        loader.priority = priority(viewport, loader);
+        mPending.put(tileId, loader);
+        mThreadPool.execute(loader);
+    }
 
-        Runnable r = getTileLoader(aTile, aCallback);
-        mPending.put(tileId, r);
-        mThreadPool.execute(r);
+    /**
+     * Calculate the priority of a request, prefetch requests run after the tiles that are currently needed and
+     * background requests are only run when nothing else is waiting
+     * 
+     * @param viewport the current Viewport or null if none has been set yet
+     * @param loader the TileLoader for the request
+     * @return the priority, lower values run first
+     */
+    private static double priority(@Nullable Viewport viewport, @NonNull TileLoader loader) {
+        return (viewport != null ? viewport.priority(loader.mTile) : 0) + (loader.background ? BACKGROUND_PENALTY : 0) + (loader.prefetch ? PREFETCH_PENALTY : 0);
     }
 
     /**
-     * Remove a specific request from the Executors queue
+     * Set the tiles that are currently needed for a renderer
      * 
-     * @param tileId id of the request
-     * @return true if successful
+     * Waiting requests are re-ordered by distance from the centre of the viewport and zoom level, requests for tiles
+     * that are no longer needed are cancelled. Prefetch requests are only cancelled by a new prediction.
+     * 
+     * @param rendererId the renderer
+     * @param zoom the current zoom level
+     * @param left left most tile x
+     * @param top top most tile y
+     * @param right right most tile x
+     * @param bottom bottom most tile y
      */
-    private boolean removeRequest(final String tileId) {
-        Runnable r = mPending.get(tileId);
-        if (mThreadPool.remove(r)) {
-            mPending.remove(tileId);
-            return true;
+    public synchronized void setViewport(@NonNull String rendererId, int zoom, int left, int top, int right, int bottom) {
+        Viewport viewport = new Viewport(zoom, left, top, right, bottom);
+        viewports.put(rendererId, viewport);
+        List<Runnable> queued = new ArrayList<>();
+        BlockingQueue<Runnable> queue = mThreadPool.getQueue();
+        queue.drainTo(queued);
+        for (Runnable r : queued) {
+            TileLoader loader = (TileLoader) r;
+            if (rendererId.equals(loader.mTile.rendererID)) {
+                if (!loader.prefetch && !viewport.contains(loader.mTile)) {
+                    cancel(loader);
+                    continue;
+                }
+                loader.priority = priority(viewport, loader);
+            }
+            queue.add(r);
         }
-        return false;
     }
 
     /**
@@ -66,31 +290,37 @@ public abstract class MapAsyncTileProvider {
      * @param zoom the zoom level we want to remove tiles for, if ALLZOOMS remove all requests for the renderer
      */
     public void flushQueue(String rendererId, int zoom) {
-        Set<Entry<String, Runnable>> entries;
-        synchronized (mPending) {
-            entries = new HashSet<>(mPending.entrySet());
-        }
-        if (zoom != ALLZOOMS) {
-            String id = Integer.toString(zoom) + rendererId; // see MapTile.toId()
-            for (Entry<String, Runnable> e : entries) {
-                if (e.getKey().startsWith(id)) {
-                    removeRequest(e.getKey());
-                }
-            }
-        } else {
-            for (Entry<String, Runnable> e : entries) {
-                if (e.getKey().contains(rendererId)) {
-                    removeRequest(e.getKey());
-                }
+        for (Runnable r : mThreadPool.getQueue().toArray(new Runnable[0])) {
+            MapTile tile = ((TileLoader) r).mTile;
+            if (rendererId.equals(tile.rendererID) && (zoom == ALLZOOMS || zoom == tile.zoomLevel) && mThreadPool.remove(r)) {
+                cancel((TileLoader) r);
             }
         }
     }
 
-    protected abstract Runnable getTileLoader(final MapTile aTile, final IMapTileProviderCallback aCallback);
+    /**
+     * Drop a request that is no longer in the Executors queue and tell the requester
+     * 
+     * @param loader the TileLoader for the request
+     */
+    private void cancel(@NonNull TileLoader loader) {
+        mPending.remove(loader.mTile.toId());
+        try {
+            loader.mCallback.mapTileFailed(loader.mTile.rendererID, loader.mTile.zoomLevel, loader.mTile.x, loader.mTile.y, CANCELLED);
+        } catch (RemoteException e) {
+            Log.e(DEBUG_TAG, "cancel got " + e.getMessage());
+        }
+    }
+
+    protected abstract TileLoader getTileLoader(final MapTile aTile, final IMapTileProviderCallback aCallback);
 
-    abstract class TileLoader implements Runnable {
+    abstract class TileLoader implements Runnable, Comparable<TileLoader> {
         final MapTile                  mTile;
         final IMapTileProviderCallback mCallback;
+        double                         priority   = 0;
+        long                           sequence   = 0;
+        boolean                        background = false;
+        boolean                        prefetch   = false;
 
         public TileLoader(final MapTile aTile, final IMapTileProviderCallback aCallback) {
             mTile = aTile;
@@ -100,5 +330,11 @@ public abstract class MapAsyncTileProvider {
         void finished() {
             mPending.remove(mTile.toId());
         }
+
+        @Override
+        public int compareTo(@NonNull TileLoader other) {
+            int result = Double.compare(priority, other.priority);
+            return result != 0 ? result : (sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1));
+        }
     }
 }
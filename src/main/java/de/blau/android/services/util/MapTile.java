@@ -1,5 +1,8 @@
 package de.blau.android.services.util;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * This class merely holds the coordinates embedded in the url of a tile.<br/>
  * This class was taken from OpenStreetMapViewer (original package org.andnav.osm) in 2010-06 by Marcus Wolschon to be
@@ -17,11 +20,29 @@ public class MapTile {
 
     public int zoomLevel;
 
-    private String id = null;
+    private String id            = null;
+    private long   key           = NO_KEY;
+    private int    rendererIndex = -1;
 
     public static final int MAPTILE_SUCCESS_ID = 0;
     public static final int MAPTILE_FAIL_ID    = MAPTILE_SUCCESS_ID + 1;
 
+    /**
+     * Layout of the keys generated by toKey, sign bit clear, 10 bits renderer index, 5 bits zoom and 24 bits each for x
+     * and y. Tiles with a zoom larger than MAX_KEY_ZOOM get a hash of their id with the sign bit set instead.
+     */
+    public static final int   MAX_KEY_ZOOM   = 24;
+    private static final int  MAX_RENDERERS  = 1 << 10;
+    private static final int  RENDERER_SHIFT = 53;
+    private static final int  ZOOM_SHIFT     = 48;
+    private static final int  X_SHIFT        = 24;
+    private static final long COORD_MASK     = 0xFFFFFFL;
+    private static final long NO_KEY         = -1L;     // never returned by hashKey
+    private static final long FNV_OFFSET     = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME      = 0x100000001b3L;
+
+    private static final Map<String, Integer> rendererIndices = new HashMap<>();
+
     public MapTile(String rendererID, int zoomLevel, int tileX, int tileY) {
         this.rendererID = rendererID;
         this.zoomLevel = zoomLevel;
@@ -55,10 +76,64 @@ public class MapTile {
         return id;
     }
 
+    /**
+     * Generate an unique key for this tile, without allocating any objects for zooms up to MAX_KEY_ZOOM
+     * 
+     * @return the key, generate new if not in cache
+     */
+    public long toKey() {
+        if (key == NO_KEY) {
+            if (zoomLevel > MAX_KEY_ZOOM) {
+                key = hashKey(toId());
+                return key;
+            }
+            if (rendererIndex < 0) {
+                rendererIndex = getRendererIndex(rendererID);
+            }
+            key = ((long) rendererIndex << RENDERER_SHIFT) | ((long) zoomLevel << ZOOM_SHIFT) | ((x & COORD_MASK) << X_SHIFT) | (y & COORD_MASK);
+        }
+        return key;
+    }
+
+    /**
+     * Calculate a 64 bit FNV-1a hash of the id with the sign bit set, used for tiles that don't fit in to a packed key
+     * 
+     * @param id the id of the tile
+     * @return a negative key that is not NO_KEY
+     */
+    static long hashKey(String id) {
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < id.length(); i++) {
+            hash ^= id.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        hash |= Long.MIN_VALUE;
+        return hash == NO_KEY ? Long.MIN_VALUE : hash;
+    }
+
+    /**
+     * Get a small integer that identifies a renderer for the current run of the app
+     * 
+     * @param rendererID the id of the renderer
+     * @return the index
+     */
+    private static synchronized int getRendererIndex(String rendererID) {
+        Integer index = rendererIndices.get(rendererID);
+        if (index == null) {
+            if (rendererIndices.size() >= MAX_RENDERERS) {
+                throw new IllegalStateException("Too many renderers");
+            }
+            index = rendererIndices.size();
+            rendererIndices.put(rendererID, index);
+        }
+        return index;
+    }
+
     /**
      * Reset anything important so that the instance can be reused
      */
     public void reinit() {
         id = null;
+        key = NO_KEY;
     }
 }
@@ -9,16 +9,16 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
 import android.graphics.BitmapFactory;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 import de.blau.android.App;
 import de.blau.android.prefs.Preferences;
@@ -76,7 +76,7 @@ public class MapTileDownloader extends MapAsyncTileProvider {
         mCtx = ctx;
         mMapTileFSProvider = aMapTileFSProvider;
         networkStatus = new NetworkStatus(ctx);
-        mThreadPool = (ThreadPoolExecutor) Executors.newFixedThreadPool((new Preferences(ctx)).getMaxTileDownloadThreads());
+        mThreadPool = createThreadPool((new Preferences(ctx)).getMaxTileDownloadThreads());
         client = App.getHttpClient().newBuilder().connectTimeout(TIMEOUT, TimeUnit.MILLISECONDS).readTimeout(TIMEOUT, TimeUnit.MILLISECONDS).build();
     }
 
@@ -89,10 +89,47 @@ public class MapTileDownloader extends MapAsyncTileProvider {
     // ===========================================================
 
     @Override
-    protected Runnable getTileLoader(MapTile aTile, IMapTileProviderCallback aCallback) {
-        return new TileLoader(aTile, aCallback);
+    protected MapAsyncTileProvider.TileLoader getTileLoader(MapTile aTile, IMapTileProviderCallback aCallback) {
+        return new TileLoader(aTile, aCallback, null);
     }
 
+    /**
+     * Check in the background if a cached tile is still current, downloading it again if it isn't
+     * 
+     * The tile has already been displayed so nobody is waiting for the result.
+     * 
+     * @param aTile the tile
+     * @param validators the cache validators of the cached tile
+     */
+    public void revalidateMapTileAsync(@NonNull MapTile aTile, @NonNull CacheValidators validators) {
+        if (!networkStatus.isConnected()) {
+            return;
+        }
+        TileLoader loader = new TileLoader(aTile, NOOP_CALLBACK, validators);
+        loader.background = true;
+        execute(loader);
+    }
+
+    /**
+     * Callback for background requests
+     */
+    private static final IMapTileProviderCallback NOOP_CALLBACK = new IMapTileProviderCallback.Stub() {
+        @Override
+        public void mapTileLoaded(String rendererID, int zoomLevel, int tileX, int tileY, byte[] aImage) {
+            // nobody is waiting for this
+        }
+
+        @Override
+        public void mapTileLoadedFromDescriptor(String rendererID, int zoomLevel, int tileX, int tileY, ParcelFileDescriptor aImage) {
+            // nobody is waiting for this
+        }
+
+        @Override
+        public void mapTileFailed(String rendererID, int zoomLevel, int tileX, int tileY, int reason) {
+            // nobody is waiting for this
+        }
+    };
+
     // ===========================================================
     // Methods org.andnav.osm.services
     // ===========================================================
@@ -117,14 +154,18 @@ public class MapTileDownloader extends MapAsyncTileProvider {
 
         private static final String TILE_NOT_AVAILABLE = "tile not available";
 
+        private final CacheValidators validators;
+
         /**
          * Construct a new TileLoader
          * 
          * @param aTile the tile to download
          * @param aCallback the callback to call when finished
+         * @param validators validators of a cached copy of the tile for a conditional request or null
          */
-        public TileLoader(@NonNull final MapTile aTile, @NonNull final IMapTileProviderCallback aCallback) {
+        public TileLoader(@NonNull final MapTile aTile, @NonNull final IMapTileProviderCallback aCallback, @Nullable CacheValidators validators) {
             super(aTile, aCallback);
+            this.validators = validators;
         }
 
         @Override
@@ -155,9 +196,19 @@ public class MapTileDownloader extends MapAsyncTileProvider {
                             Log.d(DEBUGTAG, "Downloading Maptile from url: " + tileURLString);
                         }
 
-                        Request request = new Request.Builder().url(tileURLString).build();
-                        Call tileCall = client.newCall(request);
+                        Request.Builder builder = new Request.Builder().url(tileURLString);
+                        if (validators != null) {
+                            validators.addConditions(builder);
+                        }
+                        Call tileCall = client.newCall(builder.build());
                         tileCallResponse = tileCall.execute();
+                        if (validators != null && tileCallResponse.code() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                            if (Log.isLoggable(DEBUGTAG, Log.DEBUG)) {
+                                Log.d(DEBUGTAG, "Tile not modified " + mTile);
+                            }
+                            MapTileDownloader.this.mMapTileFSProvider.revalidated(mTile, validators.update(tileCallResponse, System.currentTimeMillis()));
+                            return;
+                        }
                         if (tileCallResponse.isSuccessful()) {
                             responseBody = tileCallResponse.body();
                             inputStream = responseBody.byteStream();
@@ -205,7 +256,8 @@ public class MapTileDownloader extends MapAsyncTileProvider {
                             data = dataStream.toByteArray();
                         }
                         mCallback.mapTileLoaded(mTile.rendererID, mTile.zoomLevel, mTile.x, mTile.y, data);
-                        MapTileDownloader.this.mMapTileFSProvider.saveFile(mTile, data);
+                        MapTileDownloader.this.mMapTileFSProvider.saveFile(mTile, data,
+                                CacheValidators.fromResponse(tileCallResponse, System.currentTimeMillis()));
                     }
                 } catch (IOException ioe) {
                     try {
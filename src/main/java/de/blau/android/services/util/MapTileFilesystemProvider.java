@@ -3,9 +3,8 @@ package de.blau.android.services.util;
 import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
 
 import android.app.NotificationManager;
 import android.content.Context;
@@ -13,6 +12,7 @@ import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -54,7 +54,6 @@ public class MapTileFilesystemProvider extends MapAsyncTileProvider {
     private final Context                 mCtx;
     private final MapTileProviderDataBase mDatabase;
     private final int                     mMaxFSCacheByteSize;
-    private int                           mCurrentCacheByteSize;
     private boolean                       errorDisplayed = false;
 
     private final Map<String, MBTileProviderDataBase> mbTileDatabases = new HashMap<>();
@@ -76,14 +75,13 @@ public class MapTileFilesystemProvider extends MapAsyncTileProvider {
     public MapTileFilesystemProvider(@NonNull final Context ctx, @NonNull File mountPoint, final int aMaxFSCacheByteSize) {
         mCtx = ctx;
         mMaxFSCacheByteSize = aMaxFSCacheByteSize;
-        mDatabase = new MapTileProviderDataBase(new CustomDatabaseContext(ctx, mountPoint.getAbsolutePath()));
-        mCurrentCacheByteSize = mDatabase.getCurrentFSCacheByteSize();
+        mDatabase = new MapTileProviderDataBase(new CustomDatabaseContext(ctx, mountPoint.getAbsolutePath()), aMaxFSCacheByteSize);
         Preferences prefs = new Preferences(ctx);
         int maxThreads = prefs.getMaxTileDownloadThreads();
-        mThreadPool = (ThreadPoolExecutor) Executors.newFixedThreadPool(maxThreads);
+        mThreadPool = createThreadPool(maxThreads);
 
         mTileDownloader = new MapTileDownloader(ctx, this);
-        Log.d(DEBUG_TAG, "Currently used cache-size is: " + mCurrentCacheByteSize + " of " + mMaxFSCacheByteSize + " Bytes");
+        Log.d(DEBUG_TAG, "Currently used cache-size is: " + getCurrentCacheByteSize() + " of " + mMaxFSCacheByteSize + " Bytes");
     }
 
     // ===========================================================
@@ -96,7 +94,7 @@ public class MapTileFilesystemProvider extends MapAsyncTileProvider {
      * @return size in bytes
      */
     public int getCurrentCacheByteSize() {
-        return mCurrentCacheByteSize;
+        return mDatabase.getCurrentFSCacheByteSize();
     }
 
     // ===========================================================
@@ -104,7 +102,7 @@ public class MapTileFilesystemProvider extends MapAsyncTileProvider {
     // ===========================================================
 
     @Override
-    protected Runnable getTileLoader(MapTile aTile, IMapTileProviderCallback aCallback) {
+    protected MapAsyncTileProvider.TileLoader getTileLoader(MapTile aTile, IMapTileProviderCallback aCallback) {
         return new TileLoader(aTile, aCallback);
     }
 
@@ -113,38 +111,43 @@ public class MapTileFilesystemProvider extends MapAsyncTileProvider {
     // ===========================================================
 
     /**
-     * Save the image data for a tile to the database, making space if necessary
+     * Queue the image data for a tile for saving to the database, the database will make space if necessary
      * 
      * @param tile tile meta-data
      * @param data the tile image data
-     * @throws IOException
+     * @throws IOException if the database has been closed
      */
     public void saveFile(final MapTile tile, final byte[] data) throws IOException {
-        try {
-            final int bytesGrown = mDatabase.addTile(tile, data);
-            mCurrentCacheByteSize += bytesGrown;
+        saveFile(tile, data, null);
+    }
 
-            if (Log.isLoggable(DEBUG_TAG, Log.DEBUG)) {
-                Log.d(DEBUG_TAG, "FSCache Size is now: " + mCurrentCacheByteSize + " Bytes");
-            }
-            /* If Cache is full... */
-            if (mCurrentCacheByteSize > mMaxFSCacheByteSize) {
-                if (Log.isLoggable(DEBUG_TAG, Log.DEBUG)) {
-                    Log.d(DEBUG_TAG, "Freeing FS cache...");
-                }
-                // Free 5% of cache
-                mCurrentCacheByteSize -= mDatabase.deleteOldest((int) (mMaxFSCacheByteSize * 0.05f));
-            }
-            if (Log.isLoggable(DEBUG_TAG, Log.DEBUG)) {
-                Log.d(DEBUG_TAG, "Tile saved");
-            }
-        } catch (IllegalStateException e) {
-            if (Log.isLoggable(DEBUG_TAG, Log.DEBUG)) {
-                Log.d(DEBUG_TAG, "Tile saving failed", e);
-            }
+    /**
+     * Queue the image data for a tile and its cache validators for saving to the database, the database will make
+     * space if necessary
+     * 
+     * @param tile tile meta-data
+     * @param data the tile image data
+     * @param validators cache validators or null
+     * @throws IOException if the database has been closed
+     */
+    public void saveFile(@NonNull final MapTile tile, @NonNull final byte[] data, @Nullable CacheValidators validators) throws IOException {
+        mDatabase.addTile(tile, data, validators);
+        if (Log.isLoggable(DEBUG_TAG, Log.DEBUG)) {
+            Log.d(DEBUG_TAG, "Tile queued for saving");
         }
     }
 
+    /**
+     * Record that a tile is still current
+     * 
+     * @param tile tile meta-data
+     * @param validators the new cache validators
+     * @throws IOException if the database has been closed
+     */
+    public void revalidated(@NonNull final MapTile tile, @NonNull CacheValidators validators) throws IOException {
+        mDatabase.revalidated(tile, validators);
+    }
+
     /**
      * Remove all tiles from cache
      */
@@ -161,7 +164,6 @@ public class MapTileFilesystemProvider extends MapAsyncTileProvider {
         synchronized (this) {
             mDatabase.deleteOldest(Integer.MAX_VALUE); // Delete all
         }
-        mCurrentCacheByteSize = mDatabase.getCurrentFSCacheByteSize();
     }
 
     /**
@@ -181,11 +183,30 @@ public class MapTileFilesystemProvider extends MapAsyncTileProvider {
 
     @Override
     public void flushQueue(String rendererId, int zoom) {
-        // don't bother flushing our queue
-        // just do it for downloads
+        super.flushQueue(rendererId, zoom);
         mTileDownloader.flushQueue(rendererId, zoom);
     }
 
+    @Override
+    public synchronized void setViewport(@NonNull String rendererId, int zoom, int left, int top, int right, int bottom) {
+        super.setViewport(rendererId, zoom, left, top, right, bottom);
+        // downloads have their own queue so that tiles in the database are never waiting on them
+        mTileDownloader.setViewport(rendererId, zoom, left, top, right, bottom);
+    }
+
+    @Override
+    public synchronized void prefetch(@NonNull String rendererId, @NonNull List<MapTile> tiles, @Nullable IMapTileProviderCallback aCallback) {
+        super.prefetch(rendererId, tiles, aCallback);
+        // tiles not found in the database are passed on to the downloader by our loaders
+        mTileDownloader.prefetch(rendererId, tiles, null);
+    }
+
+    @Override
+    synchronized void promote(@NonNull MapTile tile) {
+        super.promote(tile);
+        mTileDownloader.promote(tile);
+    }
+
     // ===========================================================
     // Inner and Anonymous Classes
     // ===========================================================
@@ -203,6 +224,8 @@ public class MapTileFilesystemProvider extends MapAsyncTileProvider {
              * until the download attempt is finished
              */
             boolean download = false;
+            // reading a blob as a file descriptor requires Honeycomb, older devices get a copy of the data
+            final boolean descriptors = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
             try {
                 TileLayerServer renderer = TileLayerServer.get(mCtx, mTile.rendererID, false);
                 if (renderer == null || !renderer.isMetadataLoaded()) {
@@ -225,26 +248,43 @@ public class MapTileFilesystemProvider extends MapAsyncTileProvider {
                             }
                         }
                     }
-                    byte[] data = mbTileDatabase.getTile(mTile);
-                    if (data == null) {
+                    byte[] data = descriptors ? null : mbTileDatabase.getTile(mTile);
+                    ParcelFileDescriptor pfd = descriptors ? mbTileDatabase.getTileDescriptor(mTile) : null;
+                    if (data == null && pfd == null) {
                         if (Log.isLoggable(DEBUG_TAG, Log.DEBUG)) {
                             Log.d(DEBUG_TAG, "FS failed, request for download " + mTile + " " + mTile.toId());
                         }
                         mCallback.mapTileFailed(mTile.rendererID, mTile.zoomLevel, mTile.x, mTile.y, DOESNOTEXIST);
-                    } else { // success!
+                    } else if (pfd != null) { // success!
+                        sendDescriptor(pfd);
+                    } else {
                         mCallback.mapTileLoaded(mTile.rendererID, mTile.zoomLevel, mTile.x, mTile.y, data);
                     }
                 } else {
                     try {
-                        byte[] data = MapTileFilesystemProvider.this.mDatabase.getTile(mTile);
-                        if (data == null) {
+                        // tiles that haven't been written yet are only available in memory
+                        byte[] data = MapTileFilesystemProvider.this.mDatabase.getPendingTile(mTile);
+                        if (data == null && !descriptors) {
+                            data = MapTileFilesystemProvider.this.mDatabase.getTile(mTile);
+                        }
+                        ParcelFileDescriptor pfd = data == null && descriptors ? MapTileFilesystemProvider.this.mDatabase.getTileDescriptor(mTile) : null;
+                        if (data == null && pfd == null) {
                             if (Log.isLoggable(DEBUG_TAG, Log.DEBUG)) {
                                 Log.d(DEBUG_TAG, "FS failed, request for download " + mTile + " " + mTile.toId());
                             }
                             download = true;
-                            mTileDownloader.loadMapTileAsync(mTile, passedOnCallback);
+                            mTileDownloader.loadMapTileAsync(mTile, passedOnCallback, prefetch);
                         } else { // success!
-                            mCallback.mapTileLoaded(mTile.rendererID, mTile.zoomLevel, mTile.x, mTile.y, data);
+                            if (pfd != null) {
+                                sendDescriptor(pfd);
+                            } else {
+                                mCallback.mapTileLoaded(mTile.rendererID, mTile.zoomLevel, mTile.x, mTile.y, data);
+                            }
+                            // stale tiles are displayed and then revalidated in the background
+                            CacheValidators validators = MapTileFilesystemProvider.this.mDatabase.getValidators(mTile);
+                            if (validators != null && validators.isStale(System.currentTimeMillis())) {
+                                mTileDownloader.revalidateMapTileAsync(mTile, validators);
+                            }
                         }
                     } catch (InvalidTileException itex) {
                         mCallback.mapTileFailed(mTile.rendererID, mTile.zoomLevel, mTile.x, mTile.y, DOESNOTEXIST);
@@ -286,6 +326,25 @@ public class MapTileFilesystemProvider extends MapAsyncTileProvider {
             }
         }
 
+        /**
+         * Pass a tile to the callback as a file descriptor so that the contents don't need to be copied in to the
+         * Binder transaction
+         * 
+         * @param pfd the ParcelFileDescriptor for the tile contents, will be closed
+         * @throws RemoteException if the callback failed
+         */
+        private void sendDescriptor(@NonNull ParcelFileDescriptor pfd) throws RemoteException {
+            try {
+                mCallback.mapTileLoadedFromDescriptor(mTile.rendererID, mTile.zoomLevel, mTile.x, mTile.y, pfd);
+            } finally {
+                try {
+                    pfd.close();
+                } catch (IOException e) {
+                    Log.e(DEBUG_TAG, "Closing descriptor failed " + e.getMessage());
+                }
+            }
+        }
+
         IMapTileProviderCallback passedOnCallback = new IMapTileProviderCallback() {
 
             @Override
@@ -299,6 +358,13 @@ public class MapTileFilesystemProvider extends MapAsyncTileProvider {
                 finished();
             }
 
+            @Override
+            public void mapTileLoadedFromDescriptor(String rendererID, int zoomLevel, int tileX, int tileY, ParcelFileDescriptor aImage)
+                    throws RemoteException {
+                mCallback.mapTileLoadedFromDescriptor(rendererID, zoomLevel, tileX, tileY, aImage);
+                finished();
+            }
+
             @Override
             public void mapTileFailed(String rendererID, int zoomLevel, int tileX, int tileY, int reason) throws RemoteException {
                 mCallback.mapTileFailed(rendererID, zoomLevel, tileX, tileY, reason);
@@ -4,13 +4,20 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
-import android.content.ContentValues;
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.SQLException;
-import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDiskIOException;
 import android.database.sqlite.SQLiteDoneException;
@@ -33,6 +40,8 @@ import de.blau.android.views.util.MapViewConstants;
 /**
  * The OpenStreetMapTileProviderDataBase contains a table with info for the available renderers and one for the
  * available tiles in the file system cache.<br/>
+ * Tiles and usage updates are queued and written in batched transactions by a background thread, the size of the
+ * cache is maintained in memory and eviction uses an index on the tile timestamps.<br/>
  * This class was taken from OpenStreetMapViewer (original package org.andnav.osm) in 2010 by Marcus Wolschon to be
  * integrated into the de.blau.androin OSMEditor.
  * 
@@ -47,7 +56,13 @@ public class MapTileProviderDataBase implements MapViewConstants {
     private static final String DEBUG_TAG = "MapTilePro...DataBase";
 
     private static final String DATABASE_NAME    = "osmaptilefscache_db";
-    private static final int    DATABASE_VERSION = 8;
+    private static final int    DATABASE_VERSION = 10;
+
+    private static final int   WRITE_BATCH_SIZE    = 32;   // flush immediately when this many tiles are queued
+    private static final long  WRITE_DELAY         = 500;  // ms to wait for further writes before flushing
+    private static final long  CLOSE_TIMEOUT       = 5000; // ms to wait for the writer when closing
+    private static final int   EVICTION_BATCH_SIZE = 100;
+    private static final float EVICTION_FACTOR     = 0.05f;
 
     private static final String T_FSCACHE             = "tiles";
     private static final String T_FSCACHE_RENDERER_ID = "rendererID";
@@ -59,6 +74,10 @@ public class MapTileProviderDataBase implements MapViewConstants {
     private static final String T_FSCACHE_USAGECOUNT = "countused";
     private static final String T_FSCACHE_FILESIZE   = "filesize";
     private static final String T_FSCACHE_DATA       = "tile_data";
+    // cache validators
+    private static final String T_FSCACHE_ETAG          = "etag";
+    private static final String T_FSCACHE_LAST_MODIFIED = "last_modified";
+    private static final String T_FSCACHE_EXPIRES       = "expires";
 
     private static final String T_RENDERER               = "t_renderer";
     private static final String T_RENDERER_ID            = "id";
@@ -71,9 +90,21 @@ public class MapTileProviderDataBase implements MapViewConstants {
     private static final String T_FSCACHE_CREATE_COMMAND = "CREATE TABLE IF NOT EXISTS " + T_FSCACHE + " (" + T_FSCACHE_RENDERER_ID + " VARCHAR(255) NOT NULL,"
             + T_FSCACHE_ZOOM_LEVEL + " INTEGER NOT NULL," + T_FSCACHE_TILE_X + " INTEGER NOT NULL," + T_FSCACHE_TILE_Y + " INTEGER NOT NULL,"
             + T_FSCACHE_TIMESTAMP + " INTEGER NOT NULL," + T_FSCACHE_USAGECOUNT + " INTEGER NOT NULL DEFAULT 1," + T_FSCACHE_FILESIZE + " INTEGER NOT NULL,"
-            + T_FSCACHE_DATA + " BLOB," + " PRIMARY KEY(" + T_FSCACHE_RENDERER_ID + "," + T_FSCACHE_ZOOM_LEVEL + "," + T_FSCACHE_TILE_X + "," + T_FSCACHE_TILE_Y
+            + T_FSCACHE_DATA + " BLOB," + T_FSCACHE_ETAG + " TEXT," + T_FSCACHE_LAST_MODIFIED + " TEXT," + T_FSCACHE_EXPIRES + " INTEGER NOT NULL DEFAULT 0,"
+            + " PRIMARY KEY(" + T_FSCACHE_RENDERER_ID + "," + T_FSCACHE_ZOOM_LEVEL + "," + T_FSCACHE_TILE_X + "," + T_FSCACHE_TILE_Y
             + ")" + ");";
 
+    private static final String T_FSCACHE_USAGE_INDEX = "tiles_usage";
+
+    // covers eviction in timestamp order and summing up the tile sizes
+    private static final String T_FSCACHE_USAGE_INDEX_CREATE_COMMAND = "CREATE INDEX IF NOT EXISTS " + T_FSCACHE_USAGE_INDEX + " ON " + T_FSCACHE + " ("
+            + T_FSCACHE_TIMESTAMP + "," + T_FSCACHE_FILESIZE + ");";
+
+    private static final String ALTER_TABLE = "ALTER TABLE " + T_FSCACHE + " ADD COLUMN ";
+
+    private static final String[] T_FSCACHE_ADD_VALIDATORS_COMMANDS = { ALTER_TABLE + T_FSCACHE_ETAG + " TEXT",
+            ALTER_TABLE + T_FSCACHE_LAST_MODIFIED + " TEXT", ALTER_TABLE + T_FSCACHE_EXPIRES + " INTEGER NOT NULL DEFAULT 0" };
+
     private static final String T_RENDERER_CREATE_COMMAND = "CREATE TABLE IF NOT EXISTS " + T_RENDERER + " (" + T_RENDERER_ID + " VARCHAR(255) PRIMARY KEY,"
             + T_RENDERER_NAME + " VARCHAR(255)," + T_RENDERER_BASE_URL + " VARCHAR(255)," + T_RENDERER_ZOOM_MIN + " INTEGER NOT NULL," + T_RENDERER_ZOOM_MAX
             + " INTEGER NOT NULL," + T_RENDERER_TILE_SIZE_LOG + " INTEGER NOT NULL" + ");";
@@ -90,11 +121,35 @@ public class MapTileProviderDataBase implements MapViewConstants {
     private static final String T_FSCACHE_WHERE_NOT_INVALID = T_FSCACHE_RENDERER_ID + SQL_ARG + AND + T_FSCACHE_ZOOM_LEVEL + SQL_ARG + AND + T_FSCACHE_TILE_X
             + SQL_ARG + AND + T_FSCACHE_TILE_Y + SQL_ARG + AND + T_FSCACHE_FILESIZE + ">0";
 
-    private static final String T_FSCACHE_SELECT_OLDEST = "SELECT " + T_FSCACHE_RENDERER_ID + "," + T_FSCACHE_ZOOM_LEVEL + "," + T_FSCACHE_TILE_X + ","
-            + T_FSCACHE_TILE_Y + "," + T_FSCACHE_FILESIZE + " FROM " + T_FSCACHE + " WHERE " + T_FSCACHE_FILESIZE + " > 0 ORDER BY " + T_FSCACHE_TIMESTAMP
-            + " ASC";
+    private static final String ROWID = "rowid";
+
+    private static final String T_FSCACHE_SELECT_OLDEST = "SELECT " + ROWID + "," + T_FSCACHE_FILESIZE + " FROM " + T_FSCACHE + " WHERE "
+            + T_FSCACHE_FILESIZE + " > 0 ORDER BY " + T_FSCACHE_TIMESTAMP + " ASC LIMIT " + EVICTION_BATCH_SIZE;
 
     private static final String T_FSCACHE_GET = "SELECT " + T_FSCACHE_DATA + " FROM " + T_FSCACHE + " WHERE " + T_FSCACHE_WHERE;
+
+    private static final String T_FSCACHE_INSERT = "INSERT OR IGNORE INTO " + T_FSCACHE + " (" + T_FSCACHE_RENDERER_ID + "," + T_FSCACHE_ZOOM_LEVEL + ","
+            + T_FSCACHE_TILE_X + "," + T_FSCACHE_TILE_Y + "," + T_FSCACHE_TIMESTAMP + "," + T_FSCACHE_FILESIZE + "," + T_FSCACHE_DATA + "," + T_FSCACHE_ETAG
+            + "," + T_FSCACHE_LAST_MODIFIED + "," + T_FSCACHE_EXPIRES + ") VALUES (?,?,?,?,?,?,?,?,?,?)";
+
+    private static final String T_FSCACHE_UPDATE = "UPDATE " + T_FSCACHE + " SET " + T_FSCACHE_TIMESTAMP + SQL_ARG + "," + T_FSCACHE_FILESIZE + SQL_ARG
+            + "," + T_FSCACHE_DATA + SQL_ARG + "," + T_FSCACHE_ETAG + SQL_ARG + "," + T_FSCACHE_LAST_MODIFIED + SQL_ARG + "," + T_FSCACHE_EXPIRES + SQL_ARG
+            + " WHERE " + T_FSCACHE_WHERE;
+
+    private static final String T_FSCACHE_GET_SIZE = "SELECT " + T_FSCACHE_FILESIZE + " FROM " + T_FSCACHE + " WHERE " + T_FSCACHE_WHERE;
+
+    private static final String T_FSCACHE_REVALIDATE = "UPDATE " + T_FSCACHE + " SET " + T_FSCACHE_ETAG + SQL_ARG + "," + T_FSCACHE_LAST_MODIFIED + SQL_ARG
+            + "," + T_FSCACHE_EXPIRES + SQL_ARG + " WHERE " + T_FSCACHE_WHERE_NOT_INVALID;
+
+    private static final String T_FSCACHE_TOUCH = "UPDATE " + T_FSCACHE + " SET " + T_FSCACHE_TIMESTAMP + SQL_ARG + "," + T_FSCACHE_USAGECOUNT + "="
+            + T_FSCACHE_USAGECOUNT + "+1 WHERE " + T_FSCACHE_WHERE_NOT_INVALID;
+
+    private static final String T_FSCACHE_DELETE_ROW = "DELETE FROM " + T_FSCACHE + " WHERE " + ROWID + SQL_ARG;
+
+    private static final String TMP_COLUMN = "tmp";
+
+    private static final String T_FSCACHE_SUM = "SELECT SUM(" + T_FSCACHE_FILESIZE + ") AS " + TMP_COLUMN + " FROM " + T_FSCACHE;
+
     // ===========================================================
     // Fields
     // ===========================================================
@@ -103,6 +158,60 @@ public class MapTileProviderDataBase implements MapViewConstants {
 
     private static Pools.SynchronizedPool<SQLiteStatement> getStatements;
 
+    /**
+     * Statements only used by the writer, guarded by this
+     */
+    private final SQLiteStatement insertStatement;
+    private final SQLiteStatement updateStatement;
+    private final SQLiteStatement getSizeStatement;
+    private final SQLiteStatement revalidateStatement;
+    private final SQLiteStatement touchStatement;
+    private final SQLiteStatement deleteRowStatement;
+
+    private final long    maxSize;
+    private volatile long size;
+
+    /**
+     * Tiles and usage updates waiting to be written, guarded by pendingWrites
+     */
+    private final Map<String, PendingTile> pendingWrites        = new LinkedHashMap<>();
+    private final Map<String, MapTile>     pendingTouches       = new HashMap<>();
+    private final Map<String, PendingTile> pendingRevalidations = new HashMap<>();
+    private final ScheduledExecutorService writer               = Executors.newSingleThreadScheduledExecutor();
+    private boolean                        delayedFlush         = false;
+    private boolean                        immediateFlush       = false;
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushWrites();
+        }
+    };
+
+    /**
+     * A tile or new validators for a tile that have not been written to the database yet
+     */
+    private static class PendingTile {
+        final MapTile         tile;
+        final byte[]          data;
+        final CacheValidators validators;
+        final long            timestamp;
+
+        /**
+         * Construct a new instance
+         * 
+         * @param tile tile meta data
+         * @param data the tile image data or null for an invalid tile
+         * @param validators cache validators or null
+         */
+        PendingTile(@NonNull MapTile tile, @Nullable byte[] data, @Nullable CacheValidators validators) {
+            this.tile = tile;
+            this.data = data;
+            this.validators = validators;
+            timestamp = System.currentTimeMillis();
+        }
+    }
+
     // ===========================================================
     // Constructors
     // ===========================================================
@@ -110,10 +219,24 @@ public class MapTileProviderDataBase implements MapViewConstants {
      * Construct a new database tile storage provider
      * 
      * @param context Android Context
+     * @param maxSize the maximum size of the tiles in the database in bytes
      */
-    public MapTileProviderDataBase(@NonNull final Context context) {
+    public MapTileProviderDataBase(@NonNull final Context context, long maxSize) {
         Log.i(DEBUG_TAG, "creating database instance");
         mDatabase = new DatabaseHelper(context).getWritableDatabase();
+        this.maxSize = maxSize;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            if (!mDatabase.enableWriteAheadLogging()) {
+                Log.w(DEBUG_TAG, "Write ahead logging not available");
+            } else {
+                try {
+                    // in WAL mode this only risks losing the last transactions on power loss, not corruption
+                    mDatabase.execSQL("PRAGMA synchronous=NORMAL");
+                } catch (SQLiteException e) {
+                    Log.w(DEBUG_TAG, "Setting synchronous mode failed " + e.getMessage());
+                }
+            }
+        }
         Preferences prefs = new Preferences(context);
         int maxThreads = prefs.getMaxTileDownloadThreads();
         getStatements = new Pools.SynchronizedPool<SQLiteStatement>(maxThreads);
@@ -121,6 +244,13 @@ public class MapTileProviderDataBase implements MapViewConstants {
         for (int i = 0; i < maxThreads; i++) {
             getStatements.release(mDatabase.compileStatement(T_FSCACHE_GET));
         }
+        insertStatement = mDatabase.compileStatement(T_FSCACHE_INSERT);
+        updateStatement = mDatabase.compileStatement(T_FSCACHE_UPDATE);
+        getSizeStatement = mDatabase.compileStatement(T_FSCACHE_GET_SIZE);
+        revalidateStatement = mDatabase.compileStatement(T_FSCACHE_REVALIDATE);
+        touchStatement = mDatabase.compileStatement(T_FSCACHE_TOUCH);
+        deleteRowStatement = mDatabase.compileStatement(T_FSCACHE_DELETE_ROW);
+        size = sumTileSizes();
     }
 
     /**
@@ -130,6 +260,11 @@ public class MapTileProviderDataBase implements MapViewConstants {
      * @return true if the tile exists in the database
      */
     public boolean hasTile(@NonNull final MapTile aTile) {
+        synchronized (pendingWrites) {
+            if (pendingWrites.containsKey(aTile.toId())) {
+                return true;
+            }
+        }
         boolean existed = false;
         if (mDatabase.isOpen()) {
             final String[] args = new String[] { aTile.rendererID, Integer.toString(aTile.zoomLevel), Integer.toString(aTile.x), Integer.toString(aTile.y) };
@@ -147,6 +282,12 @@ public class MapTileProviderDataBase implements MapViewConstants {
      * @return true if this is an invalid tile
      */
     public boolean isInvalid(@NonNull final MapTile aTile) {
+        synchronized (pendingWrites) {
+            PendingTile pending = pendingWrites.get(aTile.toId());
+            if (pending != null) {
+                return pending.data == null;
+            }
+        }
         boolean existed = false;
         if (mDatabase.isOpen()) {
             final String[] args = new String[] { aTile.rendererID, Integer.toString(aTile.zoomLevel), Integer.toString(aTile.x), Integer.toString(aTile.y) };
@@ -158,56 +299,283 @@ public class MapTileProviderDataBase implements MapViewConstants {
     }
 
     /**
-     * Save tile data to the database, checks if it exists beforehand
+     * Queue tile data for saving to the database without cache validators
      * 
      * @param aTile tile meta data
-     * @param tile_data the tile image data
-     * @return the size of the tile if successfully added
-     * @throws IOException
+     * @param tile_data the tile image data or null to mark the tile as invalid
+     * @throws IOException if the database has been closed
+     */
+    public void addTile(@NonNull final MapTile aTile, @Nullable final byte[] tile_data) throws IOException {
+        addTile(aTile, tile_data, null);
+    }
+
+    /**
+     * Queue tile data for saving to the database, tile data replaces any existing tile, a tile is however never replaced
+     * by an invalid one
+     * 
+     * The data is written in a batch with other tiles shortly after, until then it is returned by
+     * {@link #getTile(MapTile)}.
+     * 
+     * @param aTile tile meta data
+     * @param tile_data the tile image data or null to mark the tile as invalid
+     * @param validators cache validators or null
+     * @throws IOException if the database has been closed
      */
-    public int addTile(@NonNull final MapTile aTile, @Nullable final byte[] tile_data) throws IOException {
+    public void addTile(@NonNull final MapTile aTile, @Nullable final byte[] tile_data, @Nullable CacheValidators validators) throws IOException {
         if (DEBUGMODE) {
             Log.d(MapTileFilesystemProvider.DEBUG_TAG, "adding " + aTile);
         }
-        try {
-            if (mDatabase.isOpen()) {
-                final ContentValues cv = new ContentValues();
-                cv.put(T_FSCACHE_RENDERER_ID, aTile.rendererID);
-                cv.put(T_FSCACHE_ZOOM_LEVEL, aTile.zoomLevel);
-                cv.put(T_FSCACHE_TILE_X, aTile.x);
-                cv.put(T_FSCACHE_TILE_Y, aTile.y);
-                cv.put(T_FSCACHE_TIMESTAMP, System.currentTimeMillis());
-                cv.put(T_FSCACHE_FILESIZE, tile_data != null ? tile_data.length : 0); // 0 == invalid
-                cv.put(T_FSCACHE_DATA, tile_data);
-                long result = mDatabase.insertOrThrow(T_FSCACHE, null, cv);
-                if (DEBUGMODE) {
-                    Log.d(MapTileFilesystemProvider.DEBUG_TAG, "Inserting new tile result " + result);
-                }
-                return tile_data != null ? tile_data.length : 0;
+        synchronized (pendingWrites) {
+            PendingTile previous = pendingWrites.get(aTile.toId());
+            if (previous == null || tile_data != null) {
+                pendingWrites.put(aTile.toId(), new PendingTile(aTile, tile_data, validators));
+                pendingRevalidations.remove(aTile.toId());
             }
-            return 0;
-        } catch (SQLiteConstraintException scex) {
-            if (tile_data != null && isInvalid(aTile)) {
-                Log.w(DEBUG_TAG, "Formerly invalid tile has become available " + aTile);
-                // try to update tile with current data now that it has become available
-                final ContentValues cv = new ContentValues();
-                cv.put(T_FSCACHE_TIMESTAMP, System.currentTimeMillis());
-                cv.put(T_FSCACHE_FILESIZE, tile_data.length);
-                cv.put(T_FSCACHE_DATA, tile_data);
-                long result = mDatabase.update(T_FSCACHE, cv, T_FSCACHE_WHERE, tileToWhereArgs(aTile));
-                if (DEBUGMODE) {
-                    Log.d(MapTileFilesystemProvider.DEBUG_TAG, "Inserting tile for invalid one result " + result);
+            scheduleFlush(pendingWrites.size() >= WRITE_BATCH_SIZE);
+        }
+    }
+
+    /**
+     * Queue new validators and expiry time for a tile that is still current
+     * 
+     * @param aTile tile meta data
+     * @param validators the new cache validators
+     * @throws IOException if the database has been closed
+     */
+    public void revalidated(@NonNull final MapTile aTile, @NonNull CacheValidators validators) throws IOException {
+        synchronized (pendingWrites) {
+            PendingTile pending = pendingWrites.get(aTile.toId());
+            if (pending != null) {
+                if (pending.data != null) {
+                    pendingWrites.put(aTile.toId(), new PendingTile(aTile, pending.data, validators));
                 }
-                return tile_data.length;
             } else {
-                Log.w(DEBUG_TAG, "Constraint violated inserting tile " + aTile);
-                return 0; // file was already inserted
+                pendingRevalidations.put(aTile.toId(), new PendingTile(aTile, null, validators));
             }
-        } catch (SQLiteException sex) { // handle these the same
-            throw new IOException(sex.getMessage());
+            scheduleFlush(false);
+        }
+    }
+
+    /**
+     * Get the cache validators for a valid tile
+     * 
+     * @param aTile tile meta data
+     * @return the CacheValidators or null if the tile isn't present or is invalid
+     */
+    @Nullable
+    public CacheValidators getValidators(@NonNull final MapTile aTile) {
+        synchronized (pendingWrites) {
+            PendingTile pending = pendingRevalidations.get(aTile.toId());
+            if (pending == null) {
+                pending = pendingWrites.get(aTile.toId());
+            }
+            if (pending != null) {
+                return pending.validators;
+            }
+        }
+        CacheValidators result = null;
+        if (mDatabase.isOpen()) {
+            final Cursor c = mDatabase.query(T_FSCACHE, new String[] { T_FSCACHE_ETAG, T_FSCACHE_LAST_MODIFIED, T_FSCACHE_EXPIRES },
+                    T_FSCACHE_WHERE_NOT_INVALID, tileToWhereArgs(aTile), null, null, null);
+            try {
+                if (c.moveToFirst()) {
+                    result = new CacheValidators(c.isNull(0) ? null : c.getString(0), c.isNull(1) ? null : c.getString(1), c.getLong(2));
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Schedule writing the queued tiles, must be called with pendingWrites locked
+     * 
+     * @param immediately if true don't wait for further writes
+     * @throws IOException if the database has been closed
+     */
+    private void scheduleFlush(boolean immediately) throws IOException {
+        try {
+            if (immediately && !immediateFlush) {
+                writer.execute(flushRunnable);
+                immediateFlush = true;
+            } else if (!delayedFlush) {
+                writer.schedule(flushRunnable, WRITE_DELAY, TimeUnit.MILLISECONDS);
+                delayedFlush = true;
+            }
+        } catch (RejectedExecutionException e) {
+            throw new IOException("Tile database closed");
         }
     }
 
+    /**
+     * Write all queued tiles and usage updates in one transaction and make space if necessary
+     */
+    private void flushWrites() {
+        List<PendingTile> tiles;
+        List<MapTile> touched;
+        List<PendingTile> revalidations;
+        synchronized (pendingWrites) {
+            delayedFlush = false;
+            immediateFlush = false;
+            if (pendingWrites.isEmpty() && pendingTouches.isEmpty() && pendingRevalidations.isEmpty()) {
+                return;
+            }
+            tiles = new ArrayList<>(pendingWrites.values());
+            touched = new ArrayList<>(pendingTouches.values());
+            pendingTouches.clear();
+            revalidations = new ArrayList<>(pendingRevalidations.values());
+            pendingRevalidations.clear();
+        }
+        synchronized (this) {
+            try {
+                if (mDatabase.isOpen()) {
+                    long grown = 0;
+                    long now = System.currentTimeMillis();
+                    mDatabase.beginTransaction();
+                    try {
+                        for (PendingTile pending : tiles) {
+                            grown += write(pending);
+                        }
+                        for (MapTile tile : touched) {
+                            touch(tile, now);
+                        }
+                        for (PendingTile pending : revalidations) {
+                            revalidate(pending);
+                        }
+                        mDatabase.setTransactionSuccessful();
+                    } finally {
+                        mDatabase.endTransaction();
+                    }
+                    size += grown;
+                    if (DEBUGMODE) {
+                        Log.d(DEBUG_TAG, "Wrote " + tiles.size() + " tiles and " + touched.size() + " usage updates, cache size is now " + size);
+                    }
+                    if (size > maxSize) {
+                        // a batch can overshoot by more than the usual amount we free
+                        deleteOldest((int) Math.min(Integer.MAX_VALUE, size - maxSize + (long) (maxSize * EVICTION_FACTOR)));
+                    }
+                }
+            } catch (SQLiteException | IllegalStateException e) {
+                Log.e(DEBUG_TAG, "Writing tiles failed " + e.getMessage());
+            } finally {
+                synchronized (pendingWrites) {
+                    for (PendingTile pending : tiles) {
+                        String id = pending.tile.toId();
+                        if (pendingWrites.get(id) == pending) {
+                            pendingWrites.remove(id);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Write a tile, must be called in a transaction
+     * 
+     * @param pending the tile
+     * @return the number of bytes the tile data in the database has grown by
+     */
+    private int write(@NonNull PendingTile pending) {
+        MapTile tile = pending.tile;
+        int length = pending.data != null ? pending.data.length : 0; // 0 == invalid
+        insertStatement.clearBindings();
+        bindTile(insertStatement, 1, tile);
+        insertStatement.bindLong(5, pending.timestamp);
+        insertStatement.bindLong(6, length);
+        if (pending.data != null) {
+            insertStatement.bindBlob(7, pending.data);
+        } else {
+            insertStatement.bindNull(7);
+        }
+        bindValidators(insertStatement, 8, pending.validators);
+        if (insertStatement.executeInsert() != -1) {
+            return length;
+        }
+        if (pending.data == null) {
+            Log.w(DEBUG_TAG, "Not replacing existing tile with invalid one " + tile);
+            return 0;
+        }
+        // replace the existing tile, this can be an invalid tile that has become available or a tile that has changed
+        getSizeStatement.clearBindings();
+        bindTile(getSizeStatement, 1, tile);
+        long oldLength = getSizeStatement.simpleQueryForLong();
+        updateStatement.clearBindings();
+        updateStatement.bindLong(1, pending.timestamp);
+        updateStatement.bindLong(2, length);
+        updateStatement.bindBlob(3, pending.data);
+        bindValidators(updateStatement, 4, pending.validators);
+        bindTile(updateStatement, 7, tile);
+        updateStatement.execute();
+        if (oldLength == 0) {
+            Log.w(DEBUG_TAG, "Formerly invalid tile has become available " + tile);
+        }
+        return (int) (length - oldLength);
+    }
+
+    /**
+     * Update the validators of a tile, must be called in a transaction
+     * 
+     * @param pending the tile and validators
+     */
+    private void revalidate(@NonNull PendingTile pending) {
+        revalidateStatement.clearBindings();
+        bindValidators(revalidateStatement, 1, pending.validators);
+        bindTile(revalidateStatement, 4, pending.tile);
+        revalidateStatement.execute();
+    }
+
+    /**
+     * Update the timestamp and usage count of a tile, must be called in a transaction
+     * 
+     * @param tile the tile meta data
+     * @param timestamp the new timestamp
+     */
+    private void touch(@NonNull MapTile tile, long timestamp) {
+        touchStatement.clearBindings();
+        touchStatement.bindLong(1, timestamp);
+        bindTile(touchStatement, 2, tile);
+        touchStatement.execute();
+    }
+
+    /**
+     * Bind the etag, last modified and expires values
+     * 
+     * @param statement the statement
+     * @param first the index of the first argument
+     * @param validators the validators or null
+     */
+    private static void bindValidators(@NonNull SQLiteStatement statement, int first, @Nullable CacheValidators validators) {
+        String etag = validators != null ? validators.getEtag() : null;
+        String lastModified = validators != null ? validators.getLastModified() : null;
+        if (etag != null) {
+            statement.bindString(first, etag);
+        } else {
+            statement.bindNull(first);
+        }
+        if (lastModified != null) {
+            statement.bindString(first + 1, lastModified);
+        } else {
+            statement.bindNull(first + 1);
+        }
+        statement.bindLong(first + 2, validators != null ? validators.getExpires() : CacheValidators.NO_EXPIRY);
+    }
+
+    /**
+     * Bind the arguments of a WHERE clause selecting a tile
+     * 
+     * @param statement the statement
+     * @param first the index of the first argument
+     * @param tile the tile meta data
+     */
+    private static void bindTile(@NonNull SQLiteStatement statement, int first, @NonNull MapTile tile) {
+        statement.bindString(first, tile.rendererID);
+        statement.bindLong(first + 1, tile.zoomLevel);
+        statement.bindLong(first + 2, tile.x);
+        statement.bindLong(first + 3, tile.y);
+    }
+
     /**
      * Get a SQLite argument array for a WHERE clause
      * 
@@ -221,6 +589,8 @@ public class MapTileProviderDataBase implements MapViewConstants {
     /**
      * Returns requested tile and increases use count and date
      * 
+     * The usage update is queued and written together with other changes.
+     * 
      * @param aTile the tile meta data
      * @return the contents of the tile or null on failure to retrieve
      * @throws IOException
@@ -229,26 +599,140 @@ public class MapTileProviderDataBase implements MapViewConstants {
         if (DEBUGMODE) {
             Log.d(MapTileFilesystemProvider.DEBUG_TAG, "Trying to retrieve " + aTile + " from file");
         }
+        byte[] data = getPendingTile(aTile);
+        if (data != null) {
+            return data;
+        }
+        data = getTileFromDatabase(aTile);
+        if (data != null) {
+            touch(aTile);
+        }
+        return data;
+    }
+
+    /**
+     * Returns a tile that is still waiting to be written to the database
+     * 
+     * @param aTile the tile meta data
+     * @return the contents of the tile or null if it isn't waiting to be written
+     * @throws InvalidTileException if the tile is marked as invalid
+     */
+    @Nullable
+    public byte[] getPendingTile(@NonNull final MapTile aTile) throws InvalidTileException {
+        synchronized (pendingWrites) {
+            PendingTile pending = pendingWrites.get(aTile.toId());
+            if (pending != null) {
+                if (pending.data == null) {
+                    throw new InvalidTileException(TILE_MARKED_INVALID_IN_DATABASE);
+                }
+                return pending.data;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns requested tile from the database as a file descriptor and increases use count and date
+     * 
+     * The descriptor refers to a shared memory copy of the tile contents made by SQLite, it can be passed to another
+     * process without copying the data. The caller is responsible for closing it. Tiles that are still waiting to be
+     * written need to be retrieved with getPendingTile. Always returns null before Honeycomb, use getTile there.
+     * 
+     * @param aTile the tile meta data
+     * @return a ParcelFileDescriptor or null if the tile isn't in the database or before Honeycomb
+     * @throws IOException if the tile is marked as invalid or we had issues reading from the database
+     */
+    @TargetApi(11)
+    @Nullable
+    public ParcelFileDescriptor getTileDescriptor(@NonNull final MapTile aTile) throws IOException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return null;
+        }
+        try {
+            ParcelFileDescriptor pfd = queryTileDescriptor(aTile);
+            if (pfd != null) {
+                touch(aTile);
+            }
+            return pfd;
+        } catch (SQLiteDoneException sde) {
+            // nothing found
+            return null;
+        } catch (SQLiteException sex) { // handle these exceptions the same
+            throw new IOException(sex.getMessage());
+        }
+    }
+
+    /**
+     * Queue an update of the use count and date of a tile
+     * 
+     * @param aTile the tile meta data
+     */
+    private void touch(@NonNull final MapTile aTile) {
+        synchronized (pendingWrites) {
+            pendingTouches.put(aTile.toId(), aTile);
+            try {
+                scheduleFlush(false);
+            } catch (IOException e) {
+                // the usage update is only advisory, the tile has already been retrieved
+                Log.w(DEBUG_TAG, "Queuing usage update failed " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Query the database for a tile
+     * 
+     * @param aTile the tile meta data
+     * @return a ParcelFileDescriptor or null if the database is closed or no statement was available
+     * @throws InvalidTileException if the tile is marked as invalid
+     * @throws SQLiteDoneException if the tile isn't in the database
+     */
+    @TargetApi(11)
+    @Nullable
+    private ParcelFileDescriptor queryTileDescriptor(@NonNull final MapTile aTile) throws InvalidTileException {
+        if (!mDatabase.isOpen()) {
+            return null;
+        }
+        SQLiteStatement get = null;
+        try {
+            get = getStatements.acquire();
+            if (get == null) {
+                Log.e(DEBUG_TAG, "statement null");
+                return null;
+            }
+            get.bindString(1, aTile.rendererID);
+            get.bindLong(2, aTile.zoomLevel);
+            get.bindLong(3, aTile.x);
+            get.bindLong(4, aTile.y);
+            ParcelFileDescriptor pfd = get.simpleQueryForBlobFileDescriptor();
+            if (pfd == null) {
+                throw new InvalidTileException(TILE_MARKED_INVALID_IN_DATABASE);
+            }
+            return pfd;
+        } finally {
+            if (get != null) {
+                getStatements.release(get);
+            }
+        }
+    }
+
+    /**
+     * Read a tile from the database
+     * 
+     * @param aTile the tile meta data
+     * @return the contents of the tile or null on failure to retrieve
+     * @throws IOException
+     */
+    @Nullable
+    private byte[] getTileFromDatabase(@NonNull final MapTile aTile) throws IOException {
         try {
             if (mDatabase.isOpen()) {
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-                    SQLiteStatement get = null;
-                    ParcelFileDescriptor pfd = null;
                     try {
-                        get = getStatements.acquire();
-                        if (get == null) {
-                            Log.e(DEBUG_TAG, "statement null");
-                            return null;
-                        }
-                        get.bindString(1, aTile.rendererID);
-                        get.bindLong(2, aTile.zoomLevel);
-                        get.bindLong(3, aTile.x);
-                        get.bindLong(4, aTile.y);
-                        pfd = get.simpleQueryForBlobFileDescriptor();
+                        ParcelFileDescriptor pfd = queryTileDescriptor(aTile);
                         if (pfd == null) {
-                            throw new InvalidTileException(TILE_MARKED_INVALID_IN_DATABASE);
+                            return null;
                         }
-
                         ParcelFileDescriptor.AutoCloseInputStream acis = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
                         ByteArrayOutputStream bos = new ByteArrayOutputStream();
 
@@ -262,10 +746,6 @@ public class MapTileProviderDataBase implements MapViewConstants {
                     } catch (SQLiteDoneException sde) {
                         // nothing found
                         return null;
-                    } finally {
-                        if (get != null) {
-                            getStatements.release(get);
-                        }
                     }
                 } else { // old and slow
                     final Cursor c = mDatabase.query(T_FSCACHE, new String[] { T_FSCACHE_DATA }, T_FSCACHE_WHERE_NOT_INVALID, tileToWhereArgs(aTile), null,
@@ -293,7 +773,7 @@ public class MapTileProviderDataBase implements MapViewConstants {
     }
 
     /**
-     * Remove old tiles until enough space is present
+     * Remove the least recently used tiles until enough space is present
      * 
      * @param pSizeNeeded the extra size we need
      * @return the size we actually gained
@@ -304,55 +784,59 @@ public class MapTileProviderDataBase implements MapViewConstants {
             Log.e(MapTileFilesystemProvider.DEBUG_TAG, "deleteOldest called on closed DB");
             return 0;
         }
-        final Cursor c = mDatabase.rawQuery(T_FSCACHE_SELECT_OLDEST, null);
-
-        final List<MapTile> deleteFromDB = new ArrayList<>();
         long sizeGained = 0;
-        if (c != null) {
-            try {
-                MapTile tileToBeDeleted;
-                try {
-                    if (c.moveToFirst()) {
+        try {
+            if (pSizeNeeded >= size) {
+                // remove everything but the invalid tile markers in one go
+                mDatabase.delete(T_FSCACHE, T_FSCACHE_FILESIZE + ">0", null);
+                sizeGained = size;
+            } else {
+                final List<Long> deleteFromDB = new ArrayList<>();
+                boolean more = true;
+                while (more && sizeGained < pSizeNeeded) {
+                    // the usage index makes this a cheap range scan
+                    final Cursor c = mDatabase.rawQuery(T_FSCACHE_SELECT_OLDEST, null);
+                    try {
+                        if (!c.moveToFirst()) {
+                            throw new EmptyCacheException("Cache seems to be empty.");
+                        }
+                        more = c.getCount() == EVICTION_BATCH_SIZE;
                         do {
-                            final int sizeItem = c.getInt(c.getColumnIndexOrThrow(T_FSCACHE_FILESIZE));
-                            sizeGained += sizeItem;
-                            tileToBeDeleted = new MapTile(c.getString(c.getColumnIndexOrThrow(T_FSCACHE_RENDERER_ID)),
-                                    c.getInt(c.getColumnIndexOrThrow(T_FSCACHE_ZOOM_LEVEL)), c.getInt(c.getColumnIndexOrThrow(T_FSCACHE_TILE_X)),
-                                    c.getInt(c.getColumnIndexOrThrow(T_FSCACHE_TILE_Y)));
-
-                            deleteFromDB.add(tileToBeDeleted);
+                            deleteFromDB.add(c.getLong(0));
+                            sizeGained += c.getInt(1);
                         } while (c.moveToNext() && sizeGained < pSizeNeeded);
-                    } else {
-                        throw new EmptyCacheException("Cache seems to be empty.");
+                    } finally {
+                        c.close();
                     }
-
-                    if (mDatabase.isOpen()) {
-                        try {
-                            mDatabase.beginTransaction();
-                            for (MapTile t : deleteFromDB) {
-                                mDatabase.delete(T_FSCACHE, T_FSCACHE_WHERE, tileToWhereArgs(t));
-                            }
-                            mDatabase.setTransactionSuccessful();
-                        } finally {
-                            mDatabase.endTransaction();
+                    mDatabase.beginTransaction();
+                    try {
+                        for (Long rowId : deleteFromDB) {
+                            deleteRowStatement.bindLong(1, rowId);
+                            deleteRowStatement.execute();
                         }
+                        mDatabase.setTransactionSuccessful();
+                    } finally {
+                        mDatabase.endTransaction();
                     }
-                } catch (Exception e) {
-                    if (e instanceof NullPointerException) {
-                        // just log ... likely these are really spurious
-                        Log.e(MapTileFilesystemProvider.DEBUG_TAG, "NPE in deleteOldest " + e);
-                    } else if (e instanceof SQLiteFullException || e instanceof SQLiteDiskIOException || e instanceof java.lang.IllegalStateException) {
-                        Log.e(MapTileFilesystemProvider.DEBUG_TAG, "Exception in deleteOldest " + e);
-                    } else if (e instanceof EmptyCacheException) {
-                        Log.e(MapTileFilesystemProvider.DEBUG_TAG, "Exception in deleteOldest cache empty " + e);
-                    } else {
-                        ACRAHelper.nocrashReport(e, e.getMessage());
-                    }
+                    deleteFromDB.clear();
                 }
-            } finally {
-                c.close();
             }
+        } catch (Exception e) {
+            if (e instanceof NullPointerException) {
+                // just log ... likely these are really spurious
+                Log.e(MapTileFilesystemProvider.DEBUG_TAG, "NPE in deleteOldest " + e);
+            } else if (e instanceof SQLiteFullException || e instanceof SQLiteDiskIOException || e instanceof java.lang.IllegalStateException) {
+                Log.e(MapTileFilesystemProvider.DEBUG_TAG, "Exception in deleteOldest " + e);
+            } else if (e instanceof EmptyCacheException) {
+                Log.e(MapTileFilesystemProvider.DEBUG_TAG, "Exception in deleteOldest cache empty " + e);
+            } else {
+                ACRAHelper.nocrashReport(e, e.getMessage());
+            }
+            // we don't know what has actually been removed
+            size = sumTileSizes();
+            return 0;
         }
+        size -= sizeGained;
         Log.d(DEBUG_TAG, "deleteOldest size gained " + sizeGained);
         return sizeGained;
     }
@@ -364,71 +848,61 @@ public class MapTileProviderDataBase implements MapViewConstants {
      * @throws EmptyCacheException
      */
     public synchronized void flushCache(@Nullable String rendererID) throws EmptyCacheException {
-        mDatabase.beginTransaction();
+        synchronized (pendingWrites) {
+            for (Iterator<PendingTile> it = pendingWrites.values().iterator(); it.hasNext();) {
+                if (rendererID == null || rendererID.equals(it.next().tile.rendererID)) {
+                    it.remove();
+                }
+            }
+            for (Iterator<PendingTile> it = pendingRevalidations.values().iterator(); it.hasNext();) {
+                if (rendererID == null || rendererID.equals(it.next().tile.rendererID)) {
+                    it.remove();
+                }
+            }
+        }
         try {
             if (rendererID == null) {
                 Log.d(MapTileFilesystemProvider.DEBUG_TAG, "Flushing all caches");
                 mDatabase.execSQL("DELETE FROM " + T_FSCACHE);
             } else {
                 Log.d(MapTileFilesystemProvider.DEBUG_TAG, "Flushing cache for " + rendererID);
-                final Cursor c = mDatabase
-                        .rawQuery(
-                                "SELECT " + T_FSCACHE_ZOOM_LEVEL + "," + T_FSCACHE_TILE_X + "," + T_FSCACHE_TILE_Y + "," + T_FSCACHE_FILESIZE + " FROM "
-                                        + T_FSCACHE + " WHERE " + T_FSCACHE_RENDERER_ID + "='" + rendererID + "' ORDER BY " + T_FSCACHE_TIMESTAMP + " ASC",
-                                null);
-                final ArrayList<MapTile> deleteFromDB = new ArrayList<>();
-                long sizeGained = 0;
-                if (c != null) {
-                    try {
-                        MapTile tileToBeDeleted;
-                        if (c.moveToFirst()) {
-                            do {
-                                final int sizeItem = c.getInt(c.getColumnIndexOrThrow(T_FSCACHE_FILESIZE));
-                                sizeGained += sizeItem;
-
-                                tileToBeDeleted = new MapTile(rendererID, c.getInt(c.getColumnIndexOrThrow(T_FSCACHE_ZOOM_LEVEL)),
-                                        c.getInt(c.getColumnIndexOrThrow(T_FSCACHE_TILE_X)), c.getInt(c.getColumnIndexOrThrow(T_FSCACHE_TILE_Y)));
-
-                                deleteFromDB.add(tileToBeDeleted);
-                                // Log.d(DEBUG_TAG,"flushCache " + tileToBeDeleted.toString());
-                            } while (c.moveToNext());
-                        } else {
-                            throw new EmptyCacheException("Cache seems to be empty.");
-                        }
-                        Log.d(DEBUG_TAG, "flushCache freed " + sizeGained);
-                    } finally {
-                        c.close();
-                    }
-
-                    for (MapTile t : deleteFromDB) {
-                        final String[] args = new String[] { t.rendererID, Integer.toString(t.zoomLevel), Integer.toString(t.x), Integer.toString(t.y) };
-                        mDatabase.delete(T_FSCACHE, T_FSCACHE_WHERE, args);
-                    }
+                if (mDatabase.delete(T_FSCACHE, T_FSCACHE_RENDERER_ID + SQL_ARG, new String[] { rendererID }) == 0) {
+                    throw new EmptyCacheException("Cache seems to be empty.");
                 }
             }
-            mDatabase.setTransactionSuccessful();
         } finally {
-            mDatabase.endTransaction();
+            size = sumTileSizes();
+            Log.d(DEBUG_TAG, "flushCache cache size now " + size);
         }
     }
 
     // ===========================================================
     // Methods
     // ===========================================================
-    private String TMP_COLUMN = "tmp";
 
     /**
      * Get the current size of the cache in bytes
      * 
+     * This doesn't include tiles that are waiting to be written.
+     * 
      * @return the current cache size
      */
     public int getCurrentFSCacheByteSize() {
-        int ret = 0;
+        return (int) Math.min(Integer.MAX_VALUE, size);
+    }
+
+    /**
+     * Sum up the size of all tiles in the database, this will use the usage index and not touch the tile data
+     * 
+     * @return the total size of all tiles in bytes
+     */
+    private long sumTileSizes() {
+        long ret = 0;
         if (mDatabase.isOpen()) {
-            final Cursor c = mDatabase.rawQuery("SELECT SUM(" + T_FSCACHE_FILESIZE + ") AS " + TMP_COLUMN + " FROM " + T_FSCACHE, null);
+            final Cursor c = mDatabase.rawQuery(T_FSCACHE_SUM, null);
             if (c != null) {
                 if (c.moveToFirst()) {
-                    ret = c.getInt(c.getColumnIndexOrThrow(TMP_COLUMN));
+                    ret = c.getLong(c.getColumnIndexOrThrow(TMP_COLUMN));
                 }
                 c.close();
             }
@@ -450,6 +924,7 @@ public class MapTileProviderDataBase implements MapViewConstants {
             try {
                 db.execSQL(T_RENDERER_CREATE_COMMAND);
                 db.execSQL(T_FSCACHE_CREATE_COMMAND);
+                db.execSQL(T_FSCACHE_USAGE_INDEX_CREATE_COMMAND);
             } catch (SQLException e) {
                 Log.w(MapTileFilesystemProvider.DEBUG_TAG, "Problem creating database", e);
             }
@@ -457,6 +932,17 @@ public class MapTileProviderDataBase implements MapViewConstants {
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            if (oldVersion >= 8) { // only additions since then, the contents can be retained
+                if (oldVersion < 9) {
+                    db.execSQL(T_FSCACHE_USAGE_INDEX_CREATE_COMMAND);
+                }
+                if (oldVersion < 10) {
+                    for (String command : T_FSCACHE_ADD_VALIDATORS_COMMANDS) {
+                        db.execSQL(command);
+                    }
+                }
+                return;
+            }
             if (DEBUGMODE) {
                 Log.w(MapTileFilesystemProvider.DEBUG_TAG,
                         "Upgrading database from version " + oldVersion + " to " + newVersion + ", which will destroy all old data");
@@ -468,10 +954,27 @@ public class MapTileProviderDataBase implements MapViewConstants {
     }
 
     /**
-     * Close the DB handle
+     * Write any queued tiles and close the DB handle
      */
     public void close() {
-        mDatabase.close();
+        writer.shutdown();
+        try {
+            if (!writer.awaitTermination(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                Log.e(DEBUG_TAG, "Timeout waiting for tile writer");
+            }
+        } catch (InterruptedException e) { // NOSONAR
+            Log.e(DEBUG_TAG, "Interrupted waiting for tile writer");
+        }
+        flushWrites();
+        synchronized (this) {
+            insertStatement.close();
+            updateStatement.close();
+            getSizeStatement.close();
+            revalidateStatement.close();
+            touchStatement.close();
+            deleteRowStatement.close();
+            mDatabase.close();
+        }
     }
 
     /**
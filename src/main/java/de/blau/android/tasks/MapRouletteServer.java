@@ -4,8 +4,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.util.ArrayList;
-import java.util.Collection;
 import java.util.concurrent.TimeUnit;
 
 import android.content.Context;
@@ -34,16 +32,18 @@ class MapRouletteServer {
     private static final int TIMEOUT = 45 * 1000;
 
     /**
-     * Perform an HTTP request to download up to limit bugs inside the specified area. Blocks until the request is
-     * complete.
+     * Perform an HTTP request to download up to limit bugs inside the specified area, handing each task to a sink as
+     * soon as it has been parsed. Blocks until the request is complete.
      * 
      * @param context the Android context
      * @param area Latitude/longitude *1E7 of area to download.
      * @param limit unused
-     * @return All the bugs in the given area.
+     * @param sink the TaskSink that receives the tasks
+     * @return the number of tasks read
      */
-    public static Collection<MapRouletteTask> getTasksForBox(Context context, BoundingBox area, long limit) {
-        Collection<MapRouletteTask> result = null;
+    public static int getTasksForBox(@NonNull Context context, @NonNull BoundingBox area, long limit,
+            @NonNull TaskSink<? super MapRouletteTask> sink) {
+        int result = 0;
         try {
             Log.d(DEBUG_TAG, "getTasksForBox");
             URL url;
@@ -64,10 +64,10 @@ class MapRouletteServer {
                 inputStream = responseBody.byteStream();
             } else {
                 Log.e(DEBUG_TAG, "Download unsuccessful : " + mapRouletteResponse.code());
-                return new ArrayList<>();
+                return 0;
             }
 
-            result = MapRouletteTask.parseTasks(inputStream);
+            result = MapRouletteTask.parseTasks(inputStream, sink);
         } catch (IOException e) {
             Log.e(DEBUG_TAG, "getTasksForBox got exception " + e.getMessage());
         }
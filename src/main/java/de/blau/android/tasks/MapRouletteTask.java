@@ -3,14 +3,13 @@ package de.blau.android.tasks;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.util.ArrayList;
 import java.util.Date;
-import java.util.List;
 
 import com.google.gson.stream.JsonReader;
 
 import android.content.Context;
 import android.graphics.Canvas;
+import android.support.annotation.NonNull;
 import android.util.Log;
 import de.blau.android.App;
 import de.blau.android.R;
@@ -54,15 +53,16 @@ public class MapRouletteTask extends Task {
     }
 
     /**
-     * Parse an InputStream containing MapRoulette task data
+     * Parse an InputStream containing MapRoulette task data, handing each task to a sink as soon as it has been read
      * 
      * @param is the InputString
-     * @return a List of MapRouletteTask
+     * @param sink the TaskSink that receives the tasks
+     * @return the number of tasks read
      * @throws IOException for JSON reading issues
      * @throws NumberFormatException if a number conversion fails
      */
-    public static List<MapRouletteTask> parseTasks(InputStream is) throws IOException, NumberFormatException {
-        List<MapRouletteTask> result = new ArrayList<>();
+    public static int parseTasks(@NonNull InputStream is, @NonNull TaskSink<? super MapRouletteTask> sink) throws IOException, NumberFormatException {
+        int count = 0;
         JsonReader reader = new JsonReader(new InputStreamReader(is));
         try {
             reader.beginArray();
@@ -116,7 +116,8 @@ public class MapRouletteTask extends Task {
                     }
                 }
                 reader.endObject();
-                result.add(task);
+                sink.accept(task);
+                count++;
             }
             reader.endArray();
         } catch (IOException | IllegalStateException ex) {
@@ -124,7 +125,7 @@ public class MapRouletteTask extends Task {
         } finally {
             SavingHelper.close(reader);
         }
-        return result;
+        return count;
     }
 
     /**
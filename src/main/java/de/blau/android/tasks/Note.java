@@ -13,6 +13,7 @@ import org.xmlpull.v1.XmlSerializer;
 import android.content.Context;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.util.Log;
 import de.blau.android.App;
 import de.blau.android.R;
 import de.blau.android.osm.JosmXmlSerializable;
@@ -28,6 +29,8 @@ import de.blau.android.util.Util;
  */
 public class Note extends Task implements Serializable, JosmXmlSerializable {
 
+    private static final String DEBUG_TAG = Note.class.getSimpleName();
+
     /**
      * 
      */
@@ -67,6 +70,35 @@ public class Note extends Task implements Serializable, JosmXmlSerializable {
         parseNote(parser);
     }
 
+    /**
+     * Parse Notes from XML, handing each Note to a sink as soon as it has been read
+     * 
+     * Notes that don't parse correctly are skipped.
+     * 
+     * @param parser the parser instance
+     * @param sink the TaskSink that receives the Notes
+     * @return the number of Notes read
+     * @throws XmlPullParserException if parsing fails
+     * @throws IOException for XML reading issues
+     */
+    public static int parseNotes(@NonNull XmlPullParser parser, @NonNull TaskSink<? super Note> sink) throws XmlPullParserException, IOException {
+        int count = 0;
+        int eventType;
+        while ((eventType = parser.next()) != XmlPullParser.END_DOCUMENT) {
+            if (eventType == XmlPullParser.START_TAG && "note".equals(parser.getName())) {
+                try {
+                    sink.accept(new Note(parser));
+                    count++;
+                } catch (IOException | XmlPullParserException | NumberFormatException e) {
+                    // if the bug doesn't parse correctly, there's nothing
+                    // we can do about it - move on
+                    Log.e(DEBUG_TAG, "Problem parsing bug", e);
+                }
+            }
+        }
+        return count;
+    }
+
     /**
      * Parse a Note from XML
      * 
@@ -4,9 +4,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Serializable;
-import java.util.ArrayList;
 import java.util.Date;
-import java.util.List;
 
 import com.google.gson.stream.JsonReader;
 
@@ -39,15 +37,16 @@ public final class OsmoseBug extends Bug implements Serializable {
     private String username;
 
     /**
-     * Parse an InputStream containing Osmose task data
+     * Parse an InputStream containing Osmose task data, handing each bug to a sink as soon as it has been read
      * 
      * @param is the InputString
-     * @return a List of OsmoseBug
+     * @param sink the TaskSink that receives the bugs
+     * @return the number of bugs read
      * @throws IOException for JSON reading issues
      * @throws NumberFormatException if a number conversion fails
      */
-    public static List<OsmoseBug> parseBugs(InputStream is) throws IOException, NumberFormatException {
-        List<OsmoseBug> result = new ArrayList<>();
+    public static int parseBugs(@NonNull InputStream is, @NonNull TaskSink<? super OsmoseBug> sink) throws IOException, NumberFormatException {
+        int count = 0;
         JsonReader reader = new JsonReader(new InputStreamReader(is));
         try {
             // key object
@@ -80,7 +79,8 @@ public final class OsmoseBug extends Bug implements Serializable {
                         }
                         bug.username = reader.nextString();
                         reader.endArray();
-                        result.add(bug);
+                        sink.accept(bug);
+                        count++;
                     }
                     reader.endArray();
                 }
@@ -91,7 +91,7 @@ public final class OsmoseBug extends Bug implements Serializable {
         } finally {
             SavingHelper.close(reader);
         }
-        return result;
+        return count;
     }
 
     /**
@@ -4,9 +4,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.TimeUnit;
@@ -42,16 +40,18 @@ class OsmoseServer {
     private static final int TIMEOUT = 45 * 1000;
 
     /**
-     * Perform an HTTP request to download up to limit bugs inside the specified area. Blocks until the request is
-     * complete.
+     * Perform an HTTP request to download up to limit bugs inside the specified area, handing each bug to a sink as
+     * soon as it has been parsed. Blocks until the request is complete.
      * 
      * @param context the Android context
      * @param area Latitude/longitude *1E7 of area to download.
      * @param limit unused
-     * @return All the bugs in the given area.
+     * @param sink the TaskSink that receives the bugs
+     * @return the number of bugs read
      */
-    public static Collection<OsmoseBug> getBugsForBox(Context context, BoundingBox area, long limit) {
-        Collection<OsmoseBug> result = null;
+    public static int getBugsForBox(@NonNull Context context, @NonNull BoundingBox area, long limit,
+            @NonNull TaskSink<? super OsmoseBug> sink) {
+        int result = 0;
         // http://osmose.openstreetmap.fr/de/api/0.2/errors?bbox=8.32,47.33,8.42,47.28&full=true
         try {
             Log.d(DEBUG_TAG, "getBugssForBox");
@@ -72,10 +72,10 @@ class OsmoseServer {
                 responseBody = osmoseCallResponse.body();
                 inputStream = responseBody.byteStream();
             } else {
-                return new ArrayList<>();
+                return 0;
             }
 
-            result = OsmoseBug.parseBugs(inputStream);
+            result = OsmoseBug.parseBugs(inputStream, sink);
         } catch (IOException e) {
             Log.e(DEBUG_TAG, "getBugsForBox got exception " + e.getMessage());
         }
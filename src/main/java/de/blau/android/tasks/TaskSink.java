@@ -0,0 +1,20 @@
+package de.blau.android.tasks;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Receiver for tasks that are emitted one at a time while a response is being parsed
+ * 
+ * @author simon
+ *
+ * @param <T> the type of Task accepted
+ */
+public interface TaskSink<T extends Task> {
+
+    /**
+     * Process a parsed task
+     * 
+     * @param task the Task
+     */
+    void accept(@NonNull T task);
+}
@@ -19,6 +19,7 @@ import de.blau.android.exception.IllegalOperationException;
 import de.blau.android.osm.BoundingBox;
 import de.blau.android.util.SavingHelper;
 import de.blau.android.util.Snack;
+import de.blau.android.util.collections.LongHashSet;
 import de.blau.android.util.rtree.BoundedObject;
 import de.blau.android.util.rtree.RTree;
 
@@ -59,7 +60,7 @@ public class TaskStorage implements Serializable {
      * Reset storage to initial values
      */
     public synchronized void reset() {
-        tasks = new RTree(30, 100);
+        tasks = new RTree(30, 100, true);
         boxes = new RTree(2, 20);
         dirty = true;
     }
@@ -119,7 +120,7 @@ public class TaskStorage implements Serializable {
      * @param t Task to check for
      * @return true if t was found
      */
-    public boolean contains(@NonNull Task t) {
+    public synchronized boolean contains(@NonNull Task t) {
         Collection<BoundedObject> queryResult = new ArrayList<>();
         tasks.query(queryResult, t.getLon(), t.getLat());
         Log.d(DEBUG_TAG, "candidates for contain " + queryResult.size());
@@ -142,7 +143,7 @@ public class TaskStorage implements Serializable {
      * @return the in storage instance or null if not found
      */
     @Nullable
-    public Task get(@NonNull Task t) {
+    public synchronized Task get(@NonNull Task t) {
         Collection<BoundedObject> queryResult = new ArrayList<>();
         tasks.query(queryResult, t.getLon(), t.getLat());
         Log.d(DEBUG_TAG, "candidates for get " + queryResult.size());
@@ -160,7 +161,7 @@ public class TaskStorage implements Serializable {
      * @return a List of Tasks
      */
     @NonNull
-    public List<Task> getTasks() {
+    public synchronized List<Task> getTasks() {
         Collection<BoundedObject> queryResult = new ArrayList<>();
         tasks.query(queryResult);
         Log.d(DEBUG_TAG, "getTasks result count (no BB) " + queryResult.size());
@@ -179,21 +180,30 @@ public class TaskStorage implements Serializable {
      */
     @NonNull
     public List<Task> getTasks(@NonNull BoundingBox box) {
-        Collection<BoundedObject> queryResult = new ArrayList<>();
-        tasks.query(queryResult, box.getBounds());
-        Log.d(DEBUG_TAG, "getTasks result count " + queryResult.size());
         List<Task> result = new ArrayList<>();
-        for (BoundedObject bo : queryResult) {
-            result.add((Task) bo);
-        }
+        getTasks(box, result);
+        Log.d(DEBUG_TAG, "getTasks result count " + result.size());
         return result;
     }
 
+    /**
+     * Replace the contents of result with all tasks in a bounding box
+     * 
+     * This doesn't allocate any objects, result can be reused for repeated queries.
+     * 
+     * @param box BoundingBox that should be searched
+     * @param result the Collection to fill
+     */
+    public synchronized void getTasks(@NonNull BoundingBox box, @NonNull Collection<Task> result) {
+        result.clear();
+        tasks.query(result, box.getLeft(), box.getBottom(), box.getRight(), box.getTop());
+    }
+
     /**
      * 
      * @return true if storage is empty
      */
-    public boolean isEmpty() {
+    public synchronized boolean isEmpty() {
         return tasks.count() == 0;
     }
 
@@ -352,6 +362,128 @@ public class TaskStorage implements Serializable {
         }
     }
 
+    /**
+     * Get a sink that merges tasks in to the storage as they are parsed from a download
+     * 
+     * Adds the BoundingBox of the download to the storage as a side effect
+     * 
+     * @param box the area that is being downloaded
+     * @param maxClosedAge maximum time in ms since a task was closed for it to be added
+     * @return an Inserter
+     */
+    @NonNull
+    public synchronized Inserter inserter(@NonNull BoundingBox box, long maxClosedAge) {
+        add(box);
+        return new Inserter(box, maxClosedAge);
+    }
+
+    /**
+     * Sink that merges downloaded tasks in to the storage one at a time
+     * 
+     * Tasks that have already been received from the same download are ignored. New tasks are added if they are open
+     * or have been closed recently, existing tasks are replaced if the downloaded version is newer. If an existing task
+     * that needs to be replaced has been changed locally, merging stops.
+     */
+    public class Inserter implements TaskSink<Task> {
+        private final BoundingBox                    box;
+        private final long                           maxClosedAge;
+        private final long                           now      = System.currentTimeMillis();
+        private final Map<Class<?>, Map<Long, Task>> existing = new HashMap<>();
+        private final Map<Class<?>, LongHashSet>     received = new HashMap<>();
+        private final List<Task>                     added    = new ArrayList<>();
+        private Task                                 conflict = null;
+        private boolean                              finished = false;
+
+        /**
+         * Construct a new Inserter, indexing the tasks in the storage that are in the download area
+         * 
+         * @param box the area that is being downloaded
+         * @param maxClosedAge maximum time in ms since a task was closed for it to be added
+         */
+        private Inserter(@NonNull BoundingBox box, long maxClosedAge) {
+            this.box = box;
+            this.maxClosedAge = maxClosedAge;
+            for (Task t : getTasks(box)) {
+                Map<Long, Task> byId = existing.get(t.getClass());
+                if (byId == null) {
+                    byId = new HashMap<>();
+                    existing.put(t.getClass(), byId);
+                }
+                byId.put(t.getId(), t);
+            }
+        }
+
+        @Override
+        public void accept(@NonNull Task t) {
+            synchronized (TaskStorage.this) {
+                if (finished || conflict != null) {
+                    return;
+                }
+                LongHashSet ids = received.get(t.getClass());
+                if (ids == null) {
+                    ids = new LongHashSet();
+                    received.put(t.getClass(), ids);
+                }
+                if (ids.contains(t.getId())) {
+                    return;
+                }
+                ids.put(t.getId());
+                Map<Long, Task> byId = existing.get(t.getClass());
+                Task e = byId != null ? byId.get(t.getId()) : null;
+                if (e == null && !box.contains(t.getLon(), t.getLat())) {
+                    e = get(t);
+                }
+                if (e == null) {
+                    if (!t.isClosed() || (now - t.getLastUpdate().getTime()) < maxClosedAge) {
+                        add(t);
+                        added.add(t);
+                    }
+                } else if (t.getLastUpdate().getTime() > e.getLastUpdate().getTime()) {
+                    // downloaded task is newer
+                    if (e.hasBeenChanged()) {
+                        conflict = e;
+                    } else {
+                        delete(e);
+                        add(t);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Stop merging, tasks that are received after this has been called are ignored
+         */
+        public void finish() {
+            synchronized (TaskStorage.this) {
+                finished = true;
+            }
+        }
+
+        /**
+         * Get the tasks that were added and didn't replace an existing task
+         * 
+         * @return a List of Tasks
+         */
+        @NonNull
+        public List<Task> getAdded() {
+            synchronized (TaskStorage.this) {
+                return new ArrayList<>(added);
+            }
+        }
+
+        /**
+         * Get the existing task that stopped merging because it has been changed locally
+         * 
+         * @return the conflicting Task or null if there was no conflict
+         */
+        @Nullable
+        public Task getConflict() {
+            synchronized (TaskStorage.this) {
+                return conflict;
+            }
+        }
+    }
+
     @Override
     public String toString() {
         return "task r-tree: " + tasks.count() + " boxes r-tree " + boxes.count();
@@ -8,13 +8,20 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlPullParserFactory;
@@ -62,6 +69,12 @@ public class TransferTasks {
     /** maximum of tasks per request */
     private static final int MAX_PER_REQUEST = 1000;
 
+    /** number of task sources that are queried at the same time */
+    private static final int SOURCE_THREADS = 3;
+
+    /** maximum time in ms to wait for a task source, longer than the connection timeouts of the individual servers */
+    private static final long SOURCE_TIMEOUT = 60L * 1000L;
+
     /**
      * Download tasks for a bounding box, actual requests will depend on what the current filter for tasks is set to
      * 
@@ -89,88 +102,83 @@ public class TransferTasks {
      * @param handler handler to run after the download if not null
      */
     public static void downloadBox(@NonNull final Context context, @NonNull final Server server, @NonNull final BoundingBox box, final boolean add,
-            long maxClosedAge, @Nullable final PostAsyncActionHandler handler) {
+            final long maxClosedAge, @Nullable final PostAsyncActionHandler handler) {
 
         final TaskStorage bugs = App.getTaskStorage();
         final Preferences prefs = new Preferences(context);
 
         box.makeValidForApi();
 
-        new AsyncTask<Void, Void, Collection<Task>>() {
+        new AsyncTask<Void, Void, Task>() {
             @Override
-            protected Collection<Task> doInBackground(Void... params) {
+            protected Task doInBackground(Void... params) {
                 Log.d(DEBUG_TAG, "querying server for " + box);
                 Set<String> bugFilter = prefs.taskFilter();
-                Collection<Task> result = new ArrayList<>();
-                Collection<Note> noteResult = null;
                 Resources r = context.getResources();
-                if (bugFilter.contains(r.getString(R.string.bugfilter_notes))) {
-                    noteResult = server.getNotesForBox(box, MAX_PER_REQUEST);
-                }
-                if (noteResult != null) {
-                    result.addAll(noteResult);
-                }
-                Collection<OsmoseBug> osmoseResult = null;
-                if (bugFilter.contains(r.getString(R.string.bugfilter_osmose_error)) || bugFilter.contains(r.getString(R.string.bugfilter_osmose_warning))
-                        || bugFilter.contains(r.getString(R.string.bugfilter_osmose_minor_issue))) {
-                    osmoseResult = OsmoseServer.getBugsForBox(context, box, MAX_PER_REQUEST);
-                }
-                if (osmoseResult != null) {
-                    result.addAll(osmoseResult);
-                }
-                Collection<MapRouletteTask> mapRouletteResult = null;
-                if (bugFilter.contains(r.getString(R.string.bugfilter_maproulette))) {
-                    mapRouletteResult = MapRouletteServer.getTasksForBox(context, box, MAX_PER_REQUEST);
-                }
-                if (mapRouletteResult != null) {
-                    result.addAll(mapRouletteResult);
-                    Map<Long, MapRouletteChallenge> challenges = bugs.getChallenges();
-                    for (Entry<Long, MapRouletteChallenge> entry : challenges.entrySet()) {
-                        if (entry.getValue() == null) {
-                            challenges.put(entry.getKey(), MapRouletteServer.getChallenge(context, entry.getKey()));
-                        }
-                    }
-                }
-                return result;
-            }
-
-            @Override
-            protected void onPostExecute(Collection<Task> result) {
-                if (result == null) {
-                    Log.d(DEBUG_TAG, "no bugs found");
-                    return;
-                }
                 if (!add) {
                     Log.d(DEBUG_TAG, "resetting bug storage");
                     bugs.reset();
                 }
-                bugs.add(box);
-                Preferences prefs = new Preferences(context);
-                long now = System.currentTimeMillis();
-                for (Task b : result) {
-                    Log.d(DEBUG_TAG, "got bug " + b.getDescription() + " " + bugs.toString());
-                    Task existing = bugs.get(b);
-                    if (existing == null) {
-                        // add open bugs or closed bugs younger than 7 days
-                        if (!b.isClosed() || (now - b.getLastUpdate().getTime()) < MAX_CLOSED_AGE) {
-                            bugs.add(b);
-                            Log.d(DEBUG_TAG, "adding bug " + b.getDescription());
-                            if (!b.isClosed() && prefs.generateAlerts()) {
-                                IssueAlert.alert(context, prefs, b);
+                final TaskStorage.Inserter inserter = bugs.inserter(box, maxClosedAge);
+                ExecutorService executor = Executors.newFixedThreadPool(SOURCE_THREADS);
+                try {
+                    Map<String, Future<Integer>> sources = new LinkedHashMap<>();
+                    if (bugFilter.contains(r.getString(R.string.bugfilter_notes))) {
+                        sources.put("Notes", executor.submit(new Callable<Integer>() {
+                            @Override
+                            public Integer call() {
+                                return server.getNotesForBox(box, MAX_PER_REQUEST, inserter);
                             }
-                        }
-                    } else {
-                        if (existing != null && b.getLastUpdate().getTime() > existing.getLastUpdate().getTime()) {
-                            // downloaded task is newer
-                            if (existing.hasBeenChanged()) { // conflict, show message and abort
-                                Snack.toastTopError(context, context.getString(R.string.toast_task_conflict, existing.getDescription()));
-                                break;
-                            } else {
-                                bugs.delete(existing);
-                                bugs.add(b);
+                        }));
+                    }
+                    if (bugFilter.contains(r.getString(R.string.bugfilter_osmose_error))
+                            || bugFilter.contains(r.getString(R.string.bugfilter_osmose_warning))
+                            || bugFilter.contains(r.getString(R.string.bugfilter_osmose_minor_issue))) {
+                        sources.put("Osmose", executor.submit(new Callable<Integer>() {
+                            @Override
+                            public Integer call() {
+                                return OsmoseServer.getBugsForBox(context, box, MAX_PER_REQUEST, inserter);
+                            }
+                        }));
+                    }
+                    Future<Integer> mapRoulette = null;
+                    if (bugFilter.contains(r.getString(R.string.bugfilter_maproulette))) {
+                        mapRoulette = executor.submit(new Callable<Integer>() {
+                            @Override
+                            public Integer call() {
+                                return MapRouletteServer.getTasksForBox(context, box, MAX_PER_REQUEST, inserter);
+                            }
+                        });
+                        sources.put("MapRoulette", mapRoulette);
+                    }
+                    long deadline = System.currentTimeMillis() + SOURCE_TIMEOUT;
+                    for (Entry<String, Future<Integer>> source : sources.entrySet()) {
+                        Integer count = getResult(source.getKey(), source.getValue(), deadline);
+                        if (count != null) {
+                            Log.d(DEBUG_TAG, source.getKey() + " read " + count + " tasks");
+                            if (source.getValue() == mapRoulette) {
+                                getChallenges(context, executor, bugs.getChallenges());
                             }
                         }
                     }
+                } finally {
+                    inserter.finish();
+                    executor.shutdownNow();
+                }
+                if (prefs.generateAlerts()) {
+                    for (Task b : inserter.getAdded()) {
+                        if (!b.isClosed()) {
+                            IssueAlert.alert(context, prefs, b);
+                        }
+                    }
+                }
+                return inserter.getConflict();
+            }
+
+            @Override
+            protected void onPostExecute(Task conflict) {
+                if (conflict != null) {
+                    Snack.toastTopError(context, context.getString(R.string.toast_task_conflict, conflict.getDescription()));
                 }
                 if (handler != null) {
                     handler.onSuccess();
@@ -179,6 +187,60 @@ public class TransferTasks {
         }.execute();
     }
 
+    /**
+     * Wait for the result of a task source
+     * 
+     * @param <T> the type of the result
+     * @param name the name of the source for logging
+     * @param future the Future for the download from the source
+     * @param deadline the time in ms after which we stop waiting
+     * @return the result or null if the download failed or timed out
+     */
+    @Nullable
+    private static <T> T getResult(@NonNull String name, @NonNull Future<T> future, long deadline) {
+        try {
+            return future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            Log.e(DEBUG_TAG, name + " download timed out");
+        } catch (ExecutionException e) {
+            Log.e(DEBUG_TAG, name + " download failed " + e.getCause());
+        } catch (InterruptedException e) { // NOSONAR cancel does interrupt the thread in question
+            Log.e(DEBUG_TAG, name + " download interrupted");
+        }
+        future.cancel(true);
+        return null;
+    }
+
+    /**
+     * Download all MapRoulette Challenges that are referenced but not loaded yet in one concurrent batch
+     * 
+     * @param context Android context
+     * @param executor the ExecutorService to run the downloads on
+     * @param challenges the Map of Challenges, a null value indicates that the Challenge needs to be downloaded
+     */
+    private static void getChallenges(@NonNull final Context context, @NonNull ExecutorService executor,
+            @NonNull Map<Long, MapRouletteChallenge> challenges) {
+        Map<Long, Future<MapRouletteChallenge>> downloads = new HashMap<>();
+        for (Entry<Long, MapRouletteChallenge> entry : challenges.entrySet()) {
+            if (entry.getValue() == null) {
+                final long id = entry.getKey();
+                downloads.put(id, executor.submit(new Callable<MapRouletteChallenge>() {
+                    @Override
+                    public MapRouletteChallenge call() {
+                        return MapRouletteServer.getChallenge(context, id);
+                    }
+                }));
+            }
+        }
+        long deadline = System.currentTimeMillis() + SOURCE_TIMEOUT;
+        for (Entry<Long, Future<MapRouletteChallenge>> download : downloads.entrySet()) {
+            MapRouletteChallenge challenge = getResult("Challenge " + download.getKey(), download.getValue(), deadline);
+            if (challenge != null) {
+                challenges.put(download.getKey(), challenge);
+            }
+        }
+    }
+
     /**
      * Upload Notes or bugs to server, needs to be called from main for now (mainly for OAuth dependency)
      * 
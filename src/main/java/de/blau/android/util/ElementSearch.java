@@ -8,8 +8,8 @@ import android.util.Log;
 import de.blau.android.App;
 import de.blau.android.exception.OsmException;
 import de.blau.android.osm.Node;
+import de.blau.android.osm.OsmElement;
 import de.blau.android.osm.StorageDelegator;
-import de.blau.android.osm.Tags;
 import de.blau.android.osm.Way;
 import de.blau.android.util.collections.MultiHashMap;
 
@@ -44,34 +44,30 @@ public class ElementSearch {
         // build list of names with their closest distance to location
         final StorageDelegator delegator = App.getDelegator();
         Map<String, Double> distancesByNames = new HashMap<>();
-        String[] nameTags = { Tags.KEY_NAME, Tags.KEY_OFFICIAL_NAME, Tags.KEY_ALT_NAME, Tags.KEY_NAME_LEFT, Tags.KEY_NAME_RIGHT };
-
-        for (Way way : delegator.getCurrentStorage().getWays()) {
-            if (way.getTagWithKey(Tags.KEY_HIGHWAY) != null) {
-                double distance = -1D;
-                long iD = way.getOsmId();
-                for (String tag : nameTags) {
-                    // Log.d("StreetTagValueAutocompletionAdapter","Search for " + tag);
-                    String name = way.getTagWithKey(tag);
-                    if (name != null) {
-                        // Log.d("StreetTagValueAutocompletionAdapter","Name " + name);
-                        if (distance == -1D) { // only calc once
-                            distance = way.getDistance(location);
-                            if (distanceFilter && distance > MAX_DISTANCE) {
-                                break;
-                            }
-                            // Log.d("ElementSearch","distance " + distance);
+        String[] nameTags = StreetPlaceIndex.STREET_NAME_TAGS;
+
+        for (Way way : delegator.getStreetPlaceIndex().getStreets(delegator.getCurrentStorage(), location,
+                distanceFilter ? MAX_DISTANCE : Double.MAX_VALUE)) {
+            double distance = -1D;
+            long iD = way.getOsmId();
+            for (String tag : nameTags) {
+                String name = way.getTagWithKey(tag);
+                if (name != null) {
+                    if (distance == -1D) { // only calc once
+                        distance = way.getDistance(location);
+                        if (distanceFilter && distance > MAX_DISTANCE) {
+                            break;
                         }
-                        if (distancesByNames.containsKey(name)) {
-                            // way already in list - keep shortest distance
-                            if (distance < distancesByNames.get(name)) {
-                                distancesByNames.put(name, distance);
-                                idsByStreetNames.put(name, iD);
-                            }
-                        } else {
+                    }
+                    if (distancesByNames.containsKey(name)) {
+                        // way already in list - keep shortest distance
+                        if (distance < distancesByNames.get(name)) {
                             distancesByNames.put(name, distance);
                             idsByStreetNames.put(name, iD);
                         }
+                    } else {
+                        distancesByNames.put(name, distance);
+                        idsByStreetNames.put(name, iD);
                     }
                 }
             }
@@ -126,66 +122,33 @@ public class ElementSearch {
         // build list of names with their closest distance to location
         final StorageDelegator delegator = App.getDelegator();
         Map<String, Double> distancesByName = new HashMap<>();
-        String[] nameTags = { Tags.KEY_NAME, Tags.KEY_OFFICIAL_NAME, Tags.KEY_ALT_NAME };
-        Log.d(DEBUG_PLACE_TAG, "searching for place ways...");
-        for (Way way : delegator.getCurrentStorage().getWays()) {
-            if (way.getTagWithKey(Tags.KEY_PLACE) != null) {
-                double distance = -1D;
-                long iD = way.getOsmId();
-
-                for (String tag : nameTags) {
-                    String name = way.getTagWithKey(tag);
-                    if (name != null) {
-                        if (distance == -1D) { // only calc once
-                            distance = way.getDistance(location);
-                            if (distanceFilter && distance > MAX_DISTANCE) {
-                                break;
-                            }
-                        }
-                        if (distancesByName.containsKey(name)) {
-                            // way already in list - keep shortest distance
-                            if (distance < distancesByName.get(name)) {
-                                distancesByName.put(name, distance);
-                                idsByPlaceNames.put(name, iD);
-                                typeByPlaceNames.put(name, Way.NAME);
-                            }
-                        } else {
-                            distancesByName.put(name, distance);
-                            idsByPlaceNames.put(name, iD);
-                            typeByPlaceNames.put(name, Way.NAME);
+        String[] nameTags = StreetPlaceIndex.PLACE_NAME_TAGS;
+        Log.d(DEBUG_PLACE_TAG, "searching for places...");
+        for (OsmElement place : delegator.getStreetPlaceIndex().getPlaces(delegator.getCurrentStorage(), location,
+                distanceFilter ? MAX_DISTANCE : Double.MAX_VALUE)) {
+            double distance = -1D;
+            long iD = place.getOsmId();
+            String type = place.getName();
+            for (String tag : nameTags) {
+                String name = place.getTagWithKey(tag);
+                if (name != null) {
+                    if (distance == -1D) { // only calc once
+                        distance = place instanceof Way ? ((Way) place).getDistance(location) : ((Node) place).getDistance(location);
+                        if (distanceFilter && distance > MAX_DISTANCE) {
+                            break;
                         }
                     }
-                }
-            }
-        }
-        Log.d(DEBUG_PLACE_TAG, "searching for place nodes...");
-        for (Node node : delegator.getCurrentStorage().getNodes()) {
-            if (node.getTagWithKey(Tags.KEY_PLACE) != null) {
-                double distance = -1D;
-                long iD = node.getOsmId();
-
-                for (String tag : nameTags) {
-                    String name = node.getTagWithKey(tag);
-                    Log.d(DEBUG_PLACE_TAG, "adding " + name);
-                    if (name != null) {
-                        if (distance == -1D) { // only calc once
-                            distance = node.getDistance(location);
-                            if (distanceFilter && distance > MAX_DISTANCE) {
-                                break;
-                            }
-                        }
-                        if (distancesByName.containsKey(name)) {
-                            // way already in list - keep shortest distance
-                            if (distance < distancesByName.get(name)) {
-                                distancesByName.put(name, distance);
-                                idsByPlaceNames.put(name, iD);
-                                typeByPlaceNames.put(name, Node.NAME);
-                            }
-                        } else {
+                    if (distancesByName.containsKey(name)) {
+                        // element already in list - keep shortest distance
+                        if (distance < distancesByName.get(name)) {
                             distancesByName.put(name, distance);
                             idsByPlaceNames.put(name, iD);
-                            typeByPlaceNames.put(name, Node.NAME);
+                            typeByPlaceNames.put(name, type);
                         }
+                    } else {
+                        distancesByName.put(name, distance);
+                        idsByPlaceNames.put(name, iD);
+                        typeByPlaceNames.put(name, type);
                     }
                 }
             }
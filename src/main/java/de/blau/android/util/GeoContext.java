@@ -4,10 +4,16 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import com.google.gson.stream.JsonReader;
 
@@ -42,6 +48,16 @@ public class GeoContext {
     private static final String     DEBUG_TAG         = "GeoContext";
     private final CountryBoundaries countryBoundaries;
 
+    /**
+     * Cache of the territories for a lon/lat grid with roughly z12 tile sized cells, tiles that are not completely
+     * inside the same territories are marked with BORDER_TILE and need to use the full test
+     */
+    private static final int              TILE_ZOOM       = 12;
+    private static final double           TILE_SIZE       = 360D / (1 << TILE_ZOOM);
+    private static final int              MAX_CACHE_TILES = 4096;
+    private static final List<String>     BORDER_TILE     = Collections.unmodifiableList(new ArrayList<String>());
+    private final Map<Long, List<String>> tileCache       = new ConcurrentHashMap<>();
+
     public class Properties {
         boolean       imperialUnits   = false;
         boolean       leftHandTraffic = false;
@@ -230,10 +246,127 @@ public class GeoContext {
         if (countryBoundaries == null) {
             return null;
         }
-        List<String> territories = countryBoundaries.getIds(lon, lat);
+        long key = tileKey(lon, lat);
+        List<String> territories = tileCache.get(key);
+        if (territories == null) {
+            territories = cacheTile(key);
+        }
+        if (territories == BORDER_TILE) { // NOSONAR identity is intended
+            return countryBoundaries.getIds(lon, lat);
+        }
         return territories;
     }
 
+    /**
+     * Pre-compute the cached territories for all tiles covering a bounding box
+     * 
+     * This should be called before merging downloaded data so that the validator only needs to do hash lookups. The
+     * tiles are computed in parallel.
+     * 
+     * @param box the BoundingBox
+     */
+    public void cacheTiles(@NonNull BoundingBox box) {
+        if (countryBoundaries == null) {
+            return;
+        }
+        int minX = tileX(box.getLeft() / 1E7D);
+        int maxX = tileX(box.getRight() / 1E7D);
+        int minY = tileY(box.getBottom() / 1E7D);
+        int maxY = tileY(box.getTop() / 1E7D);
+        long tileCount = (long) (maxX - minX + 1) * (maxY - minY + 1);
+        if (tileCount > MAX_CACHE_TILES) {
+            Log.w(DEBUG_TAG, "Not caching " + tileCount + " tiles");
+            return;
+        }
+        if (tileCache.size() + tileCount > MAX_CACHE_TILES) {
+            tileCache.clear();
+        }
+        List<Callable<List<String>>> tasks = new ArrayList<>();
+        for (int x = minX; x <= maxX; x++) {
+            for (int y = minY; y <= maxY; y++) {
+                final long key = ((long) x << 32) | y;
+                if (!tileCache.containsKey(key)) {
+                    tasks.add(new Callable<List<String>>() {
+                        @Override
+                        public List<String> call() {
+                            return cacheTile(key);
+                        }
+                    });
+                }
+            }
+        }
+        if (tasks.isEmpty()) {
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(tasks.size(), Runtime.getRuntime().availableProcessors()));
+        try {
+            executor.invokeAll(tasks);
+        } catch (InterruptedException e) { // NOSONAR
+            Log.e(DEBUG_TAG, "cacheTiles interrupted");
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Determine the territories for a tile and add them to the cache
+     * 
+     * @param key the tile key
+     * @return a List of ISO codes or BORDER_TILE if the tile is not completely inside the same territories
+     */
+    @NonNull
+    private List<String> cacheTile(long key) {
+        int x = (int) (key >>> 32);
+        int y = (int) key;
+        double minLon = x * TILE_SIZE - 180D;
+        double minLat = y * TILE_SIZE - 90D;
+        double maxLon = minLon + TILE_SIZE;
+        double maxLat = Math.min(minLat + TILE_SIZE, 90D);
+        List<String> territories = BORDER_TILE;
+        Collection<String> containing = countryBoundaries.getContainingIds(minLon, minLat, maxLon, maxLat);
+        Collection<String> intersecting = countryBoundaries.getIntersectingIds(minLon, minLat, maxLon, maxLat);
+        if (containing.size() == intersecting.size() && containing.containsAll(intersecting)) {
+            // use getIds for the center so that we have the same ordering as for uncached lookups
+            territories = Collections.unmodifiableList(countryBoundaries.getIds(minLon + TILE_SIZE / 2, minLat + TILE_SIZE / 2));
+        }
+        if (tileCache.size() >= MAX_CACHE_TILES) {
+            tileCache.clear();
+        }
+        tileCache.put(key, territories);
+        return territories;
+    }
+
+    /**
+     * Get the key of the tile a coordinate is in
+     * 
+     * @param lon WGS84 longitude
+     * @param lat WGS84 latitude
+     * @return the key
+     */
+    private static long tileKey(double lon, double lat) {
+        return ((long) tileX(lon) << 32) | tileY(lat);
+    }
+
+    /**
+     * Get the x number of the tile a longitude is in
+     * 
+     * @param lon WGS84 longitude
+     * @return the x tile number
+     */
+    private static int tileX(double lon) {
+        return Math.max(0, Math.min((1 << TILE_ZOOM) - 1, (int) Math.floor((lon + 180D) / TILE_SIZE)));
+    }
+
+    /**
+     * Get the y number of the tile a latitude is in
+     * 
+     * @param lat WGS84 latitude
+     * @return the y tile number
+     */
+    private static int tileY(double lat) {
+        return Math.max(0, Math.min((1 << (TILE_ZOOM - 1)) - 1, (int) Math.floor((lat + 90D) / TILE_SIZE)));
+    }
+
     /**
      * Get a list of ISO country codes that this element is in
      * 
@@ -264,8 +397,7 @@ public class GeoContext {
                 lat = vbox.getCenterLat();
             }
         }
-        List<String> territories = countryBoundaries.getIds(lon, lat);
-        return territories;
+        return getIsoCodes(lon, lat);
     }
 
     /**
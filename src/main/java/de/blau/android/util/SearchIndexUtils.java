@@ -15,6 +15,7 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
 import de.blau.android.App;
+import de.blau.android.names.Names;
 import de.blau.android.names.Names.NameAndTags;
 import de.blau.android.names.Names.TagMap;
 import de.blau.android.osm.OsmElement.ElementType;
@@ -131,8 +132,8 @@ public class SearchIndexUtils {
         // search in NSI
         Preferences prefs = new Preferences(ctx);
         if (prefs.nameSuggestionPresetsEnabled()) {
-            MultiHashMap<String, NameAndTags> nsi = App.getNameSearchIndex(ctx);
-            Set<String> names = nsi.getKeys();
+            Names nsi = App.getNames(ctx);
+            List<String> names = nsi.getNormalizedNames();
             Preset[] presets = App.getCurrentPresets(ctx);
             Preset preset = Preset.dummyInstance();
             for (String name : names) {
@@ -143,7 +144,7 @@ public class SearchIndexUtils {
                     distance = 0;
                 }
                 if ((distance >= 0 && distance <= maxDistance)) {
-                    Set<NameAndTags> nats = nsi.get(name);
+                    List<NameAndTags> nats = nsi.getByNormalizedName(name);
                     for (NameAndTags nat : nats) {
                         if (nat.inUseIn(regions)) {
                             TagMap tags = nat.getTags();
@@ -213,15 +214,15 @@ public class SearchIndexUtils {
      */
     @Nullable
     public static NameAndTags searchInNames(Context ctx, String name, int maxDistance) {
-        MultiHashMap<String, NameAndTags> namesSearchIndex = App.getNameSearchIndex(ctx);
+        Names names = App.getNames(ctx);
         NameAndTags result = null;
         int lastDistance = Integer.MAX_VALUE;
         name = SearchIndexUtils.normalize(name);
-        for (String key : namesSearchIndex.getKeys()) {
+        for (String key : names.getNormalizedNames()) {
             int distance = OptimalStringAlignment.editDistance(key, name, maxDistance);
             if (distance >= 0 && distance <= maxDistance) {
                 if (distance < lastDistance) {
-                    Set<NameAndTags> list = namesSearchIndex.get(key);
+                    List<NameAndTags> list = names.getByNormalizedName(key);
                     for (NameAndTags nt : list) {
                         if (result == null || nt.getCount() > result.getCount()) {
                             result = nt;
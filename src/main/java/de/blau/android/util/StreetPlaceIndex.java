@@ -0,0 +1,660 @@
+package de.blau.android.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import de.blau.android.Logic;
+import de.blau.android.osm.BoundingBox;
+import de.blau.android.osm.Node;
+import de.blau.android.osm.OsmElement;
+import de.blau.android.osm.Storage;
+import de.blau.android.osm.Tags;
+import de.blau.android.osm.Way;
+import de.blau.android.propertyeditor.Address.Side;
+
+/**
+ * Spatially bucketed index of named highways and places, plus the addresses on each street or place
+ *
+ * The house numbers on each side of a street are kept sorted by number, they are determined on first use and dropped
+ * when an address on the street or the street itself changes.
+ *
+ * The index is updated incrementally for tag changes and moved nodes reported by the StorageDelegator, any other change
+ * invalidates it and it is rebuilt on next use.
+ *
+ * @author simon
+ *
+ */
+public class StreetPlaceIndex {
+
+    private static final String DEBUG_TAG = "StreetPlaceIndex";
+
+    static final String[] STREET_NAME_TAGS = { Tags.KEY_NAME, Tags.KEY_OFFICIAL_NAME, Tags.KEY_ALT_NAME, Tags.KEY_NAME_LEFT, Tags.KEY_NAME_RIGHT };
+    static final String[] PLACE_NAME_TAGS  = { Tags.KEY_NAME, Tags.KEY_OFFICIAL_NAME, Tags.KEY_ALT_NAME };
+
+    private static final int CELL_SIZE = 100000; // 0.01° in WGS84*1E7
+    private static final int MAX_CELLS = 256;    // elements covering more cells are always returned
+
+    /**
+     * Elements bucketed by grid cell
+     */
+    private static class Buckets {
+        final Map<OsmElement, long[]>    cellsByElement = new HashMap<>();
+        final Map<Long, Set<OsmElement>> elementsByCell = new HashMap<>();
+        final Set<OsmElement>            large          = new HashSet<>();
+
+        /**
+         * Add an element to the buckets it covers
+         *
+         * @param e the OsmElement
+         */
+        void add(@NonNull OsmElement e) {
+            BoundingBox box = e.getBounds();
+            if (box == null) {
+                return;
+            }
+            int minX = cell(box.getLeft());
+            int maxX = cell(box.getRight());
+            int minY = cell(box.getBottom());
+            int maxY = cell(box.getTop());
+            long count = (long) (maxX - minX + 1) * (maxY - minY + 1);
+            if (count > MAX_CELLS) {
+                large.add(e);
+                cellsByElement.put(e, new long[0]);
+                return;
+            }
+            long[] cells = new long[(int) count];
+            int i = 0;
+            for (int x = minX; x <= maxX; x++) {
+                for (int y = minY; y <= maxY; y++) {
+                    long key = key(x, y);
+                    Set<OsmElement> elements = elementsByCell.get(key);
+                    if (elements == null) {
+                        elements = new HashSet<>();
+                        elementsByCell.put(key, elements);
+                    }
+                    elements.add(e);
+                    cells[i++] = key;
+                }
+            }
+            cellsByElement.put(e, cells);
+        }
+
+        /**
+         * Remove an element from the buckets
+         *
+         * @param e the OsmElement
+         */
+        void remove(@NonNull OsmElement e) {
+            long[] cells = cellsByElement.remove(e);
+            if (cells != null) {
+                large.remove(e);
+                for (long key : cells) {
+                    Set<OsmElement> elements = elementsByCell.get(key);
+                    if (elements != null) {
+                        elements.remove(e);
+                        if (elements.isEmpty()) {
+                            elementsByCell.remove(key);
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Empty the buckets
+         */
+        void clear() {
+            cellsByElement.clear();
+            elementsByCell.clear();
+            large.clear();
+        }
+
+        /**
+         * Get all elements in cells that are within maxDistance of location
+         *
+         * @param location the location in WGS84*1E7 degrees, latitude first
+         * @param maxDistance the maximum distance in WGS84*1E7 degrees
+         * @param result Collection to add the elements to
+         */
+        void query(@NonNull int[] location, double maxDistance, @NonNull Collection<OsmElement> result) {
+            if (maxDistance >= Integer.MAX_VALUE) {
+                result.addAll(cellsByElement.keySet());
+                return;
+            }
+            Set<OsmElement> seen = new HashSet<>(large);
+            int minX = cell((int) Math.max(Integer.MIN_VALUE, location[1] - maxDistance));
+            int maxX = cell((int) Math.min(Integer.MAX_VALUE, location[1] + maxDistance));
+            int minY = cell((int) Math.max(Integer.MIN_VALUE, location[0] - maxDistance));
+            int maxY = cell((int) Math.min(Integer.MAX_VALUE, location[0] + maxDistance));
+            for (int x = minX; x <= maxX; x++) {
+                for (int y = minY; y <= maxY; y++) {
+                    Set<OsmElement> elements = elementsByCell.get(key(x, y));
+                    if (elements != null) {
+                        seen.addAll(elements);
+                    }
+                }
+            }
+            result.addAll(seen);
+        }
+
+        /**
+         * Get the cell number for a coordinate
+         *
+         * @param coordinate the coordinate in WGS84*1E7 degrees
+         * @return the cell number
+         */
+        private static int cell(int coordinate) {
+            return (int) Math.floor(coordinate / (double) CELL_SIZE);
+        }
+
+        /**
+         * Get the key for a cell
+         *
+         * @param x the x cell number
+         * @param y the y cell number
+         * @return a key for the cell
+         */
+        private static long key(int x, int y) {
+            return ((long) x << 32) | (y & 0xFFFFFFFFL);
+        }
+    }
+
+    /**
+     * The house numbers on one side of a street, sorted by number, with the element and location of each
+     */
+    public static final class HouseNumbers {
+        private final int[]        numbers;
+        private final OsmElement[] elements;
+        private final float[]      lats;
+        private final float[]      lons;
+        private final float[]      positions;
+
+        /**
+         * Construct a new instance
+         *
+         * @param byNumber the elements by house number
+         * @param locations the locations of the elements, latitude, longitude and position along the street
+         */
+        HouseNumbers(@NonNull TreeMap<Integer, OsmElement> byNumber, @NonNull Map<OsmElement, float[]> locations) {
+            int size = byNumber.size();
+            numbers = new int[size];
+            elements = new OsmElement[size];
+            lats = new float[size];
+            lons = new float[size];
+            positions = new float[size];
+            int i = 0;
+            for (Entry<Integer, OsmElement> entry : byNumber.entrySet()) {
+                numbers[i] = entry.getKey();
+                elements[i] = entry.getValue();
+                float[] location = locations.get(entry.getValue());
+                lats[i] = location[0];
+                lons[i] = location[1];
+                positions[i] = location[2];
+                i++;
+            }
+        }
+
+        /**
+         * Get the number of house numbers
+         *
+         * @return the number of house numbers
+         */
+        public int size() {
+            return numbers.length;
+        }
+
+        /**
+         * Get a house number
+         *
+         * @param i the position, the numbers are in ascending order
+         * @return the house number
+         */
+        public int getNumber(int i) {
+            return numbers[i];
+        }
+
+        /**
+         * Get the element with a house number
+         *
+         * @param i the position
+         * @return the OsmElement
+         */
+        @NonNull
+        public OsmElement getElement(int i) {
+            return elements[i];
+        }
+
+        /**
+         * Get the latitude of the element with a house number
+         *
+         * @param i the position
+         * @return the WGS84 latitude
+         */
+        public float getLat(int i) {
+            return lats[i];
+        }
+
+        /**
+         * Get the longitude of the element with a house number
+         *
+         * @param i the position
+         * @return the WGS84 longitude
+         */
+        public float getLon(int i) {
+            return lons[i];
+        }
+
+        /**
+         * Get the position along the street of the element with a house number
+         *
+         * @param i the position
+         * @return the distance from the start of the street in meters, 0 if the street way is not known
+         */
+        public float getPosition(int i) {
+            return positions[i];
+        }
+    }
+
+    private final Buckets                                streets           = new Buckets();
+    private final Buckets                                places            = new Buckets();
+    private final Map<String, Set<OsmElement>>           addressesByStreet = new HashMap<>();
+    private final Map<OsmElement, String>                streetByAddress   = new HashMap<>();
+    private final Map<String, Map<Long, HouseNumbers[]>> numbersByStreet   = new HashMap<>();
+    private Storage                                      indexed           = null;
+
+    /**
+     * Invalidate the index, it will be rebuilt on next use
+     */
+    public synchronized void invalidate() {
+        indexed = null;
+    }
+
+    /**
+     * Update the index for changed elements
+     *
+     * @param storage the Storage the elements are in
+     * @param changed the changed OsmElements
+     */
+    public synchronized void update(@NonNull Storage storage, @NonNull List<OsmElement> changed) {
+        if (indexed != storage) {
+            return; // will be rebuilt on next use
+        }
+        for (OsmElement e : changed) {
+            streets.remove(e);
+            places.remove(e);
+            removeAddress(e);
+            add(e);
+            String street = streetByAddress.get(e);
+            if (street != null) {
+                numbersByStreet.remove(street);
+            }
+            if (e instanceof Way) { // the street geometry determines the side of the addresses
+                for (Map<Long, HouseNumbers[]> byWay : numbersByStreet.values()) {
+                    byWay.remove(e.getOsmId());
+                }
+            }
+        }
+    }
+
+    /**
+     * Get all named highways that are potentially within maxDistance of location
+     *
+     * @param storage the Storage to search
+     * @param location the location in WGS84*1E7 degrees, latitude first
+     * @param maxDistance the maximum distance in WGS84*1E7 degrees, Double.MAX_VALUE for no limit
+     * @return a List of candidate Ways, the exact distance needs to be checked by the caller
+     */
+    @NonNull
+    public synchronized List<Way> getStreets(@NonNull Storage storage, @NonNull int[] location, double maxDistance) {
+        ensureIndexed(storage);
+        List<OsmElement> temp = new ArrayList<>();
+        streets.query(location, maxDistance, temp);
+        List<Way> result = new ArrayList<>(temp.size());
+        for (OsmElement e : temp) {
+            result.add((Way) e);
+        }
+        return result;
+    }
+
+    /**
+     * Get all named places that are potentially within maxDistance of location
+     *
+     * @param storage the Storage to search
+     * @param location the location in WGS84*1E7 degrees, latitude first
+     * @param maxDistance the maximum distance in WGS84*1E7 degrees, Double.MAX_VALUE for no limit
+     * @return a List of candidate Ways and Nodes, the exact distance needs to be checked by the caller
+     */
+    @NonNull
+    public synchronized List<OsmElement> getPlaces(@NonNull Storage storage, @NonNull int[] location, double maxDistance) {
+        ensureIndexed(storage);
+        List<OsmElement> result = new ArrayList<>();
+        places.query(location, maxDistance, result);
+        return result;
+    }
+
+    /**
+     * Get all elements with a house number on a street or place
+     *
+     * @param storage the Storage to search
+     * @param street the value of addr:street or addr:place
+     * @return a List of Ways and Nodes
+     */
+    @NonNull
+    public synchronized List<OsmElement> getAddresses(@NonNull Storage storage, @NonNull String street) {
+        ensureIndexed(storage);
+        Set<OsmElement> addresses = addressesByStreet.get(street);
+        return addresses != null ? new ArrayList<>(addresses) : new ArrayList<OsmElement>();
+    }
+
+    /**
+     * Get the house numbers on one side of a street or place
+     *
+     * @param storage the Storage to search
+     * @param street the value of addr:street or addr:place
+     * @param streetWay the Way of the street, if null all addresses are on the UNKNOWN side
+     * @param side the side of the street
+     * @return the HouseNumbers sorted by number
+     */
+    @NonNull
+    public synchronized HouseNumbers getHouseNumbers(@NonNull Storage storage, @NonNull String street, @Nullable Way streetWay, @NonNull Side side) {
+        ensureIndexed(storage);
+        Map<Long, HouseNumbers[]> byWay = numbersByStreet.get(street);
+        if (byWay == null) {
+            byWay = new HashMap<>();
+            numbersByStreet.put(street, byWay);
+        }
+        long wayId = streetWay != null ? streetWay.getOsmId() : -1L;
+        HouseNumbers[] sides = byWay.get(wayId);
+        if (sides == null) {
+            sides = buildHouseNumbers(street, streetWay);
+            byWay.put(wayId, sides);
+        }
+        return sides[side.ordinal()];
+    }
+
+    /**
+     * Sort the house numbers of the addresses on a street by side and number
+     *
+     * If more than one element has the same number only one of them is retained
+     *
+     * @param street the value of addr:street or addr:place
+     * @param streetWay the Way of the street or null
+     * @return an array of HouseNumbers indexed by Side ordinal
+     */
+    @NonNull
+    private HouseNumbers[] buildHouseNumbers(@NonNull String street, @Nullable Way streetWay) {
+        Side[] sides = Side.values();
+        List<TreeMap<Integer, OsmElement>> byNumber = new ArrayList<>(sides.length);
+        for (int i = 0; i < sides.length; i++) {
+            byNumber.add(new TreeMap<Integer, OsmElement>());
+        }
+        Map<OsmElement, float[]> locations = new HashMap<>();
+        Set<OsmElement> addresses = addressesByStreet.get(street);
+        if (addresses != null) {
+            for (OsmElement e : addresses) {
+                float[] location = getLocation(e);
+                location[2] = streetWay != null ? getPosition(streetWay, location[0], location[1]) : 0f;
+                locations.put(e, location);
+                Side side = streetWay != null ? getSide(streetWay, location[0], location[1]) : Side.UNKNOWN;
+                TreeMap<Integer, OsmElement> numbers = byNumber.get(side.ordinal());
+                for (int number : getNumbers(e.getTagWithKey(Tags.KEY_ADDR_HOUSENUMBER))) {
+                    if (!numbers.containsKey(number)) {
+                        numbers.put(number, e);
+                    }
+                }
+            }
+        }
+        HouseNumbers[] result = new HouseNumbers[sides.length];
+        for (int i = 0; i < sides.length; i++) {
+            result[i] = new HouseNumbers(byNumber.get(i), locations);
+        }
+        return result;
+    }
+
+    /**
+     * Get the location of an address, for ways the centroid is used
+     *
+     * @param e a Node or Way
+     * @return the WGS84 location, latitude first, 0,0 if it can't be determined, with room for the position along the
+     *         street
+     */
+    @NonNull
+    private static float[] getLocation(@NonNull OsmElement e) {
+        float[] location = new float[3];
+        if (e instanceof Node) {
+            location[0] = ((Node) e).getLat() / 1E7F;
+            location[1] = ((Node) e).getLon() / 1E7F;
+        } else if (e instanceof Way) {
+            double[] center = Logic.centroidLonLat((Way) e);
+            if (center != null) {
+                location[0] = (float) center[1];
+                location[1] = (float) center[0];
+            }
+        }
+        return location;
+    }
+
+    /**
+     * Determine which side of a way a location is on
+     *
+     * @param w the Way
+     * @param lat the WGS84 latitude
+     * @param lon the WGS84 longitude
+     * @return the Side relative to the direction of the way
+     */
+    @NonNull
+    public static Side getSide(@NonNull Way w, float lat, float lon) {
+        Side side = Side.UNKNOWN;
+        double distance = Double.MAX_VALUE;
+
+        // to avoid rounding errors we translate the bb to 0,0
+        BoundingBox bb = w.getBounds();
+        double latOffset = GeoMath.latE7ToMercatorE7(bb.getBottom());
+        double lonOffset = bb.getLeft();
+        double ny = GeoMath.latToMercator(lat) - latOffset / 1E7D;
+        double nx = lon - lonOffset / 1E7D;
+
+        List<Node> nodes = w.getNodes();
+        for (int i = 0; i <= nodes.size() - 2; i++) {
+            double bx = (nodes.get(i).getLon() - lonOffset) / 1E7D;
+            double by = (GeoMath.latE7ToMercatorE7(nodes.get(i).getLat()) - latOffset) / 1E7D;
+            double ax = (nodes.get(i + 1).getLon() - lonOffset) / 1E7D;
+            double ay = (GeoMath.latE7ToMercatorE7(nodes.get(i + 1).getLat()) - latOffset) / 1E7D;
+            float[] closest = GeoMath.closestPoint((float) nx, (float) ny, (float) bx, (float) by, (float) ax, (float) ay);
+            double newDistance = GeoMath.haversineDistance(nx, ny, closest[0], closest[1]);
+            if (newDistance < distance) {
+                distance = newDistance;
+                double determinant = (bx - ax) * (ny - ay) - (by - ay) * (nx - ax);
+                if (determinant < 0) {
+                    side = Side.LEFT;
+                } else if (determinant > 0) {
+                    side = Side.RIGHT;
+                }
+            }
+        }
+        return side;
+    }
+
+    /**
+     * Determine the position of a location along a way
+     *
+     * The location is projected on to the nearest segment of the way
+     *
+     * @param w the Way
+     * @param lat the WGS84 latitude
+     * @param lon the WGS84 longitude
+     * @return the length of the way from its first node to the projected location in meters
+     */
+    public static float getPosition(@NonNull Way w, float lat, float lon) {
+        double distance = Double.MAX_VALUE;
+        double length = 0;
+        double position = 0;
+
+        // to avoid rounding errors we translate the bb to 0,0
+        BoundingBox bb = w.getBounds();
+        double latOffset = GeoMath.latE7ToMercatorE7(bb.getBottom());
+        double lonOffset = bb.getLeft();
+        double ny = GeoMath.latToMercator(lat) - latOffset / 1E7D;
+        double nx = lon - lonOffset / 1E7D;
+
+        List<Node> nodes = w.getNodes();
+        for (int i = 0; i <= nodes.size() - 2; i++) {
+            Node n1 = nodes.get(i);
+            Node n2 = nodes.get(i + 1);
+            double bx = (n1.getLon() - lonOffset) / 1E7D;
+            double by = (GeoMath.latE7ToMercatorE7(n1.getLat()) - latOffset) / 1E7D;
+            double ax = (n2.getLon() - lonOffset) / 1E7D;
+            double ay = (GeoMath.latE7ToMercatorE7(n2.getLat()) - latOffset) / 1E7D;
+            double segmentLength = GeoMath.haversineDistance(n1.getLon() / 1E7D, n1.getLat() / 1E7D, n2.getLon() / 1E7D, n2.getLat() / 1E7D);
+            float[] closest = GeoMath.closestPoint((float) nx, (float) ny, (float) bx, (float) by, (float) ax, (float) ay);
+            double newDistance = GeoMath.haversineDistance(nx, ny, closest[0], closest[1]);
+            if (newDistance < distance) {
+                distance = newDistance;
+                double dx = ax - bx;
+                double dy = ay - by;
+                double squared = dx * dx + dy * dy;
+                double fraction = squared > 0 ? ((closest[0] - bx) * dx + (closest[1] - by) * dy) / squared : 0;
+                position = length + fraction * segmentLength;
+            }
+            length += segmentLength;
+        }
+        return (float) position;
+    }
+
+    /**
+     * Get the numbers from an addr:housenumber value
+     *
+     * The value is split on ",", ";" and "-", non-digits are ignored, parts without digits are returned as 0
+     *
+     * @param housenumber the value or null
+     * @return an array of numbers
+     */
+    @NonNull
+    public static int[] getNumbers(@Nullable String housenumber) {
+        if (housenumber == null) {
+            return new int[0];
+        }
+        String[] parts = housenumber.split("[\\,;\\-]");
+        int[] result = new int[parts.length];
+        int count = 0;
+        for (String part : parts) {
+            StringBuilder sb = new StringBuilder();
+            for (char c : part.toCharArray()) {
+                if (Character.isDigit(c)) {
+                    sb.append(c);
+                }
+            }
+            try {
+                result[count] = sb.length() == 0 ? 0 : Integer.parseInt(sb.toString());
+                count++;
+            } catch (NumberFormatException nfe) {
+                // too many digits, ignore
+            }
+        }
+        return count == parts.length ? result : Arrays.copyOf(result, count);
+    }
+
+    /**
+     * Rebuild the index if it is not valid for storage
+     *
+     * @param storage the Storage
+     */
+    private void ensureIndexed(@NonNull Storage storage) {
+        if (indexed == storage) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        streets.clear();
+        places.clear();
+        addressesByStreet.clear();
+        streetByAddress.clear();
+        numbersByStreet.clear();
+        for (Way w : storage.getWays()) {
+            add(w);
+        }
+        for (Node n : storage.getNodes()) {
+            add(n);
+        }
+        indexed = storage;
+        Log.d(DEBUG_TAG, "Indexed " + streets.cellsByElement.size() + " streets, " + places.cellsByElement.size() + " places and "
+                + streetByAddress.size() + " addresses in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Add an element if it is a named highway or place, or has a house number
+     *
+     * @param e the OsmElement
+     */
+    private void add(@NonNull OsmElement e) {
+        if (e.getState() == OsmElement.STATE_DELETED || !e.hasTags()) {
+            return;
+        }
+        if (e instanceof Way && e.hasTagKey(Tags.KEY_HIGHWAY) && hasName(e, STREET_NAME_TAGS)) {
+            streets.add(e);
+        }
+        if ((e instanceof Way || e instanceof Node) && e.hasTagKey(Tags.KEY_PLACE) && hasName(e, PLACE_NAME_TAGS)) {
+            places.add(e);
+        }
+        if ((e instanceof Way || e instanceof Node) && e.hasTagKey(Tags.KEY_ADDR_HOUSENUMBER)) {
+            String street = e.getTagWithKey(Tags.KEY_ADDR_STREET);
+            if (street == null) {
+                street = e.getTagWithKey(Tags.KEY_ADDR_PLACE);
+            }
+            if (street != null) {
+                Set<OsmElement> addresses = addressesByStreet.get(street);
+                if (addresses == null) {
+                    addresses = new HashSet<>();
+                    addressesByStreet.put(street, addresses);
+                }
+                addresses.add(e);
+                streetByAddress.put(e, street);
+            }
+        }
+    }
+
+    /**
+     * Remove an element from the addresses
+     *
+     * @param e the OsmElement
+     */
+    private void removeAddress(@NonNull OsmElement e) {
+        String street = streetByAddress.remove(e);
+        if (street != null) {
+            numbersByStreet.remove(street);
+            Set<OsmElement> addresses = addressesByStreet.get(street);
+            if (addresses != null) {
+                addresses.remove(e);
+                if (addresses.isEmpty()) {
+                    addressesByStreet.remove(street);
+                }
+            }
+        }
+    }
+
+    /**
+     * Check if an element has any of the name tags
+     *
+     * @param e the OsmElement
+     * @param nameTags the keys to check
+     * @return true if one of the keys is present
+     */
+    private static boolean hasName(@NonNull OsmElement e, @NonNull String[] nameTags) {
+        for (String key : nameTags) {
+            if (e.getTagWithKey(key) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
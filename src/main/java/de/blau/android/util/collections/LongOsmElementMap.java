@@ -262,6 +262,35 @@ public class LongOsmElementMap<V extends OsmElement> implements Iterable<V>, Ser
         }
     }
 
+    /**
+     * Move an element whose id has changed from its old key to its current id without rehashing the whole map
+     * 
+     * As the element may no longer be found by its id, it is identified by reference in the chain for oldKey
+     * 
+     * @param oldKey the key the element was stored under
+     * @param value the element
+     * @return true if the element was found under oldKey
+     */
+    public boolean remap(final long oldKey, @NonNull final V value) {
+        int ptr = (int) (Tools.phiMix(oldKey) & m_mask);
+        while (true) {
+            OsmElement e = m_data[ptr];
+            if (e == FREE_KEY) {
+                return false; // end of chain
+            } else if (e == value) {
+                --m_size;
+                if (m_data[(int) ((ptr + 1) & m_mask)] == FREE_KEY) { // this shortens the chain
+                    m_data[ptr] = FREE_KEY;
+                } else {
+                    m_data[ptr] = removedKey;
+                }
+                put(value.getOsmId(), value);
+                return true;
+            }
+            ptr = (int) ((ptr + 1) & m_mask); // that's next index calculation
+        }
+    }
+
     /**
      * Return true if the map contains an object with the specified key
      * 
@@ -3,7 +3,7 @@ package de.blau.android.util.collections;
 /**
  * Common methods Taken from FastUtil implementation
  */
-final class Tools {
+public final class Tools {
 
     /**
      * Default constructor
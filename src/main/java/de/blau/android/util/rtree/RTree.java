@@ -1,8 +1,13 @@
 package de.blau.android.util.rtree;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 
 import android.support.annotation.NonNull;
@@ -13,6 +18,10 @@ import de.blau.android.osm.BoundingBox;
  * 2D R-Tree implementation for Android. Uses algorithms from:
  * http://www.sai.msu.su/~megera/postgres/gist/papers/Rstar3.pdf
  * 
+ * Queries don't lock and can run concurrently with modifications: Nodes are never changed once they are reachable
+ * from the published root, modifications copy the path from the affected leaf to the root and publish the new root
+ * when done. Modifications are serialized.
+ * 
  * @author Colonel32
  * @author cnvandev
  * @author simonpoole
@@ -20,11 +29,25 @@ import de.blau.android.osm.BoundingBox;
 public class RTree implements Serializable {
     private static final long     serialVersionUID = 1L;
     private static final String   DEBUG_TAG        = RTree.class.getName();
-    private Node                  root;
+    private volatile Node         root;
+    private transient Node        working;
     private int                   maxSize;
     private int                   minSize;
     private QuadraticNodeSplitter splitter;
 
+    /**
+     * Callback for queries that process the results directly instead of collecting them
+     */
+    public interface Visitor {
+
+        /**
+         * Process an object found by a query
+         * 
+         * @param o the object
+         */
+        void visit(@NonNull BoundedObject o);
+    }
+
     private class Node implements BoundedObject, Serializable {
         private static final long serialVersionUID = 1L;
         private final String      DEBUG_TAG        = Node.class.getName();
@@ -32,6 +55,7 @@ public class RTree implements Serializable {
         BoundingBox               box;
         ArrayList<Node>           children;
         ArrayList<BoundedObject>  data;
+        transient int[]           bounds;  // left, bottom, right, top of each entry in data
 
         /**
          * Construct a new tree Node
@@ -64,19 +88,6 @@ public class RTree implements Serializable {
             return parent == null;
         }
 
-        /**
-         * Add this Node to a parent Node
-         * 
-         * @param parent the parent
-         */
-        public void addTo(@NonNull Node parent) {
-            // assert(parent.children != null);
-            parent.children.add(this);
-            this.parent = parent;
-            computeMBR();
-            splitter.split(parent);
-        }
-
         /**
          * Compute and set the BoundingBox for this Node and its parents
          */
@@ -103,14 +114,22 @@ public class RTree implements Serializable {
                     box.union(children.get(i).box);
                 }
             } else {
-                if (data.isEmpty()) {
+                int size = data.size();
+                bounds = new int[size * 4];
+                if (size == 0) {
                     return;
                 }
 
-                box.set(data.get(0).getBounds());
-                for (int i = 1; i < data.size(); i++) {
+                for (int i = 0; i < size; i++) {
                     BoundingBox box2 = data.get(i).getBounds();
-                    if (box2.isEmpty()) {
+                    int j = i * 4;
+                    bounds[j] = box2.getLeft();
+                    bounds[j + 1] = box2.getBottom();
+                    bounds[j + 2] = box2.getRight();
+                    bounds[j + 3] = box2.getTop();
+                    if (i == 0) {
+                        box.set(box2);
+                    } else if (box2.isEmpty()) {
                         box.union(box2.getLeft(), box2.getTop());
                     } else {
                         box.union(box2);
@@ -123,25 +142,6 @@ public class RTree implements Serializable {
             }
         }
 
-        /**
-         * REmove this Node from the tree
-         */
-        public void remove() {
-            if (parent == null) {
-                // assert(root == this);
-                root = null;
-                return;
-            }
-
-            parent.children.remove(this);
-
-            if (parent.children.isEmpty()) {
-                parent.remove();
-            } else {
-                parent.computeMBR();
-            }
-        }
-
         /**
          * Get a List of the items this Node contains
          * 
@@ -287,10 +287,21 @@ public class RTree implements Serializable {
             } else {
                 distributeBranches(n, group1, group2);
             }
+            replace(n, group1, group2);
+        }
+
+        /**
+         * Replace a Node that has been split by the two new Nodes, splitting the parent if necessary
+         * 
+         * @param n the Node that has been split
+         * @param group1 the first new Node
+         * @param group2 the second new Node
+         */
+        void replace(@NonNull Node n, @NonNull Node group1, @NonNull Node group2) {
             Node parent = n.parent;
             if (parent == null) {
                 parent = new Node(false);
-                root = parent;
+                working = parent;
             } else {
                 parent.children.remove(n);
             }
@@ -317,8 +328,8 @@ public class RTree implements Serializable {
                 long overlap2 = -1;
                 for (int i = 0; i < n.children.size(); i++) {
                     Node node = n.children.get(i);
-                    long expansion1 = expansionNeeded(node.box, g1.box);
-                    long expansion2 = expansionNeeded(node.box, g2.box);
+                    long expansion1 = expansionNeeded(g1.box, node.box);
+                    long expansion2 = expansionNeeded(g2.box, node.box);
                     long dif = Math.abs(expansion1 - expansion2);
                     if (dif > difmax) {
                         difmax = dif;
@@ -334,9 +345,9 @@ public class RTree implements Serializable {
                 Node parent = null;
 
                 // ... to the one with the least expansion
-                if (overlap1 > overlap2) {
+                if (overlap1 < overlap2) {
                     parent = g1;
-                } else if (overlap2 > overlap1) {
+                } else if (overlap2 < overlap1) {
                     parent = g2;
                 } else {
                     // Or the one with the lowest area
@@ -357,6 +368,7 @@ public class RTree implements Serializable {
                 }
                 // assert(parent != null);
                 parent.children.add(nmax);
+                parent.box.union(nmax.box);
                 nmax.parent = parent;
             }
 
@@ -389,12 +401,14 @@ public class RTree implements Serializable {
                     // BoundedObject node = n.data.get(i);
                     // BoundingBox b = node.getBounds();
                     BoundingBox b = cache.get(i);
-                    long d1 = expansionNeeded(b, g1.box);
-                    long d2 = expansionNeeded(b, g2.box);
+                    long d1 = expansionNeeded(g1.box, b);
+                    long d2 = expansionNeeded(g2.box, b);
                     long dif = Math.abs(d1 - d2);
                     if (dif > difmax) {
                         difmax = dif;
                         nmax_index = i;
+                        overlap1 = d1;
+                        overlap2 = d2;
                     }
                 }
                 // assert(nmax_index != -1);
@@ -403,28 +417,29 @@ public class RTree implements Serializable {
                 BoundedObject nmax = n.data.remove(nmax_index);
 
                 // ... to the one with the least expansion
-                // BoundingBox b = nmax.getBounds();
-                cache.remove(nmax_index);
-
-                if (overlap1 > overlap2) {
-                    g1.data.add(nmax);
-                } else if (overlap2 > overlap1) {
-                    g2.data.add(nmax);
+                BoundingBox b = cache.remove(nmax_index);
+                Node parent = null;
+                if (overlap1 < overlap2) {
+                    parent = g1;
+                } else if (overlap2 < overlap1) {
+                    parent = g2;
                 } else {
                     double area1 = area(g1.box);
                     double area2 = area(g2.box);
                     if (area1 > area2) {
-                        g2.data.add(nmax);
+                        parent = g2;
                     } else if (area2 > area1) {
-                        g1.data.add(nmax);
+                        parent = g1;
                     } else {
                         if (g1.data.size() < g2.data.size()) {
-                            g1.data.add(nmax);
+                            parent = g1;
                         } else {
-                            g2.data.add(nmax);
+                            parent = g2;
                         }
                     }
                 }
+                parent.data.add(nmax);
+                parent.box.union(b);
             }
 
             if (!n.data.isEmpty()) {
@@ -438,6 +453,212 @@ public class RTree implements Serializable {
         }
     }
 
+    /**
+     * R*-tree split: choose the axis with the smallest sum of margins over all distributions, then the distribution on
+     * that axis with the least overlap, then the least area. Forced reinsertion is not implemented.
+     * 
+     * This extends QuadraticNodeSplitter so that the serialized form of existing trees doesn't change.
+     */
+    private class RStarNodeSplitter extends QuadraticNodeSplitter {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void split(@NonNull Node n) {
+            if (n.size() <= maxSize) {
+                return;
+            }
+            boolean isLeaf = n.isLeaf();
+            List<Item> items = items(n.getSubItems());
+            int count = items.size();
+
+            // choose the axis
+            long xMargin = marginSum(items, LEFT) + marginSum(items, RIGHT);
+            long yMargin = marginSum(items, BOTTOM) + marginSum(items, TOP);
+            Comparator<Item> lower = xMargin <= yMargin ? LEFT : BOTTOM;
+            Comparator<Item> upper = xMargin <= yMargin ? RIGHT : TOP;
+
+            // choose the distribution
+            double bestOverlap = Double.MAX_VALUE;
+            double bestArea = Double.MAX_VALUE;
+            Comparator<Item> bestOrder = lower;
+            int bestSplit = minSize;
+            for (Comparator<Item> order : Arrays.asList(lower, upper)) {
+                Collections.sort(items, order);
+                BoundingBox[] head = prefixBounds(items);
+                BoundingBox[] tail = suffixBounds(items);
+                for (int k = minSize; k <= count - minSize; k++) {
+                    BoundingBox b1 = head[k - 1];
+                    BoundingBox b2 = tail[k];
+                    double overlap = overlap(b1, b2);
+                    double area = area(b1) + area(b2);
+                    if (overlap < bestOverlap || (overlap == bestOverlap && area < bestArea)) {
+                        bestOverlap = overlap;
+                        bestArea = area;
+                        bestOrder = order;
+                        bestSplit = k;
+                    }
+                }
+            }
+            Collections.sort(items, bestOrder);
+
+            Node group1 = new Node(isLeaf);
+            Node group2 = new Node(isLeaf);
+            for (int i = 0; i < count; i++) {
+                Node group = i < bestSplit ? group1 : group2;
+                BoundedObject o = items.get(i).object;
+                if (isLeaf) {
+                    group.data.add(o);
+                } else {
+                    group.children.add((Node) o);
+                    ((Node) o).parent = group;
+                }
+            }
+            replace(n, group1, group2);
+        }
+
+        /**
+         * Sum the margins of all distributions of the items in a sort order
+         * 
+         * @param items the items
+         * @param order the sort order
+         * @return the sum of the margins
+         */
+        private long marginSum(@NonNull List<Item> items, @NonNull Comparator<Item> order) {
+            Collections.sort(items, order);
+            BoundingBox[] head = prefixBounds(items);
+            BoundingBox[] tail = suffixBounds(items);
+            long sum = 0;
+            for (int k = minSize; k <= items.size() - minSize; k++) {
+                sum += margin(head[k - 1]) + margin(tail[k]);
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * An entry with its bounds cached for sorting
+     */
+    private static final class Item {
+        final BoundedObject object;
+        final BoundingBox   box;
+
+        /**
+         * Construct a new Item
+         * 
+         * @param object the entry
+         */
+        Item(@NonNull BoundedObject object) {
+            this.object = object;
+            this.box = object.getBounds();
+        }
+    }
+
+    /**
+     * Compare two long values, Long.compare is not available before Android 19
+     * 
+     * @param x the first value
+     * @param y the second value
+     * @return a negative value, 0 or a positive value if x is smaller, equal to or larger than y
+     */
+    private static int compareLong(long x, long y) {
+        return x < y ? -1 : (x == y ? 0 : 1);
+    }
+
+    private static final Comparator<Item> LEFT = new Comparator<Item>() {
+        @Override
+        public int compare(Item i1, Item i2) {
+            return compareLong(i1.box.getLeft(), i2.box.getLeft());
+        }
+    };
+
+    private static final Comparator<Item> RIGHT = new Comparator<Item>() {
+        @Override
+        public int compare(Item i1, Item i2) {
+            return compareLong(i1.box.getRight(), i2.box.getRight());
+        }
+    };
+
+    private static final Comparator<Item> BOTTOM = new Comparator<Item>() {
+        @Override
+        public int compare(Item i1, Item i2) {
+            return compareLong(i1.box.getBottom(), i2.box.getBottom());
+        }
+    };
+
+    private static final Comparator<Item> TOP = new Comparator<Item>() {
+        @Override
+        public int compare(Item i1, Item i2) {
+            return compareLong(i1.box.getTop(), i2.box.getTop());
+        }
+    };
+
+    private static final Comparator<Item> CENTER_X = new Comparator<Item>() {
+        @Override
+        public int compare(Item i1, Item i2) {
+            return compareLong((long) i1.box.getLeft() + i1.box.getRight(), (long) i2.box.getLeft() + i2.box.getRight());
+        }
+    };
+
+    private static final Comparator<Item> CENTER_Y = new Comparator<Item>() {
+        @Override
+        public int compare(Item i1, Item i2) {
+            return compareLong((long) i1.box.getBottom() + i1.box.getTop(), (long) i2.box.getBottom() + i2.box.getTop());
+        }
+    };
+
+    /**
+     * Wrap entries in Items
+     * 
+     * @param objects the entries
+     * @return a List of Items
+     */
+    @NonNull
+    private static List<Item> items(@NonNull Collection<? extends BoundedObject> objects) {
+        List<Item> result = new ArrayList<>(objects.size());
+        for (BoundedObject o : objects) {
+            result.add(new Item(o));
+        }
+        return result;
+    }
+
+    /**
+     * Get the bounds of the first 1 .. n items
+     * 
+     * @param items the items
+     * @return an array with the BoundingBox of items 0 .. i at index i
+     */
+    @NonNull
+    private static BoundingBox[] prefixBounds(@NonNull List<Item> items) {
+        int count = items.size();
+        BoundingBox[] result = new BoundingBox[count];
+        BoundingBox box = new BoundingBox(items.get(0).box);
+        result[0] = new BoundingBox(box);
+        for (int i = 1; i < count; i++) {
+            box.union(items.get(i).box);
+            result[i] = new BoundingBox(box);
+        }
+        return result;
+    }
+
+    /**
+     * Get the bounds of the last 1 .. n items
+     * 
+     * @param items the items
+     * @return an array with the BoundingBox of items i .. n-1 at index i
+     */
+    @NonNull
+    private static BoundingBox[] suffixBounds(@NonNull List<Item> items) {
+        int count = items.size();
+        BoundingBox[] result = new BoundingBox[count];
+        BoundingBox box = new BoundingBox(items.get(count - 1).box);
+        result[count - 1] = new BoundingBox(box);
+        for (int i = count - 2; i >= 0; i--) {
+            box.union(items.get(i).box);
+            result[i] = new BoundingBox(box);
+        }
+        return result;
+    }
+
     /**
      * Creates an R-Tree. Sets the splitting algorithm to quadratic splitting.
      * 
@@ -445,24 +666,129 @@ public class RTree implements Serializable {
      * @param maxChildren Maximum children in a node. Node splits at this number + 1
      */
     public RTree(int minChildren, int maxChildren) {
+        this(minChildren, maxChildren, false);
+    }
+
+    /**
+     * Creates an R-Tree
+     * 
+     * @param minChildren Minimum children in a node. {@code 2 <= minChildren <= maxChildren/2}
+     * @param maxChildren Maximum children in a node. Node splits at this number + 1
+     * @param rStarSplit if true use the R*-tree split algorithm instead of quadratic splitting
+     */
+    public RTree(int minChildren, int maxChildren, boolean rStarSplit) {
         if (minChildren < 2 || minChildren > maxChildren / 2) {
             throw new IllegalArgumentException("2 <= minChildren <= maxChildren/2");
         }
-        splitter = new QuadraticNodeSplitter();
+        splitter = rStarSplit ? new RStarNodeSplitter() : new QuadraticNodeSplitter();
 
         this.minSize = minChildren;
         this.maxSize = maxChildren;
         root = null;
     }
 
+    /**
+     * Creates an R-Tree containing objects, see {@link #load(Collection)}
+     * 
+     * @param minChildren Minimum children in a node. {@code 2 <= minChildren <= maxChildren/2}
+     * @param maxChildren Maximum children in a node. Node splits at this number + 1
+     * @param objects the objects to store in the tree
+     */
+    public RTree(int minChildren, int maxChildren, @NonNull Collection<? extends BoundedObject> objects) {
+        this(minChildren, maxChildren, false);
+        load(objects);
+    }
+
+    /**
+     * Replace the contents of the tree with objects
+     * 
+     * The tree is built bottom up with Sort-Tile-Recursive packing: the objects are sorted by x and cut in to vertical
+     * slices, each slice is sorted by y and cut in to full nodes. The same is repeated for the nodes of each level
+     * until only the root is left. This is O(n log n) and results in much better packed nodes than inserting the
+     * objects one by one.
+     * 
+     * @param objects the objects to store in the tree
+     */
+    public synchronized void load(@NonNull Collection<? extends BoundedObject> objects) {
+        if (objects.isEmpty()) {
+            root = null;
+            return;
+        }
+        List<Node> level = new ArrayList<>();
+        for (List<Item> group : tile(items(objects))) {
+            Node leaf = new Node(true);
+            for (Item item : group) {
+                leaf.data.add(item.object);
+            }
+            leaf.computeMBR(false);
+            level.add(leaf);
+        }
+        while (level.size() > 1) {
+            List<Node> next = new ArrayList<>();
+            for (List<Item> group : tile(items(level))) {
+                Node node = new Node(false);
+                for (Item item : group) {
+                    Node child = (Node) item.object;
+                    child.parent = node;
+                    node.children.add(child);
+                }
+                node.computeMBR(false);
+                next.add(node);
+            }
+            level = next;
+        }
+        root = level.get(0);
+    }
+
+    /**
+     * Sort items in to groups of at most maxSize that are close to each other
+     * 
+     * The groups differ in size by at most one, so no group is smaller than minSize if there is more than one.
+     * 
+     * @param items the items, will be reordered
+     * @return a List of groups
+     */
+    @NonNull
+    private List<List<Item>> tile(@NonNull List<Item> items) {
+        int count = items.size();
+        int groups = (count + maxSize - 1) / maxSize;
+        int slices = (int) Math.ceil(Math.sqrt(groups));
+        Collections.sort(items, CENTER_X);
+        List<List<Item>> result = new ArrayList<>(groups);
+        int group = 0;
+        for (int slice = 0; slice < slices; slice++) {
+            int sliceGroups = groups / slices + (slice < groups % slices ? 1 : 0);
+            int start = start(group, groups, count);
+            int end = start(group + sliceGroups, groups, count);
+            List<Item> sliceItems = new ArrayList<>(items.subList(start, end));
+            Collections.sort(sliceItems, CENTER_Y);
+            for (int i = 0; i < sliceGroups; i++) {
+                result.add(sliceItems.subList(start(group + i, groups, count) - start, start(group + i + 1, groups, count) - start));
+            }
+            group += sliceGroups;
+        }
+        return result;
+    }
+
+    /**
+     * Get the index of the first item of a group when count items are distributed evenly over groups
+     * 
+     * @param group the group
+     * @param groups the number of groups
+     * @param count the number of items
+     * @return the index of the first item in the group
+     */
+    private static int start(int group, int groups, int count) {
+        return (int) ((long) group * count / groups);
+    }
+
     /**
      * Return all items in the tree
      * 
      * @param results A collection to store the query results
      */
     public void query(Collection<BoundedObject> results) {
-        BoundingBox box = new BoundingBox(-BoundingBox.MAX_LON_E7, -BoundingBox.MAX_LAT_E7, BoundingBox.MAX_LON_E7, BoundingBox.MAX_LAT_E7);
-        query(results, box, root);
+        query(results, -BoundingBox.MAX_LON_E7, -BoundingBox.MAX_LAT_E7, BoundingBox.MAX_LON_E7, BoundingBox.MAX_LAT_E7);
     }
 
     /**
@@ -472,43 +798,101 @@ public class RTree implements Serializable {
      * @param box the BoundingBox we are querying
      */
     public void query(Collection<BoundedObject> results, BoundingBox box) {
-        query(results, box, root);
+        query(results, box.getLeft(), box.getBottom(), box.getRight(), box.getTop());
     }
 
     /**
-     * Return all items for which the bounding box intersects with box starting at node
+     * Add all items for which the bounding box intersects with the query area to results
      * 
+     * The caller has to ensure that the items are of type T. No objects are allocated, so results can be reused to
+     * avoid allocations when querying frequently.
+     * 
+     * @param <T> the type of the items
      * @param results a Collection holding the results
-     * @param box the BoundingBox we are querying
+     * @param left left side of the query area (WGS84*1E7)
+     * @param bottom bottom of the query area (WGS84*1E7)
+     * @param right right side of the query area (WGS84*1E7)
+     * @param top top of the query area (WGS84*1E7)
+     */
+    public <T extends BoundedObject> void query(@NonNull Collection<? super T> results, int left, int bottom, int right, int top) {
+        query(results, left, bottom, right, top, root);
+    }
+
+    /**
+     * Add all items for which the bounding box intersects with the query area to results starting at node
+     * 
+     * @param <T> the type of the items
+     * @param results a Collection holding the results
+     * @param left left side of the query area (WGS84*1E7)
+     * @param bottom bottom of the query area (WGS84*1E7)
+     * @param right right side of the query area (WGS84*1E7)
+     * @param top top of the query area (WGS84*1E7)
      * @param node the Node to start at
      */
-    private void query(Collection<BoundedObject> results, BoundingBox box, Node node) {
-        // Log.d(DEBUG_TAG,"query called");
+    @SuppressWarnings("unchecked")
+    private <T extends BoundedObject> void query(@NonNull Collection<? super T> results, int left, int bottom, int right, int top,
+            @Nullable Node node) {
         if (node == null) {
             return;
         }
         if (node.isLeaf()) {
-            // Log.d(DEBUG_TAG,"leaf");
+            int[] bounds = node.bounds;
             for (int i = 0; i < node.data.size(); i++) {
-                BoundedObject bo = node.data.get(i);
-                BoundingBox box2 = bo.getBounds();
-                if (!box2.isEmpty()) {
-                    if (BoundingBox.intersects(box2, box)) {
-                        results.add(bo);
-                    }
-                } else {
-                    // Log.d(DEBUG_TAG,"point " + box2.left + " " + box2.top + " " + box);
-                    if (box.contains(box2.getLeft(), box2.getTop())) {
-                        results.add(bo);
-                        // Log.d(DEBUG_TAG,"adding " + bo);
-                    }
+                if (intersects(bounds, i, left, bottom, right, top)) {
+                    results.add((T) node.data.get(i));
                 }
             }
         } else {
-            // Log.d(DEBUG_TAG,"not leaf");
             for (int i = 0; i < node.children.size(); i++) {
-                if (BoundingBox.intersects(node.children.get(i).box, box)) {
-                    query(results, box, node.children.get(i));
+                Node child = node.children.get(i);
+                if (intersects(child.box, left, bottom, right, top)) {
+                    query(results, left, bottom, right, top, child);
+                }
+            }
+        }
+    }
+
+    /**
+     * Call visitor for all items for which the bounding box intersects with the query area
+     * 
+     * No objects are allocated.
+     * 
+     * @param visitor the Visitor
+     * @param left left side of the query area (WGS84*1E7)
+     * @param bottom bottom of the query area (WGS84*1E7)
+     * @param right right side of the query area (WGS84*1E7)
+     * @param top top of the query area (WGS84*1E7)
+     */
+    public void query(@NonNull Visitor visitor, int left, int bottom, int right, int top) {
+        query(visitor, left, bottom, right, top, root);
+    }
+
+    /**
+     * Call visitor for all items for which the bounding box intersects with the query area starting at node
+     * 
+     * @param visitor the Visitor
+     * @param left left side of the query area (WGS84*1E7)
+     * @param bottom bottom of the query area (WGS84*1E7)
+     * @param right right side of the query area (WGS84*1E7)
+     * @param top top of the query area (WGS84*1E7)
+     * @param node the Node to start at
+     */
+    private void query(@NonNull Visitor visitor, int left, int bottom, int right, int top, @Nullable Node node) {
+        if (node == null) {
+            return;
+        }
+        if (node.isLeaf()) {
+            int[] bounds = node.bounds;
+            for (int i = 0; i < node.data.size(); i++) {
+                if (intersects(bounds, i, left, bottom, right, top)) {
+                    visitor.visit(node.data.get(i));
+                }
+            }
+        } else {
+            for (int i = 0; i < node.children.size(); i++) {
+                Node child = node.children.get(i);
+                if (intersects(child.box, left, bottom, right, top)) {
+                    query(visitor, left, bottom, right, top, child);
                 }
             }
         }
@@ -522,39 +906,37 @@ public class RTree implements Serializable {
      */
     @Nullable
     public BoundedObject queryOne(@NonNull BoundingBox box) {
-        return queryOne(box, root);
+        return queryOne(box.getLeft(), box.getBottom(), box.getRight(), box.getTop(), root);
     }
 
     /**
-     * Returns one item that intersects the query box, or null if nothing intersects the query box, starting at node
+     * Returns one item that intersects the query area, or null if nothing intersects it, starting at node
      * 
-     * @param box the BoundingBox we are querying
+     * @param left left side of the query area (WGS84*1E7)
+     * @param bottom bottom of the query area (WGS84*1E7)
+     * @param right right side of the query area (WGS84*1E7)
+     * @param top top of the query area (WGS84*1E7)
      * @param node Node to start at
      * @return a BoundedObject or null ir none found
      */
     @Nullable
-    private BoundedObject queryOne(@NonNull BoundingBox box, @Nullable Node node) {
+    private BoundedObject queryOne(int left, int bottom, int right, int top, @Nullable Node node) {
         if (node == null) {
             return null;
         }
         if (node.isLeaf()) {
+            int[] bounds = node.bounds;
             for (int i = 0; i < node.data.size(); i++) {
-                BoundingBox box2 = node.data.get(i).getBounds();
-                if (!box2.isEmpty()) {
-                    if (BoundingBox.intersects(box2, box)) {
-                        return node.data.get(i);
-                    }
-                } else {
-                    if (box.contains(box2.getLeft(), box2.getTop())) {
-                        return node.data.get(i);
-                    }
+                if (intersects(bounds, i, left, bottom, right, top)) {
+                    return node.data.get(i);
                 }
             }
             return null;
         } else {
             for (int i = 0; i < node.children.size(); i++) {
-                if (BoundingBox.intersects(node.children.get(i).box, box)) {
-                    BoundedObject result = queryOne(box, node.children.get(i));
+                Node child = node.children.get(i);
+                if (intersects(child.box, left, bottom, right, top)) {
+                    BoundedObject result = queryOne(left, bottom, right, top, child);
                     if (result != null) {
                         return result;
                     }
@@ -571,90 +953,50 @@ public class RTree implements Serializable {
      * @param px Point X coordinate
      * @param py Point Y coordinate
      */
-    @Nullable
     public void query(@NonNull Collection<? super BoundedObject> results, int px, int py) {
-        query(results, px, py, root);
+        query(results, px, py, px, py, root);
     }
 
     /**
-     * Returns items whose Rect contains the specified point, start at node.
+     * Returns one item that intersects the query point, or null if no items intersect that point, starting at the root.
      * 
-     * @param results A collection to store the query results.
      * @param px Point X coordinate
      * @param py Point Y coordinate
-     * @param node the node to start at
+     * @return a found BoundedObject or null if none found
      */
     @Nullable
-    private void query(@NonNull Collection<? super BoundedObject> results, int px, int py, @Nullable Node node) {
-        if (node == null) {
-            return;
-        }
-        if (node.isLeaf()) {
-            for (int i = 0; i < node.data.size(); i++) {
-                BoundedObject bo = node.data.get(i);
-                BoundingBox b = bo.getBounds();
-                if (b.isEmpty()) {
-                    if (b.getLeft() == px && b.getTop() == py) {
-                        results.add(bo);
-                    }
-                } else {
-                    if (b.contains(px, py)) {
-                        results.add(bo);
-                    }
-                }
-            }
-        } else {
-            for (int i = 0; i < node.children.size(); i++) {
-                if (node.children.get(i).box.contains(px, py)) {
-                    query(results, px, py, node.children.get(i));
-                }
-            }
-        }
+    public BoundedObject queryOne(int px, int py) {
+        return queryOne(px, py, px, py, root);
     }
 
     /**
-     * Returns one item that intersects the query point, or null if no items intersect that point, starting at the root.
+     * Check if a BoundingBox intersects with an area, borders are included
      * 
-     * @param px Point X coordinate
-     * @param py Point Y coordinate
-     * @return a found BoundedObject or null if none found
+     * @param box the BoundingBox
+     * @param left left side of the area
+     * @param bottom bottom of the area
+     * @param right right side of the area
+     * @param top top of the area
+     * @return true if they intersect
      */
-    @Nullable
-    public BoundedObject queryOne(int px, int py) {
-        return queryOne(px, py, root);
+    private static boolean intersects(@NonNull BoundingBox box, int left, int bottom, int right, int top) {
+        return box.getLeft() <= right && box.getRight() >= left && box.getBottom() <= top && box.getTop() >= bottom;
     }
 
     /**
-     * Returns one item that intersects the query point, or null if no items intersect that point, starting at node.
+     * Check if the cached bounds of a leaf entry intersect with an area, borders are included
      * 
-     * @param px Point X coordinate
-     * @param py Point Y coordinate
-     * @param node the Node to start at
-     * @return a found BoundedObject or null if none found
+     * @param bounds the cached bounds of the leaf
+     * @param i the index of the entry
+     * @param left left side of the area
+     * @param bottom bottom of the area
+     * @param right right side of the area
+     * @param top top of the area
+     * @return true if they intersect
      */
-    @Nullable
-    private BoundedObject queryOne(int px, int py, @Nullable Node node) {
-        if (node == null) {
-            return null;
-        }
-        if (node.isLeaf()) {
-            for (int i = 0; i < node.data.size(); i++) {
-                if (node.data.get(i).getBounds().contains(px, py)) {
-                    return node.data.get(i);
-                }
-            }
-            return null;
-        } else {
-            for (int i = 0; i < node.children.size(); i++) {
-                if (node.children.get(i).box.contains(px, py)) {
-                    BoundedObject result = queryOne(px, py, node.children.get(i));
-                    if (result != null) {
-                        return result;
-                    }
-                }
-            }
-            return null;
-        }
+    private static boolean intersects(@NonNull int[] bounds, int i, int left, int bottom, int right, int top) {
+        int j = i * 4;
+        return bounds[j] <= right && bounds[j + 2] >= left && bounds[j + 1] <= top && bounds[j + 3] >= bottom;
     }
 
     /**
@@ -663,11 +1005,13 @@ public class RTree implements Serializable {
      * @param o object to remove
      */
     public synchronized void remove(BoundedObject o) {
-        Node n = chooseLeaf(o.getBounds(), root);
+        Node n = findLeaf(o, root);
         // assert(n.isLeaf());
         if (n != null) {
+            n = copyPath(n);
             n.data.remove(o);
             n.computeMBR();
+            publish();
         }
     }
 
@@ -677,13 +1021,39 @@ public class RTree implements Serializable {
      * @param o object to search for
      * @return true if the object is present in the tree, false otherwise
      */
-    public synchronized boolean contains(BoundedObject o) {
-        Node n = chooseLeaf(o.getBounds(), root);
-        // assert(n.isLeaf());
-        if (n != null) {
-            return n.data.contains(o);
+    public boolean contains(BoundedObject o) {
+        return findLeaf(o, root) != null;
+    }
+
+    /**
+     * Find the leaf containing an object
+     * 
+     * The leaf chosen for insertion depends on the state of the tree at that time and the tree may have been bulk
+     * loaded, so all nodes that cover the object need to be searched.
+     * 
+     * @param o object to search for
+     * @param n the Node to start at
+     * @return the leaf Node containing o or null if it isn't in the tree
+     */
+    @Nullable
+    private Node findLeaf(@NonNull BoundedObject o, @Nullable Node n) {
+        if (n == null) {
+            return null;
         }
-        return false;
+        if (n.isLeaf()) {
+            return n.data.contains(o) ? n : null;
+        }
+        BoundingBox box = o.getBounds();
+        for (int i = 0; i < n.children.size(); i++) {
+            Node child = n.children.get(i);
+            if (BoundingBox.intersects(child.box, box)) {
+                Node leaf = findLeaf(o, child);
+                if (leaf != null) {
+                    return leaf;
+                }
+            }
+        }
+        return null;
     }
 
     /**
@@ -697,17 +1067,88 @@ public class RTree implements Serializable {
         if (o == null) {
             throw new NullPointerException("Cannot store null object");
         }
-        if (root == null) {
-            root = new Node(true);
-        }
-        Node n = chooseLeaf(o.getBounds(), root);
+        Node n = root == null ? null : chooseLeaf(o.getBounds(), root);
         // assert(n.isLeaf());
         if (n == null) {
-            throw new NullPointerException("No node found for object");
+            n = new Node(true);
+            working = n;
+        } else {
+            n = copyPath(n);
         }
         n.data.add(o);
         n.computeMBR();
         splitter.split(n);
+        publish();
+    }
+
+    /**
+     * Copy a Node and all its ancestors so that they can be modified without affecting concurrent queries
+     * 
+     * The copy of the root is stored in working, the children of the copies are changed to refer to them as parent.
+     * 
+     * @param n the Node to copy
+     * @return the copy of n
+     */
+    @NonNull
+    private Node copyPath(@NonNull Node n) {
+        Node copy = new Node(n.isLeaf());
+        if (n.isLeaf()) {
+            copy.data.addAll(n.data);
+        } else {
+            copy.children.addAll(n.children);
+            for (int i = 0; i < copy.children.size(); i++) {
+                copy.children.get(i).parent = copy;
+            }
+        }
+        if (n.box != null) {
+            copy.box = new BoundingBox(n.box);
+        }
+        Node parent = n.parent;
+        if (parent == null) {
+            working = copy;
+        } else {
+            parent = copyPath(parent);
+            parent.children.set(parent.children.indexOf(n), copy);
+            copy.parent = parent;
+        }
+        return copy;
+    }
+
+    /**
+     * Make the modified tree visible to queries
+     */
+    private void publish() {
+        root = working;
+        working = null;
+    }
+
+    /**
+     * Read the tree and rebuild the cached bounds of the leaves
+     * 
+     * @param in the ObjectInputStream
+     * @throws IOException if reading fails
+     * @throws ClassNotFoundException if a class can't be found
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (root != null) {
+            restoreBounds(root);
+        }
+    }
+
+    /**
+     * Recompute the cached bounds of the leaves below n
+     * 
+     * @param n the Node to start at
+     */
+    private void restoreBounds(@NonNull Node n) {
+        if (n.isLeaf()) {
+            n.computeMBR(false);
+        } else {
+            for (int i = 0; i < n.children.size(); i++) {
+                restoreBounds(n.children.get(i));
+            }
+        }
     }
 
     /**
@@ -716,10 +1157,11 @@ public class RTree implements Serializable {
      * @return the item count
      */
     public int count() {
-        if (root == null) {
+        Node current = root;
+        if (current == null) {
             return 0;
         }
-        return count(root);
+        return count(current);
     }
 
     /**
@@ -741,6 +1183,36 @@ public class RTree implements Serializable {
         }
     }
 
+    /**
+     * Count the nodes a query for box visits, for testing and benchmarking
+     * 
+     * @param box the BoundingBox we are querying
+     * @return the number of nodes visited
+     */
+    int queryVisits(@NonNull BoundingBox box) {
+        Node current = root;
+        return current == null ? 0 : queryVisits(box, current);
+    }
+
+    /**
+     * Count the nodes a query for box visits starting at node
+     * 
+     * @param box the BoundingBox we are querying
+     * @param node the Node to start at
+     * @return the number of nodes visited
+     */
+    private int queryVisits(@NonNull BoundingBox box, @NonNull Node node) {
+        int visits = 1;
+        if (!node.isLeaf()) {
+            for (int i = 0; i < node.children.size(); i++) {
+                if (BoundingBox.intersects(node.children.get(i).box, box)) {
+                    visits += queryVisits(box, node.children.get(i));
+                }
+            }
+        }
+        return visits;
+    }
+
     private Node chooseLeaf(BoundingBox box, Node n) {
         // assert(n != null);
         if (n.isLeaf()) {
@@ -788,13 +1260,13 @@ public class RTree implements Serializable {
         }
         int twoT = two.getTop();
         int oneT = one.getTop();
-        if (twoT < oneT) {
-            total += (long) oneT - (long) twoT;
+        if (twoT > oneT) {
+            total += (long) twoT - (long) oneT;
         }
         int twoB = two.getBottom();
         int oneB = one.getBottom();
-        if (twoB > oneB) {
-            total += (long) twoB - (long) oneB;
+        if (twoB < oneB) {
+            total += (long) oneB - (long) twoB;
         }
         return total;
     }
@@ -809,6 +1281,32 @@ public class RTree implements Serializable {
         return (double) box.getWidth() * (double) box.getHeight();
     }
 
+    /**
+     * Get the margin of a BoundingBox
+     * 
+     * @param box the BoundingBox
+     * @return width + height
+     */
+    private static long margin(@NonNull BoundingBox box) {
+        return (long) box.getWidth() + (long) box.getHeight();
+    }
+
+    /**
+     * Get the area of the intersection of two BoundingBoxes
+     * 
+     * @param one the first BoundingBox
+     * @param two the second BoundingBox
+     * @return the area of the intersection, 0 if they don't intersect
+     */
+    private static double overlap(@NonNull BoundingBox one, @NonNull BoundingBox two) {
+        long width = (long) Math.min(one.getRight(), two.getRight()) - Math.max(one.getLeft(), two.getLeft());
+        long height = (long) Math.min(one.getTop(), two.getTop()) - Math.max(one.getBottom(), two.getBottom());
+        if (width <= 0 || height <= 0) {
+            return 0;
+        }
+        return (double) width * (double) height;
+    }
+
     /**
      * Find an object in the tree without using bounding boxes
      * 
@@ -32,6 +32,7 @@ import de.blau.android.layer.LayerInfoInterface;
 import de.blau.android.layer.MapViewLayer;
 import de.blau.android.osm.BoundingBox;
 import de.blau.android.osm.ViewBox;
+import de.blau.android.prefs.Preferences;
 import de.blau.android.resources.DataStyle;
 import de.blau.android.resources.TileLayerServer;
 import de.blau.android.services.util.MapAsyncTileProvider;
@@ -43,6 +44,7 @@ import de.blau.android.util.Snack;
 import de.blau.android.util.collections.MRUList;
 import de.blau.android.views.IMapView;
 import de.blau.android.views.util.MapTileProvider;
+import de.blau.android.views.util.TilePrefetcher;
 
 /**
  * Overlay that draws downloaded tiles which may be displayed on top of an {@link IMapView}. To add an overlay, subclass
@@ -61,6 +63,11 @@ public class MapTilesLayer extends MapViewLayer implements ExtentInterface, Laye
     private static final int    TAPAREA_MIN_WIDTH  = 40;
     private static final int    TAPAREA_MIN_HEIGHT = 60;
 
+    /**
+     * How many zoom levels we look at higher zoom tiles in the cache when a tile is missing
+     */
+    private static final int MAX_DESCENDANT_DEPTH = 2;
+
     /**
      * 
      */
@@ -74,6 +81,10 @@ public class MapTilesLayer extends MapViewLayer implements ExtentInterface, Laye
     private Rect    tapArea  = new Rect();
     private Rect    logoRect = new Rect();
 
+    /** Reused for drawing tiles */
+    private final Rect tileSrcRect  = new Rect();
+    private final Rect tileDestRect = new Rect();
+
     /**
      * The view we are a part of.
      */
@@ -99,6 +110,20 @@ public class MapTilesLayer extends MapViewLayer implements ExtentInterface, Laye
     private int     prevZoomLevel = -1;  // zoom level from previous draw
     private boolean saved         = true;
 
+    /**
+     * Tiles needed in the previous draw
+     */
+    private int prevViewportZoom   = -1;
+    private int prevViewportLeft   = -1;
+    private int prevViewportTop    = -1;
+    private int prevViewportRight  = -1;
+    private int prevViewportBottom = -1;
+
+    /**
+     * Predicts the tiles needed next from the movement of the map, null if prefetching is turned off
+     */
+    private final TilePrefetcher prefetcher;
+
     /**
      * Construct a new tile layer
      * 
@@ -121,6 +146,9 @@ public class MapTilesLayer extends MapViewLayer implements ExtentInterface, Laye
 
         networkStatus = new NetworkStatus(ctx);
 
+        int prefetchBudget = new Preferences(ctx).getTilePrefetchBudget();
+        prefetcher = prefetchBudget > 0 ? new TilePrefetcher(prefetchBudget) : null;
+
         Log.d(DEBUG_TAG,
                 aRendererInfo != null ? (aRendererInfo.isMetadataLoaded()
                         ? "provider " + aRendererInfo.getId() + " min zoom " + aRendererInfo.getMinZoomLevel() + " max " + aRendererInfo.getMaxZoomLevel()
@@ -224,6 +252,9 @@ public class MapTilesLayer extends MapViewLayer implements ExtentInterface, Laye
             coverageWarningDisplayed = false;
             if (myRendererInfo != null) { // 1st invocation this is null
                 mTileProvider.flushQueue(myRendererInfo.getId(), MapAsyncTileProvider.ALLZOOMS);
+                if (prefetcher != null) {
+                    prefetcher.reset();
+                }
                 saved = false;
                 lastServers.push(myRendererInfo.getId());
             }
@@ -298,7 +329,6 @@ public class MapTilesLayer extends MapViewLayer implements ExtentInterface, Laye
 
         int maxZoom = myRendererInfo.getMaxZoomLevel();
         int minZoom = myRendererInfo.getMinZoomLevel();
-        int maxOverZoom = myRendererInfo.getMaxOverZoom();
 
         // Do some calculations and drag attributes to local variables to save
         // some performance.
@@ -318,7 +348,7 @@ public class MapTilesLayer extends MapViewLayer implements ExtentInterface, Laye
         }
 
         final MapTile tile = new MapTile(myRendererInfo.getId(), 0, 0, 0); // reused instance of OpenStreetMapTile
-        final MapTile originalTile = new MapTile(tile);
+        final MapTile lookupTile = new MapTile(tile); // reused for in memory cache lookups
         //
         final double lonLeft = viewBox.getLeft() / 1E7d - (lonOffset > 0 ? lonOffset : 0d);
         final double lonRight = viewBox.getRight() / 1E7d - (lonOffset < 0 ? lonOffset : 0d);
@@ -330,15 +360,32 @@ public class MapTilesLayer extends MapViewLayer implements ExtentInterface, Laye
         // xtile = ((lon_deg + 180) / 360) * n
         // ytile = (1 - (log(tan(lat_rad) + sec(lat_rad)) / PI)) / 2 * n
         final double n = Math.pow(2d, zoomLevel);
-        final int xTileLeft = (int) Math.floor(((lonLeft + 180d) / 360d) * n);
-        final int xTileRight = (int) Math.floor(((lonRight + 180d) / 360d) * n);
-        final int yTileTop = (int) Math.floor((1d - Math.log(Math.tan(latTop) + 1d / Math.cos(latTop)) / Math.PI) * n / 2d);
-        final int yTileBottom = (int) Math.floor((1d - Math.log(Math.tan(latBottom) + 1d / Math.cos(latBottom)) / Math.PI) * n / 2d);
+        final double xLeft = ((lonLeft + 180d) / 360d) * n;
+        final double xRight = ((lonRight + 180d) / 360d) * n;
+        final double yTop = (1d - Math.log(Math.tan(latTop) + 1d / Math.cos(latTop)) / Math.PI) * n / 2d;
+        final double yBottom = (1d - Math.log(Math.tan(latBottom) + 1d / Math.cos(latBottom)) / Math.PI) * n / 2d;
+
+        final int tileNeededLeft = (int) Math.floor(Math.min(xLeft, xRight));
+        final int tileNeededRight = (int) Math.floor(Math.max(xLeft, xRight));
+        final int tileNeededTop = (int) Math.floor(Math.min(yTop, yBottom));
+        final int tileNeededBottom = (int) Math.floor(Math.max(yTop, yBottom));
+
+        // let the tile service prioritize the tiles closest to the center and cancel those no longer needed
+        if (zoomLevel != prevViewportZoom || tileNeededLeft != prevViewportLeft || tileNeededTop != prevViewportTop
+                || tileNeededRight != prevViewportRight || tileNeededBottom != prevViewportBottom) {
+            mTileProvider.setViewport(myRendererInfo.getId(), zoomLevel, tileNeededLeft, tileNeededTop, tileNeededRight, tileNeededBottom);
+            prevViewportZoom = zoomLevel;
+            prevViewportLeft = tileNeededLeft;
+            prevViewportTop = tileNeededTop;
+            prevViewportRight = tileNeededRight;
+            prevViewportBottom = tileNeededBottom;
+        }
 
-        final int tileNeededLeft = Math.min(xTileLeft, xTileRight);
-        final int tileNeededRight = Math.max(xTileLeft, xTileRight);
-        final int tileNeededTop = Math.min(yTileTop, yTileBottom);
-        final int tileNeededBottom = Math.max(yTileTop, yTileBottom);
+        // ask for the tiles we are about to need with low priority, a changed prediction cancels the previous one
+        if (prefetcher != null && prefetcher.update(zoomLevel, minZoom, maxZoom, Math.min(xLeft, xRight), Math.min(yTop, yBottom),
+                Math.max(xLeft, xRight), Math.max(yTop, yBottom), System.currentTimeMillis())) {
+            mTileProvider.prefetch(myRendererInfo.getId(), prefetcher.getZoomLevels(), prefetcher.getXs(), prefetcher.getYs(), prefetcher.getCount());
+        }
 
         final int mapTileMask = (1 << zoomLevel) - 1;
 
@@ -360,9 +407,6 @@ public class MapTilesLayer extends MapViewLayer implements ExtentInterface, Laye
                 tile.zoomLevel = zoomLevel;
                 tile.x = x & mapTileMask;
                 tile.y = y & mapTileMask;
-                originalTile.zoomLevel = tile.zoomLevel;
-                originalTile.x = tile.x;
-                originalTile.y = tile.y;
 
                 // destination rect
                 if (destRect == null) { // avoid recalculating this for every tile
@@ -371,53 +415,21 @@ public class MapTilesLayer extends MapViewLayer implements ExtentInterface, Laye
                     destIncY = destRect.height();
                 }
 
-                // Set the size and top left corner on the source bitmap
-                int sw = myRendererInfo.getTileWidth();
-                int sh = myRendererInfo.getTileHeight();
-                int tx = 0;
-                int ty = 0;
                 Bitmap tileBitmap = null;
-                // only actually try to get tile if in range
-                if (tile.zoomLevel >= minZoom && tile.zoomLevel <= maxZoom) {
+                // only actually try to get tile if in range, this is the only place we queue requests
+                if (tile.zoomLevel >= minZoom) {
                     tileBitmap = mTileProvider.getMapTile(tile, owner);
                 }
-                if (tileBitmap == null) {
-                    // OVERZOOM
-                    // Preferred tile is not available - request it
-                    // mTileProvider.preCacheTile(tile); already done in getMapTile
-                    // See if there are any alternative tiles available - try
-                    // using larger tiles
-                    // maximum maxOverZoom zoom levels up, with standard tiles this reduces the width to 64 bits
-                    while ((tileBitmap == null) && (zoomLevel - tile.zoomLevel) <= maxOverZoom && tile.zoomLevel > minZoom) {
-                        tile.reinit();
-                        // As we zoom out to larger-scale tiles, we want to
-                        // draw smaller and smaller sections of them
-                        sw >>= 1; // smaller size
-                        sh >>= 1;
-                        tx >>= 1; // smaller offsets
-                        ty >>= 1;
-                        // select the correct quarter
-                        if ((tile.x & 1) != 0) {
-                            tx += (myRendererInfo.getTileWidth() >> 1);
-                        }
-                        if ((tile.y & 1) != 0) {
-                            ty += (myRendererInfo.getTileHeight() >> 1);
-                        }
-                        // zoom out to next level
-                        tile.x >>= 1;
-                        tile.y >>= 1;
-                        --tile.zoomLevel;
-                        tileBitmap = mTileProvider.getMapTile(tile, owner);
-                    }
-                }
-
+                tileDestRect.set(destRect.left + xPos, destRect.top + yPos, destRect.right + xPos, destRect.bottom + yPos);
                 if (tileBitmap != null) {
-                    c.drawBitmap(tileBitmap, new Rect(tx, ty, tx + sw, ty + sh),
-                            new Rect(destRect.left + xPos, destRect.top + yPos, destRect.right + xPos, destRect.bottom + yPos), mPaint);
+                    tileSrcRect.set(0, 0, myRendererInfo.getTileWidth(), myRendererInfo.getTileHeight());
+                    c.drawBitmap(tileBitmap, tileSrcRect, tileDestRect, mPaint);
                 } else {
-                    tile.reinit();
-                    // Still no tile available - try smaller scale tiles
-                    drawTile(c, osmv, 0, zoomLevel + 2, zoomLevel, x & mapTileMask, y & mapTileMask, squareTiles, lonOffset, latOffset);
+                    // Preferred tile is not available, fill the space with what we have in memory
+                    if (!descendantsCached(lookupTile, zoomLevel, tile.x, tile.y, MAX_DESCENDANT_DEPTH)) {
+                        drawAncestor(c, lookupTile, zoomLevel, tile.x, tile.y, minZoom, tileDestRect);
+                    }
+                    drawDescendants(c, osmv, lookupTile, zoomLevel, tile.x, tile.y, MAX_DESCENDANT_DEPTH, squareTiles, lonOffset, latOffset);
                 }
                 xPos += destIncX;
             }
@@ -493,41 +505,110 @@ public class MapTilesLayer extends MapViewLayer implements ExtentInterface, Laye
     }
 
     /**
-     * Recursively search the cache for smaller tiles to fill in the required space.
+     * Get a tile from the in memory cache without requesting it
      * 
-     * @param c Canvas to draw on.
-     * @param osmv Map view area.
-     * @param minz Minimum zoom level.
-     * @param maxz Maximum zoom level to attempt - don't take too long searching.
-     * @param z Zoom level to draw.
-     * @param x Tile X to draw.
-     * @param y Tile Y to draw.
+     * @param lookup a MapTile instance that will be overwritten
+     * @param z the zoom level
+     * @param x the tile x number
+     * @param y the tile y number
+     * @return the Bitmap or null if not in the cache
+     */
+    @Nullable
+    private Bitmap getCachedTile(@NonNull MapTile lookup, int z, int x, int y) {
+        lookup.reinit();
+        lookup.zoomLevel = z;
+        lookup.x = x;
+        lookup.y = y;
+        return mTileProvider.getMapTileFromCache(lookup);
+    }
+
+    /**
+     * Check if the in memory cache contains tiles covering the whole area of a tile at higher zoom levels
+     * 
+     * @param lookup a MapTile instance that will be overwritten
+     * @param z the zoom level of the tile
+     * @param x the tile x number
+     * @param y the tile y number
+     * @param depth how many zoom levels to descend
+     * @return true if the area is completely covered
+     */
+    private boolean descendantsCached(@NonNull MapTile lookup, int z, int x, int y, int depth) {
+        if (depth == 0 || z >= myRendererInfo.getMaxZoomLevel()) {
+            return false;
+        }
+        x <<= 1;
+        y <<= 1;
+        ++z;
+        for (int i = 0; i < 4; i++) {
+            int cx = x + (i & 1);
+            int cy = y + (i >> 1);
+            if (getCachedTile(lookup, z, cx, cy) == null && !descendantsCached(lookup, z, cx, cy, depth - 1)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Draw the relevant part of the closest lower zoom tile that is in the in memory cache
+     * 
+     * @param c Canvas to draw on
+     * @param lookup a MapTile instance that will be overwritten
+     * @param z the zoom level of the tile
+     * @param x the tile x number
+     * @param y the tile y number
+     * @param minz the minimum zoom level of the layer
+     * @param dest the screen area of the tile
+     */
+    private void drawAncestor(@NonNull Canvas c, @NonNull MapTile lookup, int z, int x, int y, int minz, @NonNull Rect dest) {
+        final int tileWidth = myRendererInfo.getTileWidth();
+        final int tileHeight = myRendererInfo.getTileHeight();
+        for (int d = 1; z - d >= minz && (tileWidth >> d) > 0 && (tileHeight >> d) > 0; d++) {
+            Bitmap bitmap = getCachedTile(lookup, z - d, x >> d, y >> d);
+            if (bitmap != null) {
+                int sw = tileWidth >> d;
+                int sh = tileHeight >> d;
+                int mask = (1 << d) - 1;
+                int tx = (x & mask) * sw;
+                int ty = (y & mask) * sh;
+                tileSrcRect.set(tx, ty, tx + sw, ty + sh);
+                c.drawBitmap(bitmap, tileSrcRect, dest, mPaint);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Draw any higher zoom tiles that are in the in memory cache and cover the area of a tile
+     * 
+     * @param c Canvas to draw on
+     * @param osmv Map view area
+     * @param lookup a MapTile instance that will be overwritten
+     * @param z the zoom level of the tile
+     * @param x the tile x number
+     * @param y the tile y number
+     * @param depth how many zoom levels to descend
      * @param squareTiles true if the tiles are square
      * @param lonOffset imagery longitude offset correction in WGS84
      * @param latOffset imagery latitude offset correction in WGS84
-     * @return true if the space could be filled with tiles
      */
-    private boolean drawTile(Canvas c, IMapView osmv, int minz, int maxz, int z, int x, int y, boolean squareTiles, double lonOffset, double latOffset) {
-        final MapTile tile = new MapTile(myRendererInfo.getId(), z, x, y);
-        Bitmap bitmap = mTileProvider.getMapTileFromCache(tile);
-        if (bitmap != null) {
-            c.drawBitmap(bitmap, new Rect(0, 0, myRendererInfo.getTileWidth(), myRendererInfo.getTileHeight()),
-                    getScreenRectForTile(c, osmv, z, y, x, squareTiles, lonOffset, latOffset), mPaint);
-            return true;
-        } else {
-            if (z < maxz && z < myRendererInfo.getMaxZoomLevel()) {
-                // try smaller scale tiles
-                x <<= 1;
-                y <<= 1;
-                ++z;
-                boolean result = drawTile(c, osmv, z, maxz, z, x, y, squareTiles, lonOffset, latOffset);
-                result = drawTile(c, osmv, z, maxz, z, x + 1, y, squareTiles, lonOffset, latOffset) && result;
-                result = drawTile(c, osmv, z, maxz, z, x, y + 1, squareTiles, lonOffset, latOffset) && result;
-                result = drawTile(c, osmv, z, maxz, z, x + 1, y + 1, squareTiles, lonOffset, latOffset) && result;
-                return result;
+    private void drawDescendants(@NonNull Canvas c, @NonNull IMapView osmv, @NonNull MapTile lookup, int z, int x, int y, int depth, boolean squareTiles,
+            double lonOffset, double latOffset) {
+        if (depth == 0 || z >= myRendererInfo.getMaxZoomLevel()) {
+            return;
+        }
+        x <<= 1;
+        y <<= 1;
+        ++z;
+        for (int i = 0; i < 4; i++) {
+            int cx = x + (i & 1);
+            int cy = y + (i >> 1);
+            Bitmap bitmap = getCachedTile(lookup, z, cx, cy);
+            if (bitmap != null) {
+                tileSrcRect.set(0, 0, myRendererInfo.getTileWidth(), myRendererInfo.getTileHeight());
+                c.drawBitmap(bitmap, tileSrcRect, getScreenRectForTile(c, osmv, z, cy, cx, squareTiles, lonOffset, latOffset), mPaint);
             } else {
-                // final fail
-                return false;
+                drawDescendants(c, osmv, lookup, z, cx, cy, depth - 1, squareTiles, lonOffset, latOffset);
             }
         }
     }
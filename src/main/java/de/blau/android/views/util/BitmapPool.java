@@ -0,0 +1,194 @@
+package de.blau.android.views.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+/**
+ * Pool of mutable bitmaps bucketed by size and configuration that can be reused for decoding with
+ * BitmapFactory.Options.inBitmap
+ * 
+ * Only bitmaps with exactly the same dimensions and configuration are reused as this is what is supported on all
+ * Android versions that have inBitmap, for map tiles this is essentially always the case.
+ * 
+ * @author simon
+ *
+ */
+public class BitmapPool {
+
+    private static final String DEBUG_TAG = "BitmapPool";
+
+    private final Map<Long, List<Bitmap>> buckets = new HashMap<>();
+    private final long                    maxSize;
+    private long                          size    = 0;
+
+    /**
+     * Create a new pool
+     * 
+     * @param maxSize the maximum number of bytes held by bitmaps in the pool
+     */
+    public BitmapPool(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Check if inBitmap is supported on this device
+     * 
+     * @return true if bitmaps can be reused
+     */
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    }
+
+    /**
+     * Add a bitmap to the pool, if it can't be reused or the pool is full it is recycled
+     * 
+     * @param bitmap the Bitmap
+     */
+    public synchronized void put(@NonNull Bitmap bitmap) {
+        if (bitmap.isRecycled()) {
+            return;
+        }
+        long bitmapSize = (long) bitmap.getRowBytes() * bitmap.getHeight();
+        if (!isSupported() || !bitmap.isMutable() || size + bitmapSize > maxSize) {
+            bitmap.recycle();
+            return;
+        }
+        Long key = key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        List<Bitmap> bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<>();
+            buckets.put(key, bucket);
+        }
+        bucket.add(bitmap);
+        size += bitmapSize;
+    }
+
+    /**
+     * Get a bitmap from the pool
+     * 
+     * @param width the required width
+     * @param height the required height
+     * @param config the required configuration
+     * @return a Bitmap or null if none was available
+     */
+    @Nullable
+    public synchronized Bitmap get(int width, int height, @Nullable Bitmap.Config config) {
+        List<Bitmap> bucket = buckets.get(key(width, height, config));
+        if (bucket == null || bucket.isEmpty()) {
+            return null;
+        }
+        Bitmap bitmap = bucket.remove(bucket.size() - 1);
+        size -= (long) bitmap.getRowBytes() * bitmap.getHeight();
+        return bitmap;
+    }
+
+    /**
+     * Decode an image in to a bitmap from the pool if possible
+     * 
+     * @param data the encoded image
+     * @param options options for decoding, inBitmap, inMutable, inSampleSize and inJustDecodeBounds will be overwritten
+     * @return a Bitmap or null if the data couldn't be decoded
+     */
+    @Nullable
+    public Bitmap decode(@NonNull byte[] data, @NonNull BitmapFactory.Options options) {
+        return decode(data, data.length, options);
+    }
+
+    /**
+     * Decode an image in to a bitmap from the pool if possible
+     * 
+     * @param data a buffer starting with the encoded image
+     * @param length the length of the encoded image
+     * @param options options for decoding, inBitmap, inMutable, inSampleSize and inJustDecodeBounds will be overwritten
+     * @return a Bitmap or null if the data couldn't be decoded
+     */
+    @Nullable
+    public Bitmap decode(@NonNull byte[] data, int length, @NonNull BitmapFactory.Options options) {
+        if (!isSupported()) {
+            return BitmapFactory.decodeByteArray(data, 0, length, options);
+        }
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, length, options);
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        return decodeInto(data, length, options, get(options.outWidth, options.outHeight, options.inPreferredConfig));
+    }
+
+    /**
+     * Decode an image, reusing a Bitmap if not null
+     * 
+     * @param data a buffer starting with the encoded image
+     * @param length the length of the encoded image
+     * @param options options for decoding
+     * @param reuse a Bitmap to reuse or null
+     * @return a Bitmap or null if the data couldn't be decoded
+     */
+    @TargetApi(11)
+    @Nullable
+    private Bitmap decodeInto(@NonNull byte[] data, int length, @NonNull BitmapFactory.Options options, @Nullable Bitmap reuse) {
+        options.inMutable = true;
+        options.inBitmap = reuse;
+        try {
+            Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, length, options);
+            if (bitmap == null && reuse != null) {
+                put(reuse);
+            }
+            return bitmap;
+        } catch (IllegalArgumentException e) {
+            if (reuse == null) {
+                throw e;
+            }
+            // the image format doesn't allow reuse, for example an indexed png on older devices
+            Log.d(DEBUG_TAG, "Reusing bitmap failed " + e.getMessage());
+            options.inBitmap = null;
+            put(reuse);
+            return BitmapFactory.decodeByteArray(data, 0, length, options);
+        } finally {
+            options.inBitmap = null;
+        }
+    }
+
+    /**
+     * Empty the pool recycling all bitmaps
+     */
+    public synchronized void clear() {
+        for (List<Bitmap> bucket : buckets.values()) {
+            for (Bitmap bitmap : bucket) {
+                bitmap.recycle();
+            }
+        }
+        buckets.clear();
+        size = 0;
+    }
+
+    /**
+     * Get the number of bytes used by the bitmaps in the pool
+     * 
+     * @return the size in bytes
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Get the key for a bucket
+     * 
+     * @param width the width of the bitmaps
+     * @param height the height of the bitmaps
+     * @param config the configuration of the bitmaps
+     * @return the key
+     */
+    private static long key(int width, int height, @Nullable Bitmap.Config config) {
+        return ((long) (config != null ? config.ordinal() + 1 : 0) << 48) | ((long) (width & 0xFFFFFF) << 24) | (height & 0xFFFFFF);
+    }
+}
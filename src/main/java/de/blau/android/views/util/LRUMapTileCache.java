@@ -2,17 +2,18 @@
 package de.blau.android.views.util;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 
 import android.graphics.Bitmap;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
 import de.blau.android.exception.StorageException;
+import de.blau.android.util.collections.Tools;
 
 /**
- * Simple LRU cache for any type of object. Implemented as an extended <code>HashMap</code> with a maximum size and an
- * aggregated <code>List</code> as LRU queue. <br/>
+ * Simple LRU cache for bitmaps. Implemented as an open addressing hash table with primitive long keys and a doubly
+ * linked LRU queue threaded through the cache elements, so that lookups and updates don't allocate and are O(1). <br/>
  * This class was taken from OpenStreetMapViewer (original package org.andnav.osm) in 2010-06 by Marcus Wolschon to be
  * integrated into the de.blau.androin OSMEditor.
  * 
@@ -28,34 +29,50 @@ public class LRUMapTileCache {
     // Constants
     // ===========================================================
 
+    private static final float FILL_FACTOR      = 0.5f;
+    private static final int   DEFAULT_CAPACITY = 64;
+
     // ===========================================================
     // Fields
     // ===========================================================
 
-    HashMap<String, CacheElement> cache;
+    /** Hash table, linear probing */
+    private CacheElement[] table;
+    private int            mask;
+    private int            threshold;
+    private int            count = 0;
 
     /** Maximum cache size. */
     private long                          maxCacheSize;
     /** Current cache size **/
     private long                          cacheSize = 0;
-    /** LRU list. */
-    private final ArrayList<CacheElement> list;
+    /** LRU list, head.next is the most and head.prev the least recently used element. */
+    private final CacheElement            head;
     private final ArrayList<CacheElement> reuseList;
+    /** Pool evicted bitmaps are returned to, if null they are recycled */
+    private final BitmapPool              bitmapPool;
 
     private class CacheElement {
-        boolean recycleable = true;
-        String  key;
-        Bitmap  bitmap;
-        long    owner;
+        boolean      recycleable = true;
+        long         key;
+        Bitmap       bitmap;
+        long         owner;
+        CacheElement prev;
+        CacheElement next;
+
+        /**
+         * Construct an empty element, used for the list head
+         */
+        CacheElement() {
+            prev = this;
+            next = this;
+        }
 
-        public CacheElement(@NonNull String key, @NonNull Bitmap bitmap, boolean recycleable, long owner) {
+        public CacheElement(long key, @NonNull Bitmap bitmap, boolean recycleable, long owner) {
             init(key, bitmap, recycleable, owner);
         }
 
-        void init(@Nullable String key, @Nullable Bitmap bitmap, boolean recycleable, long owner) {
-            if (key == null) {
-                throw new IllegalArgumentException("key cannot be null");
-            }
+        void init(long key, @Nullable Bitmap bitmap, boolean recycleable, long owner) {
             if (bitmap == null) {
                 throw new IllegalArgumentException("bitmap cannot be null");
             }
@@ -76,11 +93,22 @@ public class LRUMapTileCache {
      * @param maxCacheSize the maximum number of entries in this cache before entries are aged off.
      */
     public LRUMapTileCache(final long maxCacheSize) {
+        this(maxCacheSize, null);
+    }
+
+    /**
+     * Constructs a new LRU cache instance that returns evicted bitmaps to a pool
+     * 
+     * @param maxCacheSize the maximum number of entries in this cache before entries are aged off.
+     * @param bitmapPool pool that recycleable bitmaps are returned to when they are evicted or null
+     */
+    public LRUMapTileCache(final long maxCacheSize, @Nullable BitmapPool bitmapPool) {
         super();
         // Log.d("LRUMapTileCache","created");
         this.maxCacheSize = maxCacheSize;
-        cache = new HashMap<>();
-        list = new ArrayList<>(); // using a LinkedList doesn't have any real advantages
+        this.bitmapPool = bitmapPool;
+        allocateTable(DEFAULT_CAPACITY);
+        head = new CacheElement();
         reuseList = new ArrayList<>();
     }
 
@@ -93,17 +121,20 @@ public class LRUMapTileCache {
     // ===========================================================
 
     /**
-     * Overrides clear() to also clear the LRU list.
+     * Clear the cache and the LRU list.
      */
     public synchronized void clear() {
-        for (CacheElement ce : cache.values()) {
+        for (CacheElement ce = head.next; ce != head; ce = ce.next) {
             Bitmap b = ce.bitmap;
             if (b != null && ce.recycleable) {
-                b.recycle();
+                release(b);
             }
         }
-        cache.clear();
-        list.clear();
+        Arrays.fill(table, null);
+        count = 0;
+        head.next = head;
+        head.prev = head;
+        cacheSize = 0;
     }
 
     /**
@@ -119,25 +150,27 @@ public class LRUMapTileCache {
         if (limit < 0) {
             limit = 0;
         }
-        while (cacheSize > limit && !list.isEmpty()) {
+        while (cacheSize > limit && head.prev != head) {
             // Log.d(DEBUG_TAG,"removing bitmap from in memory cache " + cacheSize);
-            CacheElement ce = list.remove(list.size() - 1);
+            CacheElement ce = head.prev;
             if (ce.owner == owner && owner != 0) {
                 // cache is being thrashed because it is too small, fail
                 Log.d(DEBUG_TAG, "cache too small, failing");
                 return false;
             }
-            if (cache.remove(ce.key) == null) {
+            unlink(ce);
+            if (!removeFromTable(ce.key)) {
                 throw new IllegalStateException("can't remove " + ce.key + " from cache");
             }
-            reuseList.add(ce);
             Bitmap b = ce.bitmap;
             if (b != null && !b.isRecycled()) {
                 cacheSize -= b.getRowBytes() * b.getHeight();
                 if (ce.recycleable) {
-                    b.recycle();
+                    release(b);
                 }
             }
+            ce.bitmap = null;
+            reuseList.add(ce);
         }
         return true; // success
     }
@@ -147,8 +180,8 @@ public class LRUMapTileCache {
      * 
      * @return count
      */
-    public int size() {
-        return cache.size();
+    public synchronized int size() {
+        return count;
     }
 
     /**
@@ -165,8 +198,8 @@ public class LRUMapTileCache {
      * @param key the key
      * @return true if present
      */
-    public synchronized boolean containsKey(@NonNull String key) {
-        return cache.containsKey(key);
+    public synchronized boolean containsKey(long key) {
+        return find(key) != null;
     }
 
     /**
@@ -188,8 +221,7 @@ public class LRUMapTileCache {
     }
 
     /**
-     * Overrides <code>put()</code> so that it also updates the LRU list. Interesting enough the slight change in
-     * signature does work
+     * Add a bitmap to the cache and move it to the top of the LRU list.
      * 
      * @param key key with which the specified value is to be associated
      * @param value value to be associated with the key
@@ -200,13 +232,13 @@ public class LRUMapTileCache {
      *         the specified key
      * @throws StorageException if we can't expand the cache anymore
      */
-    public synchronized Bitmap put(@NonNull final String key, @NonNull final Bitmap value, boolean recycleable, long owner) throws StorageException {
+    public synchronized Bitmap put(final long key, @NonNull final Bitmap value, boolean recycleable, long owner) throws StorageException {
         // Log.d("LRUMapTileCache","put " + key + " " + recycleable);
         if (maxCacheSize == 0 || value == null) {
             return null;
         }
 
-        CacheElement prev = cache.get(key);
+        CacheElement prev = find(key);
         // if the key isn't in the cache and the cache is full...
         if (prev == null) {
             long bitmapSize = (long) value.getRowBytes() * value.getHeight();
@@ -220,17 +252,7 @@ public class LRUMapTileCache {
                     throw new StorageException(StorageException.OOM); // can't expand any more
                 }
             }
-            // avoid creating new objects
-            CacheElement ce = null;
-            if (!reuseList.isEmpty()) {
-                ce = reuseList.remove(0);
-                ce.init(key, value, recycleable, owner);
-            } else {
-                ce = new CacheElement(key, value, recycleable, owner);
-            }
-            list.add(0, ce);
-            cache.put(key, ce);
-            cacheSize += bitmapSize;
+            add(key, value, recycleable, owner, bitmapSize);
         } else {
             update(prev);
         }
@@ -240,14 +262,91 @@ public class LRUMapTileCache {
     }
 
     /**
-     * Overrides <code>get()</code> so that it also updates the LRU list.
+     * Add a bitmap that nobody is waiting for yet to the cache, for example a prefetched tile
+     * 
+     * Unlike put this never evicts elements of protectedOwner and never expands the cache, if there isn't enough room
+     * the bitmap is not added.
+     * 
+     * @param key key with which the specified value is to be associated
+     * @param value value to be associated with the key
+     * @param recycleable true if the element can be recycled
+     * @param owner a long indicating what is putting the element in the cache
+     * @param protectedOwner the owner whose elements must not be evicted, typically the current draw
+     * @return value if it was added, null if not
+     */
+    @Nullable
+    public synchronized Bitmap putIfRoom(final long key, @NonNull final Bitmap value, boolean recycleable, long owner, long protectedOwner) {
+        if (maxCacheSize == 0 || value == null) {
+            return null;
+        }
+        CacheElement prev = find(key);
+        if (prev != null) {
+            update(prev);
+            return null;
+        }
+        long bitmapSize = (long) value.getRowBytes() * value.getHeight();
+        if (!hasRoom(bitmapSize * 2, protectedOwner)) {
+            return null;
+        }
+        applyCacheLimit(bitmapSize * 2, 0);
+        add(key, value, recycleable, owner, bitmapSize);
+        return value;
+    }
+
+    /**
+     * Check if the cache limit can be applied without evicting elements of a specific owner
+     * 
+     * @param extra Extra space to take away from the cache size
+     * @param protectedOwner the owner whose elements must not be evicted
+     * @return true if enough elements of other owners can be evicted
+     */
+    private boolean hasRoom(long extra, long protectedOwner) {
+        long limit = Math.max(0, maxCacheSize - extra);
+        long size = cacheSize;
+        for (CacheElement ce = head.prev; size > limit && ce != head; ce = ce.prev) {
+            if (ce.owner == protectedOwner) {
+                return false;
+            }
+            Bitmap b = ce.bitmap;
+            if (b != null && !b.isRecycled()) {
+                size -= b.getRowBytes() * b.getHeight();
+            }
+        }
+        return size <= limit;
+    }
+
+    /**
+     * Add a new element to the top of the LRU list, space must already have been made
+     * 
+     * @param key key with which the specified value is to be associated
+     * @param value value to be associated with the key
+     * @param recycleable true if the element can be recycled
+     * @param owner a long indicating what is putting the element in the cache
+     * @param bitmapSize the size of value in bytes
+     */
+    private void add(final long key, @NonNull final Bitmap value, boolean recycleable, long owner, long bitmapSize) {
+        // avoid creating new objects
+        CacheElement ce = null;
+        if (!reuseList.isEmpty()) {
+            ce = reuseList.remove(reuseList.size() - 1);
+            ce.init(key, value, recycleable, owner);
+        } else {
+            ce = new CacheElement(key, value, recycleable, owner);
+        }
+        linkFirst(ce);
+        addToTable(ce);
+        cacheSize += bitmapSize;
+    }
+
+    /**
+     * Get a bitmap from the cache and move it to the top of the LRU list.
      * 
      * @param key key with which the expected value is associated
      * @return the value to which the cache maps the specified key, or <code>null</code> if the map contains no mapping
      *         for this key
      */
-    public synchronized Bitmap get(final String key) {
-        final CacheElement value = cache.get(key);
+    public synchronized Bitmap get(final long key) {
+        final CacheElement value = find(key);
         // Log.d("LRUMapTileCache","get " + key);
         if (value != null) {
             update(value);
@@ -263,15 +362,163 @@ public class LRUMapTileCache {
      * 
      * @param value to move to the top of the list
      */
-    private synchronized void update(final CacheElement value) {
-        list.remove(value);
-        list.add(0, value);
+    private void update(@NonNull final CacheElement value) {
+        if (head.next != value) {
+            unlink(value);
+            linkFirst(value);
+        }
     }
 
     // ===========================================================
     // Methods
     // ===========================================================
 
+    /**
+     * Return a bitmap that is no longer needed to the pool or recycle it
+     * 
+     * @param bitmap the Bitmap
+     */
+    private void release(@NonNull Bitmap bitmap) {
+        if (bitmapPool != null) {
+            bitmapPool.put(bitmap);
+        } else {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Insert an element at the top of the LRU list
+     * 
+     * @param ce the element
+     */
+    private void linkFirst(@NonNull CacheElement ce) {
+        ce.prev = head;
+        ce.next = head.next;
+        head.next.prev = ce;
+        head.next = ce;
+    }
+
+    /**
+     * Remove an element from the LRU list
+     * 
+     * @param ce the element
+     */
+    private void unlink(@NonNull CacheElement ce) {
+        ce.prev.next = ce.next;
+        ce.next.prev = ce.prev;
+        ce.prev = null;
+        ce.next = null;
+    }
+
+    /**
+     * Allocate a new, empty, hash table
+     * 
+     * @param capacity the capacity, must be a power of 2
+     */
+    private void allocateTable(int capacity) {
+        table = new CacheElement[capacity];
+        mask = capacity - 1;
+        threshold = (int) (capacity * FILL_FACTOR);
+    }
+
+    /**
+     * Get the position a key would ideally occupy in the table
+     * 
+     * @param key the key
+     * @return the position
+     */
+    private int home(long key) {
+        return (int) (Tools.phiMix(key) & mask);
+    }
+
+    /**
+     * Find the element for a key
+     * 
+     * @param key the key
+     * @return the element or null if not found
+     */
+    @Nullable
+    private CacheElement find(long key) {
+        int ptr = home(key);
+        while (true) {
+            CacheElement ce = table[ptr];
+            if (ce == null || ce.key == key) {
+                return ce;
+            }
+            ptr = (ptr + 1) & mask;
+        }
+    }
+
+    /**
+     * Add an element to the table, the key must not be present
+     * 
+     * @param ce the element
+     */
+    private void addToTable(@NonNull CacheElement ce) {
+        if (count >= threshold) {
+            CacheElement[] old = table;
+            allocateTable(old.length * 2);
+            for (CacheElement e : old) {
+                if (e != null) {
+                    insert(e);
+                }
+            }
+        }
+        insert(ce);
+        count++;
+    }
+
+    /**
+     * Insert an element in the first free slot
+     * 
+     * @param ce the element
+     */
+    private void insert(@NonNull CacheElement ce) {
+        int ptr = home(ce.key);
+        while (table[ptr] != null) {
+            ptr = (ptr + 1) & mask;
+        }
+        table[ptr] = ce;
+    }
+
+    /**
+     * Remove the element for a key from the table, shifting following elements back so that no tombstones are needed
+     * 
+     * @param key the key
+     * @return true if the key was found
+     */
+    private boolean removeFromTable(long key) {
+        int ptr = home(key);
+        while (true) {
+            CacheElement ce = table[ptr];
+            if (ce == null) {
+                return false;
+            }
+            if (ce.key == key) {
+                break;
+            }
+            ptr = (ptr + 1) & mask;
+        }
+        table[ptr] = null;
+        count--;
+        int free = ptr;
+        while (true) {
+            ptr = (ptr + 1) & mask;
+            CacheElement ce = table[ptr];
+            if (ce == null) {
+                return true;
+            }
+            int h = home(ce.key);
+            // move the element if its home position isn't cyclically between the free slot and its current position
+            boolean between = free <= ptr ? (free < h && h <= ptr) : (free < h || h <= ptr);
+            if (!between) {
+                table[free] = ce;
+                table[ptr] = null;
+                free = ptr;
+            }
+        }
+    }
+
     // ===========================================================
     // Inner and Anonymous Classes
     // ===========================================================
@@ -27,6 +27,7 @@ public class MapTileCache implements MapViewConstants {
 
     private static final String DEBUG_TAG = "MapTileCache";
     private LRUMapTileCache     mCachedTiles;
+    private BitmapPool          mBitmapPool;
 
     // ===========================================================
     // Constructors
@@ -41,7 +42,8 @@ public class MapTileCache implements MapViewConstants {
      */
     private MapTileCache(final long aMaximumCacheBytes) {
         Log.d(DEBUG_TAG, "Created new in memory tile cache with " + aMaximumCacheBytes + " bytes");
-        mCachedTiles = new LRUMapTileCache(aMaximumCacheBytes);
+        mBitmapPool = new BitmapPool(aMaximumCacheBytes / 8);
+        mCachedTiles = new LRUMapTileCache(aMaximumCacheBytes, mBitmapPool);
     }
 
     // ===========================================================
@@ -49,15 +51,30 @@ public class MapTileCache implements MapViewConstants {
     // ===========================================================
 
     public synchronized Bitmap getMapTile(final MapTile aTile) {
-        return mCachedTiles.get(aTile.toId());
+        return mCachedTiles.get(aTile.toKey());
     }
 
     public synchronized boolean putTile(final MapTile aTile, final Bitmap aImage, final long owner) throws StorageException {
-        return mCachedTiles.put(aTile.toId(), aImage, true, owner) != null;
+        return mCachedTiles.put(aTile.toKey(), aImage, true, owner) != null;
     }
 
     public synchronized boolean putTile(final MapTile aTile, final Bitmap aImage, final boolean recycleable, final long owner) throws StorageException {
-        return mCachedTiles.put(aTile.toId(), aImage, recycleable, owner) != null;
+        return mCachedTiles.put(aTile.toKey(), aImage, recycleable, owner) != null;
+    }
+
+    /**
+     * Add a tile if that doesn't require evicting tiles of protectedOwner
+     * 
+     * @param aTile the tile
+     * @param aImage the tile Bitmap
+     * @param recycleable true if the Bitmap can be recycled
+     * @param owner a long indicating what is putting the tile in the cache
+     * @param protectedOwner the owner whose tiles must not be evicted
+     * @return true if the tile was added
+     */
+    public synchronized boolean putTileIfRoom(final MapTile aTile, final Bitmap aImage, final boolean recycleable, final long owner,
+            final long protectedOwner) {
+        return mCachedTiles.putIfRoom(aTile.toKey(), aImage, recycleable, owner, protectedOwner) != null;
     }
 
     // ===========================================================
@@ -85,6 +102,15 @@ public class MapTileCache implements MapViewConstants {
         mCachedTiles.clear();
     }
 
+    /**
+     * Get the pool that bitmaps evicted from the cache are returned to
+     * 
+     * @return the BitmapPool
+     */
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+
     /**
      * Test if the cache contains the specified tile.
      * 
@@ -92,7 +118,7 @@ public class MapTileCache implements MapViewConstants {
      * @return true if the tile is in the cache.
      */
     public boolean containsTile(final MapTile aTile) {
-        return mCachedTiles.containsKey(aTile.toId());
+        return mCachedTiles.containsKey(aTile.toKey());
     }
 
     /**
@@ -100,6 +126,7 @@ public class MapTileCache implements MapViewConstants {
      */
     public void onLowMemory() {
         mCachedTiles.onLowMemory();
+        mBitmapPool.clear();
     }
 
     public String getCacheUsageInfo() {
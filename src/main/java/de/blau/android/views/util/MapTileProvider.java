@@ -1,10 +1,19 @@
 package de.blau.android.views.util;
 
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import android.content.ComponentName;
 import android.content.Context;
@@ -14,6 +23,7 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.os.Build;
 import android.os.Handler;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -49,6 +59,15 @@ public class MapTileProvider implements ServiceConnection, MapViewConstants {
      */
     private static final String DEBUG_TAG = MapTileProvider.class.getSimpleName();
 
+    private static final int DECODER_THREADS = 2;
+
+    private static final int INITIAL_READ_BUFFER_SIZE = 32 * 1024;
+
+    /**
+     * Owner of tiles that have been requested in advance, draws use random non-negative values so this never clashes
+     */
+    private static final long PREFETCH_OWNER = Long.MIN_VALUE;
+
     // ===========================================================
     // Fields
     // ===========================================================
@@ -70,6 +89,13 @@ public class MapTileProvider implements ServiceConnection, MapViewConstants {
     private IMapTileProviderService mTileService;
     private Handler                 mDownloadFinishedHandler;
 
+    /**
+     * Tiles waiting to be decoded and the executor that runs the decoding
+     */
+    private final List<DecodeRequest> decodeQueue  = new ArrayList<>();
+    private final ThreadPoolExecutor  decoder;
+    private volatile long             currentOwner = 0;
+
     /**
      * Set to true if we have less than 64 MB heap or have other caching issues
      */
@@ -97,6 +123,9 @@ public class MapTileProvider implements ServiceConnection, MapViewConstants {
         }
 
         mDownloadFinishedHandler = aDownloadFinishedListener;
+
+        decoder = new ThreadPoolExecutor(DECODER_THREADS, DECODER_THREADS, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        decoder.allowCoreThreadTimeOut(true);
     }
 
     // ===========================================================
@@ -138,7 +167,14 @@ public class MapTileProvider implements ServiceConnection, MapViewConstants {
      */
     public void clear() {
         pending.clear();
+        synchronized (decodeQueue) {
+            for (DecodeRequest request : decodeQueue) {
+                request.close();
+            }
+            decodeQueue.clear();
+        }
         mTileCache.clear();
+        mTileCache.getBitmapPool().clear();
         mCtx.unbindService(this);
     }
 
@@ -158,6 +194,7 @@ public class MapTileProvider implements ServiceConnection, MapViewConstants {
      */
     @Nullable
     public Bitmap getMapTile(@NonNull final MapTile aTile, long owner) {
+        currentOwner = owner;
         Bitmap tile = mTileCache.getMapTile(aTile);
         if (tile != null) {
             return tile;
@@ -182,15 +219,214 @@ public class MapTileProvider implements ServiceConnection, MapViewConstants {
     }
 
     private void preCacheTile(final MapTile aTile, long owner) {
-        if (mTileService != null && !pending.containsKey(aTile.toId())) {
+        if (mTileService == null) {
+            return;
+        }
+        synchronized (pending) {
+            Long previous = pending.put(aTile.toId(), owner);
+            if (previous != null && previous != PREFETCH_OWNER) {
+                return; // still needed for the current draw, used to prioritize decoding
+            }
+            // prefetched tiles are requested again so that the service can raise their priority
+        }
+        try {
+            mTileService.getMapTile(aTile.rendererID, aTile.zoomLevel, aTile.x, aTile.y, mServiceCallback);
+        } catch (RemoteException e) {
+            Log.e(DEBUG_TAG, "RemoteException in preCacheTile()", e);
+        } catch (Exception e) {
+            Log.e(DEBUG_TAG, "Exception in preCacheTile()", e);
+        }
+    }
+
+    /**
+     * A tile waiting to be decoded
+     */
+    private class DecodeRequest {
+        final MapTile              tile;
+        final byte[]               data;
+        final ParcelFileDescriptor pfd;
+
+        /**
+         * Construct a new request
+         * 
+         * @param tile the MapTile
+         * @param data the encoded image
+         */
+        DecodeRequest(@NonNull MapTile tile, @NonNull byte[] data) {
+            this.tile = tile;
+            this.data = data;
+            this.pfd = null;
+        }
+
+        /**
+         * Construct a new request for an image in shared memory
+         * 
+         * @param tile the MapTile
+         * @param pfd a ParcelFileDescriptor for the encoded image, we take ownership of it
+         */
+        DecodeRequest(@NonNull MapTile tile, @NonNull ParcelFileDescriptor pfd) {
+            this.tile = tile;
+            this.data = null;
+            this.pfd = pfd;
+        }
+
+        /**
+         * Release the file descriptor if there is one
+         */
+        void close() {
+            if (pfd != null) {
+                try {
+                    pfd.close();
+                } catch (IOException e) {
+                    Log.e(DEBUG_TAG, "Closing descriptor failed " + e.getMessage());
+                }
+            }
+        }
+
+        /**
+         * Check if the tile was requested by the most recent draw
+         * 
+         * @return true if the tile is currently visible
+         */
+        boolean isVisible() {
+            Long owner = pending.get(tile.toId());
+            return owner != null && owner == currentOwner;
+        }
+    }
+
+    /**
+     * Decodes the best waiting tile, one instance is queued in the executor for every request
+     */
+    private final Runnable decodeNext = new Runnable() {
+        @Override
+        public void run() {
+            DecodeRequest request = null;
+            synchronized (decodeQueue) {
+                if (decodeQueue.isEmpty()) {
+                    return;
+                }
+                // prefer visible tiles, otherwise first come first serve
+                int index = 0;
+                int size = decodeQueue.size();
+                for (int i = 0; i < size; i++) {
+                    if (decodeQueue.get(i).isVisible()) {
+                        index = i;
+                        break;
+                    }
+                }
+                request = decodeQueue.remove(index);
+            }
+            if (request.pfd == null) {
+                decode(request.tile, request.data, request.data.length);
+                return;
+            }
             try {
-                pending.put(aTile.toId(), owner);
-                mTileService.getMapTile(aTile.rendererID, aTile.zoomLevel, aTile.x, aTile.y, mServiceCallback);
-            } catch (RemoteException e) {
-                Log.e(DEBUG_TAG, "RemoteException in preCacheTile()", e);
-            } catch (Exception e) {
-                Log.e(DEBUG_TAG, "Exception in preCacheTile()", e);
+                if (pending.containsKey(request.tile.toId())) {
+                    byte[] buffer = readBuffer.get();
+                    int length = 0;
+                    // the stream doesn't own the descriptor, it is closed with the request
+                    InputStream is = new FileInputStream(request.pfd.getFileDescriptor()); // NOSONAR
+                    int bytesRead;
+                    while ((bytesRead = is.read(buffer, length, buffer.length - length)) != -1) {
+                        length += bytesRead;
+                        if (length == buffer.length) {
+                            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                            readBuffer.set(buffer);
+                        }
+                    }
+                    decode(request.tile, buffer, length);
+                }
+            } catch (IOException e) {
+                Log.e(DEBUG_TAG, "Reading " + request.tile + " failed " + e.getMessage());
+                pending.remove(request.tile.toId());
+            } finally {
+                request.close();
+            }
+        }
+    };
+
+    /**
+     * Per decoder thread buffer for reading tiles from shared memory
+     */
+    private final ThreadLocal<byte[]> readBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[INITIAL_READ_BUFFER_SIZE];
+        }
+    };
+
+    /**
+     * Decode a tile and add it to the cache
+     * 
+     * @param t the MapTile
+     * @param data the encoded image
+     * @param length the length of the encoded image in data
+     */
+    private void decode(@NonNull MapTile t, @NonNull byte[] data, int length) {
+        String id = t.toId();
+        if (!pending.containsKey(id)) {
+            return; // request was flushed while waiting
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        if (smallHeap) {
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+        } else {
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        }
+        try {
+            Bitmap tileBitmap = mTileCache.getBitmapPool().decode(data, length, options);
+            if (tileBitmap == null) {
+                Log.d(DEBUG_TAG, "decoded tile is null");
+                return;
             }
+            Long l = pending.get(id);
+            if (l == null || !cacheTile(t, tileBitmap, true, l)) { // was flushed while decoding or no room
+                mTileCache.getBitmapPool().put(tileBitmap);
+            }
+            mDownloadFinishedHandler.sendEmptyMessage(MapTile.MAPTILE_SUCCESS_ID);
+            // Log.d(DEBUGTAG, "Sending tile success message");
+        } catch (StorageException | OutOfMemoryError e) {
+            // unable to cache tile
+            Log.w(DEBUG_TAG, "decode got " + e.getMessage());
+            setSmallHeapMode();
+        } catch (IllegalArgumentException e) {
+            Log.e(DEBUG_TAG, "decode failed for " + t + " " + e.getMessage());
+        } finally {
+            pending.remove(id);
+        }
+        if (DEBUGMODE) {
+            Log.i(DEBUG_TAG, "MapTile download success." + t.toString());
+        }
+    }
+
+    /**
+     * Add a tile to the in memory cache, prefetched tiles are only added if they don't evict tiles of the current draw
+     * 
+     * @param t the MapTile
+     * @param bitmap the tile Bitmap
+     * @param recycleable true if the Bitmap can be recycled
+     * @param owner the owner of the request for the tile
+     * @return true if the tile was added
+     * @throws StorageException if the cache can't be expanded any more
+     */
+    private boolean cacheTile(@NonNull MapTile t, @NonNull Bitmap bitmap, boolean recycleable, long owner) throws StorageException {
+        if (owner == PREFETCH_OWNER) {
+            return mTileCache.putTileIfRoom(t, bitmap, recycleable, owner, currentOwner);
+        }
+        return mTileCache.putTile(t, bitmap, recycleable, owner);
+    }
+
+    /**
+     * Switch to "small heap mode" which uses tiles with slightly less quality
+     */
+    private void setSmallHeapMode() {
+        if (!smallHeap) { // reduce tile size to half
+            smallHeap = true;
+            mTileCache.clear();
+            mTileCache.getBitmapPool().clear(); // bitmaps have the wrong configuration now
+            // should toast this
+        } else {
+            Log.e(DEBUG_TAG, "already in small heap mode");
         }
     }
 
@@ -233,6 +469,79 @@ public class MapTileProvider implements ServiceConnection, MapViewConstants {
         }
     }
 
+    /**
+     * Tell the service which tiles are currently needed so that it can prioritize requests and cancel those that are
+     * no longer needed
+     * 
+     * @param rendererId the renderer the tiles are for
+     * @param zoomLevel the current zoom level
+     * @param left left most tile x
+     * @param top top most tile y
+     * @param right right most tile x
+     * @param bottom bottom most tile y
+     */
+    public void setViewport(@NonNull String rendererId, int zoomLevel, int left, int top, int right, int bottom) {
+        if (mTileService != null) {
+            try {
+                mTileService.setViewport(rendererId, zoomLevel, left, top, right, bottom);
+            } catch (RemoteException e) {
+                Log.e(DEBUG_TAG, "RemoteException in setViewport()", e);
+            } catch (Exception e) {
+                Log.e(DEBUG_TAG, "Exception in setViewport()", e);
+            }
+        }
+    }
+
+    /**
+     * Request tiles that will likely be needed soon with low priority
+     * 
+     * Tiles that are already in memory or have been requested for display are skipped, waiting prefetch requests for
+     * tiles not in the arrays are cancelled by the service, so an empty request cancels all of them.
+     * 
+     * @param rendererId the renderer the tiles are for
+     * @param zoomLevels the zoom levels of the tiles
+     * @param xs the x tile numbers
+     * @param ys the y tile numbers
+     * @param count the number of tiles in the arrays
+     */
+    public void prefetch(@NonNull String rendererId, @NonNull int[] zoomLevels, @NonNull int[] xs, @NonNull int[] ys, int count) {
+        if (mTileService == null) {
+            return;
+        }
+        int[] z = new int[count];
+        int[] x = new int[count];
+        int[] y = new int[count];
+        int size = 0;
+        MapTile tile = new MapTile(rendererId, 0, 0, 0);
+        for (int i = 0; i < count; i++) {
+            tile.zoomLevel = zoomLevels[i];
+            tile.x = xs[i];
+            tile.y = ys[i];
+            tile.reinit();
+            if (mTileCache.containsTile(tile)) {
+                continue;
+            }
+            synchronized (pending) {
+                Long previous = pending.get(tile.toId());
+                if (previous != null && previous != PREFETCH_OWNER) {
+                    continue;
+                }
+                pending.put(tile.toId(), PREFETCH_OWNER);
+            }
+            z[size] = tile.zoomLevel;
+            x[size] = tile.x;
+            y[size] = tile.y;
+            size++;
+        }
+        try {
+            mTileService.prefetchMapTiles(rendererId, Arrays.copyOf(z, size), Arrays.copyOf(x, size), Arrays.copyOf(y, size), mServiceCallback);
+        } catch (RemoteException e) {
+            Log.e(DEBUG_TAG, "RemoteException in prefetch()", e);
+        } catch (Exception e) {
+            Log.e(DEBUG_TAG, "Exception in prefetch()", e);
+        }
+    }
+
     /**
      * Flush the tile cache for a specific provider
      * 
@@ -281,53 +590,40 @@ public class MapTileProvider implements ServiceConnection, MapViewConstants {
 
         // @Override
         public void mapTileLoaded(final String rendererID, final int zoomLevel, final int tileX, final int tileY, final byte[] data) throws RemoteException {
-            BitmapFactory.Options options = new BitmapFactory.Options();
-            if (smallHeap) {
-                options.inPreferredConfig = Bitmap.Config.RGB_565;
-            } else {
-                options.inPreferredConfig = Bitmap.Config.ARGB_8888;
-            }
-
-            MapTile t = new MapTile(rendererID, zoomLevel, tileX, tileY);
-            String id = t.toId();
-            try {
-                Bitmap tileBitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
-                if (tileBitmap == null) {
-                    Log.d(DEBUG_TAG, "decoded tile is null");
-                    throw new RemoteException();
-                }
-                Long l = pending.get(t.toId());
-                if (l != null) {
-                    mTileCache.putTile(t, tileBitmap, l);
-                } // else wasn't in pending queue just ignore
-                mDownloadFinishedHandler.sendEmptyMessage(MapTile.MAPTILE_SUCCESS_ID);
-                // Log.d(DEBUGTAG, "Sending tile success message");
-            } catch (StorageException | OutOfMemoryError e) {
-                // unable to cache tile
-                Log.w(DEBUG_TAG, "mapTileLoaded got " + e.getMessage());
-                setSmallHeapMode();
-            } catch (NullPointerException npe) {
-                Log.d(DEBUG_TAG, "Exception in mapTileLoaded callback " + npe);
+            if (data == null) {
                 throw new RemoteException();
-            } finally {
-                pending.remove(id);
             }
-            if (DEBUGMODE) {
-                Log.i(DEBUG_TAG, "MapTile download success." + t.toString());
+            // decoding is done on our own threads so that the loader threads of the service are not held up
+            synchronized (decodeQueue) {
+                decodeQueue.add(new DecodeRequest(new MapTile(rendererID, zoomLevel, tileX, tileY), data));
             }
+            decoder.execute(decodeNext);
         }
 
-        /**
-         * Switch to "small heap mode" which uses tiles with slightly less quality
-         */
-        public void setSmallHeapMode() {
-            if (!smallHeap) { // reduce tile size to half
-                smallHeap = true;
-                mTileCache.clear();
-                // should toast this
-            } else {
-                Log.e(DEBUG_TAG, "already in small heap mode");
+        // @Override
+        public void mapTileLoadedFromDescriptor(final String rendererID, final int zoomLevel, final int tileX, final int tileY,
+                final ParcelFileDescriptor aImage) throws RemoteException {
+            if (aImage == null) {
+                throw new RemoteException();
+            }
+            // the Binder only owns the descriptor for the duration of the call
+            ParcelFileDescriptor pfd;
+            try {
+                pfd = aImage.dup();
+            } catch (IOException e) {
+                Log.e(DEBUG_TAG, "Duplicating descriptor failed " + e.getMessage());
+                return;
+            } finally {
+                try {
+                    aImage.close();
+                } catch (IOException e) {
+                    Log.e(DEBUG_TAG, "Closing descriptor failed " + e.getMessage());
+                }
+            }
+            synchronized (decodeQueue) {
+                decodeQueue.add(new DecodeRequest(new MapTile(rendererID, zoomLevel, tileX, tileY), pfd));
             }
+            decoder.execute(decodeNext);
         }
 
         // @Override
@@ -340,7 +636,7 @@ public class MapTileProvider implements ServiceConnection, MapViewConstants {
                     try {
                         Long l = pending.get(t.toId());
                         if (l != null) {
-                            mTileCache.putTile(t, getNoTilesTile(), false, l);
+                            cacheTile(t, getNoTilesTile(), false, l);
                         }
                     } catch (StorageException e) {
                         Log.w(DEBUG_TAG, "mapTileFailed got " + e.getMessage());
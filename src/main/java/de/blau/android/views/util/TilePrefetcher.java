@@ -0,0 +1,298 @@
+package de.blau.android.views.util;
+
+/**
+ * Predict which tiles will be needed next from how the displayed area changes between draws
+ * 
+ * Panning and flinging are followed by tracking the velocity of the centre of the displayed area, pinch zooming by
+ * tracking the direction its size changes in. The predicted tiles are those that will come in to view if the current
+ * motion continues, plus, while zooming, the central tiles of the next zoom level.
+ * 
+ * @author simon
+ *
+ */
+public class TilePrefetcher {
+
+    /**
+     * How far in to the future we predict in ms
+     */
+    static final long LOOKAHEAD = 750;
+
+    /**
+     * If draws are further apart than this in ms the map is no longer moving
+     */
+    static final long MAX_INTERVAL = 300;
+
+    /**
+     * Weight of the most recent measurement in the velocity estimate
+     */
+    private static final double SMOOTHING = 0.5d;
+
+    /**
+     * Minimum predicted movement in tiles before we prefetch in the direction of movement
+     */
+    private static final double MIN_MOVEMENT = 0.1d;
+
+    /**
+     * Minimum relative change of the displayed width that counts as zooming
+     */
+    private static final double MIN_ZOOM_CHANGE = 0.01d;
+
+    private final int budget;
+
+    private int[] zoomLevels;
+    private int[] xs;
+    private int[] ys;
+    private int   count = 0;
+
+    private int[] prevZoomLevels;
+    private int[] prevXs;
+    private int[] prevYs;
+    private int   prevCount = 0;
+
+    private long   lastTime = -1;
+    private int    lastZoom;
+    private double lastCentreX;
+    private double lastCentreY;
+    private double lastWidth;
+    private double velocityX     = 0d; // tiles per ms at lastZoom
+    private double velocityY     = 0d;
+    private int    zoomDirection = 0;
+
+    /**
+     * Construct a new predictor
+     * 
+     * @param budget the maximum number of tiles to predict
+     */
+    public TilePrefetcher(int budget) {
+        this.budget = budget;
+        zoomLevels = new int[budget];
+        xs = new int[budget];
+        ys = new int[budget];
+        prevZoomLevels = new int[budget];
+        prevXs = new int[budget];
+        prevYs = new int[budget];
+    }
+
+    /**
+     * Forget any previous motion
+     */
+    public void reset() {
+        lastTime = -1;
+        velocityX = 0d;
+        velocityY = 0d;
+        zoomDirection = 0;
+        count = 0;
+        prevCount = 0;
+    }
+
+    /**
+     * Update the prediction with the area shown by the current draw
+     * 
+     * Coordinates are fractional tile numbers at the zoom level, x tile numbers wrap around the antimeridian
+     * 
+     * @param zoom the zoom level of the tiles that are displayed
+     * @param minZoom the minimum zoom level of the layer
+     * @param maxZoom the maximum zoom level of the layer
+     * @param left left edge of the displayed area
+     * @param top top edge of the displayed area
+     * @param right right edge of the displayed area
+     * @param bottom bottom edge of the displayed area
+     * @param time the time of the draw in ms
+     * @return true if the predicted tiles have changed
+     */
+    public boolean update(int zoom, int minZoom, int maxZoom, double left, double top, double right, double bottom, long time) {
+        double centreX = (left + right) / 2d;
+        double centreY = (top + bottom) / 2d;
+        double width = right - left;
+        long interval = time - lastTime;
+        if (lastTime < 0 || interval > MAX_INTERVAL) {
+            velocityX = 0d;
+            velocityY = 0d;
+            zoomDirection = 0;
+        } else if (interval > 0) {
+            // values from the previous draw in tile numbers of the current zoom level
+            double scale = Math.pow(2d, (double) zoom - lastZoom);
+            double dx = (centreX - lastCentreX * scale) / interval;
+            double dy = (centreY - lastCentreY * scale) / interval;
+            velocityX = velocityX * scale * (1 - SMOOTHING) + dx * SMOOTHING;
+            velocityY = velocityY * scale * (1 - SMOOTHING) + dy * SMOOTHING;
+            double change = width / (lastWidth * scale);
+            if (change < 1 - MIN_ZOOM_CHANGE) {
+                zoomDirection = 1;
+            } else if (change > 1 + MIN_ZOOM_CHANGE) {
+                zoomDirection = -1;
+            } else {
+                zoomDirection = 0;
+            }
+        }
+        lastTime = time;
+        lastZoom = zoom;
+        lastCentreX = centreX;
+        lastCentreY = centreY;
+        lastWidth = width;
+
+        swap();
+        count = 0;
+        int nextZoom = zoom + zoomDirection;
+        if (zoomDirection != 0 && nextZoom >= minZoom && nextZoom <= maxZoom) {
+            // at the next zoom level the displayed area will have the same size in tiles
+            double scale = Math.pow(2d, zoomDirection);
+            double halfWidth = width / 2d;
+            double halfHeight = (bottom - top) / 2d;
+            // nothing is displayed at the next zoom level, signalled by an empty range
+            addTiles(nextZoom, centreX * scale - halfWidth, centreY * scale - halfHeight, centreX * scale + halfWidth, centreY * scale + halfHeight,
+                    Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE);
+        }
+        double dx = velocityX * LOOKAHEAD;
+        double dy = velocityY * LOOKAHEAD;
+        if (zoom >= minZoom && Math.sqrt(dx * dx + dy * dy) >= MIN_MOVEMENT) {
+            addTiles(zoom, left + dx, top + dy, right + dx, bottom + dy, (int) Math.floor(left), (int) Math.floor(top), (int) Math.floor(right),
+                    (int) Math.floor(bottom));
+        }
+        return !equalsPrevious();
+    }
+
+    /**
+     * Add the tiles in an area that are not already displayed, closest to the displayed area first, up to the budget
+     * 
+     * @param zoom the zoom level
+     * @param left left edge of the area
+     * @param top top edge of the area
+     * @param right right edge of the area
+     * @param bottom bottom edge of the area
+     * @param shownLeft left most displayed tile
+     * @param shownTop top most displayed tile
+     * @param shownRight right most displayed tile
+     * @param shownBottom bottom most displayed tile
+     */
+    private void addTiles(int zoom, double left, double top, double right, double bottom, int shownLeft, int shownTop, int shownRight,
+            int shownBottom) {
+        int l = (int) Math.floor(left);
+        int t = (int) Math.floor(top);
+        int r = (int) Math.floor(right);
+        int b = (int) Math.floor(bottom);
+        int cx = (l + r) / 2;
+        int cy = (t + b) / 2;
+        boolean shown = shownLeft <= shownRight;
+        int mask = (1 << zoom) - 1;
+        int maxRing = Math.max(r - l, b - t) + 1;
+        if (shown) {
+            maxRing = Math.max(maxRing, Math.max(Math.max(outside(l, shownLeft, shownRight), outside(r, shownLeft, shownRight)),
+                    Math.max(outside(t, shownTop, shownBottom), outside(b, shownTop, shownBottom))));
+        }
+        for (int ring = shown ? 1 : 0; ring <= maxRing; ring++) {
+            for (int y = t; y <= b; y++) {
+                if (y < 0 || y > mask) {
+                    continue;
+                }
+                for (int x = l; x <= r; x++) {
+                    int distance = shown ? Math.max(outside(x, shownLeft, shownRight), outside(y, shownTop, shownBottom))
+                            : Math.max(Math.abs(x - cx), Math.abs(y - cy));
+                    if (distance != ring) {
+                        continue;
+                    }
+                    if (count >= budget) {
+                        return;
+                    }
+                    zoomLevels[count] = zoom;
+                    xs[count] = x & mask;
+                    ys[count] = y;
+                    count++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Get how far a tile number is outside of a range
+     * 
+     * @param value the tile number
+     * @param min start of the range
+     * @param max end of the range
+     * @return 0 if value is in the range, otherwise the distance to it
+     */
+    private static int outside(int value, int min, int max) {
+        if (value < min) {
+            return min - value;
+        }
+        return value > max ? value - max : 0;
+    }
+
+    /**
+     * Keep the current prediction for comparison with the next one
+     */
+    private void swap() {
+        int[] temp = prevZoomLevels;
+        prevZoomLevels = zoomLevels;
+        zoomLevels = temp;
+        temp = prevXs;
+        prevXs = xs;
+        xs = temp;
+        temp = prevYs;
+        prevYs = ys;
+        ys = temp;
+        prevCount = count;
+    }
+
+    /**
+     * Check if the current prediction is the same as the previous one
+     * 
+     * @return true if nothing changed
+     */
+    private boolean equalsPrevious() {
+        if (count != prevCount) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            if (zoomLevels[i] != prevZoomLevels[i] || xs[i] != prevXs[i] || ys[i] != prevYs[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the maximum number of tiles that are predicted
+     * 
+     * @return the budget
+     */
+    public int getBudget() {
+        return budget;
+    }
+
+    /**
+     * Get the number of predicted tiles
+     * 
+     * @return the number of tiles
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Get the zoom levels of the predicted tiles, only the first getCount() entries are valid
+     * 
+     * @return an array of zoom levels
+     */
+    public int[] getZoomLevels() {
+        return zoomLevels;
+    }
+
+    /**
+     * Get the x tile numbers of the predicted tiles, only the first getCount() entries are valid
+     * 
+     * @return an array of tile numbers
+     */
+    public int[] getXs() {
+        return xs;
+    }
+
+    /**
+     * Get the y tile numbers of the predicted tiles, only the first getCount() entries are valid
+     * 
+     * @return an array of tile numbers
+     */
+    public int[] getYs() {
+        return ys;
+    }
+}
@@ -0,0 +1,264 @@
+package de.blau.android.util.rtree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import de.blau.android.osm.BoundingBox;
+import de.blau.android.osm.Node;
+import de.blau.android.osm.OsmElement;
+import de.blau.android.osm.OsmElementFactory;
+
+public class RTreeTest {
+
+    private static final int NODES    = 20000;
+    private static final int QUERIES  = 1000;
+    private static final int MAX      = (int) BoundingBox.MAX_LAT_E7;
+    private static final int MAX_SIZE = 50;
+
+    /**
+     * Check that bulk loaded trees and trees built with the quadratic and the R* split return the same results as a
+     * linear scan for all query variants
+     */
+    @Test
+    public void queries() {
+        List<Node> nodes = nodes(new Random(1));
+        RTree bulk = new RTree(2, 20, nodes);
+        RTree quadratic = new RTree(2, 20);
+        RTree rStar = new RTree(2, 20, true);
+        for (Node n : nodes) {
+            quadratic.insert(n);
+            rStar.insert(n);
+        }
+        assertEquals(NODES, bulk.count());
+        assertEquals(NODES, quadratic.count());
+        assertEquals(NODES, rStar.count());
+        for (Node n : nodes) {
+            assertTrue(bulk.contains(n));
+            assertTrue(quadratic.contains(n));
+            assertTrue(rStar.contains(n));
+        }
+        Random random = new Random(2);
+        for (int i = 0; i < QUERIES; i++) {
+            BoundingBox box = box(random);
+            Collection<BoundedObject> expected = new HashSet<>();
+            for (Node n : nodes) {
+                if (box.contains(n.getLon(), n.getLat())) {
+                    expected.add(n);
+                }
+            }
+            Collection<BoundedObject> result = new HashSet<>();
+            bulk.query(result, box);
+            assertEquals(expected, result);
+            result.clear();
+            quadratic.query(result, box);
+            assertEquals(expected, result);
+            result.clear();
+            rStar.query(result, box);
+            assertEquals(expected, result);
+            List<Node> typed = new ArrayList<>();
+            bulk.query(typed, box.getLeft(), box.getBottom(), box.getRight(), box.getTop());
+            assertEquals(expected, new HashSet<>(typed));
+            final Collection<BoundedObject> visited = new HashSet<>();
+            rStar.query(new RTree.Visitor() {
+                @Override
+                public void visit(BoundedObject o) {
+                    visited.add(o);
+                }
+            }, box.getLeft(), box.getBottom(), box.getRight(), box.getTop());
+            assertEquals(expected, visited);
+        }
+        // small inputs
+        assertEquals(0, new RTree(2, 20, new ArrayList<Node>()).count());
+        assertEquals(1, new RTree(2, 20, nodes.subList(0, 1)).count());
+        assertEquals(21, new RTree(2, 20, nodes.subList(0, 21)).count());
+    }
+
+    /**
+     * Check that queries running concurrently with inserts and removals always see a consistent tree
+     * 
+     * @throws InterruptedException if interrupted while waiting for the reader
+     */
+    @Test
+    public void concurrentQueries() throws InterruptedException {
+        final List<Node> nodes = nodes(new Random(5));
+        final RTree tree = new RTree(2, 20, true);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final BoundingBox world = new BoundingBox(-MAX, -MAX, MAX, MAX);
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int last = 0;
+                    while (last < NODES) {
+                        List<BoundedObject> result = new ArrayList<>();
+                        tree.query(result, world);
+                        assertEquals(result.size(), new HashSet<>(result).size());
+                        assertTrue(result.size() >= last);
+                        last = result.size();
+                    }
+                } catch (Throwable t) { // NOSONAR
+                    failure.set(t);
+                }
+            }
+        });
+        reader.start();
+        for (Node n : nodes) {
+            tree.insert(n);
+        }
+        reader.join();
+        assertNull(failure.get());
+
+        reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int last = NODES;
+                    while (last > 0) {
+                        List<BoundedObject> result = new ArrayList<>();
+                        tree.query(result, world);
+                        assertEquals(result.size(), new HashSet<>(result).size());
+                        assertTrue(result.size() <= last);
+                        last = result.size();
+                    }
+                } catch (Throwable t) { // NOSONAR
+                    failure.set(t);
+                }
+            }
+        });
+        reader.start();
+        for (Node n : nodes) {
+            tree.remove(n);
+        }
+        reader.join();
+        assertNull(failure.get());
+        assertEquals(0, tree.count());
+    }
+
+    /**
+     * Compare the nodes visited per query for the different ways of building a tree
+     * 
+     * Every query has to visit at least the root, a query for a box this small should only need to descend in to a
+     * small fraction of the leaves.
+     */
+    @Test
+    public void visits() {
+        List<Node> nodes = nodes(new Random(3));
+        List<BoundingBox> boxes = new ArrayList<>();
+        Random random = new Random(4);
+        for (int i = 0; i < QUERIES; i++) {
+            boxes.add(box(random));
+        }
+        long maxVisits = (long) QUERIES * NODES / MAX_SIZE / 4;
+
+        RTree quadratic = new RTree(2, MAX_SIZE);
+        for (Node n : nodes) {
+            quadratic.insert(n);
+        }
+        long quadraticVisits = visits(quadratic, boxes);
+        assertTrue(quadraticVisits >= QUERIES);
+        assertTrue(quadraticVisits < maxVisits);
+
+        RTree rStar = new RTree(2, MAX_SIZE, true);
+        for (Node n : nodes) {
+            rStar.insert(n);
+        }
+        long rStarVisits = visits(rStar, boxes);
+        assertTrue(rStarVisits >= QUERIES);
+        assertTrue(rStarVisits < maxVisits);
+
+        long bulkVisits = visits(new RTree(2, MAX_SIZE, nodes), boxes);
+        assertTrue(bulkVisits >= QUERIES);
+        assertTrue(bulkVisits <= quadraticVisits);
+        assertTrue(bulkVisits <= rStarVisits);
+    }
+
+    /**
+     * Compare the time it takes to build a tree with the quadratic split, the R* split and STR bulk loading
+     * 
+     * Timings are only reported, apart from bulk loading being expected to be faster than inserting with the R* split,
+     * the number of nodes visited by queries is checked in visits.
+     */
+    @Test
+    public void buildTime() {
+        List<Node> nodes = nodes(new Random(3));
+        // warm up so that the first measurement doesn't include class loading and JIT compilation
+        new RTree(2, MAX_SIZE, nodes);
+
+        long start = System.currentTimeMillis();
+        RTree quadratic = new RTree(2, MAX_SIZE);
+        for (Node n : nodes) {
+            quadratic.insert(n);
+        }
+        long quadraticMs = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        RTree rStar = new RTree(2, MAX_SIZE, true);
+        for (Node n : nodes) {
+            rStar.insert(n);
+        }
+        long rStarMs = System.currentTimeMillis() - start;
+
+        start = System.currentTimeMillis();
+        RTree bulk = new RTree(2, MAX_SIZE, nodes);
+        long bulkMs = System.currentTimeMillis() - start;
+
+        System.out.println(
+                "Build " + NODES + " nodes: quadratic insert " + quadraticMs + "ms, R* insert " + rStarMs + "ms, STR bulk load " + bulkMs + "ms");
+        assertEquals(NODES, quadratic.count());
+        assertEquals(NODES, rStar.count());
+        assertEquals(NODES, bulk.count());
+        assertTrue(bulkMs <= rStarMs);
+    }
+
+    /**
+     * Count the nodes visited for a set of queries
+     * 
+     * @param tree the tree
+     * @param boxes the queries
+     * @return the total number of nodes visited
+     */
+    private long visits(RTree tree, List<BoundingBox> boxes) {
+        long visits = 0;
+        for (BoundingBox box : boxes) {
+            visits += tree.queryVisits(box);
+        }
+        return visits;
+    }
+
+    /**
+     * Create randomly placed Nodes
+     * 
+     * @param random the source of randomness
+     * @return a List of Nodes
+     */
+    private List<Node> nodes(Random random) {
+        List<Node> nodes = new ArrayList<>(NODES);
+        for (long i = 0; i < NODES; i++) {
+            nodes.add(OsmElementFactory.createNode(i, 1L, System.currentTimeMillis() / 1000, OsmElement.STATE_CREATED, random.nextInt(MAX),
+                    random.nextInt(MAX)));
+        }
+        return nodes;
+    }
+
+    /**
+     * Create a small randomly placed BoundingBox
+     * 
+     * @param random the source of randomness
+     * @return a BoundingBox
+     */
+    private BoundingBox box(Random random) {
+        int left = random.nextInt(MAX);
+        int bottom = random.nextInt(MAX);
+        return new BoundingBox(left, bottom, left + MAX / 100, bottom + MAX / 100);
+    }
+}